@@ -410,11 +410,9 @@ public class AddBookmarkFolder extends Activity implements View.OnClickListener,
         @Override
         public void onLoadFinished(Loader<EditBookmarkInfo> loader, EditBookmarkInfo info) {
             boolean setAccount = false;
-            // TODO: Detect if lastUsedId is a subfolder of info.id in the
-            // editing folder case. For now, just don't show the last used
-            // folder at all to prevent any chance of the user adding a parent
-            // folder to a child folder
-            if (info.mLastUsedId != -1 && info.mLastUsedId != info.mId) {
+            // Don't offer the last used folder if it is inside the folder
+            // being edited, the user could add a parent folder to a child
+            if (info.mLastUsedId != -1 && !info.mLastUsedInsideEdited) {
                 if (setAccount && info.mLastUsedId != mRootFolder
                         && TextUtils.equals(info.mLastUsedAccountName, info.mAccountName)
                         && TextUtils.equals(info.mLastUsedAccountType, info.mAccountType)) {
@@ -877,6 +875,9 @@ public class AddBookmarkFolder extends Activity implements View.OnClickListener,
         String mLastUsedAccountName;
 
         String mLastUsedAccountType;
+
+        // Whether the last used folder is the edited item or inside it
+        boolean mLastUsedInsideEdited;
     }
 
     static class EditBookmarkInfoLoader extends AsyncTaskLoader<EditBookmarkInfo> {
@@ -958,6 +959,10 @@ public class AddBookmarkFolder extends Activity implements View.OnClickListener,
                         info.mLastUsedAccountType = c.getString(2);
                     }
                     c.close();
+                    if (info.mLastUsedId != -1 && info.mId != -1) {
+                        info.mLastUsedInsideEdited = AddBookmarkPage.EditBookmarkInfoLoader
+                                .isOnPath(cr, info.mLastUsedId, info.mId);
+                    }
                 }
             } catch (Exception e) {
                 return info;
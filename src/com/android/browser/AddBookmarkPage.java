@@ -451,12 +451,9 @@ public class AddBookmarkPage extends Activity
                 mCurrentFolder = info.parentId;
                 onCurrentFolderFound();
             }
-            // TODO: Detect if lastUsedId is a subfolder of info.id in the
-            // editing folder case. For now, just don't show the last used
-            // folder at all to prevent any chance of the user adding a parent
-            // folder to a child folder
-            if (info.lastUsedId != -1 && info.lastUsedId != info.id
-                    && !mEditingFolder) {
+            // Don't offer the last used folder if it is inside the folder
+            // being edited, the user could add a parent folder to a child
+            if (info.lastUsedId != -1 && !info.lastUsedInsideEdited) {
                 if (setAccount && info.lastUsedId != mRootFolder
                         && TextUtils.equals(info.lastUsedAccountName, info.accountName)
                         && TextUtils.equals(info.lastUsedAccountType, info.accountType)) {
@@ -1230,6 +1227,8 @@ public class AddBookmarkPage extends Activity
         String lastUsedTitle;
         String lastUsedAccountName;
         String lastUsedAccountType;
+        // Whether the last used folder is the edited item or inside it
+        boolean lastUsedInsideEdited;
     }
 
     static class EditBookmarkInfoLoader extends AsyncTaskLoader<EditBookmarkInfo> {
@@ -1314,6 +1313,9 @@ public class AddBookmarkPage extends Activity
                         info.lastUsedAccountType = c.getString(2);
                     }
                     c.close();
+                    if (info.lastUsedId != -1 && info.id != -1) {
+                        info.lastUsedInsideEdited = isOnPath(cr, info.lastUsedId, info.id);
+                    }
                 }
             } finally {
                 if (c != null) {
@@ -1324,6 +1326,28 @@ public class AddBookmarkPage extends Activity
             return info;
         }
 
+        /**
+         * Returns whether the folder is the item or one of the folders
+         * above it.
+         */
+        static boolean isOnPath(ContentResolver cr, long id, long folderId) {
+            Cursor c = cr.query(BrowserContract.Bookmarks.buildPathUri(id),
+                    new String[] { BrowserContract.Bookmarks._ID }, null, null, null);
+            if (c == null) {
+                return false;
+            }
+            try {
+                while (c.moveToNext()) {
+                    if (c.getLong(0) == folderId) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                c.close();
+            }
+        }
+
         @Override
         protected void onStartLoading() {
             forceLoad();
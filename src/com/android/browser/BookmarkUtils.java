@@ -18,12 +18,10 @@ package com.android.browser;
 
 import android.app.ActivityManager;
 import android.app.AlertDialog;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -269,28 +267,6 @@ public class BookmarkUtils {
      * @param id Id of the bookmark to remove.
      */
     private static void removeBookmarkOrFolder(Context context, long id) {
-        Cursor cursor = context.getContentResolver().query(Bookmarks.CONTENT_URI,
-                new String[] {Bookmarks._ID},
-                Bookmarks.PARENT + "=?",
-                new String[] {Long.toString(id)},
-                null);
-
-        if (cursor != null) {
-            try {
-                if (cursor.moveToFirst()) {
-                    do {
-                        removeBookmarkOrFolder(context,
-                                cursor.getLong(cursor.getColumnIndex(Bookmarks._ID)));
-                    } while (cursor.moveToNext());
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                cursor.close();
-            }
-        }
-
-        context.getContentResolver().delete(
-                ContentUris.withAppendedId(Bookmarks.CONTENT_URI, id), null, null);
+        context.getContentResolver().delete(Bookmarks.buildSubtreeUri(id), null, null);
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.util.LongHashSet;
+
+/**
+ * Keeps the fingerprints of all bookmarked urls in memory so the bookmark
+ * star can be answered on the caller's thread. The set is loaded in the
+ * background and thrown away whenever bookmarks change, until the reload
+ * finishes {@link #isBookmarked} returns null and callers have to ask the
+ * provider.
+ */
+class BookmarkedUrls {
+    private static final String LOGTAG = "BookmarkedUrls";
+
+    private final Context mContext;
+    private volatile LongHashSet mUrls;
+    // Bumped by every change, a load only counts if it saw no change
+    private int mGeneration;
+    private boolean mLoading;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private final Runnable mLoader = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                int generation;
+                synchronized (BookmarkedUrls.this) {
+                    generation = mGeneration;
+                }
+                LongHashSet urls = load();
+                synchronized (BookmarkedUrls.this) {
+                    if (urls == null || generation == mGeneration) {
+                        mUrls = urls;
+                        mLoading = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    BookmarkedUrls(Context context) {
+        mContext = context;
+        context.getContentResolver().registerContentObserver(
+                BrowserContract.Bookmarks.CONTENT_URI, true, mObserver);
+        invalidate();
+    }
+
+    /**
+     * Returns whether the url is bookmarked, or null if that isn't known yet.
+     */
+    Boolean isBookmarked(String url) {
+        LongHashSet urls = mUrls;
+        if (urls == null) {
+            return null;
+        }
+        return urls.contains(LongHashSet.fingerprint(url));
+    }
+
+    /**
+     * Drops the set and reloads it in the background. Called when bookmarks
+     * change; the observer alone may run after other observers of the same
+     * change have already asked.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mUrls = null;
+        if (!mLoading) {
+            mLoading = true;
+            BackgroundHandler.execute(mLoader);
+        }
+    }
+
+    private LongHashSet load() {
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(
+                    BookmarkUtils.getBookmarksUri(mContext),
+                    new String[] { BrowserContract.Bookmarks.URL },
+                    BrowserContract.Bookmarks.URL + " IS NOT NULL", null, null);
+            if (c == null) {
+                return null;
+            }
+            LongHashSet urls = new LongHashSet(c.getCount());
+            while (c.moveToNext()) {
+                urls.add(LongHashSet.fingerprint(c.getString(0)));
+            }
+            return urls;
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading bookmarks: " + e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+}
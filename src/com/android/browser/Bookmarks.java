@@ -25,7 +25,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 
 import com.android.browser.R;
@@ -182,62 +181,57 @@ public class Bookmarks {
     /**
      * Update the bookmark's favicon. This is a convenience method for updating
      * a bookmark favicon for the originalUrl and url of the passed in WebView.
+     * Writes on the calling thread, so call it off the UI thread, once the
+     * history of the urls is written, so the images can't be pruned as
+     * unreferenced in between. DataController.updateFavicon does both.
      * @param cr The ContentResolver to use.
      * @param originalUrl The original url before any redirects.
      * @param url The current url.
      * @param favicon The favicon bitmap to write to the db.
      */
-    /* package */ static void updateFavicon(final ContentResolver cr,
-            final String originalUrl, final String url, final Bitmap favicon) {
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... unused) {
-                final ByteArrayOutputStream os = new ByteArrayOutputStream();
-                favicon.compress(Bitmap.CompressFormat.PNG, 100, os);
-                byte[] image = os.toByteArray();
-
-                // The Images update will insert if it doesn't exist
-                ContentValues values = new ContentValues();
-                values.put(Images.FAVICON, image);
-                values.put(Images.THUMBNAIL, image);
-
-                updateImages(cr, removeQuery(originalUrl), values);
-                updateImages(cr, removeQuery(url), values);
-
-                Cursor cursor = null;
-                try {
-                    cursor = queryCombinedForUrl(cr, originalUrl, url);
-                    if (cursor != null && cursor.moveToFirst()) {
-                        do {
-                            updateImages(cr, cursor.getString(0), values);
-                        } while (cursor.moveToNext());
-                    }
-
-                    cursor = queryCombinedForUrl(cr, eatTrailingSlash(originalUrl),
-                            eatTrailingSlash(url));
-                    if (cursor != null && cursor.moveToFirst()) {
-                        do {
-                            updateImages(cr, cursor.getString(0), values);
-                        } while (cursor.moveToNext());
-                    }
-                } catch (IllegalStateException e) {
-                    // Ignore
-                } catch (SQLiteException s) {
-                    // Ignore
-                } finally {
-                    if (cursor != null) cursor.close();
-                }
-
-                return null;
+    /* package */ static void updateFavicon(ContentResolver cr,
+            String originalUrl, String url, Bitmap favicon) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        favicon.compress(Bitmap.CompressFormat.PNG, 100, os);
+        byte[] image = os.toByteArray();
+
+        // The Images update will insert if it doesn't exist
+        ContentValues values = new ContentValues();
+        values.put(Images.FAVICON, image);
+        values.put(Images.THUMBNAIL, image);
+
+        updateImages(cr, removeQuery(originalUrl), values);
+        updateImages(cr, removeQuery(url), values);
+
+        Cursor cursor = null;
+        try {
+            cursor = queryCombinedForUrl(cr, originalUrl, url);
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    updateImages(cr, cursor.getString(0), values);
+                } while (cursor.moveToNext());
             }
 
-            private void updateImages(final ContentResolver cr,
-                                      final String url, ContentValues values) {
-                if (!TextUtils.isEmpty(url)) {
-                    values.put(Images.URL, url);
-                    cr.update(BrowserContract.Images.CONTENT_URI, values, null, null);
-                }
+            cursor = queryCombinedForUrl(cr, eatTrailingSlash(originalUrl),
+                    eatTrailingSlash(url));
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    updateImages(cr, cursor.getString(0), values);
+                } while (cursor.moveToNext());
             }
-        }.execute();
+        } catch (IllegalStateException e) {
+            // Ignore
+        } catch (SQLiteException s) {
+            // Ignore
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static void updateImages(ContentResolver cr, String url, ContentValues values) {
+        if (!TextUtils.isEmpty(url)) {
+            values.put(Images.URL, url);
+            cr.update(BrowserContract.Images.CONTENT_URI, values, null, null);
+        }
     }
 }
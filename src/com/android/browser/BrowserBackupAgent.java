@@ -19,23 +19,30 @@ package com.android.browser;
 import android.app.backup.BackupAgent;
 import android.app.backup.BackupDataInput;
 import android.app.backup.BackupDataOutput;
-import android.content.ContentValues;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 
 import com.android.browser.platformsupport.BrowserContract;
 import com.android.browser.platformsupport.BrowserContract.Bookmarks;
 
 import android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.zip.CRC32;
 
 /**
@@ -44,6 +51,11 @@ import java.util.zip.CRC32;
  * out of the agent; the calling code handles it and the backup operation
  * simply fails.
  *
+ * Bookmarks are backed up in chunks, one entity per range of
+ * BOOKMARKS_PER_CHUNK bookmark ids, each ending in the CRC of its records.
+ * The state file keeps the CRC of every chunk, so a backup only rewrites
+ * the chunks whose bookmarks changed and deletes the ones left empty.
+ *
  * @hide
  */
 public class BrowserBackupAgent extends BackupAgent {
@@ -51,127 +63,219 @@ public class BrowserBackupAgent extends BackupAgent {
     static final boolean DEBUG = false;
 
     static final String BOOKMARK_KEY = "_bookmarks_";
+    static final String CHUNK_KEY_PREFIX = "_bookmarks_chunk_";
     /** this version num MUST be incremented if the flattened-file schema ever changes */
-    static final int BACKUP_AGENT_VERSION = 0;
+    static final int BACKUP_AGENT_VERSION = 1;
+
+    static final int BOOKMARKS_PER_CHUNK = 64;
+
+    // Starts a chunked state file, where the old state started with a file size
+    static final long CHUNKED_STATE_MARKER = -2;
+
+    // Restored bookmarks are inserted this many at a time, one transaction each
+    static final int OPERATIONS_PER_BATCH = 256;
+
+    static final String[] BACKUP_PROJECTION = new String[] {
+            Bookmarks._ID,
+            Bookmarks.URL,
+            Bookmarks.TITLE,
+            Bookmarks.DATE_CREATED,
+            Bookmarks.DATE_MODIFIED,
+    };
 
     /**
-     * This simply preserves the existing state as we now prefer Chrome Sync
-     * to handle bookmark backup.
+     * Writes the chunks whose CRC differs from the one in the old state and
+     * deletes the chunks that no longer hold any bookmarks. The first
+     * chunked backup also deletes the flattened file of older backups.
      */
     @Override
     public void onBackup(ParcelFileDescriptor oldState, BackupDataOutput data,
             ParcelFileDescriptor newState) throws IOException {
-        long savedFileSize = -1;
-        long savedCrc = -1;
-        int savedVersion = -1;
+        HashMap<Integer, Long> savedChunks = readBackupState(oldState);
+        if (savedChunks == null) {
+            data.writeEntityHeader(BOOKMARK_KEY, -1);
+            savedChunks = new HashMap<Integer, Long>();
+        }
+        HashMap<Integer, Long> chunks = new HashMap<Integer, Long>();
 
-        // Extract the previous bookmark file size & CRC from the saved state
-        DataInputStream in = new DataInputStream(
-                new FileInputStream(oldState.getFileDescriptor()));
-        try {
-            savedFileSize = in.readLong();
-            savedCrc = in.readLong();
-            savedVersion = in.readInt();
-        } catch (EOFException e) {
-            // It means we had no previous state; that's fine
+        Cursor cursor = getContentResolver().query(Bookmarks.CONTENT_URI,
+                BACKUP_PROJECTION, Bookmarks.IS_FOLDER + " = 0", null, Bookmarks._ID + " ASC");
+        if (cursor == null) {
             return;
+        }
+        try {
+            ArrayList<Bookmark> chunk = new ArrayList<Bookmark>(BOOKMARKS_PER_CHUNK);
+            int index = -1;
+            while (cursor.moveToNext()) {
+                int bookmarkIndex = (int) (cursor.getLong(0) / BOOKMARKS_PER_CHUNK);
+                if (bookmarkIndex != index && !chunk.isEmpty()) {
+                    backupChunk(index, chunk, savedChunks, chunks, data);
+                    chunk.clear();
+                }
+                index = bookmarkIndex;
+                Bookmark mark = new Bookmark();
+                mark.url = cursor.getString(1);
+                mark.title = cursor.getString(2);
+                mark.created = cursor.getLong(3);
+                mark.date = cursor.getLong(4);
+                if (mark.url != null) {
+                    chunk.add(mark);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                backupChunk(index, chunk, savedChunks, chunks, data);
+            }
         } finally {
-            if (in != null) {
-                in.close();
+            cursor.close();
+        }
+
+        for (Integer index : savedChunks.keySet()) {
+            if (!chunks.containsKey(index)) {
+                data.writeEntityHeader(CHUNK_KEY_PREFIX + index, -1);
             }
         }
-        // Write the existing state
-        writeBackupState(savedFileSize, savedCrc, newState);
+        writeBackupState(chunks, newState);
+    }
+
+    private void backupChunk(int index, ArrayList<Bookmark> chunk,
+            HashMap<Integer, Long> savedChunks, HashMap<Integer, Long> chunks,
+            BackupDataOutput data) throws IOException {
+        byte[] bytes = flattenChunk(chunk);
+        long crc = readChunkCrc(bytes);
+        chunks.put(index, crc);
+        Long saved = savedChunks.get(index);
+        if (saved == null || saved != crc) {
+            if (DEBUG) Log.v(TAG, "Writing chunk " + index + " of " + chunk.size());
+            data.writeEntityHeader(CHUNK_KEY_PREFIX + index, bytes.length);
+            data.writeEntityData(bytes, bytes.length);
+        }
     }
 
     /**
-     * Restore from backup -- reads in the flattened bookmark file as supplied from
-     * the backup service, parses that out, and rebuilds the bookmarks table in the
-     * browser database from it.
+     * Restore from backup -- streams the chunks, or the flattened bookmark
+     * file of older backups, from the backup service and inserts the
+     * bookmarks the browser doesn't have yet in batches.
      */
     @Override
     public void onRestore(BackupDataInput data, int appVersionCode,
             ParcelFileDescriptor newState) throws IOException {
-        long crc = -1;
-        File tmpfile = File.createTempFile("rst", null, getFilesDir());
-        try {
-            while (data.readNextHeader()) {
-                if (BOOKMARK_KEY.equals(data.getKey())) {
-                    // Read the flattened bookmark data into a temp file
-                    crc = copyBackupToFile(data, tmpfile, data.getDataSize());
-
-                    FileInputStream infstream = new FileInputStream(tmpfile);
-                    DataInputStream in = new DataInputStream(infstream);
-
-                    try {
-                        int count = in.readInt();
-                        ArrayList<Bookmark> bookmarks = new ArrayList<Bookmark>(count);
-
-                        // Read all the bookmarks, then process later -- if we can't read
-                        // all the data successfully, we don't touch the bookmarks table
-                        for (int i = 0; i < count; i++) {
-                            Bookmark mark = new Bookmark();
-                            mark.url = in.readUTF();
-                            mark.visits = in.readInt();
-                            mark.date = in.readLong();
-                            mark.created = in.readLong();
-                            mark.title = in.readUTF();
-                            bookmarks.add(mark);
-                        }
-
-                        // Okay, we have all the bookmarks -- now see if we need to add
-                        // them to the browser's database
-                        int N = bookmarks.size();
-                        int nUnique = 0;
-                        if (DEBUG) Log.v(TAG, "Restoring " + N + " bookmarks");
-                        String[] urlCol = new String[] { Bookmarks.URL };
-                        for (int i = 0; i < N; i++) {
-                            Bookmark mark = bookmarks.get(i);
-
-                            // Does this URL exist in the bookmark table?
-                            Cursor cursor = getContentResolver().query(
-                                    Bookmarks.CONTENT_URI, urlCol,
-                                    Bookmarks.URL + " == ?",
-                                    new String[] { mark.url }, null);
-                            // if not, insert it
-                            if (cursor.getCount() <= 0) {
-                                if (DEBUG) Log.v(TAG, "Did not see url: " + mark.url);
-                                addBookmark(mark);
-                                nUnique++;
-                            } else {
-                                if (DEBUG) Log.v(TAG, "Skipping extant url: " + mark.url);
-                            }
-                            cursor.close();
-                        }
-                        Log.i(TAG, "Restored " + nUnique + " of " + N + " bookmarks");
-                    } catch (IOException ioe) {
-                        Log.w(TAG, "Bad backup data; not restoring");
-                        crc = -1;
-                    } finally {
-                        if (in != null) {
-                            in.close();
-                        }
-                    }
+        RestoreBatch batch = new RestoreBatch(queryBookmarkedUrls());
+        HashMap<Integer, Long> chunks = new HashMap<Integer, Long>();
+        boolean legacy = false;
+        while (data.readNextHeader()) {
+            String key = data.getKey();
+            if (key.startsWith(CHUNK_KEY_PREFIX)) {
+                byte[] bytes = new byte[data.getDataSize()];
+                readFully(data, bytes);
+                int index;
+                try {
+                    index = Integer.parseInt(key.substring(CHUNK_KEY_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Bad chunk key " + key + "; not restoring it");
+                    continue;
                 }
+                try {
+                    batch.addAll(unflattenChunk(bytes));
+                    // Remember it, so the next backup only rewrites it if it changed
+                    chunks.put(index, readChunkCrc(bytes));
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Bad backup chunk " + index + "; not restoring it");
+                }
+            } else if (BOOKMARK_KEY.equals(key)) {
+                // Backups from before the chunks; if we can't read all of it,
+                // we don't touch the bookmarks table
+                legacy = true;
+                DataInputStream in = new DataInputStream(
+                        new EntityInputStream(data, data.getDataSize()));
+                try {
+                    batch.addAll(readBookmarks(in));
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Bad backup data; not restoring");
+                } finally {
+                    in.close();
+                }
+            } else {
+                data.skipEntityData();
+            }
+        }
+        batch.flush();
+        Log.i(TAG, "Restored " + batch.mRestored + " of " + batch.mRead + " bookmarks");
 
-                // Last, write the state we just restored from so we can discern
-                // changes whenever we get invoked for backup in the future
-                writeBackupState(tmpfile.length(), crc, newState);
+        // Last, write the state we just restored from so we can discern
+        // changes whenever we get invoked for backup in the future. The
+        // flattened file stays until a backup from an unchunked state
+        // deletes it, so leave the state empty after restoring one
+        if (!legacy) {
+            writeBackupState(chunks, newState);
+        }
+    }
+
+    private HashSet<String> queryBookmarkedUrls() {
+        HashSet<String> urls = new HashSet<String>();
+        Cursor cursor = getContentResolver().query(Bookmarks.CONTENT_URI,
+                new String[] { Bookmarks.URL }, Bookmarks.IS_FOLDER + " = 0", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    urls.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
             }
-        } finally {
-            // Whatever happens, delete the temp file
-            tmpfile.delete();
         }
+        return urls;
     }
 
-    void addBookmark(Bookmark mark) {
-        ContentValues values = new ContentValues();
-        values.put(Bookmarks.TITLE, mark.title);
-        values.put(Bookmarks.URL, mark.url);
-        values.put(Bookmarks.IS_FOLDER, 0);
-        values.put(Bookmarks.DATE_CREATED, mark.created);
-        values.put(Bookmarks.DATE_MODIFIED, mark.date);
-        getContentResolver().insert(Bookmarks.CONTENT_URI, values);
+    /**
+     * Queues the bookmarks whose urls aren't bookmarked yet and inserts them
+     * OPERATIONS_PER_BATCH at a time.
+     */
+    private class RestoreBatch {
+        private final HashSet<String> mUrls;
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>(OPERATIONS_PER_BATCH);
+        int mRead;
+        int mRestored;
+
+        RestoreBatch(HashSet<String> urls) {
+            mUrls = urls;
+        }
+
+        void addAll(ArrayList<Bookmark> bookmarks) {
+            for (Bookmark mark : bookmarks) {
+                mRead++;
+                // The set also drops urls repeated in the backup
+                if (!mUrls.add(mark.url)) {
+                    if (DEBUG) Log.v(TAG, "Skipping extant url: " + mark.url);
+                    continue;
+                }
+                mOps.add(ContentProviderOperation.newInsert(Bookmarks.CONTENT_URI)
+                        .withValue(Bookmarks.TITLE, mark.title)
+                        .withValue(Bookmarks.URL, mark.url)
+                        .withValue(Bookmarks.IS_FOLDER, 0)
+                        .withValue(Bookmarks.DATE_CREATED, mark.created)
+                        .withValue(Bookmarks.DATE_MODIFIED, mark.date)
+                        .build());
+                if (mOps.size() >= OPERATIONS_PER_BATCH) {
+                    flush();
+                }
+            }
+        }
+
+        void flush() {
+            if (mOps.isEmpty()) {
+                return;
+            }
+            try {
+                getContentResolver().applyBatch(BrowserContract.AUTHORITY, mOps);
+                mRestored += mOps.size();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to restore " + mOps.size() + " bookmarks", e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Failed to restore " + mOps.size() + " bookmarks", e);
+            }
+            mOps.clear();
+        }
     }
 
     static class Bookmark {
@@ -185,42 +289,159 @@ public class BrowserBackupAgent extends BackupAgent {
      * Utility functions
      */
 
-    // Read the given file from backup to a file, calculating a CRC32 along the way
-    private long copyBackupToFile(BackupDataInput data, File file, int toRead)
-            throws IOException {
-        final int CHUNK = 8192;
-        byte[] buf = new byte[CHUNK];
+    // Flattens the bookmarks in the old file's record format, followed by
+    // the CRC32 of the records
+    static byte[] flattenChunk(ArrayList<Bookmark> chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(chunk.size());
+        for (Bookmark mark : chunk) {
+            out.writeUTF(mark.url);
+            out.writeInt(mark.visits);
+            out.writeLong(mark.date);
+            out.writeLong(mark.created);
+            out.writeUTF(mark.title != null ? mark.title : "");
+        }
+        out.flush();
         CRC32 crc = new CRC32();
-        FileOutputStream out = new FileOutputStream(file);
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.close();
+        return bytes.toByteArray();
+    }
 
+    static ArrayList<Bookmark> unflattenChunk(byte[] bytes) throws IOException {
+        if (bytes.length < 8) {
+            throw new IOException("Chunk too short");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (crc.getValue() != readChunkCrc(bytes)) {
+            throw new IOException("Chunk CRC mismatch");
+        }
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes, 0, bytes.length - 8));
         try {
-            while (toRead > 0) {
-                int numRead = data.readEntityData(buf, 0, CHUNK);
-                crc.update(buf, 0, numRead);
-                out.write(buf, 0, numRead);
-                toRead -= numRead;
-            }
+            return readBookmarks(in);
         } finally {
-            if (out != null) {
-                out.close();
+            in.close();
+        }
+    }
+
+    static long readChunkCrc(byte[] bytes) {
+        long crc = 0;
+        for (int i = bytes.length - 8; i < bytes.length; i++) {
+            crc = (crc << 8) | (bytes[i] & 0xff);
+        }
+        return crc;
+    }
+
+    static ArrayList<Bookmark> readBookmarks(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad bookmark count " + count);
+        }
+        ArrayList<Bookmark> bookmarks = new ArrayList<Bookmark>(
+                Math.min(count, BOOKMARKS_PER_CHUNK));
+        for (int i = 0; i < count; i++) {
+            Bookmark mark = new Bookmark();
+            mark.url = in.readUTF();
+            mark.visits = in.readInt();
+            mark.date = in.readLong();
+            mark.created = in.readLong();
+            mark.title = in.readUTF();
+            bookmarks.add(mark);
+        }
+        return bookmarks;
+    }
+
+    private static void readFully(BackupDataInput data, byte[] buf) throws IOException {
+        int offset = 0;
+        while (offset < buf.length) {
+            int numRead = data.readEntityData(buf, offset, buf.length - offset);
+            if (numRead <= 0) {
+                throw new EOFException();
+            }
+            offset += numRead;
+        }
+    }
+
+    /**
+     * Reads the data of the current entity straight from the backup service.
+     */
+    static class EntityInputStream extends InputStream {
+        private final BackupDataInput mData;
+        private int mRemaining;
+        private final byte[] mOne = new byte[1];
+
+        EntityInputStream(BackupDataInput data, int size) {
+            mData = data;
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mOne, 0, 1) == 1 ? mOne[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int numRead = mData.readEntityData(b, offset, Math.min(length, mRemaining));
+            if (numRead > 0) {
+                mRemaining -= numRead;
+            }
+            return numRead;
+        }
+    }
+
+    // Reads the chunk CRCs of the state file. Returns null if there is no
+    // chunked state, no state or one from before the chunks, then every
+    // chunk gets written and the flattened file of older backups deleted
+    static HashMap<Integer, Long> readBackupState(ParcelFileDescriptor stateFile)
+            throws IOException {
+        if (stateFile == null) {
+            return null;
+        }
+        HashMap<Integer, Long> chunks = new HashMap<Integer, Long>();
+        DataInputStream in = new DataInputStream(
+                new FileInputStream(stateFile.getFileDescriptor()));
+        try {
+            if (in.readLong() != CHUNKED_STATE_MARKER
+                    || in.readInt() != BACKUP_AGENT_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                chunks.put(index, in.readLong());
             }
+        } catch (EOFException e) {
+            // It means we had no previous state; that's fine
+            return null;
+        } finally {
+            in.close();
         }
-        return crc.getValue();
+        return chunks;
     }
 
-    // Write the given metrics to the new state file
-    private void writeBackupState(long fileSize, long crc, ParcelFileDescriptor stateFile)
+    // Write the chunk CRCs to the new state file
+    static void writeBackupState(HashMap<Integer, Long> chunks, ParcelFileDescriptor stateFile)
             throws IOException {
         DataOutputStream out = new DataOutputStream(
                 new FileOutputStream(stateFile.getFileDescriptor()));
         try {
-            out.writeLong(fileSize);
-            out.writeLong(crc);
+            out.writeLong(CHUNKED_STATE_MARKER);
             out.writeInt(BACKUP_AGENT_VERSION);
-        } finally {
-            if (out != null) {
-                out.close();
+            out.writeInt(chunks.size());
+            for (Map.Entry<Integer, Long> chunk : chunks.entrySet()) {
+                out.writeInt(chunk.getKey());
+                out.writeLong(chunk.getValue());
             }
+        } finally {
+            out.close();
         }
     }
 }
@@ -45,8 +45,10 @@ import com.android.browser.mdm.ThirdPartyCookiesRestriction;
 import com.android.browser.mdm.URLFilterRestriction;
 import com.android.browser.platformsupport.Browser;
 import com.android.browser.provider.BrowserProvider;
+import com.android.browser.provider.ProviderStats;
 import com.android.browser.search.SearchEngine;
 import com.android.browser.search.SearchEngines;
+import com.android.browser.search.SuggestionCache;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
@@ -253,6 +255,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 // This is a release build, always startup with debug disabled
                 setDebugEnabled(false);
             }
+            ProviderStats.setEnabled(enableProviderStats());
             if (mPrefs.contains(PREF_TEXT_SIZE)) {
                 /*
                  * Update from TextSize enum to zoom percent
@@ -449,6 +452,8 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             }
         } else if (PREF_LINK_PREFETCH.equals(key)) {
             updateConnectionType();
+        } else if (PREF_ENABLE_PROVIDER_STATS.equals(key)) {
+            ProviderStats.setEnabled(enableProviderStats());
         }
     }
 
@@ -498,6 +503,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         if (force || mSearchEngine == null ||
                 !mSearchEngine.getName().equals(searchEngineName)) {
             mSearchEngine = SearchEngines.get(mContext, searchEngineName);
+            SuggestionCache.getInstance().clear();
          }
     }
 
@@ -1016,6 +1022,13 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         return mPrefs.getBoolean(PREF_ENABLE_NAV_DUMP, false);
     }
 
+    public boolean enableProviderStats() {
+        if (!isDebugEnabled()) {
+            return false;
+        }
+        return mPrefs.getBoolean(PREF_ENABLE_PROVIDER_STATS, false);
+    }
+
     public String getJsEngineFlags() {
         if (!isDebugEnabled()) {
             return "";
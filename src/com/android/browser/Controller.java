@@ -282,6 +282,7 @@ public class Controller
         mBookmarksObserver = new ContentObserver(mHandler) {
             @Override
             public void onChange(boolean selfChange) {
+                DataController.getInstance(mActivity).onBookmarksChanged();
                 int size = mTabControl.getTabCount();
                 for (int i = 0; i < size; i++) {
                     mTabControl.getTab(i).updateBookmarkedStatus();
@@ -418,6 +419,9 @@ public class Controller
             filter.addAction("android.os.action.POWER_SAVE_MODE_CHANGED");
         }
         filter.addAction(Intent.ACTION_BATTERY_OKAY);
+        // Database maintenance runs while charging and idle
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
         mActivity.registerReceiver(mPowerChangeReceiver, filter);
     }
 
@@ -732,7 +736,8 @@ public class Controller
             return;
         }
         mActivityPaused = true;
-
+        // Don't leave recent visits in memory while in the background
+        DataController.getInstance(mActivity).flushHistory();
     }
 
     @Override
@@ -1193,18 +1198,7 @@ public class Controller
 
     @Override
     public void getVisitedHistory(final ValueCallback<String[]> callback) {
-        AsyncTask<Void, Void, String[]> task =
-                new AsyncTask<Void, Void, String[]>() {
-            @Override
-            public String[] doInBackground(Void... unused) {
-                return (String[]) Browser.getVisitedHistory(mActivity.getContentResolver());
-            }
-            @Override
-            public void onPostExecute(String[] result) {
-                callback.onReceiveValue(result);
-            }
-        };
-        task.execute();
+        new VisitedLinks(mActivity.getContentResolver()).getVisitedHistory(callback);
     }
 
     @Override
@@ -1281,8 +1275,7 @@ public class Controller
             return;
         }
         if (!tab.isPrivateBrowsingEnabled()) {
-            Bookmarks.updateFavicon(mActivity
-                    .getContentResolver(), originalUrl, url, favicon);
+            DataController.getInstance(mActivity).updateFavicon(originalUrl, url, favicon);
         }
     }
 
@@ -29,30 +29,43 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import com.android.browser.platformsupport.Browser;
 import com.android.browser.platformsupport.BrowserContract;
-import com.android.browser.platformsupport.BrowserContract.History;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
     // Message IDs
     private static final int HISTORY_UPDATE_VISITED = 100;
     private static final int HISTORY_UPDATE_TITLE = 101;
+    private static final int HISTORY_FLUSH = 102;
+    private static final int HISTORY_UPDATE_TYPED = 103;
+    private static final int HISTORY_UPDATE_FAVICON = 104;
     private static final int QUERY_URL_IS_BOOKMARK = 200;
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    // How long onPause waits for pending history to be written
+    private static final long HISTORY_FLUSH_TIMEOUT = 2000;
     private static DataController sInstance;
 
     private Context mContext;
     private DataControllerHandler mDataHandler;
     private Handler mCbHandler; // To respond on the UI thread
     private ByteBuffer mBuffer; // to capture thumbnails
+    private BookmarkedUrls mBookmarkedUrls;
+    private LocalSuggestions mLocalSuggestions;
+    // Callbacks waiting for a bookmark query, by url, so that queries for
+    // the same url share one lookup
+    private final HashMap<String, ArrayList<OnQueryUrlIsBookmark>> mPendingBookmarkQueries =
+            new HashMap<String, ArrayList<OnQueryUrlIsBookmark>>();
 
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
@@ -83,16 +96,27 @@ public class DataController {
         mContext = c.getApplicationContext();
         mDataHandler = new DataControllerHandler();
         mDataHandler.start();
+        mBookmarkedUrls = new BookmarkedUrls(mContext);
+        mLocalSuggestions = new LocalSuggestions(mContext, new Runnable() {
+            @Override
+            public void run() {
+                flushHistory();
+            }
+        });
         mCbHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
                 CallbackContainer cc = (CallbackContainer) msg.obj;
                 switch (msg.what) {
                     case QUERY_URL_IS_BOOKMARK: {
-                        OnQueryUrlIsBookmark cb = (OnQueryUrlIsBookmark) cc.replyTo;
+                        @SuppressWarnings("unchecked")
+                        ArrayList<OnQueryUrlIsBookmark> cbs =
+                                (ArrayList<OnQueryUrlIsBookmark>) cc.replyTo;
                         String url = (String) cc.args[0];
                         boolean isBookmark = (Boolean) cc.args[1];
-                        cb.onQueryUrlIsBookmark(url, isBookmark);
+                        for (OnQueryUrlIsBookmark cb : cbs) {
+                            cb.onQueryUrlIsBookmark(url, isBookmark);
+                        }
                         break;
                     }
                 }
@@ -104,17 +128,79 @@ public class DataController {
         mDataHandler.sendMessage(HISTORY_UPDATE_VISITED, url);
     }
 
+    /**
+     * Called when the user typed the url into the omnibox, before it loads.
+     */
+    public void updateTypedHistory(String url) {
+        mDataHandler.sendMessage(HISTORY_UPDATE_TYPED, url);
+    }
+
     public void updateHistoryTitle(String url, String title) {
         mDataHandler.sendMessage(HISTORY_UPDATE_TITLE, new String[] { url, title });
     }
 
+    /**
+     * Writes the favicon of the page, after its history if a visit is still
+     * pending, so the images never sit unreferenced waiting for their
+     * history row.
+     */
+    public void updateFavicon(String originalUrl, String url, Bitmap favicon) {
+        mDataHandler.sendMessage(HISTORY_UPDATE_FAVICON,
+                new Object[] { originalUrl, url, favicon });
+    }
+
+    /**
+     * Writes the history updates that are still pending and waits for them
+     * to be committed, for when the browser goes to the background.
+     */
+    public void flushHistory() {
+        CountDownLatch done = new CountDownLatch(1);
+        mDataHandler.sendMessage(HISTORY_FLUSH, done);
+        try {
+            if (!done.await(HISTORY_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(LOGTAG, "Timed out flushing history");
+            }
+        } catch (InterruptedException e) {
+            Log.w(LOGTAG, "Interrupted flushing history");
+        }
+    }
+
     public void queryBookmarkStatus(String url, OnQueryUrlIsBookmark replyTo) {
         if (url == null || url.trim().length() == 0) {
             // null or empty url is never a bookmark
             replyTo.onQueryUrlIsBookmark(url, false);
             return;
         }
-        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
+        url = url.trim();
+        Boolean isBookmark = mBookmarkedUrls.isBookmarked(url);
+        if (isBookmark != null) {
+            replyTo.onQueryUrlIsBookmark(url, isBookmark);
+            return;
+        }
+        // The set is still loading, ask the provider
+        synchronized (mPendingBookmarkQueries) {
+            ArrayList<OnQueryUrlIsBookmark> callbacks = mPendingBookmarkQueries.get(url);
+            if (callbacks != null) {
+                callbacks.add(replyTo);
+                return;
+            }
+            callbacks = new ArrayList<OnQueryUrlIsBookmark>();
+            callbacks.add(replyTo);
+            mPendingBookmarkQueries.put(url, callbacks);
+        }
+        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url);
+    }
+
+    /**
+     * Called when bookmarks change, before asking for the bookmark status
+     * of the open tabs again.
+     */
+    public void onBookmarksChanged() {
+        mBookmarkedUrls.invalidate();
+    }
+
+    /* package */ LocalSuggestions getLocalSuggestions() {
+        return mLocalSuggestions;
     }
 
     public void loadThumbnail(Tab tab) {
@@ -134,6 +220,10 @@ public class DataController {
     class DataControllerHandler extends Thread {
         private BlockingQueue<DCMessage> mMessageQueue
                 = new LinkedBlockingQueue<DCMessage>();
+        private HistoryRecorder mHistoryRecorder
+                = new HistoryRecorder(mContext.getContentResolver());
+        // Favicons of pages whose visits are still pending
+        private ArrayList<Object[]> mPendingFavicons = new ArrayList<Object[]>();
 
         public DataControllerHandler() {
             super("DataControllerHandler");
@@ -144,7 +234,19 @@ public class DataController {
             setPriority(Thread.MIN_PRIORITY);
             while (true) {
                 try {
-                    handleMessage(mMessageQueue.take());
+                    // Wake up to write pending history once it is due
+                    long delay = mHistoryRecorder.getFlushDelay();
+                    DCMessage msg = null;
+                    if (delay < 0) {
+                        msg = mMessageQueue.take();
+                    } else if (delay > 0) {
+                        msg = mMessageQueue.poll(delay, TimeUnit.MILLISECONDS);
+                    }
+                    if (msg != null) {
+                        handleMessage(msg);
+                    } else {
+                        writeHistory();
+                    }
                 } catch (InterruptedException ex) {
                     break;
                 }
@@ -165,17 +267,31 @@ public class DataController {
         private void handleMessage(DCMessage msg) {
             switch (msg.what) {
             case HISTORY_UPDATE_VISITED:
-                doUpdateVisitedHistory((String) msg.obj);
+                boolean typed = mHistoryRecorder.recordVisit((String) msg.obj);
+                mLocalSuggestions.onVisited((String) msg.obj, typed);
                 break;
             case HISTORY_UPDATE_TITLE:
                 String[] args = (String[]) msg.obj;
-                doUpdateHistoryTitle(args[0], args[1]);
+                mHistoryRecorder.recordTitle(args[0], args[1]);
+                mLocalSuggestions.onTitle(args[0], args[1]);
+                break;
+            case HISTORY_UPDATE_TYPED:
+                mHistoryRecorder.recordTyped((String) msg.obj);
+                break;
+            case HISTORY_UPDATE_FAVICON:
+                Object[] favicon = (Object[]) msg.obj;
+                if (isVisitPending(favicon)) {
+                    mPendingFavicons.add(favicon);
+                } else {
+                    writeFavicon(favicon);
+                }
+                break;
+            case HISTORY_FLUSH:
+                writeHistory();
+                ((CountDownLatch) msg.obj).countDown();
                 break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
-                doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
+                doQueryBookmarkStatus((String) msg.obj);
                 break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
@@ -194,6 +310,37 @@ public class DataController {
             }
         }
 
+        /**
+         * Writes the pending history, then the favicons that were waiting
+         * for it. Favicons whose visits are still pending after a failed
+         * write wait for the next one.
+         */
+        private void writeHistory() {
+            mHistoryRecorder.flush();
+            if (mPendingFavicons.isEmpty()) {
+                return;
+            }
+            ArrayList<Object[]> favicons = mPendingFavicons;
+            mPendingFavicons = new ArrayList<Object[]>();
+            for (Object[] favicon : favicons) {
+                if (isVisitPending(favicon)) {
+                    mPendingFavicons.add(favicon);
+                } else {
+                    writeFavicon(favicon);
+                }
+            }
+        }
+
+        private boolean isVisitPending(Object[] favicon) {
+            return mHistoryRecorder.isVisitPending((String) favicon[0])
+                    || mHistoryRecorder.isVisitPending((String) favicon[1]);
+        }
+
+        private void writeFavicon(Object[] favicon) {
+            Bookmarks.updateFavicon(mContext.getContentResolver(),
+                    (String) favicon[0], (String) favicon[1], (Bitmap) favicon[2]);
+        }
+
         private byte[] getCaptureBlob(Tab tab) {
             synchronized (tab) {
                 Bitmap capture = tab.getScreenshot();
@@ -241,35 +388,21 @@ public class DataController {
             }
         }
 
-        private void doUpdateVisitedHistory(String url) {
-            ContentResolver cr = mContext.getContentResolver();
-            Cursor c = null;
-            try {
-                c = cr.query(History.CONTENT_URI, new String[] {History._ID, History.VISITS},
-                        History.URL + "=?", new String[] { url }, null);
-                if (c.moveToFirst()) {
-                    ContentValues values = new ContentValues();
-                    values.put(History.VISITS, c.getInt(1) + 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
-                            values, null, null);
-                } else {
-                    Browser.truncateHistory(cr);
-                    ContentValues values = new ContentValues();
-                    values.put(History.URL, url);
-                    values.put(History.VISITS, 1);
-                    values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
-                    values.put(History.TITLE, url);
-                    values.put(History.DATE_CREATED, 0);
-                    values.put(History.USER_ENTERED, 0);
-                    cr.insert(History.CONTENT_URI, values);
-                }
-            } finally {
-                if (c != null) c.close();
+        private void doQueryBookmarkStatus(String url) {
+            // The set may have finished loading since the query was queued
+            Boolean isBookmark = mBookmarkedUrls.isBookmarked(url);
+            if (isBookmark == null) {
+                isBookmark = queryIsBookmark(url);
+            }
+            CallbackContainer cc = new CallbackContainer();
+            synchronized (mPendingBookmarkQueries) {
+                cc.replyTo = mPendingBookmarkQueries.remove(url);
             }
+            cc.args = new Object[] { url, isBookmark };
+            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
         }
 
-        private void doQueryBookmarkStatus(String url, Object replyTo) {
+        private boolean queryIsBookmark(String url) {
             // Check to see if the site is bookmarked
             Cursor cursor = null;
             boolean isBookmark = false;
@@ -286,18 +419,7 @@ public class DataController {
             } finally {
                 if (cursor != null) cursor.close();
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
-        }
-
-        private void doUpdateHistoryTitle(String url, String title) {
-            ContentResolver cr = mContext.getContentResolver();
-            ContentValues values = new ContentValues();
-            values.put(History.TITLE, title);
-            cr.update(History.CONTENT_URI, values, History.URL + "=?",
-                    new String[] { url });
+            return isBookmark;
         }
     }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.browser.platformsupport.Browser;
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Collects history visits and title changes and writes them behind. Updates
+ * for the same url are merged, and everything pending is written in a single
+ * provider transaction once the oldest update is {@link #FLUSH_DELAY} old, or
+ * sooner if {@link #MAX_PENDING} urls are waiting. Redirect chains and pages
+ * that change their title a few times thus cost one transaction.
+ *
+ * Not thread safe, DataController only uses it from its handler thread.
+ */
+public class HistoryRecorder {
+    private static final String LOGTAG = "HistoryRecorder";
+
+    static final long FLUSH_DELAY = 1000;
+    static final int MAX_PENDING = 50;
+    // Typed urls remembered until they are visited, the most recent win
+    static final int MAX_TYPED = 8;
+    // Failed flushes in a row after which the pending updates are dropped
+    static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    private static class PendingUpdate {
+        int visits;
+        long date;
+        String title;
+        boolean typed;
+    }
+
+    private final ContentResolver mContentResolver;
+    private final LinkedHashMap<String, PendingUpdate> mPending =
+            new LinkedHashMap<String, PendingUpdate>();
+    private long mFirstPendingTime;
+    private int mFailedFlushes;
+    private final LinkedHashSet<String> mTyped = new LinkedHashSet<String>();
+
+    public HistoryRecorder(ContentResolver cr) {
+        mContentResolver = cr;
+    }
+
+    /**
+     * Records a visit, returns whether the user typed the url for it.
+     */
+    public boolean recordVisit(String url) {
+        PendingUpdate update = getPendingUpdate(url);
+        update.visits++;
+        update.date = System.currentTimeMillis();
+        boolean typed = mTyped.remove(typedKey(url));
+        update.typed |= typed;
+        return typed;
+    }
+
+    /**
+     * Remembers that the user typed the url into the omnibox, so its next
+     * visit is recorded as user entered and earns the larger frecency bonus.
+     */
+    public void recordTyped(String url) {
+        String key = typedKey(url);
+        mTyped.remove(key);
+        mTyped.add(key);
+        if (mTyped.size() > MAX_TYPED) {
+            Iterator<String> oldest = mTyped.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    // The omnibox's url may lack the trailing slash the page loads with
+    private static String typedKey(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public void recordTitle(String url, String title) {
+        getPendingUpdate(url).title = title;
+    }
+
+    /**
+     * Returns whether a visit of the url is waiting to be written, so its
+     * history row may not exist yet.
+     */
+    public boolean isVisitPending(String url) {
+        PendingUpdate update = mPending.get(url);
+        return update != null && update.visits > 0;
+    }
+
+    private PendingUpdate getPendingUpdate(String url) {
+        PendingUpdate update = mPending.get(url);
+        if (update == null) {
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = SystemClock.uptimeMillis();
+            }
+            update = new PendingUpdate();
+            mPending.put(url, update);
+        }
+        return update;
+    }
+
+    /**
+     * Returns how long the caller may wait before calling {@link #flush},
+     * or -1 if nothing is pending. After a failed flush the caller waits a
+     * full {@link #FLUSH_DELAY} however many urls are pending.
+     */
+    public long getFlushDelay() {
+        if (mPending.isEmpty()) {
+            return -1;
+        }
+        if (mPending.size() >= MAX_PENDING && mFailedFlushes == 0) {
+            return 0;
+        }
+        long delay = mFirstPendingTime + FLUSH_DELAY - SystemClock.uptimeMillis();
+        return Math.max(0, delay);
+    }
+
+    /**
+     * Writes all pending updates in one batch. Urls that are not in the
+     * history yet are inserted, after truncating the history once as
+     * {@link Browser#truncateHistory} does. If the batch fails the updates
+     * stay pending for the next flush, up to {@link #MAX_FLUSH_ATTEMPTS}.
+     */
+    public void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        HashMap<String, long[]> existing = queryVisitedRows();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        boolean truncate = false;
+        for (String url : mPending.keySet()) {
+            PendingUpdate update = mPending.get(url);
+            if (update.visits == 0) {
+                // Title only, the row may not be there at all
+                ops.add(ContentProviderOperation.newUpdate(History.CONTENT_URI)
+                        .withSelection(History.URL + "=?", new String[] { url })
+                        .withValue(History.TITLE, update.title)
+                        .build());
+                continue;
+            }
+            long[] row = existing.get(url);
+            if (row != null) {
+                ContentProviderOperation.Builder op = ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(History.CONTENT_URI, row[0]))
+                        .withValue(History.VISITS, row[1] + update.visits)
+                        .withValue(History.DATE_LAST_VISITED, update.date);
+                // A link visit doesn't make a typed url untyped
+                if (update.typed) {
+                    op.withValue(History.USER_ENTERED, 1);
+                }
+                if (update.title != null) {
+                    op.withValue(History.TITLE, update.title);
+                }
+                ops.add(op.build());
+            } else {
+                truncate = true;
+                ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                        .withValue(History.URL, url)
+                        .withValue(History.VISITS, update.visits)
+                        .withValue(History.DATE_LAST_VISITED, update.date)
+                        .withValue(History.TITLE, update.title != null ? update.title : url)
+                        .withValue(History.DATE_CREATED, 0)
+                        .withValue(History.USER_ENTERED, update.typed ? 1 : 0)
+                        .build());
+            }
+        }
+        if (truncate) {
+            ops.add(0, ContentProviderOperation.newDelete(Browser.TRUNCATE_HISTORY_URI).build());
+        }
+        try {
+            mContentResolver.applyBatch(BrowserContract.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            onFlushFailed(e);
+            return;
+        } catch (OperationApplicationException e) {
+            onFlushFailed(e);
+            return;
+        }
+        mPending.clear();
+        mFailedFlushes = 0;
+    }
+
+    // The batch is one transaction, none of it was written
+    private void onFlushFailed(Exception e) {
+        if (++mFailedFlushes < MAX_FLUSH_ATTEMPTS) {
+            Log.w(LOGTAG, "Failed to write history, retrying", e);
+            mFirstPendingTime = SystemClock.uptimeMillis();
+            return;
+        }
+        Log.e(LOGTAG, "Failed to write history, dropping " + mPending.size() + " urls", e);
+        mPending.clear();
+        mFailedFlushes = 0;
+    }
+
+    /**
+     * Looks up the _id and visit count of every pending visited url in a
+     * single query.
+     */
+    private HashMap<String, long[]> queryVisitedRows() {
+        HashMap<String, long[]> rows = new HashMap<String, long[]>();
+        ArrayList<String> urls = new ArrayList<String>();
+        StringBuilder selection = new StringBuilder(History.URL + " IN (");
+        for (String url : mPending.keySet()) {
+            if (mPending.get(url).visits > 0) {
+                selection.append(urls.isEmpty() ? "?" : ",?");
+                urls.add(url);
+            }
+        }
+        if (urls.isEmpty()) {
+            return rows;
+        }
+        selection.append(')');
+        Cursor c = mContentResolver.query(History.CONTENT_URI,
+                new String[] { History._ID, History.VISITS, History.URL },
+                selection.toString(), urls.toArray(new String[urls.size()]), null);
+        if (c == null) {
+            return rows;
+        }
+        try {
+            while (c.moveToNext()) {
+                rows.put(c.getString(2), new long[] { c.getLong(0), c.getLong(1) });
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the best rows of the omnibox suggestions table in a
+ * {@link SuggestionTrie}, so local suggestions for a keystroke don't take a
+ * provider query. The trie is loaded in the background when the browser
+ * starts, follows visits and titles as the DataController records them, and
+ * is loaded again shortly after the provider reports the changes it can't
+ * follow, bookmark edits and removed or imported history. The previous trie
+ * answers until the new one is loaded. Until the first one is,
+ * {@link #query} returns -1 and callers have to ask the provider.
+ */
+public class LocalSuggestions {
+    private static final String LOGTAG = "LocalSuggestions";
+    private static final boolean LOGV_ENABLED = Browser.LOGV_ENABLED;
+
+    // Ids asked for per query, the most lines the omnibox shows
+    static final int TOP_K = 12;
+    // Bounds the memory the trie takes, a few MB at most, the best rows win
+    static final int MAX_ENTRIES = 3000;
+    // Changes come in bursts as history is written, load once per burst
+    private static final long RELOAD_DELAY_MS = 1000;
+    // BrowserProvider2.FRECENCY_VISIT_BONUS and FRECENCY_TYPED_BONUS
+    private static final int VISIT_BONUS = 100;
+    private static final int TYPED_BONUS = 200;
+
+    private static final String[] PROJECTION = new String[] {
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.IS_BOOKMARK,
+            History.FRECENCY,
+            History.DATE_LAST_VISITED,
+    };
+    private static final String SORT_ORDER = OmniboxSuggestions.IS_BOOKMARK + " DESC, "
+            + History.FRECENCY + " DESC, " + History.DATE_LAST_VISITED + " DESC";
+
+    private static final AtomicLong sQueries = new AtomicLong();
+    private static final AtomicLong sFallbacks = new AtomicLong();
+    private static volatile String sLoaded = "not loaded";
+
+    private final Context mContext;
+    // Writes the visits still pending in the DataController, so loads see them
+    private final Runnable mFlushHistory;
+    // Locked by everything that reads or changes it
+    private volatile SuggestionTrie mTrie;
+    // Bumped by every change, a load only counts if it saw no change
+    private int mGeneration;
+    private boolean mLoading;
+    private final Handler mReloadHandler = new Handler(BackgroundHandler.getLooper());
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mReloadHandler.removeCallbacks(mReload);
+            mReloadHandler.postDelayed(mReload, RELOAD_DELAY_MS);
+        }
+    };
+
+    private final Runnable mReload = new Runnable() {
+        @Override
+        public void run() {
+            reload();
+        }
+    };
+
+    private final Runnable mLoader = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                int generation;
+                synchronized (LocalSuggestions.this) {
+                    generation = mGeneration;
+                }
+                mFlushHistory.run();
+                SuggestionTrie trie = load();
+                synchronized (LocalSuggestions.this) {
+                    if (trie == null || generation == mGeneration) {
+                        // Keep the previous trie if loading failed
+                        if (trie != null) {
+                            mTrie = trie;
+                        }
+                        mLoading = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    LocalSuggestions(Context context, Runnable flushHistory) {
+        mContext = context;
+        mFlushHistory = flushHistory;
+        // Not the suggestions themselves, every visit changes those
+        context.getContentResolver().registerContentObserver(
+                BrowserContract.Bookmarks.CONTENT_URI, true, mObserver);
+        context.getContentResolver().registerContentObserver(
+                OmniboxSuggestions.RELOAD_URI, false, mObserver);
+        reload();
+    }
+
+    /**
+     * Puts the urls, titles and bookmark states of the best local
+     * suggestions for the typed text into the arrays, best first, and
+     * returns how many there are. Returns -1 if the trie isn't loaded yet or
+     * can't tell for this text, then the provider has to be asked. A full
+     * trie left out the lower ranked urls, so it can't tell there are none.
+     */
+    int query(CharSequence text, int[] ids, String[] urls, String[] titles,
+            boolean[] bookmarks) {
+        SuggestionTrie trie = mTrie;
+        int count = -1;
+        if (trie != null) {
+            synchronized (trie) {
+                count = trie.query(text, ids);
+                if (count == 0 && trie.size() >= MAX_ENTRIES) {
+                    count = -1;
+                }
+                for (int i = 0; i < count; i++) {
+                    urls[i] = trie.getUrl(ids[i]);
+                    titles[i] = trie.getTitle(ids[i]);
+                    bookmarks[i] = trie.isBookmark(ids[i]);
+                }
+            }
+        }
+        (count < 0 ? sFallbacks : sQueries).incrementAndGet();
+        return count;
+    }
+
+    /**
+     * Called on the DataController thread for every visit it records, typed
+     * if the user typed the url.
+     */
+    void onVisited(String url, boolean typed) {
+        onChanged();
+        SuggestionTrie trie = mTrie;
+        if (trie != null) {
+            synchronized (trie) {
+                trie.visit(url, typed ? TYPED_BONUS : VISIT_BONUS,
+                        System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Called on the DataController thread for every title it records.
+     */
+    void onTitle(String url, String title) {
+        onChanged();
+        SuggestionTrie trie = mTrie;
+        if (trie != null) {
+            synchronized (trie) {
+                trie.setTitle(url, title);
+            }
+        }
+    }
+
+    // A load running now may have read the database before the change
+    private synchronized void onChanged() {
+        mGeneration++;
+    }
+
+    /**
+     * Loads the trie again in the background. Until that finishes the
+     * current one keeps answering.
+     */
+    synchronized void reload() {
+        mGeneration++;
+        if (!mLoading) {
+            mLoading = true;
+            BackgroundHandler.execute(mLoader);
+        }
+    }
+
+    private SuggestionTrie load() {
+        long start = SystemClock.uptimeMillis();
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                        Integer.toString(MAX_ENTRIES))
+                .build();
+        Cursor c = null;
+        try {
+            c = mContext.getContentResolver().query(uri, PROJECTION,
+                    OmniboxSuggestions.URL + " IS NOT NULL", null, SORT_ORDER);
+            if (c == null) {
+                return null;
+            }
+            SuggestionTrie trie = new SuggestionTrie(TOP_K, MAX_ENTRIES);
+            while (c.moveToNext()) {
+                trie.put(c.getString(0), c.getString(1), c.getInt(2) != 0, c.getLong(3),
+                        c.getLong(4));
+            }
+            sLoaded = trie.size() + " urls, " + trie.getNodeCount() + " nodes, ~"
+                    + trie.getMemoryEstimate() / 1024 + " KB, loaded in "
+                    + (SystemClock.uptimeMillis() - start) + " ms";
+            if (LOGV_ENABLED) Log.v(LOGTAG, sLoaded);
+            return trie;
+        } catch (SQLiteException e) {
+            Log.e(LOGTAG, "Error loading suggestions: " + e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    /**
+     * Returns the size of the trie and how many queries it answered.
+     */
+    public static String dump() {
+        return "Local suggestions: " + sLoaded + "\n"
+                + "  " + sQueries.get() + " queries answered, "
+                + sFallbacks.get() + " left to the provider\n";
+    }
+}
@@ -555,6 +555,10 @@ public class NavigationBarBase extends LinearLayout implements
                     return;
                 }
             }
+            // Typed urls rank higher in the suggestions once visited
+            if (url != null && t != null && !t.isPrivateBrowsingEnabled()) {
+                DataController.getInstance(getContext()).updateTypedHistory(url);
+            }
         }
         Intent i = new Intent();
         String action = Intent.ACTION_SEARCH;
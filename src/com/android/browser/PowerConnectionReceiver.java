@@ -20,6 +20,7 @@
 package com.android.browser;
 
 import com.android.browser.preferences.GeneralPreferencesFragment;
+import com.android.browser.provider.DatabaseMaintenance;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.DownloadManager;
@@ -49,6 +50,10 @@ public class PowerConnectionReceiver extends BroadcastReceiver {
             settings.setPowerSaveModeEnabled(pm.isPowerSaveMode());
         } else if (POWER_OKAY.equals(action)) {
             settings.setPowerSaveModeEnabled(false);
+        } else if (Intent.ACTION_POWER_CONNECTED.equals(action)
+                || Intent.ACTION_SCREEN_OFF.equals(action)) {
+            // Plugged in, or put down while plugged in
+            DatabaseMaintenance.scheduleIfCharging(context);
         } else {
             if (settings.isPowerSaveModeEnabled())
                 return;
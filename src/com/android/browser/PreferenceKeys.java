@@ -72,6 +72,8 @@ public interface PreferenceKeys {
     // ----------------------
     static final String PREF_ENABLE_LIGHT_TOUCH = "enable_light_touch";
     static final String PREF_ENABLE_NAV_DUMP = "enable_nav_dump";
+    static final String PREF_ENABLE_PROVIDER_STATS = "enable_provider_stats";
+    static final String PREF_PROVIDER_STATS = "provider_stats";
     static final String PREF_ENABLE_TRACING = "enable_tracing";
     static final String PREF_ENABLE_VISUAL_INDICATOR = "enable_visual_indicator";
     static final String PREF_ENABLE_CPU_UPLOAD_PATH = "enable_cpu_upload_path";
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the remote suggestions for what the user typed are fetched,
+ * and whether results may still be shown.
+ *
+ * Every change of the constraint starts a new generation. Local results are
+ * queried right away, the remote query waits until the user seems to have
+ * stopped typing: about one typical pause between their keystrokes, at least
+ * MIN_DELAY_MS and at most MAX_DELAY_MS, or MIN_DELAY_MS after a longer
+ * break. A keystroke in the meantime starts over, so a burst of typing costs
+ * one request instead of one per letter. Results of older generations are
+ * dropped, so they never replace newer ones.
+ *
+ * Also times how long the first and the final results for a keystroke take
+ * to show, see {@link #dump}.
+ */
+public class SuggestionScheduler<T> {
+
+    static final long MIN_DELAY_MS = 30;
+    static final long MAX_DELAY_MS = 300;
+    // A longer gap between keystrokes isn't part of the typing rhythm
+    static final long PAUSE_MS = 1000;
+
+    /**
+     * Runs the remote query, on a background thread, and shows its
+     * results, on the main thread.
+     */
+    interface RemoteQuery<T> {
+        T query(CharSequence constraint);
+
+        void publish(T results);
+    }
+
+    private static final Stats sStats = new Stats();
+    // Holds the remote queries until they are due. It has a thread of its
+    // own, so work queued on the background looper can't delay them
+    private static Handler sDelayHandler;
+
+    private final RemoteQuery<T> mRemoteQuery;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mDelayHandler = getDelayHandler();
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    // Guarded by this
+    private CharSequence mConstraint;
+    private boolean mRemote;
+    private long mKeystrokeTime;
+    private boolean mFirstShown;
+    private long mTypingInterval = -1;
+
+    SuggestionScheduler(RemoteQuery<T> remoteQuery) {
+        mRemoteQuery = remoteQuery;
+    }
+
+    private static synchronized Handler getDelayHandler() {
+        if (sDelayHandler == null) {
+            HandlerThread thread = new HandlerThread("SuggestionScheduler");
+            thread.start();
+            sDelayHandler = new Handler(thread.getLooper());
+        }
+        return sDelayHandler;
+    }
+
+    /**
+     * Starts a generation for the new constraint and schedules its remote
+     * query, if it has one. Returns the generation to tag local results with.
+     */
+    long onConstraintChanged(CharSequence constraint, boolean remote) {
+        long now = SystemClock.uptimeMillis();
+        long generation = mGeneration.incrementAndGet();
+        long delay;
+        synchronized (this) {
+            delay = onKeystroke(now);
+            mConstraint = constraint;
+            mRemote = remote;
+            mFirstShown = false;
+        }
+        sStats.mKeystrokes.incrementAndGet();
+        // The handler is shared, only drop this scheduler's fetches
+        mDelayHandler.removeCallbacksAndMessages(this);
+        if (remote) {
+            mDelayHandler.postAtTime(new Fetch(generation, constraint), this, now + delay);
+        }
+        return generation;
+    }
+
+    /**
+     * Records a keystroke at the given uptime and returns how long the
+     * remote query for it waits.
+     */
+    synchronized long onKeystroke(long now) {
+        long gap = now - mKeystrokeTime;
+        long delay;
+        if (mKeystrokeTime == 0 || gap > PAUSE_MS) {
+            mTypingInterval = -1;
+            delay = MIN_DELAY_MS;
+        } else {
+            mTypingInterval = mTypingInterval < 0 ? gap : (3 * mTypingInterval + gap) / 4;
+            delay = Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, mTypingInterval * 5 / 4));
+        }
+        mKeystrokeTime = now;
+        return delay;
+    }
+
+    boolean isCurrent(long generation) {
+        return mGeneration.get() == generation;
+    }
+
+    /**
+     * Fetches the remote results for the constraint again right away, if
+     * it is still the current one. For when better ones became available.
+     */
+    void requery(String constraint) {
+        long generation = mGeneration.get();
+        CharSequence current;
+        boolean remote;
+        synchronized (this) {
+            current = mConstraint;
+            remote = mRemote;
+        }
+        if (remote && current != null && constraint.equals(current.toString())) {
+            mDelayHandler.postAtTime(new Fetch(generation, current), this,
+                    SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Drops whatever is scheduled or in flight, for when the results
+     * mustn't be shown anymore.
+     */
+    void cancel() {
+        mGeneration.incrementAndGet();
+        mDelayHandler.removeCallbacksAndMessages(this);
+        synchronized (this) {
+            mConstraint = null;
+        }
+    }
+
+    /**
+     * Called on the main thread with local results. Returns false if they
+     * are of an older generation and mustn't be shown.
+     */
+    boolean onLocalResults(long generation) {
+        if (!isCurrent(generation)) {
+            sStats.mDropped.incrementAndGet();
+            return false;
+        }
+        boolean remote;
+        synchronized (this) {
+            remote = mRemote;
+        }
+        onShown(generation, !remote);
+        return true;
+    }
+
+    private void onShown(long generation, boolean last) {
+        long elapsed;
+        boolean first;
+        synchronized (this) {
+            if (!isCurrent(generation)) {
+                return;
+            }
+            elapsed = SystemClock.uptimeMillis() - mKeystrokeTime;
+            first = !mFirstShown;
+            mFirstShown = true;
+        }
+        if (first) {
+            sStats.mFirst.add(elapsed);
+        }
+        if (last) {
+            sStats.mFinal.add(elapsed);
+        }
+    }
+
+    private class Fetch implements Runnable {
+        final long mGeneration;
+        final CharSequence mConstraint;
+
+        Fetch(long generation, CharSequence constraint) {
+            mGeneration = generation;
+            mConstraint = constraint;
+        }
+
+        @Override
+        public void run() {
+            if (!isCurrent(mGeneration)) {
+                return;
+            }
+            // A fetch superseded while in flight is cancelled by the suggest
+            // client, so running them in the pool doesn't pile them up
+            BackgroundHandler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent(mGeneration)) {
+                        return;
+                    }
+                    sStats.mRemoteQueries.incrementAndGet();
+                    final T results = mRemoteQuery.query(mConstraint);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isCurrent(mGeneration)) {
+                                sStats.mDropped.incrementAndGet();
+                                return;
+                            }
+                            mRemoteQuery.publish(results);
+                            onShown(mGeneration, true);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    static class Timing {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalMs = new AtomicLong();
+        final AtomicLong mMaxMs = new AtomicLong();
+
+        void add(long ms) {
+            mCount.incrementAndGet();
+            mTotalMs.addAndGet(ms);
+            long max = mMaxMs.get();
+            while (ms > max && !mMaxMs.compareAndSet(max, ms)) {
+                max = mMaxMs.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            return count + " times, " + (count == 0 ? 0 : mTotalMs.get() / count)
+                    + " ms mean, " + mMaxMs.get() + " ms max";
+        }
+    }
+
+    static class Stats {
+        final AtomicLong mKeystrokes = new AtomicLong();
+        final AtomicLong mRemoteQueries = new AtomicLong();
+        final AtomicLong mDropped = new AtomicLong();
+        // From the keystroke to the first results shown for it, and to the
+        // last, local or remote, that will be
+        final Timing mFirst = new Timing();
+        final Timing mFinal = new Timing();
+    }
+
+    /**
+     * Returns the timings of all schedulers since the process started.
+     */
+    public static String dump() {
+        return "Suggestions: " + sStats.mKeystrokes.get() + " keystrokes, "
+                + sStats.mRemoteQueries.get() + " remote queries, "
+                + sStats.mDropped.get() + " stale results dropped\n"
+                + "  keystroke to first result: " + sStats.mFirst + "\n"
+                + "  keystroke to final result: " + sStats.mFinal + "\n";
+    }
+}
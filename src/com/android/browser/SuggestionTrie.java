@@ -0,0 +1,637 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Ranked urls in a compressed radix trie, for answering omnibox prefixes in
+ * memory. Each url is reachable through the {@link UrlUtils#stripUrl} form
+ * of it, lower case and without "https://", also without a leading "www.",
+ * and through every word of its title, from that word to the end of the
+ * title. Keys are cut after MAX_KEY_LENGTH characters.
+ *
+ * Urls rank like the omnibox suggestions table sorts them: bookmarks first,
+ * then by frecency, then by the date of the last visit. Every node whose
+ * subtree holds more than top K keys keeps the ids of its best K urls, so a
+ * query walks down to the node of the prefix and reads at most K ids from
+ * each node it passes below that. Queries allocate nothing.
+ *
+ * Holds at most the given number of urls, once full a new url takes the
+ * place of the lowest ranked one if it ranks higher. Not thread safe.
+ */
+public class SuggestionTrie {
+
+    public static final int MAX_KEY_LENGTH = 40;
+    // Words of a title that get a key, from the first
+    static final int MAX_TITLE_KEYS = 6;
+
+    private static final int[] NO_IDS = new int[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    // Rough sizes on the VM, for getMemoryEstimate()
+    private static final int OBJECT_BYTES = 8;
+    private static final int ARRAY_BYTES = 12;
+    private static final int NODE_BYTES = OBJECT_BYTES + 7 * 4;
+    private static final int STRING_BYTES = OBJECT_BYTES + 4 * 4 + ARRAY_BYTES;
+    private static final int MAP_ENTRY_BYTES = OBJECT_BYTES + 4 * 4 + OBJECT_BYTES + 4;
+
+    private static final class Node {
+        char[] mLabel;
+        Node[] mChildren = NO_CHILDREN;
+        int mChildCount;
+        // Urls with a key that ends here
+        int[] mIds = NO_IDS;
+        int mIdCount;
+        // Keys in the subtree, this node's included
+        int mWeight;
+        // The best urls of the subtree, best first, while mWeight > top K
+        int[] mTop;
+        int mTopCount;
+
+        Node(char[] label) {
+            mLabel = label;
+        }
+    }
+
+    private final int mTopK;
+    private final int mMaxEntries;
+    private final Node mRoot = new Node(new char[0]);
+
+    // Urls by id, freed ids are reused
+    private final HashMap<String, Integer> mIdsByUrl = new HashMap<String, Integer>();
+    private String[] mUrls = new String[64];
+    private String[] mTitles = new String[64];
+    private long[] mRanks = new long[64];
+    private int[] mFree = new int[16];
+    private int mFreeCount;
+    private int mNextId;
+
+    // Scratch for writes: the nodes on the path of a key, root first, and
+    // the keys of a url
+    private final Node[] mPath = new Node[MAX_KEY_LENGTH + 2];
+    private final ArrayList<String> mKeys = new ArrayList<String>();
+
+    public SuggestionTrie(int topK, int maxEntries) {
+        mTopK = topK;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Adds the url, or updates its title and rank if it is there. Returns
+     * false if it isn't there, the trie is full and it ranks no higher than
+     * the lowest ranked url.
+     */
+    public boolean put(String url, String title, boolean bookmark, long frecency, long date) {
+        if (url == null) {
+            return false;
+        }
+        Integer existing = mIdsByUrl.get(url);
+        int id;
+        if (existing != null) {
+            id = existing;
+            // Every key's top lists may have to change, so take them all out
+            // and put them back
+            removeKeys(id);
+        } else {
+            if (mIdsByUrl.size() >= mMaxEntries) {
+                int worst = findWorst();
+                if (worst < 0 || rank(bookmark, frecency, date) <= mRanks[worst]) {
+                    return false;
+                }
+                remove(mUrls[worst]);
+            }
+            id = allocateId();
+            mUrls[id] = url;
+            mIdsByUrl.put(url, id);
+        }
+        mTitles[id] = title;
+        mRanks[id] = rank(bookmark, frecency, date);
+        collectKeys(url, title);
+        for (int i = 0; i < mKeys.size(); i++) {
+            insert(mKeys.get(i), id);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a visit to the url's frecency and moves its date, adding it if
+     * it isn't there yet and there is room or it outranks another url.
+     */
+    public boolean visit(String url, int bonus, long date) {
+        Integer existing = mIdsByUrl.get(url);
+        if (existing == null) {
+            return put(url, null, false, bonus, date);
+        }
+        long rank = mRanks[existing];
+        return put(url, mTitles[existing], isBookmark(rank), getFrecency(rank) + bonus, date);
+    }
+
+    /**
+     * Changes the title of the url, if it is there.
+     */
+    public boolean setTitle(String url, String title) {
+        Integer existing = mIdsByUrl.get(url);
+        if (existing == null) {
+            return false;
+        }
+        if (TextUtils.equals(title, mTitles[existing])) {
+            return true;
+        }
+        long rank = mRanks[existing];
+        return put(url, title, isBookmark(rank), getFrecency(rank), getDate(rank));
+    }
+
+    public boolean remove(String url) {
+        Integer existing = mIdsByUrl.remove(url);
+        if (existing == null) {
+            return false;
+        }
+        int id = existing;
+        removeKeys(id);
+        mUrls[id] = null;
+        mTitles[id] = null;
+        mRanks[id] = 0;
+        if (mFreeCount == mFree.length) {
+            mFree = Arrays.copyOf(mFree, mFreeCount * 2);
+        }
+        mFree[mFreeCount++] = id;
+        return true;
+    }
+
+    public int size() {
+        return mIdsByUrl.size();
+    }
+
+    /**
+     * Puts the ids of the best urls matching the typed text into out, best
+     * first, and returns how many there are, at most top K. Returns -1 if
+     * the text is longer than the keys, so the trie can't tell.
+     */
+    public int query(CharSequence text, int[] out) {
+        int limit = Math.min(out.length, mTopK);
+        int length = text.length();
+        int pos = 0;
+        while (pos < length && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        if (startsWith(text, pos, "http://")) {
+            pos += 7;
+        } else if (startsWith(text, pos, "https://")) {
+            pos += 8;
+        } else if (length - pos >= 4 && (isPrefixOf(text, pos, "http://")
+                || isPrefixOf(text, pos, "https://"))) {
+            // Part of a scheme, which every url has
+            return collect(mRoot, out, 0, limit);
+        }
+        if (length - pos > MAX_KEY_LENGTH) {
+            return -1;
+        }
+        Node node = mRoot;
+        while (pos < length) {
+            Node child = findChild(node, Character.toLowerCase(text.charAt(pos)));
+            if (child == null) {
+                return 0;
+            }
+            char[] label = child.mLabel;
+            for (int i = 0; i < label.length && pos < length; i++, pos++) {
+                if (label[i] != Character.toLowerCase(text.charAt(pos))) {
+                    return 0;
+                }
+            }
+            node = child;
+        }
+        return collect(node, out, 0, limit);
+    }
+
+    public String getUrl(int id) {
+        return mUrls[id];
+    }
+
+    public String getTitle(int id) {
+        return mTitles[id];
+    }
+
+    public boolean isBookmark(int id) {
+        return isBookmark(mRanks[id]);
+    }
+
+    /**
+     * Returns roughly how many bytes the trie and its urls take.
+     */
+    public long getMemoryEstimate() {
+        long bytes = estimate(mRoot);
+        bytes += (long) mUrls.length * (4 + 4 + 8) + ARRAY_BYTES * 3 + mFree.length * 4;
+        for (int id = 0; id < mNextId; id++) {
+            if (mUrls[id] != null) {
+                bytes += STRING_BYTES + mUrls[id].length() * 2 + MAP_ENTRY_BYTES;
+            }
+            if (mTitles[id] != null) {
+                bytes += STRING_BYTES + mTitles[id].length() * 2;
+            }
+        }
+        return bytes;
+    }
+
+    public int getNodeCount() {
+        return count(mRoot);
+    }
+
+    private long estimate(Node node) {
+        long bytes = NODE_BYTES + ARRAY_BYTES + node.mLabel.length * 2;
+        if (node.mChildren != NO_CHILDREN) {
+            bytes += ARRAY_BYTES + node.mChildren.length * 4;
+        }
+        if (node.mIds != NO_IDS) {
+            bytes += ARRAY_BYTES + node.mIds.length * 4;
+        }
+        if (node.mTop != null) {
+            bytes += ARRAY_BYTES + node.mTop.length * 4;
+        }
+        for (int i = 0; i < node.mChildCount; i++) {
+            bytes += estimate(node.mChildren[i]);
+        }
+        return bytes;
+    }
+
+    private int count(Node node) {
+        int nodes = 1;
+        for (int i = 0; i < node.mChildCount; i++) {
+            nodes += count(node.mChildren[i]);
+        }
+        return nodes;
+    }
+
+    // Bookmarks first, then frecency, then the date in seconds
+    static long rank(boolean bookmark, long frecency, long date) {
+        long f = Math.max(0, Math.min(frecency, (1L << 30) - 1));
+        long seconds = Math.max(0, Math.min(date / 1000, 0xffffffffL));
+        return (bookmark ? 1L << 62 : 0) | f << 32 | seconds;
+    }
+
+    private static boolean isBookmark(long rank) {
+        return (rank & 1L << 62) != 0;
+    }
+
+    private static long getFrecency(long rank) {
+        return (rank >>> 32) & ((1L << 30) - 1);
+    }
+
+    private static long getDate(long rank) {
+        return (rank & 0xffffffffL) * 1000;
+    }
+
+    private boolean isBetter(int a, int b) {
+        return mRanks[a] > mRanks[b] || (mRanks[a] == mRanks[b] && a < b);
+    }
+
+    /**
+     * Returns the id of the lowest ranked url, -1 if there is none. Scans
+     * every url, only new urls of a full trie need it.
+     */
+    private int findWorst() {
+        int worst = -1;
+        for (int id = 0; id < mNextId; id++) {
+            if (mUrls[id] != null && (worst < 0 || isBetter(worst, id))) {
+                worst = id;
+            }
+        }
+        return worst;
+    }
+
+    private int allocateId() {
+        if (mFreeCount > 0) {
+            return mFree[--mFreeCount];
+        }
+        if (mNextId == mUrls.length) {
+            int capacity = mNextId * 2;
+            mUrls = Arrays.copyOf(mUrls, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mRanks = Arrays.copyOf(mRanks, capacity);
+        }
+        return mNextId++;
+    }
+
+    private void collectKeys(String url, String title) {
+        mKeys.clear();
+        String key = lowerCase(UrlUtils.stripUrl(url));
+        if (key.startsWith("https://")) {
+            key = key.substring(8);
+        }
+        addKey(key);
+        if (key.startsWith("www.")) {
+            addKey(key.substring(4));
+        }
+        if (title == null) {
+            return;
+        }
+        String lower = lowerCase(title);
+        int words = 0;
+        for (int i = 0; i < lower.length() && words < MAX_TITLE_KEYS; i++) {
+            if (Character.isLetterOrDigit(lower.charAt(i))
+                    && (i == 0 || !Character.isLetterOrDigit(lower.charAt(i - 1)))) {
+                addKey(lower.substring(i));
+                words++;
+            }
+        }
+    }
+
+    private void addKey(String key) {
+        if (key.length() > MAX_KEY_LENGTH) {
+            key = key.substring(0, MAX_KEY_LENGTH);
+        }
+        if (key.length() > 0 && !mKeys.contains(key)) {
+            mKeys.add(key);
+        }
+    }
+
+    private void removeKeys(int id) {
+        collectKeys(mUrls[id], mTitles[id]);
+        for (int i = 0; i < mKeys.size(); i++) {
+            delete(mKeys.get(i), id);
+        }
+    }
+
+    // Lower cases like query() does, a char at a time
+    private static String lowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private void insert(String key, int id) {
+        Node node = mRoot;
+        int depth = 0;
+        mPath[depth++] = node;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node child = findChild(node, key.charAt(pos));
+            if (child == null) {
+                child = new Node(key.substring(pos).toCharArray());
+                addChild(node, child);
+                pos = key.length();
+            } else {
+                int common = 0;
+                while (common < child.mLabel.length && pos + common < key.length()
+                        && child.mLabel[common] == key.charAt(pos + common)) {
+                    common++;
+                }
+                if (common < child.mLabel.length) {
+                    child = split(node, child, common);
+                }
+                pos += common;
+            }
+            node = child;
+            mPath[depth++] = node;
+        }
+        for (int i = 0; i < node.mIdCount; i++) {
+            if (node.mIds[i] == id) {
+                Arrays.fill(mPath, null);
+                return;
+            }
+        }
+        if (node.mIdCount == node.mIds.length) {
+            node.mIds = Arrays.copyOf(node.mIds, Math.max(2, node.mIdCount * 2));
+        }
+        node.mIds[node.mIdCount++] = id;
+        for (int i = depth - 1; i >= 0; i--) {
+            mPath[i].mWeight++;
+            updateTop(mPath[i]);
+            mPath[i] = null;
+        }
+    }
+
+    private void delete(String key, int id) {
+        Node node = mRoot;
+        int depth = 0;
+        mPath[depth++] = node;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node child = findChild(node, key.charAt(pos));
+            if (child == null || !labelMatches(child.mLabel, key, pos)) {
+                Arrays.fill(mPath, null);
+                return;
+            }
+            pos += child.mLabel.length;
+            node = child;
+            mPath[depth++] = node;
+        }
+        int index = -1;
+        for (int i = 0; i < node.mIdCount; i++) {
+            if (node.mIds[i] == id) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            Arrays.fill(mPath, null);
+            return;
+        }
+        node.mIds[index] = node.mIds[--node.mIdCount];
+        if (node.mIdCount == 0) {
+            node.mIds = NO_IDS;
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            mPath[i].mWeight--;
+            updateTop(mPath[i]);
+        }
+        // Drop the node if it is empty now, and fold a parent left with a
+        // single child into it, so the trie stays compressed
+        if (depth > 1 && node.mIdCount == 0 && node.mChildCount == 0) {
+            Node parent = mPath[depth - 2];
+            removeChild(parent, node);
+            if (depth > 2 && parent.mIdCount == 0 && parent.mChildCount == 1) {
+                merge(parent);
+            }
+        } else if (depth > 1 && node.mIdCount == 0 && node.mChildCount == 1) {
+            merge(node);
+        }
+        Arrays.fill(mPath, null);
+    }
+
+    private static boolean labelMatches(char[] label, String key, int pos) {
+        if (label.length > key.length() - pos) {
+            return false;
+        }
+        for (int i = 0; i < label.length; i++) {
+            if (label[i] != key.charAt(pos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Node findChild(Node node, char c) {
+        for (int i = 0; i < node.mChildCount; i++) {
+            if (node.mChildren[i].mLabel[0] == c) {
+                return node.mChildren[i];
+            }
+        }
+        return null;
+    }
+
+    private static void addChild(Node node, Node child) {
+        if (node.mChildCount == node.mChildren.length) {
+            node.mChildren = Arrays.copyOf(node.mChildren, Math.max(2, node.mChildCount * 2));
+        }
+        node.mChildren[node.mChildCount++] = child;
+    }
+
+    private static void removeChild(Node node, Node child) {
+        for (int i = 0; i < node.mChildCount; i++) {
+            if (node.mChildren[i] == child) {
+                node.mChildren[i] = node.mChildren[--node.mChildCount];
+                node.mChildren[node.mChildCount] = null;
+                break;
+            }
+        }
+        if (node.mChildCount == 0) {
+            node.mChildren = NO_CHILDREN;
+        }
+    }
+
+    /**
+     * Puts a node for the first length characters of the child's label
+     * between it and the parent, and returns it.
+     */
+    private Node split(Node parent, Node child, int length) {
+        Node middle = new Node(Arrays.copyOfRange(child.mLabel, 0, length));
+        child.mLabel = Arrays.copyOfRange(child.mLabel, length, child.mLabel.length);
+        for (int i = 0; i < parent.mChildCount; i++) {
+            if (parent.mChildren[i] == child) {
+                parent.mChildren[i] = middle;
+                break;
+            }
+        }
+        addChild(middle, child);
+        middle.mWeight = child.mWeight;
+        updateTop(middle);
+        return middle;
+    }
+
+    /**
+     * Folds the only child of a node without urls of its own into it.
+     */
+    private static void merge(Node node) {
+        Node child = node.mChildren[0];
+        char[] label = Arrays.copyOf(node.mLabel, node.mLabel.length + child.mLabel.length);
+        System.arraycopy(child.mLabel, 0, label, node.mLabel.length, child.mLabel.length);
+        node.mLabel = label;
+        node.mChildren = child.mChildren;
+        node.mChildCount = child.mChildCount;
+        node.mIds = child.mIds;
+        node.mIdCount = child.mIdCount;
+        node.mWeight = child.mWeight;
+        node.mTop = child.mTop;
+        node.mTopCount = child.mTopCount;
+    }
+
+    private void updateTop(Node node) {
+        if (node.mWeight <= mTopK) {
+            // Small enough to be walked by queries
+            node.mTop = null;
+            node.mTopCount = 0;
+            return;
+        }
+        if (node.mTop == null) {
+            node.mTop = new int[mTopK];
+        }
+        int count = 0;
+        for (int i = 0; i < node.mIdCount; i++) {
+            count = offer(node.mTop, count, mTopK, node.mIds[i]);
+        }
+        for (int i = 0; i < node.mChildCount; i++) {
+            count = collect(node.mChildren[i], node.mTop, count, mTopK);
+        }
+        node.mTopCount = count;
+    }
+
+    /**
+     * Offers the best urls of the subtree to the ranked ids in out, of
+     * which there are count, and returns how many there are then.
+     */
+    private int collect(Node node, int[] out, int count, int limit) {
+        if (node.mTop != null) {
+            for (int i = 0; i < node.mTopCount; i++) {
+                count = offer(out, count, limit, node.mTop[i]);
+            }
+            return count;
+        }
+        for (int i = 0; i < node.mIdCount; i++) {
+            count = offer(out, count, limit, node.mIds[i]);
+        }
+        for (int i = 0; i < node.mChildCount; i++) {
+            count = collect(node.mChildren[i], out, count, limit);
+        }
+        return count;
+    }
+
+    private int offer(int[] out, int count, int limit, int id) {
+        for (int i = 0; i < count; i++) {
+            if (out[i] == id) {
+                return count;
+            }
+        }
+        int i;
+        if (count < limit) {
+            i = count++;
+        } else if (limit > 0 && isBetter(id, out[limit - 1])) {
+            i = limit - 1;
+        } else {
+            return count;
+        }
+        while (i > 0 && isBetter(id, out[i - 1])) {
+            out[i] = out[i - 1];
+            i--;
+        }
+        out[i] = id;
+        return count;
+    }
+
+    // Whether the text at start begins with the lower case prefix
+    private static boolean startsWith(CharSequence text, int start, String prefix) {
+        if (text.length() - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(text.charAt(start + i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the rest of the text from start is the start of the prefix
+    private static boolean isPrefixOf(CharSequence text, int start, String prefix) {
+        int length = text.length() - start;
+        if (length > prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(text.charAt(start + i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -20,12 +20,12 @@ import android.app.SearchManager;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 
 import com.android.browser.R;
 import com.android.browser.platformsupport.BrowserContract;
 import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
 import com.android.browser.search.SearchEngine;
+import com.android.browser.search.SuggestionCache;
 
 import android.text.Html;
 import android.text.TextUtils;
@@ -77,6 +77,19 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
     final Object mResultsLock = new Object();
     boolean mIncognitoMode;
     BrowserSettings mSettings;
+    final LocalSuggestions mLocalSuggestions;
+    final SuggestionScheduler<List<SuggestItem>> mScheduler =
+            new SuggestionScheduler<List<SuggestItem>>(new RemoteSuggestions());
+
+    // Suggestions answered from a neighbouring query are asked for again
+    // once the exact ones are cached, unless the user typed on
+    final SuggestionCache.RefreshListener mRefreshListener =
+            new SuggestionCache.RefreshListener() {
+        @Override
+        public void onSuggestionsRefreshed(String query) {
+            mScheduler.requery(query);
+        }
+    };
 
     interface CompletionListener {
 
@@ -90,6 +103,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         mContext = ctx;
         mSettings = BrowserSettings.getInstance();
         mListener = listener;
+        mLocalSuggestions = DataController.getInstance(ctx).getLocalSuggestions();
         mLinesPortrait = mContext.getResources().
                 getInteger(R.integer.max_suggest_lines_portrait);
         mLinesLandscape = mContext.getResources().
@@ -203,12 +217,12 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         view.findViewById(R.id.suggestion).setOnClickListener(this);
     }
 
-    class SlowFilterTask extends AsyncTask<CharSequence, Void, List<SuggestItem>> {
+    class RemoteSuggestions implements SuggestionScheduler.RemoteQuery<List<SuggestItem>> {
 
         @Override
-        protected List<SuggestItem> doInBackground(CharSequence... params) {
+        public List<SuggestItem> query(CharSequence constraint) {
             SuggestCursor cursor = new SuggestCursor();
-            cursor.runQuery(params[0]);
+            cursor.runQuery(constraint);
             List<SuggestItem> results = new ArrayList<SuggestItem>();
             int count = cursor.getCount();
             for (int i = 0; i < count; i++) {
@@ -222,7 +236,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         }
 
         @Override
-        protected void onPostExecute(List<SuggestItem> items) {
+        public void publish(List<SuggestItem> items) {
             mSuggestResults = items;
             mMixedResults = buildSuggestionResults();
             notifyDataSetChanged();
@@ -264,12 +278,6 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             }
         }
 
-        void startSuggestionsAsync(final CharSequence constraint) {
-            if (!mIncognitoMode) {
-                new SlowFilterTask().execute(constraint);
-            }
-        }
-
         private boolean shouldProcessEmptyQuery() {
             final SearchEngine searchEngine = mSettings.getSearchEngine();
             return searchEngine.wantsEmptyQuery();
@@ -279,11 +287,14 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         protected FilterResults performFiltering(CharSequence constraint) {
             FilterResults res = new FilterResults();
             if (TextUtils.isEmpty(constraint) && !shouldProcessEmptyQuery()) {
+                // Whatever was scheduled for the previous text is stale now
+                mScheduler.onConstraintChanged(constraint, false);
                 res.count = 0;
                 res.values = null;
                 return res;
             }
-            startSuggestionsAsync(constraint);
+            // Remote suggestions follow once the user pauses, local ones now
+            long generation = mScheduler.onConstraintChanged(constraint, !mIncognitoMode);
             List<SuggestItem> filterResults = new ArrayList<SuggestItem>();
             if (constraint != null) {
                 for (CursorSource sc : mSources) {
@@ -295,6 +306,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
                 mFilterResults = filterResults;
             }
             SuggestionResults mixed = buildSuggestionResults();
+            mixed.generation = generation;
             res.count = mixed.getLineCount();
             res.values = mixed;
             return res;
@@ -319,7 +331,12 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         @Override
         protected void publishResults(CharSequence constraint, FilterResults fresults) {
             if (fresults.values instanceof SuggestionResults) {
-                mMixedResults = (SuggestionResults) fresults.values;
+                SuggestionResults results = (SuggestionResults) fresults.values;
+                if (!mScheduler.onLocalResults(results.generation)) {
+                    // Filtered for text that has changed since
+                    return;
+                }
+                mMixedResults = results;
                 notifyDataSetChanged();
             }
         }
@@ -340,6 +357,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
         ArrayList<SuggestItem> items;
         // count per type
         int[] counts;
+        // of the constraint the results are for
+        long generation;
 
         SuggestionResults() {
             items = new ArrayList<SuggestItem>(24);
@@ -424,8 +443,39 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
      */
     class CombinedCursor extends CursorSource {
 
+        // What the local suggestions answered, reused for every keystroke
+        final int[] mIds = new int[LocalSuggestions.TOP_K];
+        final String[] mUrls = new String[LocalSuggestions.TOP_K];
+        final String[] mTitles = new String[LocalSuggestions.TOP_K];
+        final boolean[] mBookmarks = new boolean[LocalSuggestions.TOP_K];
+        // Rows of the above, or -1 while the provider's cursor is used
+        int mLocalCount = -1;
+        int mLocalPosition;
+
+        @Override
+        boolean moveToNext() {
+            if (mLocalCount >= 0) {
+                return ++mLocalPosition < mLocalCount;
+            }
+            return super.moveToNext();
+        }
+
+        @Override
+        public int getCount() {
+            return mLocalCount >= 0 ? mLocalCount : super.getCount();
+        }
+
         @Override
         public SuggestItem getItem() {
+            if (mLocalCount >= 0) {
+                if (mLocalPosition >= mLocalCount) {
+                    return null;
+                }
+                String title = mTitles[mLocalPosition];
+                String url = mUrls[mLocalPosition];
+                return new SuggestItem(getTitle(title, url), getUrl(title, url),
+                        mBookmarks[mLocalPosition] ? TYPE_BOOKMARK : TYPE_HISTORY);
+            }
             if ((mCursor != null) && (!mCursor.isAfterLast())) {
                 String title = mCursor.getString(1);
                 String url = mCursor.getString(2);
@@ -441,7 +491,14 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             // constraint != null
             if (mCursor != null) {
                 mCursor.close();
+                mCursor = null;
+            }
+            mLocalPosition = 0;
+            mLocalCount = mLocalSuggestions.query(constraint, mIds, mUrls, mTitles, mBookmarks);
+            if (mLocalCount >= 0) {
+                return;
             }
+            // Not loaded yet, or more text than the trie keeps
             String like = constraint + "%";
             String[] args = null;
             String selection = null;
@@ -462,6 +519,7 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
             ub.appendQueryParameter(BrowserContract.PARAM_LIMIT,
                     Integer.toString(Math.max(mLinesLandscape, mLinesPortrait)));
+            ub.appendQueryParameter(OmniboxSuggestions.PARAM_QUERY, constraint.toString());
             mCursor =
                     mContext.getContentResolver().query(ub.build(), COMBINED_PROJECTION,
                             selection, (constraint != null) ? args : null, null);
@@ -553,7 +611,8 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
             SearchEngine searchEngine = mSettings.getSearchEngine();
             if (!TextUtils.isEmpty(constraint)) {
                 if (searchEngine != null && searchEngine.supportsSuggestions()) {
-                    mCursor = searchEngine.getSuggestions(mContext, constraint.toString());
+                    mCursor = SuggestionCache.getInstance().getSuggestions(mContext,
+                            searchEngine, constraint.toString(), mRefreshListener);
                     if (mCursor != null) {
                         mCursor.moveToFirst();
                     }
@@ -576,7 +635,9 @@ public class SuggestionsAdapter extends BaseAdapter implements Filterable,
 
     public void setIncognitoMode(boolean incognito) {
         mIncognitoMode = incognito;
+        mScheduler.cancel();
         clearCache();
+        SuggestionCache.getInstance().clear();
     }
 
     static String getSuggestionTitle(SuggestItem item) {
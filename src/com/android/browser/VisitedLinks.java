@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.ValueCallback;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.util.LongHashSet;
+
+import java.util.Arrays;
+
+/**
+ * Hands the visited urls to the engine, which only takes the urls
+ * themselves. They are streamed out of the history table in pages instead
+ * of building one array of every url, and only url fingerprints are kept
+ * to leave out duplicates.
+ */
+public class VisitedLinks {
+    private static final String LOGTAG = "VisitedLinks";
+
+    // Urls handed to the engine per callback
+    public static final int PAGE_SIZE = 500;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mMainHandler;
+
+    public VisitedLinks(ContentResolver cr) {
+        mContentResolver = cr;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Delivers every visited url to the callback on the UI thread, in
+     * arrays of at most {@link #PAGE_SIZE} urls and without duplicates.
+     */
+    public void getVisitedHistory(final ValueCallback<String[]> callback) {
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                final LongHashSet sent = new LongHashSet();
+                forEachPage(new PageCallback() {
+                    @Override
+                    public void onPage(String[] urls, int count) {
+                        final String[] page = new String[count];
+                        int n = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (sent.add(LongHashSet.fingerprint(urls[i]))) {
+                                page[n++] = urls[i];
+                            }
+                        }
+                        if (n == 0) {
+                            return;
+                        }
+                        deliver(callback, n == count ? page : Arrays.copyOf(page, n));
+                    }
+                });
+                if (sent.size() == 0) {
+                    deliver(callback, new String[0]);
+                }
+            }
+        });
+    }
+
+    private void deliver(final ValueCallback<String[]> callback, final String[] urls) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReceiveValue(urls);
+            }
+        });
+    }
+
+    private interface PageCallback {
+        void onPage(String[] urls, int count);
+    }
+
+    /**
+     * Pages through the visited history urls by _id, reusing one array.
+     */
+    private void forEachPage(PageCallback callback) {
+        Uri uri = History.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(PAGE_SIZE))
+                .build();
+        String[] projection = new String[] { History._ID, History.URL };
+        String[] urls = new String[PAGE_SIZE];
+        long lastId = 0;
+        while (true) {
+            Cursor c = null;
+            int count = 0;
+            try {
+                c = mContentResolver.query(uri, projection,
+                        History.VISITS + " > 0 AND history." + History._ID + " > ?",
+                        new String[] { Long.toString(lastId) }, "history." + History._ID);
+                if (c == null) {
+                    return;
+                }
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    urls[count++] = c.getString(1);
+                }
+            } catch (IllegalStateException e) {
+                Log.e(LOGTAG, "getVisitedHistory", e);
+                return;
+            } finally {
+                if (c != null) c.close();
+            }
+            if (count > 0) {
+                callback.onPage(urls, count);
+            }
+            if (count < PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+}
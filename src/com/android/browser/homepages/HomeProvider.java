@@ -28,13 +28,16 @@ import android.webkit.WebResourceResponse;
 
 import com.android.browser.BrowserConfig;
 import com.android.browser.BrowserSettings;
+import com.android.browser.provider.ProviderStats;
 
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.PrintWriter;
 
 public class HomeProvider extends ContentProvider {
 
@@ -42,6 +45,9 @@ public class HomeProvider extends ContentProvider {
     public static final String AUTHORITY = BrowserConfig.AUTHORITY + ".home";
     public static final String MOST_VISITED = "content://" + AUTHORITY + "/index";
 
+    // Only serves files, so there is no matcher to tell its URIs apart
+    private final ProviderStats mStats = new ProviderStats(TAG, null);
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         return 0;
@@ -76,11 +82,13 @@ public class HomeProvider extends ContentProvider {
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) {
+        long start = mStats.start();
         try {
             ParcelFileDescriptor[] pipes = ParcelFileDescriptor.createPipe();
             final ParcelFileDescriptor write = pipes[1];
             AssetFileDescriptor afd = new AssetFileDescriptor(write, 0, -1);
             new RequestHandler(getContext(), uri, afd.createOutputStream()).start();
+            mStats.end(ProviderStats.OPEN_FILE, uri, start, 0);
             return pipes[0];
         } catch (IOException e) {
             Log.e(TAG, "Failed to handle request: " + uri, e);
@@ -88,6 +96,11 @@ public class HomeProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+    }
+
     public static WebResourceResponse shouldInterceptRequest(Context context,
             String url) {
         try {
@@ -112,7 +112,7 @@ public class RequestHandler extends Thread {
         Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
         Cursor historyResults = mContext.getContentResolver().query(
                 History.CONTENT_URI, PROJECTION, SELECTION,
-                null, History.VISITS + " DESC LIMIT 12");
+                null, History.FRECENCY + " DESC LIMIT 12");
         Cursor cursor = historyResults;
         try {
             if (cursor.getCount() < 12) {
@@ -30,19 +30,20 @@
 
 package com.android.browser.mdm;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.browser.platformsupport.BrowserContract;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.util.ArrayList;
 
 import static org.chromium.base.ApplicationStatus.getApplicationContext;
 
@@ -51,7 +52,8 @@ public class ManagedBookmarksRestriction extends Restriction {
     private final static String TAG = "+++MngdBookmarks_Rest";
 
     public static final String MANAGED_BOOKMARKS = "ManagedBookmarks";
-    private static final String FOLDER_URL_KEY = "MDM";
+    // Marks the managed folders in their url, see syncTree()
+    static final String FOLDER_URL_KEY = "MDM";
     private static ManagedBookmarksRestriction sInstance;
     private String mJsonBookmarks;
     public BookmarksDb mDb;
@@ -78,6 +80,7 @@ public class ManagedBookmarksRestriction extends Restriction {
 
     public class BookmarksDb {
         private ContentResolver mCr = null;
+        private int mLastSyncOperations;
 
         public class CRException extends Exception {
             public CRException(String s) {
@@ -126,10 +129,14 @@ public class ManagedBookmarksRestriction extends Restriction {
         public long getMdmRootFolderId() {
             long result = -1;
             String projections[] = new String[] {BrowserContract.Bookmarks._ID};
-            String where =  BrowserContract.Bookmarks.TITLE     + " = 'Managed' AND " +
-                            BrowserContract.Bookmarks.IS_FOLDER + " = 1         AND " +
-                            BrowserContract.Bookmarks.URL       + " like '" + FOLDER_URL_KEY + "%' AND " +
-                            BrowserContract.Bookmarks.PARENT    + " = 1";
+            // The managed folder that isn't inside another one, whatever its
+            // title and parent, so the sync can put those back if they drift
+            String managed = BrowserContract.Bookmarks.IS_FOLDER + " = 1 AND " +
+                             BrowserContract.Bookmarks.URL + " like '" + FOLDER_URL_KEY + "%'";
+            String where =  managed + " AND " +
+                            BrowserContract.Bookmarks.PARENT + " NOT IN (SELECT " +
+                            BrowserContract.Bookmarks._ID + " FROM bookmarks WHERE " +
+                            managed + " AND " + BrowserContract.Bookmarks.IS_DELETED + " = 0)";
             try {
                 Cursor c = cr().query(BrowserContract.Bookmarks.CONTENT_URI,
                         projections,  // projections... the columns we want. null means all
@@ -166,24 +173,6 @@ public class ManagedBookmarksRestriction extends Restriction {
             return c;
         }
 
-        private void addBookmark(String title, long parent, String url) {
-            ContentValues values = new ContentValues();
-            values.put(BrowserContract.Bookmarks.PARENT, parent);
-            values.put(BrowserContract.Bookmarks.TITLE, title);
-            values.put(BrowserContract.Bookmarks.URL, url);
-
-            try {
-                Uri uri = cr().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
-                if (uri == null) {
-                    Log.e(TAG, "Bookmark '" + title + "' creation failed.");
-                }
-            } catch (android.database.sqlite.SQLiteException e) {
-                Log.e(TAG, "addBookmark-SQL Exception during creation: [" + e.toString() + "]");
-            } catch (CRException e) {
-                Log.e(TAG, "addBookmark CR Exception: [" + e.toString() + "]");
-            }
-        }
-
         private boolean bookmarksAlreadyEnabled(int hash) {
             boolean ret = false;
             String incomingHash = String.valueOf(hash);
@@ -202,143 +191,127 @@ public class ManagedBookmarksRestriction extends Restriction {
             return ret;
         }
 
-        private void addFolder(String title, long parent, JSONArray children, int hash) {
-            ContentValues values = new ContentValues();
-            values.put(BrowserContract.Bookmarks.PARENT, parent);
-            values.put(BrowserContract.Bookmarks.TITLE, title);
-            values.put(BrowserContract.Bookmarks.IS_FOLDER, 1);
-
+        /**
+         * Brings the managed tree in line with the policy. Only the nodes that
+         * were added, removed or changed are written, in one batch.
+         */
+        private void syncTree(String title, long parent, JSONArray children, int hash) {
             // We are using the URL field (normally not used for folders) to
-            // lock down that this folder is managed by Mdm.  This is certainly
-            // non-standard, but the alternative would be to modify the database schema,
-            // which would become a maintenance headache later when google updates the schema.
-            if (hash != 0) {
-                // We add the hash of the json string to the root folder. We use this
-                // to check if we already have this bookmark set enabled.
-                values.put(BrowserContract.Bookmarks.URL, FOLDER_URL_KEY + ":" + hash);
-            }
-            else {
-                values.put(BrowserContract.Bookmarks.URL, FOLDER_URL_KEY);
-            }
+            // lock down that this folder is managed by Mdm. The root also
+            // carries the hash of the json string, which tells us whether we
+            // already have this bookmark set enabled.
+            String rootUrl = hash != 0 ? FOLDER_URL_KEY + ":" + hash : FOLDER_URL_KEY;
+            ManagedBookmarksSync.Node wanted =
+                    ManagedBookmarksSync.parse(title, rootUrl, children);
 
             try {
-                Uri uri = cr().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
-                if (uri != null) {
-                    long nodeId = ContentUris.parseId(uri);
-
-                    if (children != null) {
-                        for (int i = 0; i < children.length(); i++) {
-                            JSONObject j = children.getJSONObject(i);
-
-                            // if it has a URL, then it's a bookmark
-                            if (j.has("url")) {
-                                String t = j.getString("name");
-                                String u = j.getString("url");
-                                mDb.addBookmark(t, nodeId, u);
-                            }
-                            // if it has children, then it's a subfolder
-                            else if (j.has("children")) {
-                                String t = j.getString("name");
-                                JSONArray ja = new JSONArray(j.getString("children"));
-                                addFolder(t, nodeId, ja, 0);
-                            } else {
-                                Log.e(TAG, "Parse error processing children for [" + title + "]");
-                            }
-                        }
+                ManagedBookmarksSync.Node existing = null;
+                long rootId = getMdmRootFolderId();
+                if (rootId != -1) {
+                    Cursor c = cr().query(BrowserContract.Bookmarks.buildSubtreeUri(rootId),
+                            ManagedBookmarksSync.PROJECTION, null, null,
+                            ManagedBookmarksSync.SORT_ORDER);
+                    if (c != null) {
+                        existing = ManagedBookmarksSync.read(rootId, c);
+                        c.close();
                     }
-                } else {
-                    Log.e(TAG, "Folder creation failed.");
+                }
+                ArrayList<ContentProviderOperation> ops =
+                        ManagedBookmarksSync.diff(existing, wanted, parent);
+                Log.i(TAG, "syncTree: applying " + ops.size() + " operations");
+                mLastSyncOperations = ops.size();
+                if (!ops.isEmpty()) {
+                    cr().applyBatch(BrowserContract.AUTHORITY, ops);
                 }
             } catch (android.database.sqlite.SQLiteException e) {
-                Log.e(TAG, "addFolder-SQL Exception during creation: [" + e.toString() + "]");
-            } catch (JSONException e) {
-                Log.e(TAG, "addFolder-JSON exception during creation: [" + e.toString() + "]");
+                Log.e(TAG, "syncTree-SQL Exception: [" + e.toString() + "]");
+            } catch (RemoteException e) {
+                Log.e(TAG, "syncTree Remote Exception: [" + e.toString() + "]");
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "syncTree Operation Exception: [" + e.toString() + "]");
             } catch (CRException e) {
-                Log.e(TAG, "addFolder CR Exception: [" + e.toString() + "]");
+                Log.e(TAG, "syncTree CR Exception: [" + e.toString() + "]");
             }
         }
 
+        /**
+         * Returns the number of rows the last sync inserted, updated or
+         * deleted a subtree of.
+         */
+        public int getLastSyncOperationCount() {
+            return mLastSyncOperations;
+        }
+
         public boolean isMdmElement(long id) {
             boolean ret = false;
 
             String[] projections =
                     new String[]{
                             BrowserContract.Bookmarks.IS_FOLDER,
-                            BrowserContract.Bookmarks.URL,
-                            BrowserContract.Bookmarks.PARENT};
+                            BrowserContract.Bookmarks.URL};
 
-            Cursor c = mDb.queryById(id, projections);
-            if(1 == c.getCount()) {
-                c.moveToFirst();
+            // The item and the folders above it, in one query
+            Cursor c = null;
+            try {
+                c = cr().query(BrowserContract.Bookmarks.buildPathUri(id),
+                        projections, null, null, null);
+            } catch (android.database.sqlite.SQLiteException e) {
+                Log.e(TAG, "isMdmElement SQL Exception: [" + e.toString() + "]");
+            } catch (CRException e) {
+                Log.e(TAG, "isMdmElement CR Exception: [" + e.toString() + "]");
+            }
+            if (c == null) {
+                return false;
+            }
+            if (c.getCount() == 0) {
+                Log.e(TAG,"isMdmElement: Invalid id ["+id+"]");
+            }
+            while (c.moveToNext()) {
                 int isFolder = c.getInt(0);
                 String url = c.getString(1);
-                long parent = c.getLong(2);
-
-                if (isFolder != 0) {
-                    if (url != null && url.startsWith(FOLDER_URL_KEY)) {
-                        ret = true;
-                    }
-                }
-                else {
-                    Cursor cp = mDb.queryById(parent, projections);
-                    if(1 == cp.getCount()) {
-                        cp.moveToFirst();
-                        String u2 = cp.getString(1);
-                        if (u2 != null && u2.startsWith(FOLDER_URL_KEY)) {
-                            ret = true;
-                        }
-                    }
-                    else {
-                        Log.e(TAG,"isMdmElement: Invalid parent id ["+id+"]");
-                    }
+                if (isFolder != 0 && url != null && url.startsWith(FOLDER_URL_KEY)) {
+                    ret = true;
+                    break;
                 }
             }
-            else {
-                Log.e(TAG,"isMdmElement: Invalid id ["+id+"]");
-            }
             c.close();
             return ret;
         }
 
+        /**
+         * Returns the number of items in the tree below and including the
+         * given folder, counted in one query.
+         */
+        public int getTreeSize(long folderId) {
+            int size = 0;
+            try {
+                Cursor c = cr().query(BrowserContract.Bookmarks.buildSubtreeUri(folderId),
+                        new String[] {BrowserContract.Bookmarks._ID}, null, null, null);
+                if (c != null) {
+                    size = c.getCount();
+                    c.close();
+                }
+            } catch (android.database.sqlite.SQLiteException e) {
+                Log.e(TAG, "getTreeSize SQL Exception: [" + e.toString() + "]");
+            } catch (CRException e) {
+                Log.e(TAG, "getTreeSize CR Exception: [" + e.toString() + "]");
+            }
+            return size;
+        }
+
         private void deleteTree(long folderId) {
             if (folderId == -1) {
                 Log.i(TAG, " deleteTree: no tree to delete.");
                 return;
             }
 
-            String[] projections =
-                    new String[]{
-                            BrowserContract.Bookmarks.IS_FOLDER,
-                            BrowserContract.Bookmarks._ID};
-
+            // The folder and everything below it, in one statement
             try {
-                Cursor c = getChildrenForMdmFolder(folderId, projections);
-
-                int n = c.getCount();
-                if (n != 0) {
-                    c.moveToFirst();
-                    for (int i = 0; i < n; i++) {
-                        int isFolder = c.getInt(0);
-                        int itemId   = c.getInt(1);
-
-                        if (isFolder == 1) {
-                            deleteTree(itemId);
-                        }
-                        else {
-                            mDb.deleteItemById(itemId);
-                        }
-                        c.moveToNext();
-                    }
-                }
-                else {
-                    Log.i(TAG,"DeleteTree: no children for id["+folderId+"]");
-                }
-                c.close();
-
-                // now that the contents have been deleted, delete this folder
-                mDb.deleteItemById(folderId);
+                cr().delete(BrowserContract.Bookmarks.buildSubtreeUri(folderId), null, null);
             } catch (android.database.sqlite.SQLiteException e) {
                 Log.e(TAG, "deleteTree SQL Exception: [" + e.toString() + "]");
+            } catch (CRException e) {
+                Log.e(TAG, "deleteTree CR Exception: [" + e.toString() + "]");
             }
         }
     }
@@ -400,7 +373,6 @@ public class ManagedBookmarksRestriction extends Restriction {
         int hash = mJsonBookmarks.hashCode();
         if (! mDb.bookmarksAlreadyEnabled(hash)) {
             Log.i(TAG, ">>>>>>> BOOKMARKS NOT ALREADY ENABLED <<<<<<<<<<<<");
-            removeManagedBookmarks();
             JSONArray dict = null;
             try {
                 dict = new JSONArray(mJsonBookmarks);
@@ -408,7 +380,7 @@ public class ManagedBookmarksRestriction extends Restriction {
                 Log.w(TAG, "addManagedBookmarks: Incoming JSON didn't parse. Creating empty folder." + e.toString());
             }
 
-            mDb.addFolder(name, rootFolder, dict, hash);
+            mDb.syncTree(name, rootFolder, dict, hash);
 
             mCreatedMdmBookmarks = true;
         }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2015, The Linux Foundation. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided
+ * with the distribution.
+ * * Neither the name of The Linux Foundation nor the names of its
+ * contributors may be used to endorse or promote products derived
+ * from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ * BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ * BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ * IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.android.browser.mdm;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Works out the provider operations that turn the managed bookmarks in the
+ * database into the ones a policy describes.
+ *
+ * Every node gets a key hashed from its parent's key, whether it is a folder,
+ * its name and how many siblings of the same kind and name come before it.
+ * Nodes of the policy and rows of the database with the same key are the
+ * same bookmark, so only the rows whose url or position changed are updated,
+ * rows with no counterpart are deleted along with their contents and policy
+ * nodes with no counterpart are inserted.
+ */
+class ManagedBookmarksSync {
+
+    private final static String TAG = "+++MngdBookmarks_Sync";
+
+    // Keeps each batch well under SQLiteContentProvider's limit on the
+    // operations between yield points
+    static final int OPERATIONS_PER_YIELD_POINT = 400;
+
+    static final String[] PROJECTION = new String[] {
+            BrowserContract.Bookmarks._ID,
+            BrowserContract.Bookmarks.PARENT,
+            BrowserContract.Bookmarks.IS_FOLDER,
+            BrowserContract.Bookmarks.TITLE,
+            BrowserContract.Bookmarks.URL,
+            BrowserContract.Bookmarks.POSITION,
+    };
+
+    static final String SORT_ORDER = BrowserContract.Bookmarks.POSITION + " ASC, "
+            + BrowserContract.Bookmarks._ID + " ASC";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    static class Node {
+        final boolean isFolder;
+        final String title;
+        final String url;
+        long position;
+        long key;
+        long id = -1;
+        long parent = -1;
+        // Whether a node of the other tree has the same key
+        boolean claimed;
+        final ArrayList<Node> children = new ArrayList<Node>();
+
+        Node(boolean isFolder, String title, String url) {
+            this.isFolder = isFolder;
+            this.title = title;
+            this.url = url;
+        }
+    }
+
+    /**
+     * Builds the tree a policy describes below a root folder with the given
+     * url, the parsing addFolder() used to do.
+     */
+    static Node parse(String rootTitle, String rootUrl, JSONArray dict) {
+        Node root = new Node(true, rootTitle, rootUrl);
+        if (dict != null) {
+            addChildren(root, dict);
+        }
+        assignKeys(root, FNV_OFFSET);
+        return root;
+    }
+
+    private static void addChildren(Node folder, JSONArray children) {
+        for (int i = 0; i < children.length(); i++) {
+            try {
+                JSONObject j = children.getJSONObject(i);
+                // if it has a URL, then it's a bookmark
+                if (j.has("url")) {
+                    folder.children.add(new Node(false, j.getString("name"), j.getString("url")));
+                }
+                // if it has children, then it's a subfolder
+                else if (j.has("children")) {
+                    Node sub = new Node(true, j.getString("name"),
+                            ManagedBookmarksRestriction.FOLDER_URL_KEY);
+                    addChildren(sub, new JSONArray(j.getString("children")));
+                    folder.children.add(sub);
+                } else {
+                    Log.e(TAG, "Parse error processing children for [" + folder.title + "]");
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "parse-JSON exception: [" + e.toString() + "]");
+            }
+        }
+        for (int i = 0; i < folder.children.size(); i++) {
+            folder.children.get(i).position = i;
+        }
+    }
+
+    /**
+     * Builds the tree of the rows of a subtree query on the root folder.
+     * Returns null if the root isn't among them.
+     */
+    static Node read(long rootId, Cursor c) {
+        HashMap<Long, Node> nodes = new HashMap<Long, Node>();
+        ArrayList<Node> rows = new ArrayList<Node>();
+        while (c.moveToNext()) {
+            Node node = new Node(c.getInt(2) != 0, c.getString(3), c.getString(4));
+            node.id = c.getLong(0);
+            node.parent = c.getLong(1);
+            node.position = c.getLong(5);
+            nodes.put(node.id, node);
+            rows.add(node);
+        }
+        Node root = nodes.get(rootId);
+        if (root == null) {
+            return null;
+        }
+        // Rows come sorted by position, so children keep their order
+        for (Node row : rows) {
+            Node parent = nodes.get(row.parent);
+            if (row != root && parent != null) {
+                parent.children.add(row);
+            }
+        }
+        assignKeys(root, FNV_OFFSET);
+        return root;
+    }
+
+    private static void assignKeys(Node folder, long key) {
+        folder.key = key;
+        HashMap<Long, Integer> seen = new HashMap<Long, Integer>();
+        for (Node child : folder.children) {
+            long base = hash(hash(key, child.isFolder ? "f" : "b"), child.title);
+            Integer occurrence = seen.get(base);
+            occurrence = occurrence == null ? 0 : occurrence + 1;
+            seen.put(base, occurrence);
+            assignKeys(child, hash(base, Integer.toString(occurrence)));
+        }
+    }
+
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separates the strings, so "ab" + "c" and "a" + "bc" differ
+        return (h ^ 0xff) * FNV_PRIME;
+    }
+
+    /**
+     * Returns the operations that turn the existing tree, if any, into the
+     * wanted one, a root folder below rootParent.
+     */
+    static ArrayList<ContentProviderOperation> diff(Node existing, Node wanted,
+            long rootParent) {
+        ArrayList<ContentProviderOperation.Builder> builders =
+                new ArrayList<ContentProviderOperation.Builder>();
+        HashMap<Long, Node> byKey = new HashMap<Long, Node>();
+        HashMap<Node, Integer> inserted = new HashMap<Node, Integer>();
+        if (existing != null) {
+            index(existing, byKey);
+            // Wanted keys claim their rows, whatever is left goes
+            claim(wanted, byKey);
+            deleteUnclaimed(existing, builders);
+        } else {
+            inserted.put(wanted, builders.size());
+            builders.add(newInsert(wanted, rootParent, -1));
+        }
+        sync(wanted, byKey, inserted, builders);
+        if (existing != null && (!TextUtils.equals(existing.url, wanted.url)
+                || !TextUtils.equals(existing.title, wanted.title)
+                || existing.parent != rootParent)) {
+            // Last, the root's url says which policy the tree is of
+            builders.add(newUpdate(existing.id)
+                    .withValue(BrowserContract.Bookmarks.URL, wanted.url)
+                    .withValue(BrowserContract.Bookmarks.TITLE, wanted.title)
+                    .withValue(BrowserContract.Bookmarks.PARENT, rootParent));
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(builders.size());
+        for (int i = 0; i < builders.size(); i++) {
+            ContentProviderOperation.Builder builder = builders.get(i);
+            if (i > 0 && i % OPERATIONS_PER_YIELD_POINT == 0) {
+                builder.withYieldAllowed(true);
+            }
+            ops.add(builder.build());
+        }
+        return ops;
+    }
+
+    private static void index(Node node, HashMap<Long, Node> byKey) {
+        byKey.put(node.key, node);
+        for (Node child : node.children) {
+            index(child, byKey);
+        }
+    }
+
+    private static void claim(Node wanted, HashMap<Long, Node> byKey) {
+        Node row = byKey.get(wanted.key);
+        if (row != null) {
+            wanted.id = row.id;
+            wanted.claimed = true;
+            row.claimed = true;
+        }
+        for (Node child : wanted.children) {
+            claim(child, byKey);
+        }
+    }
+
+    private static void deleteUnclaimed(Node row,
+            ArrayList<ContentProviderOperation.Builder> builders) {
+        for (Node child : row.children) {
+            if (!child.claimed) {
+                // Deleting the subtree takes everything below it along
+                builders.add(ContentProviderOperation.newDelete(
+                        BrowserContract.Bookmarks.buildSubtreeUri(child.id)));
+            } else {
+                deleteUnclaimed(child, builders);
+            }
+        }
+    }
+
+    private static void sync(Node folder, HashMap<Long, Node> byKey,
+            HashMap<Node, Integer> inserted,
+            ArrayList<ContentProviderOperation.Builder> builders) {
+        for (Node child : folder.children) {
+            if (child.claimed) {
+                Node row = byKey.get(child.key);
+                if (!TextUtils.equals(row.url, child.url) || row.position != child.position) {
+                    builders.add(newUpdate(child.id)
+                            .withValue(BrowserContract.Bookmarks.URL, child.url)
+                            .withValue(BrowserContract.Bookmarks.POSITION, child.position));
+                }
+            } else {
+                inserted.put(child, builders.size());
+                builders.add(newInsert(child, folder.id,
+                        folder.claimed ? -1 : inserted.get(folder)));
+            }
+            sync(child, byKey, inserted, builders);
+        }
+    }
+
+    private static ContentProviderOperation.Builder newUpdate(long id) {
+        return ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                BrowserContract.Bookmarks.CONTENT_URI, id));
+    }
+
+    private static ContentProviderOperation.Builder newInsert(Node node, long parent,
+            int parentOp) {
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(
+                BrowserContract.Bookmarks.CONTENT_URI)
+                .withValue(BrowserContract.Bookmarks.TITLE, node.title)
+                .withValue(BrowserContract.Bookmarks.URL, node.url)
+                .withValue(BrowserContract.Bookmarks.IS_FOLDER, node.isFolder ? 1 : 0)
+                .withValue(BrowserContract.Bookmarks.POSITION, node.position);
+        if (parentOp >= 0) {
+            builder.withValueBackReference(BrowserContract.Bookmarks.PARENT, parentOp);
+        } else {
+            builder.withValue(BrowserContract.Bookmarks.PARENT, parent);
+        }
+        return builder;
+    }
+}
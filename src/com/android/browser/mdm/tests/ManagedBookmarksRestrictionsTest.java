@@ -31,7 +31,10 @@
 package com.android.browser.mdm.tests;
 
 import android.app.Instrumentation;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.test.ActivityInstrumentationTestCase2;
 import android.util.Log;
@@ -53,6 +56,10 @@ public class ManagedBookmarksRestrictionsTest extends ActivityInstrumentationTes
 
     private final static String TAG = "BkmrksRestTest";
 
+    // 5000 nodes in all
+    private final static int LARGE_FOLDERS = 50;
+    private final static int LARGE_BOOKMARKS_PER_FOLDER = 99;
+
     private Instrumentation mInstrumentation;
     private BrowserActivity mActivity;
     private ManagedBookmarksRestriction managedBookmarksRestriction;
@@ -159,6 +166,8 @@ public class ManagedBookmarksRestrictionsTest extends ActivityInstrumentationTes
         long rootId = mDb.getMdmRootFolderId();
         assertFalse(rootId == -1);
         assertTrue(mDb.isMdmElement(rootId));
+        // The root, two bookmarks, the sub folder and its two bookmarks
+        assertEquals(6, mDb.getTreeSize(rootId));
 
         String[] projections = new String[] {
                 BrowserContract.Bookmarks.URL,
@@ -248,16 +257,102 @@ public class ManagedBookmarksRestrictionsTest extends ActivityInstrumentationTes
         assertTrue(rootId == -1);
     }
 
+    public void test_MB_LargePolicy() throws Throwable {
+        clearMBRestrictions();
+
+        // Every node is inserted once
+        setMBRestrictions(getLargeBookmarksDict(null));
+        assertTrue(managedBookmarksRestriction.bookmarksWereCreated());
+        long rootId = mDb.getMdmRootFolderId();
+        assertEquals(LARGE_FOLDERS * (1 + LARGE_BOOKMARKS_PER_FOLDER) + 1,
+                mDb.getTreeSize(rootId));
+        assertEquals(LARGE_FOLDERS * (1 + LARGE_BOOKMARKS_PER_FOLDER) + 1,
+                mDb.getLastSyncOperationCount());
+
+        // One bookmark moves to a new url, the tree stays in place. Only that
+        // bookmark and the hash in the root's url are written
+        setMBRestrictions(getLargeBookmarksDict("www.changed.org"));
+        assertTrue(managedBookmarksRestriction.bookmarksWereCreated());
+        assertEquals(rootId, mDb.getMdmRootFolderId());
+        assertEquals(LARGE_FOLDERS * (1 + LARGE_BOOKMARKS_PER_FOLDER) + 1,
+                mDb.getTreeSize(rootId));
+        assertEquals(2, mDb.getLastSyncOperationCount());
+
+        // The root was renamed and moved into a user folder, the next sync
+        // puts it back
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Bookmarks.TITLE, "User folder");
+        values.put(BrowserContract.Bookmarks.IS_FOLDER, 1);
+        values.put(BrowserContract.Bookmarks.PARENT, 1);
+        Uri userFolder = getActivity().getContentResolver().insert(
+                BrowserContract.Bookmarks.CONTENT_URI, values);
+        values.clear();
+        values.put(BrowserContract.Bookmarks.TITLE, "Renamed");
+        values.put(BrowserContract.Bookmarks.PARENT, ContentUris.parseId(userFolder));
+        getActivity().getContentResolver().update(ContentUris.withAppendedId(
+                BrowserContract.Bookmarks.CONTENT_URI, rootId), values, null, null);
+        setMBRestrictions(getLargeBookmarksDict(null));
+        assertEquals(rootId, mDb.getMdmRootFolderId());
+        assertEquals(2, mDb.getLastSyncOperationCount());
+        Cursor c = getActivity().getContentResolver().query(ContentUris.withAppendedId(
+                BrowserContract.Bookmarks.CONTENT_URI, rootId),
+                new String[] {BrowserContract.Bookmarks.TITLE, BrowserContract.Bookmarks.PARENT},
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("Managed", c.getString(0));
+            assertEquals(1, c.getLong(1));
+        } finally {
+            c.close();
+        }
+
+        getActivity().getContentResolver().delete(userFolder, null, null);
+        clearMBRestrictions();
+        assertTrue(mDb.getMdmRootFolderId() == -1);
+    }
+
+    /**
+     * Builds a policy of LARGE_FOLDERS folders of LARGE_BOOKMARKS_PER_FOLDER
+     * bookmarks each. A non null changedUrl replaces the url of the first
+     * bookmark.
+     */
+    private String getLargeBookmarksDict(String changedUrl) throws JSONException {
+        JSONArray dict = new JSONArray();
+        for (int i = 0; i < LARGE_FOLDERS; i++) {
+            JSONArray children = new JSONArray();
+            for (int j = 0; j < LARGE_BOOKMARKS_PER_FOLDER; j++) {
+                JSONObject bm = new JSONObject();
+                bm.put("name", "Bookmark " + i + "-" + j);
+                bm.put("url", (i == 0 && j == 0 && changedUrl != null)
+                        ? changedUrl : "www.site" + i + "-" + j + ".org");
+                children.put(bm);
+            }
+            JSONObject folder = new JSONObject();
+            folder.put("name", "Folder " + i);
+            folder.put("children", children);
+            dict.put(folder);
+        }
+        return dict.toString();
+    }
+
     /**
      * Activate ManagedBookmarks restriction
      * @param enable boolean. Set the state of the restriction.
      */
     private void setMBRestrictions(boolean enable) {
+        setMBRestrictions(enable ? getBookmarksDict(0) : null);
+    }
+
+    /**
+     * Activate ManagedBookmarks restriction with the given policy
+     * @param json String. The bookmarks, or null to clear the restriction.
+     */
+    private void setMBRestrictions(String json) {
         // Construct restriction bundle
         final Bundle restrictions = new Bundle();
 
-        if(enable) {
-            restrictions.putString(ManagedBookmarksRestriction.MANAGED_BOOKMARKS, getBookmarksDict(0));
+        if (json != null) {
+            restrictions.putString(ManagedBookmarksRestriction.MANAGED_BOOKMARKS, json);
         }
 
         // Deliver restriction on UI thread
@@ -151,6 +151,16 @@ public class Browser {
        get them. */
     private static final int MAX_HISTORY_COUNT = 250;
 
+    /**
+     * Deleting this URI applies the history cap described above in a single
+     * provider transaction, see {@link #truncateHistory}.
+     * @hide
+     */
+    public static final Uri TRUNCATE_HISTORY_URI = History.TRUNCATE_URI.buildUpon()
+            .appendQueryParameter(History.PARAM_MAX_COUNT, Integer.toString(MAX_HISTORY_COUNT))
+            .appendQueryParameter(History.PARAM_TRIM_COUNT, Integer.toString(TRUNCATE_N_OLDEST))
+            .build();
+
     /**
      *  Open an activity to save a bookmark. Launch with a title
      *  and/or a url, both of which can be edited by the user before saving.
@@ -398,27 +408,10 @@ public class Browser {
      * @param cr The ContentResolver used to access the database.
      */
     public static final void truncateHistory(ContentResolver cr) {
-        // TODO make a single request to the provider to do this in a single transaction
-        Cursor cursor = null;
         try {
-
-            // Select non-bookmark history, ordered by date
-            cursor = cr.query(History.CONTENT_URI,
-                    new String[] { History._ID, History.URL, History.DATE_LAST_VISITED },
-                    null, null, History.DATE_LAST_VISITED + " ASC");
-
-            if (cursor.moveToFirst() && cursor.getCount() >= MAX_HISTORY_COUNT) {
-                /* eliminate oldest history items */
-                for (int i = 0; i < TRUNCATE_N_OLDEST; i++) {
-                    cr.delete(ContentUris.withAppendedId(History.CONTENT_URI, cursor.getLong(0)),
-                            null, null);
-                    if (!cursor.moveToNext()) break;
-                }
-            }
+            cr.delete(TRUNCATE_HISTORY_URI, null, null);
         } catch (IllegalStateException e) {
             Log.e(LOGTAG, "truncateHistory", e);
-        } finally {
-            if (cursor != null) cursor.close();
         }
     }
 
@@ -227,6 +227,14 @@ public class BrowserContract {
          * @hide
          */
         public static final String USER_ENTERED = "user_entered";
+
+        /**
+         * Visit count weighted by how recent the visits are, used to rank
+         * suggestions.
+         * <p>Type: INTEGER</p>
+         * @hide
+         */
+        public static final String FRECENCY = "frecency";
     }
 
     interface ImageMappingColumns {
@@ -328,6 +336,26 @@ public class BrowserContract {
             return ContentUris.withAppendedId(CONTENT_URI_DEFAULT_FOLDER, folderId);
         }
 
+        /**
+         * Builds a URI that points to a bookmark and, if it is a folder,
+         * everything below it. Deleting through it deletes the whole tree.
+         * @param id the ID of the bookmark or folder at the top of the tree
+         * @hide
+         */
+        public static final Uri buildSubtreeUri(long id) {
+            return ContentUris.withAppendedId(Uri.withAppendedPath(CONTENT_URI, "subtree"), id);
+        }
+
+        /**
+         * Builds a URI that points to a bookmark and the folders above it,
+         * ordered from the root folder down to the bookmark.
+         * @param id the ID of the bookmark or folder at the end of the path
+         * @hide
+         */
+        public static final Uri buildPathUri(long id) {
+            return ContentUris.withAppendedId(Uri.withAppendedPath(CONTENT_URI, "path"), id);
+        }
+
         /**
          * The MIME type of {@link #CONTENT_URI} providing a directory of bookmarks.
          */
@@ -459,6 +487,26 @@ public class BrowserContract {
          * The MIME type of a {@link #CONTENT_URI} of a single browser history item.
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/browser-history";
+
+        /**
+         * Deleting this URI removes the {@link #PARAM_TRIM_COUNT} oldest history
+         * items in a single transaction, but only once the table holds
+         * {@link #PARAM_MAX_COUNT} or more rows.
+         * @hide
+         */
+        public static final Uri TRUNCATE_URI = Uri.withAppendedPath(CONTENT_URI, "truncate");
+
+        /**
+         * The row count at which {@link #TRUNCATE_URI} starts deleting.
+         * @hide
+         */
+        public static final String PARAM_MAX_COUNT = "max";
+
+        /**
+         * The number of rows {@link #TRUNCATE_URI} deletes at a time.
+         * @hide
+         */
+        public static final String PARAM_TRIM_COUNT = "trim";
     }
 
     /**
@@ -579,6 +627,14 @@ public class BrowserContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "images");
 
+        /**
+         * The images are stored as files and the image columns hold their
+         * names. Append a name to this URI to open the image with
+         * {@link android.content.ContentResolver#openInputStream}.
+         * @hide
+         */
+        public static final Uri BLOB_URI = Uri.withAppendedPath(CONTENT_URI, "blob");
+
         /**
          * The MIME type of {@link #CONTENT_URI} providing a directory of images.
          */
@@ -17,14 +17,19 @@
 package com.android.browser.preferences;
 
 import android.app.ActionBar;
+import android.app.AlertDialog;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.SwitchPreference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.Preference.OnPreferenceChangeListener;
 
+import com.android.browser.LocalSuggestions;
 import com.android.browser.PreferenceKeys;
 import com.android.browser.R;
+import com.android.browser.SuggestionScheduler;
+import com.android.browser.provider.ProviderStats;
+import com.android.browser.search.SuggestionCache;
 
 import org.codeaurora.swe.PermissionsServiceFactory;
 
@@ -39,6 +44,8 @@ public class DebugPreferencesFragment extends SWEPreferenceFragment
 
         SwitchPreference pref = (SwitchPreference) findPreference(PreferenceKeys.PREF_DISABLE_PERF);
         pref.setOnPreferenceChangeListener(this);
+
+        findPreference(PreferenceKeys.PREF_PROVIDER_STATS).setOnPreferenceClickListener(this);
     }
 
     @Override
@@ -58,6 +65,20 @@ public class DebugPreferencesFragment extends SWEPreferenceFragment
 
     @Override
     public boolean onPreferenceClick(Preference preference) {
+        if (getActivity() == null) {
+            return false;
+        }
+
+        if (preference.getKey().equals(PreferenceKeys.PREF_PROVIDER_STATS)) {
+            new AlertDialog.Builder(getActivity())
+                    .setTitle(R.string.pref_development_provider_stats_show)
+                    .setMessage(ProviderStats.dumpAll() + SuggestionScheduler.dump()
+                            + LocalSuggestions.dump() + SuggestionCache.getInstance())
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+            return true;
+        }
+
         return false;
     }
 
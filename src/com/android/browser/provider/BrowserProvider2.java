@@ -32,15 +32,22 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.BrowserSettings;
 import com.android.browser.R;
 import com.android.browser.UrlUtils;
@@ -62,10 +69,11 @@ import org.chromium.base.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
@@ -92,6 +100,19 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String URL = "url";
         public static final String TITLE = "title";
         public static final String IS_BOOKMARK = "bookmark";
+        /**
+         * The text typed by the user. When present the provider narrows the
+         * candidates with the full text suggestion index before applying the
+         * selection.
+         */
+        public static final String PARAM_QUERY = "q";
+        /**
+         * Notified when history rows are deleted or imported, so copies of
+         * the suggestions that follow visits themselves needn't watch every
+         * history change. Not under any URI writes notify.
+         */
+        public static final Uri RELOAD_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "omnibox_reload");
     }
 
     static final String TABLE_BOOKMARKS = "bookmarks";
@@ -102,12 +123,22 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_SETTINGS = "settings";
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final String TABLE_THUMBNAILS = "thumbnails";
+    static final String TABLE_SUGGEST_FTS = "suggest_fts";
+    static final String TABLE_OMNIBOX_SUGGESTIONS = "omnibox_suggestions";
 
     static final String TABLE_BOOKMARKS_JOIN_IMAGES = "bookmarks LEFT OUTER JOIN images " +
             "ON bookmarks.url = images." + Images.URL;
     static final String TABLE_HISTORY_JOIN_IMAGES = "history LEFT OUTER JOIN images " +
             "ON history.url = images." + Images.URL;
 
+    static final String INDEX_HISTORY_URL = "historyUrlIndex";
+    static final String INDEX_HISTORY_DATE = "historyDateIndex";
+    static final String INDEX_HISTORY_VISITS = "historyVisitsIndex";
+    static final String INDEX_HISTORY_FRECENCY = "historyFrecencyIndex";
+    static final String INDEX_BOOKMARKS_URL = "bookmarksUrlIndex";
+    static final String INDEX_BOOKMARKS_PARENT = "bookmarksParentIndex";
+    static final String INDEX_OMNIBOX_RANK = "omniboxRankIndex";
+
     static final String VIEW_ACCOUNTS = "v_accounts";
     static final String VIEW_SNAPSHOTS_COMBINED = "v_snapshots_combined";
     static final String VIEW_OMNIBOX_SUGGESTIONS = "v_omnibox_suggestions";
@@ -138,13 +169,97 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             "history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ? OR history.url LIKE ?"
             + " OR history.title LIKE ? OR bookmarks.title LIKE ?";
 
+    // Narrows the history rows to those whose url or title, or whose bookmark's
+    // title, contains the typed token sequence
+    private static final String SUGGEST_MATCH_SELECTION =
+            "history._id IN (SELECT docid FROM suggest_fts"
+            + " WHERE suggest_fts MATCH ? AND docid > 0)"
+            + " OR history.url IN (SELECT url FROM bookmarks WHERE _id IN"
+            + " (SELECT -docid FROM suggest_fts WHERE suggest_fts MATCH ? AND docid < 0))";
+
+    // Narrows the omnibox suggestions to the urls of the history rows and
+    // bookmarks whose url or title contains the typed token sequence
+    private static final String OMNIBOX_MATCH_SELECTION =
+            "url IN (SELECT url FROM history WHERE _id IN"
+            + " (SELECT docid FROM suggest_fts WHERE suggest_fts MATCH ? AND docid > 0)"
+            + " UNION ALL SELECT url FROM bookmarks WHERE _id IN"
+            + " (SELECT -docid FROM suggest_fts WHERE suggest_fts MATCH ? AND docid < 0))";
+
+    // Walks omniboxRankIndex backwards, so the top rows come without a sort
+    static final String DEFAULT_SORT_OMNIBOX_SUGGESTIONS =
+            "bookmark DESC, frecency DESC, date DESC";
+
+    // Frecency: every visit adds a bonus, a larger one for urls the user
+    // typed, and all scores decay by a fixed factor per day
+    static final int FRECENCY_VISIT_BONUS = 100;
+    static final int FRECENCY_TYPED_BONUS = 200;
+    static final double FRECENCY_DAILY_DECAY = 0.975;
+    static final long FRECENCY_DECAY_INTERVAL = 24 * 60 * 60 * 1000;
+    static final String SETTING_FRECENCY_DECAYED = "frecency_decayed";
+    // Seeded frecencies are weighted by the age of the last visit: in
+    // percent, below each of these ages in days, and for older ones
+    static final int[] FRECENCY_SEED_AGES = { 4, 14, 31, 90 };
+    static final int[] FRECENCY_SEED_WEIGHTS = { 100, 70, 50, 30 };
+    static final int FRECENCY_SEED_OLD_WEIGHT = 10;
+    // How far the import of the old BrowserProvider's database got, as the
+    // phase and the last old row id imported; there while it is unfinished
+    static final String SETTING_LEGACY_IMPORT = "legacy_import";
+
+    // The provider's write permission, see the manifest
+    static final String PERMISSION_WRITE_HISTORY_BOOKMARKS =
+            "com.android.browser.permission.WRITE_HISTORY_BOOKMARKS";
+    static final String LEGACY_IMPORT_BOOKMARKS = "bookmarks";
+    static final String LEGACY_IMPORT_HISTORY = "history";
+
+    // Old rows imported per transaction
+    static final int LEGACY_IMPORT_BATCH = 100;
+
+    // A transaction touching more folders notifies all bookmarks instead
+    static final int MAX_NOTIFY_FOLDERS = 16;
+
+    /**
+     * {@link #call} method returning the hit and miss counts of the folder
+     * and account query cache under {@link #KEY_CACHE_HITS} and
+     * {@link #KEY_CACHE_MISSES}.
+     */
+    public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+
+    /**
+     * {@link #call} method returning the write transaction counters under
+     * the KEY_ constants of {@link TransactionStats}.
+     */
+    public static final String METHOD_TRANSACTION_STATS = "transaction_stats";
+
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
-    private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+    static final String[] IMAGE_COLUMNS = new String[] {
+            Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON };
+
+    // Blobs and images rows newer than this are left to a later sweep, they
+    // may belong to a transaction that hasn't committed yet or wait for the
+    // history row that will refer to them
+    static final long IMAGE_SWEEP_GRACE = 60 * 1000;
+
+    // When the images row was last written, in milliseconds, kept by
+    // triggers, see createImageWritten()
+    static final String IMAGE_WRITTEN = "written";
+    private static final String SQL_NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    // Number of bookmarks and history rows with the url of an images row,
+    // kept up to date by triggers, see createImageRefs()
+    static final String IMAGE_REFS = "refs";
+    static final String INDEX_IMAGES_UNREFERENCED = "imagesUnreferencedIndex";
+
+    // Unreferenced images deleted per transaction by the sweeper
+    static final int IMAGE_SWEEP_BATCH = 100;
+
+    private static final String IMAGE_PRUNE = "rowid IN (SELECT rowid FROM " + TABLE_IMAGES
+            + " WHERE " + IMAGE_REFS + " <= 0 AND " + IMAGE_WRITTEN + " <= ? LIMIT "
+            + IMAGE_SWEEP_BATCH + ")";
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
@@ -157,9 +272,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final int BOOKMARKS_FOLDER_ID = 1003;
     static final int BOOKMARKS_SUGGESTIONS = 1004;
     static final int BOOKMARKS_DEFAULT_FOLDER_ID = 1005;
+    static final int BOOKMARKS_SUBTREE = 1006;
+    static final int BOOKMARKS_PATH = 1007;
 
     static final int HISTORY = 2000;
     static final int HISTORY_ID = 2001;
+    static final int HISTORY_TRUNCATE = 2002;
 
     static final int SEARCHES = 3000;
     static final int SEARCHES_ID = 3001;
@@ -168,6 +286,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final int SYNCSTATE_ID = 4001;
 
     static final int IMAGES = 5000;
+    static final int IMAGES_BLOB = 5001;
 
     static final int COMBINED = 6000;
     static final int COMBINED_ID = 6001;
@@ -211,6 +330,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "bookmarks/folder", BOOKMARKS_FOLDER);
         matcher.addURI(authority, "bookmarks/folder/#", BOOKMARKS_FOLDER_ID);
         matcher.addURI(authority, "bookmarks/folder/id", BOOKMARKS_DEFAULT_FOLDER_ID);
+        matcher.addURI(authority, "bookmarks/subtree/#", BOOKMARKS_SUBTREE);
+        matcher.addURI(authority, "bookmarks/path/#", BOOKMARKS_PATH);
         matcher.addURI(authority,
                 SearchManager.SUGGEST_URI_PATH_QUERY,
                 BOOKMARKS_SUGGESTIONS);
@@ -219,11 +340,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BOOKMARKS_SUGGESTIONS);
         matcher.addURI(authority, "history", HISTORY);
         matcher.addURI(authority, "history/#", HISTORY_ID);
+        matcher.addURI(authority, "history/truncate", HISTORY_TRUNCATE);
         matcher.addURI(authority, "searches", SEARCHES);
         matcher.addURI(authority, "searches/#", SEARCHES_ID);
         matcher.addURI(authority, "syncstate", SYNCSTATE);
         matcher.addURI(authority, "syncstate/#", SYNCSTATE_ID);
         matcher.addURI(authority, "images", IMAGES);
+        matcher.addURI(authority, "images/blob/*", IMAGES_BLOB);
         matcher.addURI(authority, "combined", COMBINED);
         matcher.addURI(authority, "combined/#", COMBINED_ID);
         matcher.addURI(authority, "settings", SETTINGS);
@@ -239,6 +362,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(app_package_name, "bookmarks/folder", BOOKMARKS_FOLDER);
         matcher.addURI(app_package_name, "bookmarks/folder/#", BOOKMARKS_FOLDER_ID);
         matcher.addURI(app_package_name, "bookmarks/folder/id", BOOKMARKS_DEFAULT_FOLDER_ID);
+        matcher.addURI(app_package_name, "bookmarks/subtree/#", BOOKMARKS_SUBTREE);
+        matcher.addURI(app_package_name, "bookmarks/path/#", BOOKMARKS_PATH);
         matcher.addURI(app_package_name,
                 SearchManager.SUGGEST_URI_PATH_QUERY,
                 BOOKMARKS_SUGGESTIONS);
@@ -247,11 +372,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 BOOKMARKS_SUGGESTIONS);
         matcher.addURI(app_package_name, "history", HISTORY);
         matcher.addURI(app_package_name, "history/#", HISTORY_ID);
+        matcher.addURI(app_package_name, "history/truncate", HISTORY_TRUNCATE);
         matcher.addURI(app_package_name, "searches", SEARCHES);
         matcher.addURI(app_package_name, "searches/#", SEARCHES_ID);
         matcher.addURI(app_package_name, "syncstate", SYNCSTATE);
         matcher.addURI(app_package_name, "syncstate/#", SYNCSTATE_ID);
         matcher.addURI(app_package_name, "images", IMAGES);
+        matcher.addURI(app_package_name, "images/blob/*", IMAGES_BLOB);
         matcher.addURI(app_package_name, "combined", COMBINED);
         matcher.addURI(app_package_name, "combined/#", COMBINED_ID);
         matcher.addURI(app_package_name, "settings", SETTINGS);
@@ -343,6 +470,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         map.put(History.DATE_LAST_VISITED, History.DATE_LAST_VISITED);
         map.put(History.VISITS, History.VISITS);
         map.put(History.USER_ENTERED, History.USER_ENTERED);
+        map.put(History.FRECENCY, History.FRECENCY);
 
         // Sync state
         map = SYNC_STATE_PROJECTION_MAP;
@@ -421,10 +549,25 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
     boolean mSyncToNetwork = true;
+    // When the next frecency decay pass is due, 0 until the first pass
+    // has read the time of the last one from settings. Guarded by this
+    long mFrecencyDecayDue = 0;
+    // Row count of the history table as of the last count plus the rows
+    // inserted since, -1 when it has to be counted again
+    long mHistoryCount = -1;
+    // Files of the images table, see getImageBlobStore()
+    ImageBlobStore mImageBlobs;
+    // Bookmark folders notified in the current transaction
+    final HashSet<Long> mNotifyFolders = new HashSet<Long>();
+    final QueryResultCache mQueryCache = new QueryResultCache();
+    // Compiled insert-or-update writes, see getUpserts()
+    UpsertStatements mUpserts;
+    static volatile boolean sUpsertsEnabled = true;
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 39;
+        boolean mVacuumOnOpen;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -455,8 +598,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Bookmarks.SYNC5 + " TEXT" +
                     ");");
 
-            // TODO indices
-
             db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                     History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                     History.TITLE + " TEXT," +
@@ -464,14 +605,18 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     History.DATE_CREATED + " INTEGER," +
                     History.DATE_LAST_VISITED + " INTEGER," +
                     History.VISITS + " INTEGER NOT NULL DEFAULT 0," +
-                    History.USER_ENTERED + " INTEGER" +
+                    History.USER_ENTERED + " INTEGER," +
+                    History.FRECENCY + " INTEGER NOT NULL DEFAULT 0" +
                     ");");
 
             db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
                     Images.URL + " TEXT UNIQUE NOT NULL," +
-                    Images.FAVICON + " BLOB," +
-                    Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
+                    // Names of the files in the ImageBlobStore
+                    Images.FAVICON + " TEXT," +
+                    Images.THUMBNAIL + " TEXT," +
+                    Images.TOUCH_ICON + " TEXT," +
+                    IMAGE_REFS + " INTEGER NOT NULL DEFAULT 0," +
+                    IMAGE_WRITTEN + " INTEGER NOT NULL DEFAULT 0" +
                     ");");
             db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
                     "(" + Images.URL + ")");
@@ -487,21 +632,318 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Settings.VALUE + " TEXT NOT NULL" +
                     ");");
 
+            createSuggestionsIndex(db);
             createAccountsView(db);
             createThumbnails(db);
 
             mSyncHelper.createDatabase(db);
 
-            if (!importFromBrowserProvider(db)) {
+            if (!startLegacyImport(db)) {
                 createDefaultBookmarks(db);
             }
 
             enableSync(db);
             createOmniboxSuggestions(db);
+            createIndices(db);
+            createImageRefs(db);
+            createImageWritten(db);
         }
 
+        /**
+         * Creates the omnibox suggestions table, one row per url holding
+         * either its bookmark or its most visited history entry, and the
+         * triggers that refresh a url's row whenever history or bookmarks
+         * rows with that url change. Rebuilds the contents from scratch.
+         */
         void createOmniboxSuggestions(SQLiteDatabase db) {
-            db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
+            db.execSQL("DROP VIEW IF EXISTS " + VIEW_OMNIBOX_SUGGESTIONS);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OMNIBOX_SUGGESTIONS + " ("
+                    + OmniboxSuggestions.URL + " TEXT PRIMARY KEY,"
+                    + OmniboxSuggestions._ID + " INTEGER,"
+                    + OmniboxSuggestions.TITLE + " TEXT,"
+                    + OmniboxSuggestions.IS_BOOKMARK + " INTEGER NOT NULL DEFAULT 0,"
+                    + History.VISITS + " INTEGER NOT NULL DEFAULT 0,"
+                    + History.DATE_LAST_VISITED + " INTEGER,"
+                    + History.FRECENCY + " INTEGER NOT NULL DEFAULT 0"
+                    + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_OMNIBOX_RANK + " ON "
+                    + TABLE_OMNIBOX_SUGGESTIONS + "(" + OmniboxSuggestions.IS_BOOKMARK + ", "
+                    + History.FRECENCY + ", " + History.DATE_LAST_VISITED + ")");
+
+            // Frecency decay passes only update the frecency column and
+            // decay this table themselves, so they don't fire the triggers
+            createOmniboxSuggestionsTriggers(db, TABLE_HISTORY,
+                    History.URL + ", " + History.TITLE + ", " + History.VISITS + ", "
+                    + History.DATE_LAST_VISITED);
+            createOmniboxSuggestionsTriggers(db, TABLE_BOOKMARKS,
+                    Bookmarks.URL + ", " + Bookmarks.TITLE + ", " + Bookmarks.IS_DELETED
+                    + ", " + Bookmarks.IS_FOLDER);
+
+            // Bookmarks are inserted first so they win over history rows
+            db.execSQL("DELETE FROM " + TABLE_OMNIBOX_SUGGESTIONS);
+            db.execSQL(SQL_INSERT_OMNIBOX_BOOKMARKS + " AND url IS NOT NULL ORDER BY _id");
+            db.execSQL(SQL_INSERT_OMNIBOX_HISTORY + " ORDER BY frecency DESC, date DESC");
+        }
+
+        void dropOmniboxSuggestions(SQLiteDatabase db) {
+            for (String table : new String[] { TABLE_HISTORY, TABLE_BOOKMARKS }) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_omnibox_insert");
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_omnibox_update");
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_omnibox_move");
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_omnibox_delete");
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OMNIBOX_SUGGESTIONS);
+        }
+
+        /**
+         * Adds the frecency column to history and seeds it from the visit
+         * counts, weighted by how long ago the last visit was.
+         */
+        void addFrecency(SQLiteDatabase db) {
+            if (!hasColumn(db, TABLE_HISTORY, History.FRECENCY)) {
+                db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN "
+                        + History.FRECENCY + " INTEGER NOT NULL DEFAULT 0");
+            }
+            long now = System.currentTimeMillis();
+            StringBuilder weight = new StringBuilder(" * CASE");
+            Object[] args = new Object[FRECENCY_SEED_AGES.length];
+            for (int i = 0; i < FRECENCY_SEED_AGES.length; i++) {
+                weight.append(" WHEN ").append(History.DATE_LAST_VISITED)
+                        .append(" > ? THEN ").append(FRECENCY_SEED_WEIGHTS[i]);
+                args[i] = now - FRECENCY_SEED_AGES[i] * FRECENCY_DECAY_INTERVAL;
+            }
+            weight.append(" ELSE ").append(FRECENCY_SEED_OLD_WEIGHT).append(" END / 100");
+            db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + History.FRECENCY + " = "
+                    + History.VISITS + " * CASE WHEN " + History.USER_ENTERED + " = 1"
+                    + " THEN " + FRECENCY_TYPED_BONUS + " ELSE " + FRECENCY_VISIT_BONUS + " END"
+                    + weight, args);
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_FRECENCY + " ON "
+                    + TABLE_HISTORY + "(" + History.FRECENCY + ")");
+        }
+
+        /**
+         * Adds the reference count of the images rows and the triggers that
+         * keep it, so unreferenced images can be found without joining
+         * against bookmarks and history. Recounts every row.
+         */
+        void createImageRefs(SQLiteDatabase db) {
+            if (!hasColumn(db, TABLE_IMAGES, IMAGE_REFS)) {
+                db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                        + IMAGE_REFS + " INTEGER NOT NULL DEFAULT 0");
+            }
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_IMAGES_UNREFERENCED + " ON "
+                    + TABLE_IMAGES + "(" + IMAGE_REFS + ") WHERE " + IMAGE_REFS + " <= 0");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_insert"
+                    + " AFTER INSERT ON " + TABLE_BOOKMARKS + " WHEN new.deleted = 0 BEGIN "
+                    + addImageRef("new.url", "1") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_update"
+                    + " AFTER UPDATE OF url, deleted ON " + TABLE_BOOKMARKS
+                    + " WHEN old.url IS NOT new.url OR old.deleted != new.deleted BEGIN "
+                    + addImageRef("old.url", "-(old.deleted = 0)")
+                    + addImageRef("new.url", "(new.deleted = 0)") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_delete"
+                    + " AFTER DELETE ON " + TABLE_BOOKMARKS + " WHEN old.deleted = 0 BEGIN "
+                    + addImageRef("old.url", "-1") + " END");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_images_insert"
+                    + " AFTER INSERT ON " + TABLE_HISTORY + " BEGIN "
+                    + addImageRef("new.url", "1") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_images_update"
+                    + " AFTER UPDATE OF url ON " + TABLE_HISTORY
+                    + " WHEN old.url IS NOT new.url BEGIN "
+                    + addImageRef("old.url", "-1") + addImageRef("new.url", "1") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_images_delete"
+                    + " AFTER DELETE ON " + TABLE_HISTORY + " BEGIN "
+                    + addImageRef("old.url", "-1") + " END");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_refs_insert"
+                    + " AFTER INSERT ON " + TABLE_IMAGES + " BEGIN "
+                    + countImageRefs("new.rowid") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_refs_update"
+                    + " AFTER UPDATE OF " + Images.URL + " ON " + TABLE_IMAGES
+                    + " WHEN old." + Images.URL + " IS NOT new." + Images.URL + " BEGIN "
+                    + countImageRefs("new.rowid") + " END");
+
+            db.execSQL(countImageRefs(null));
+        }
+
+        /**
+         * Adds the time the images rows were last written and the triggers
+         * that keep it, so the sweep can leave the rows alone that were just
+         * written ahead of the history row referring to them. Rows written
+         * before count as old.
+         */
+        void createImageWritten(SQLiteDatabase db) {
+            if (!hasColumn(db, TABLE_IMAGES, IMAGE_WRITTEN)) {
+                db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                        + IMAGE_WRITTEN + " INTEGER NOT NULL DEFAULT 0");
+            }
+            String touch = "UPDATE " + TABLE_IMAGES + " SET " + IMAGE_WRITTEN + " = "
+                    + SQL_NOW_MILLIS + " WHERE rowid = new.rowid;";
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_written_insert"
+                    + " AFTER INSERT ON " + TABLE_IMAGES + " BEGIN " + touch + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_written_update"
+                    + " AFTER UPDATE OF " + Images.URL + ", " + Images.FAVICON + ", "
+                    + Images.THUMBNAIL + ", " + Images.TOUCH_ICON + " ON " + TABLE_IMAGES
+                    + " BEGIN " + touch + " END");
+        }
+
+        private String addImageRef(String url, String delta) {
+            return "UPDATE " + TABLE_IMAGES + " SET " + IMAGE_REFS + " = " + IMAGE_REFS
+                    + " + " + delta + " WHERE " + Images.URL + " = " + url + ";";
+        }
+
+        private String countImageRefs(String rowid) {
+            return "UPDATE " + TABLE_IMAGES + " SET " + IMAGE_REFS + " = "
+                    + "(SELECT COUNT(*) FROM " + TABLE_BOOKMARKS + " WHERE "
+                    + Bookmarks.URL + " = " + TABLE_IMAGES + "." + Images.URL
+                    + " AND " + Bookmarks.IS_DELETED + " = 0)"
+                    + " + (SELECT COUNT(*) FROM " + TABLE_HISTORY + " WHERE "
+                    + History.URL + " = " + TABLE_IMAGES + "." + Images.URL + ")"
+                    + (rowid == null ? "" : " WHERE rowid = " + rowid + ";");
+        }
+
+        /**
+         * Moves the images still stored in the images table out to the
+         * ImageBlobStore, leaving their names in their place.
+         */
+        void moveImagesToBlobStore(SQLiteDatabase db) {
+            String selection = "typeof(" + Images.FAVICON + ") = 'blob' OR typeof("
+                    + Images.THUMBNAIL + ") = 'blob' OR typeof(" + Images.TOUCH_ICON
+                    + ") = 'blob'";
+            String[] projection = new String[] {
+                    "rowid", Images.FAVICON, Images.THUMBNAIL, Images.TOUCH_ICON };
+            ImageBlobStore store = getImageBlobStore();
+            boolean moved = false;
+            // Moved rows drop out of the selection, so keep taking the first
+            // batch rather than paging through a cursor that is being updated
+            while (true) {
+                Cursor c = db.query(TABLE_IMAGES, projection, selection, null,
+                        null, null, null, "50");
+                try {
+                    if (c.getCount() == 0) {
+                        break;
+                    }
+                    while (c.moveToNext()) {
+                        ContentValues values = new ContentValues();
+                        for (int i = 1; i < projection.length; i++) {
+                            if (c.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                                values.put(projection[i], store.put(c.getBlob(i)));
+                            }
+                        }
+                        db.update(TABLE_IMAGES, values, "rowid = ?",
+                                new String[] { Long.toString(c.getLong(0)) });
+                    }
+                    moved = true;
+                } finally {
+                    c.close();
+                }
+            }
+            mVacuumOnOpen |= moved;
+        }
+
+        private boolean hasColumn(SQLiteDatabase db, String table, String column) {
+            Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                int name = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    if (column.equals(c.getString(name))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                c.close();
+            }
+        }
+
+        private void createOmniboxSuggestionsTriggers(SQLiteDatabase db, String table,
+                String rankedColumns) {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_omnibox_insert"
+                    + " AFTER INSERT ON " + table + " BEGIN "
+                    + refreshOmniboxSuggestion("new.url") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_omnibox_update"
+                    + " AFTER UPDATE OF " + rankedColumns + " ON " + table + " BEGIN "
+                    + refreshOmniboxSuggestion("new.url") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_omnibox_move"
+                    + " AFTER UPDATE OF url ON " + table
+                    + " WHEN old.url IS NOT new.url BEGIN "
+                    + refreshOmniboxSuggestion("old.url") + " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_omnibox_delete"
+                    + " AFTER DELETE ON " + table + " BEGIN "
+                    + refreshOmniboxSuggestion("old.url") + " END");
+        }
+
+        /**
+         * Trigger body recomputing the omnibox suggestion row of one url.
+         */
+        private String refreshOmniboxSuggestion(String url) {
+            return "DELETE FROM " + TABLE_OMNIBOX_SUGGESTIONS + " WHERE url = " + url + "; "
+                    + SQL_INSERT_OMNIBOX_BOOKMARKS + " AND url = " + url
+                    + " ORDER BY _id LIMIT 1; "
+                    + SQL_INSERT_OMNIBOX_HISTORY + " WHERE url = " + url
+                    + " ORDER BY frecency DESC, date DESC LIMIT 1;";
+        }
+
+        /**
+         * Creates the full text index used to answer suggestion queries and
+         * the triggers keeping it in sync with history and bookmarks, then
+         * (re)builds its contents. History rows use their id as docid,
+         * bookmarks use the negated id.
+         */
+        void createSuggestionsIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_SUGGEST_FTS
+                    + " USING fts4(url, title, prefix=\"2,3\")");
+            createSuggestionsIndexTriggers(db, TABLE_HISTORY, "");
+            createSuggestionsIndexTriggers(db, TABLE_BOOKMARKS, "-");
+            db.execSQL("DELETE FROM " + TABLE_SUGGEST_FTS);
+            db.execSQL("INSERT INTO " + TABLE_SUGGEST_FTS + "(docid, url, title)"
+                    + " SELECT _id, url, title FROM " + TABLE_HISTORY);
+            db.execSQL("INSERT INTO " + TABLE_SUGGEST_FTS + "(docid, url, title)"
+                    + " SELECT -_id, url, title FROM " + TABLE_BOOKMARKS);
+        }
+
+        private void createSuggestionsIndexTriggers(SQLiteDatabase db, String table,
+                String sign) {
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_fts_insert"
+                    + " AFTER INSERT ON " + table + " BEGIN"
+                    + " INSERT INTO " + TABLE_SUGGEST_FTS + "(docid, url, title)"
+                    + " VALUES (" + sign + "new._id, new.url, new.title); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_fts_update"
+                    + " AFTER UPDATE OF url, title ON " + table
+                    + " WHEN new.url IS NOT old.url OR new.title IS NOT old.title BEGIN"
+                    + " UPDATE " + TABLE_SUGGEST_FTS + " SET url = new.url, title = new.title"
+                    + " WHERE docid = " + sign + "old._id; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + table + "_fts_delete"
+                    + " AFTER DELETE ON " + table + " BEGIN"
+                    + " DELETE FROM " + TABLE_SUGGEST_FTS
+                    + " WHERE docid = " + sign + "old._id; END");
+        }
+
+        /**
+         * Creates the indices backing the url lookups, the history sort orders
+         * and the folder listings. Safe to run more than once.
+         */
+        void createIndices(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_URL + " ON "
+                    + TABLE_HISTORY + "(" + History.URL + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_DATE + " ON "
+                    + TABLE_HISTORY + "(" + History.DATE_LAST_VISITED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_VISITS + " ON "
+                    + TABLE_HISTORY + "(" + History.VISITS + ")");
+            // Upgrades older than the column get it, and its index, from
+            // addFrecency()
+            if (hasColumn(db, TABLE_HISTORY, History.FRECENCY)) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_HISTORY_FRECENCY + " ON "
+                        + TABLE_HISTORY + "(" + History.FRECENCY + ")");
+            }
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_BOOKMARKS_URL + " ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.URL + ", "
+                    + Bookmarks.IS_DELETED + ", " + Bookmarks.IS_FOLDER + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_BOOKMARKS_PARENT + " ON "
+                    + TABLE_BOOKMARKS + "(" + Bookmarks.PARENT + ", "
+                    + Bookmarks.POSITION + ")");
         }
 
         void createThumbnails(SQLiteDatabase db) {
@@ -538,85 +980,22 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
         }
 
-        boolean importFromBrowserProvider(SQLiteDatabase db) {
-            Context context = getContext();
-            File oldDbFile = context.getDatabasePath(BrowserProvider.sDatabaseName);
-            if (oldDbFile.exists()) {
-                BrowserProvider.DatabaseHelper helper =
-                        new BrowserProvider.DatabaseHelper(context);
-                SQLiteDatabase oldDb = helper.getWritableDatabase();
-                Cursor c = null;
-                try {
-                    String table = BrowserProvider.TABLE_NAMES[BrowserProvider.URI_MATCH_BOOKMARKS];
-                    // Import bookmarks
-                    c = oldDb.query(table,
-                            new String[] {
-                            BookmarkColumns.URL, // 0
-                            BookmarkColumns.TITLE, // 1
-                            BookmarkColumns.FAVICON, // 2
-                            BookmarkColumns.TOUCH_ICON, // 3
-                            BookmarkColumns.CREATED, // 4
-                            }, BookmarkColumns.BOOKMARK + "!=0", null,
-                            null, null, null);
-                    if (c != null) {
-                        while (c.moveToNext()) {
-                            String url = c.getString(0);
-                            if (TextUtils.isEmpty(url))
-                                continue; // We require a valid URL
-                            ContentValues values = new ContentValues();
-                            values.put(Bookmarks.URL, url);
-                            values.put(Bookmarks.TITLE, c.getString(1));
-                            values.put(Bookmarks.DATE_CREATED, c.getInt(4));
-                            values.put(Bookmarks.POSITION, 0);
-                            values.put(Bookmarks.PARENT, FIXED_ID_ROOT);
-                            ContentValues imageValues = new ContentValues();
-                            imageValues.put(Images.URL, url);
-                            imageValues.put(Images.FAVICON, c.getBlob(2));
-                            imageValues.put(Images.TOUCH_ICON, c.getBlob(3));
-                            db.insert(TABLE_IMAGES, Images.THUMBNAIL, imageValues);
-                            db.insert(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
-                        }
-                        c.close();
-                    }
-                    // Import history
-                    c = oldDb.query(table,
-                            new String[] {
-                            BookmarkColumns.URL, // 0
-                            BookmarkColumns.TITLE, // 1
-                            BookmarkColumns.VISITS, // 2
-                            BookmarkColumns.DATE, // 3
-                            BookmarkColumns.CREATED, // 4
-                            }, BookmarkColumns.VISITS + " > 0 OR "
-                            + BookmarkColumns.BOOKMARK + " = 0",
-                            null, null, null, null);
-                    if (c != null) {
-                        while (c.moveToNext()) {
-                            ContentValues values = new ContentValues();
-                            String url = c.getString(0);
-                            if (TextUtils.isEmpty(url))
-                                continue; // We require a valid URL
-                            values.put(History.URL, url);
-                            values.put(History.TITLE, c.getString(1));
-                            values.put(History.VISITS, c.getInt(2));
-                            values.put(History.DATE_LAST_VISITED, c.getLong(3));
-                            values.put(History.DATE_CREATED, c.getLong(4));
-                            db.insert(TABLE_HISTORY, History.FAVICON, values);
-                        }
-                        c.close();
-                    }
-                    // Wipe the old DB, in case the delete fails.
-                    oldDb.delete(table, null, null);
-                } finally {
-                    if (c != null) c.close();
-                    oldDb.close();
-                    helper.close();
-                }
-                if (!oldDbFile.delete()) {
-                    oldDbFile.deleteOnExit();
-                }
-                return true;
+        /**
+         * Leaves a marker for importLegacyBatch() if there is an old
+         * BrowserProvider database to import. The import itself runs in
+         * batches on the background looper once the database is open, so
+         * whoever opens it first isn't kept waiting.
+         */
+        boolean startLegacyImport(SQLiteDatabase db) {
+            File oldDbFile = getContext().getDatabasePath(BrowserProvider.sDatabaseName);
+            if (!oldDbFile.exists()) {
+                return false;
             }
-            return false;
+            ContentValues values = new ContentValues();
+            values.put(Settings.KEY, SETTING_LEGACY_IMPORT);
+            values.put(Settings.VALUE, LEGACY_IMPORT_BOOKMARKS + ":0");
+            db.insertOrThrow(TABLE_SETTINGS, null, values);
+            return true;
         }
 
         void createAccountsView(SQLiteDatabase db) {
@@ -635,25 +1014,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion < 32) {
-                createOmniboxSuggestions(db);
-            }
-            if (oldVersion < 31) {
-                createThumbnails(db);
-            }
-            if (oldVersion < 30) {
-                db.execSQL("DROP VIEW IF EXISTS " + VIEW_SNAPSHOTS_COMBINED);
-                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SNAPSHOTS);
-            }
-            if (oldVersion < 28) {
-                enableSync(db);
-            }
-            if (oldVersion < 27) {
-                createAccountsView(db);
-            }
-            if (oldVersion < 26) {
-                db.execSQL("DROP VIEW IF EXISTS combined");
-            }
+            // Steps run in ascending order, each sees the schema the ones
+            // before it left
             if (oldVersion < 25) {
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_BOOKMARKS);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
@@ -661,12 +1023,85 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_SETTINGS);
                 mSyncHelper.onAccountsChanged(db, new Account[] {}); // remove all sync info
+                // Creates everything at the current version
                 onCreate(db);
+                return;
+            }
+            if (upgrades(oldVersion, newVersion, 26)) {
+                db.execSQL("DROP VIEW IF EXISTS combined");
+            }
+            if (upgrades(oldVersion, newVersion, 27)) {
+                createAccountsView(db);
+            }
+            if (upgrades(oldVersion, newVersion, 28)) {
+                enableSync(db);
+            }
+            if (upgrades(oldVersion, newVersion, 30)) {
+                db.execSQL("DROP VIEW IF EXISTS " + VIEW_SNAPSHOTS_COMBINED);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_SNAPSHOTS);
+            }
+            if (upgrades(oldVersion, newVersion, 31)) {
+                createThumbnails(db);
+            }
+            if (upgrades(oldVersion, newVersion, 33)) {
+                createIndices(db);
+            }
+            if (upgrades(oldVersion, newVersion, 34)) {
+                createSuggestionsIndex(db);
+            }
+            if (upgrades(oldVersion, newVersion, 36)) {
+                addFrecency(db);
+                // Versions 32 and 35 changed the omnibox suggestions too, it
+                // is built once here in its latest form, ranked by frecency
+                // and with the url indices above in place
+                dropOmniboxSuggestions(db);
+                createOmniboxSuggestions(db);
+            }
+            if (upgrades(oldVersion, newVersion, 37)) {
+                moveImagesToBlobStore(db);
+            }
+            if (upgrades(oldVersion, newVersion, 38)) {
+                createImageRefs(db);
             }
+            if (upgrades(oldVersion, newVersion, 39)) {
+                createImageWritten(db);
+            }
+        }
+
+        /**
+         * Whether upgrading from oldVersion to newVersion takes the step to
+         * version. Lets tests run a single step.
+         */
+        private boolean upgrades(int oldVersion, int newVersion, int version) {
+            return oldVersion < version && version <= newVersion;
         }
 
         public void onOpen(SQLiteDatabase db) {
             mSyncHelper.onDatabaseOpened(db);
+            if (getLegacyImportMarker(db) != null) {
+                // Picks up where an import cut short by a kill stopped
+                scheduleLegacyImport();
+            }
+            if (mVacuumOnOpen) {
+                // Gives back the pages the images took, which can't be done
+                // in the upgrade transaction. Opening may happen on the UI
+                // thread, so leave it to the background looper.
+                mVacuumOnOpen = false;
+                new Handler(BackgroundHandler.getLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Lets DatabaseMaintenance vacuum it in slices
+                            // from now on
+                            SQLiteDatabase writable = getWritableDatabase();
+                            writable.execSQL("PRAGMA auto_vacuum = 2");
+                            writable.execSQL("VACUUM");
+                        } catch (SQLiteException e) {
+                            Log.w(TAG, "Failed to vacuum after moving images", e);
+                        }
+                    }
+                });
+            }
         }
 
         private void createDefaultBookmarks(SQLiteDatabase db) {
@@ -752,6 +1187,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         if (thumb != null) {
                             imageValues.put(Images.THUMBNAIL, thumb);
                         }
+                        storeImageBlobs(imageValues);
                         db.insert(TABLE_IMAGES, Images.FAVICON, imageValues);
                     }
                 }
@@ -845,6 +1281,16 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
     }
 
+    ImageBlobStore getImageBlobStore() {
+        synchronized (this) {
+            if (mImageBlobs == null) {
+                mImageBlobs = new ImageBlobStore(
+                        new File(getContext().getFilesDir(), ImageBlobStore.DIR_NAME));
+            }
+            return mImageBlobs;
+        }
+    }
+
     @Override
     public boolean isCallerSyncAdapter(Uri uri) {
         return uri.getBooleanQueryParameter(BrowserContract.CALLER_IS_SYNCADAPTER, false);
@@ -855,12 +1301,50 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         mWidgetObserver = obs;
     }
 
+    /**
+     * Switches the searches, settings and images writes between the compiled
+     * statements and the query, update or insert path they replace.
+     */
+    @VisibleForTesting
+    public static void setUpsertsEnabled(boolean enabled) {
+        sUpsertsEnabled = enabled;
+    }
+
+    /**
+     * Returns how many statements the compiled writes have compiled.
+     */
+    @VisibleForTesting
+    public int getCompiledUpsertCount() {
+        UpsertStatements upserts = mUpserts;
+        return upserts == null ? 0 : upserts.getCompiledCount();
+    }
+
+    /**
+     * Returns the compiled writes for the database, or null if they are
+     * turned off. Only call with the write transaction held.
+     */
+    UpsertStatements getUpserts(SQLiteDatabase db) {
+        if (!sUpsertsEnabled) {
+            return null;
+        }
+        if (mUpserts == null || !mUpserts.isFor(db)) {
+            if (mUpserts != null) {
+                mUpserts.close();
+            }
+            mUpserts = new UpsertStatements(db);
+        }
+        return mUpserts;
+    }
+
     void refreshWidgets() {
         mUpdateWidgets = true;
     }
 
     @Override
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
+        // Observers that query as soon as they are notified must not be
+        // served results read before the commit
+        mQueryCache.onEndTransaction();
         super.onEndTransaction(callerIsSyncAdapter);
         if (mUpdateWidgets) {
             if (mWidgetObserver == null) {
@@ -871,6 +1355,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             mUpdateWidgets = false;
         }
         mSyncToNetwork = true;
+        synchronized (mNotifyFolders) {
+            mNotifyFolders.clear();
+        }
+        if (mImageBlobsReplaced) {
+            // Only sweep the blobs once the rows no longer name them
+            mImageBlobsReplaced = false;
+            mImageBlobsOrphaned = true;
+            pruneImages();
+        }
     }
 
     @Override
@@ -879,6 +1372,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         switch (match) {
             case LEGACY:
             case BOOKMARKS:
+            case BOOKMARKS_SUBTREE:
+            case BOOKMARKS_PATH:
                 return Bookmarks.CONTENT_TYPE;
             case LEGACY_ID:
             case BOOKMARKS_ID:
@@ -895,6 +1390,18 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return null;
     }
 
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (URI_MATCHER.match(uri) != IMAGES_BLOB || !"r".equals(mode)) {
+            throw new FileNotFoundException("Can't open " + uri + " for " + mode);
+        }
+        File file = getImageBlobStore().getFile(uri.getLastPathSegment());
+        if (file == null) {
+            throw new FileNotFoundException("Not an image " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
     boolean isNullAccount(String account) {
         if (account == null) return true;
         account = account.trim();
@@ -922,11 +1429,37 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new Object[] { selection, selectionArgs, hasAccounts };
     }
 
+    @Override
+    protected UriMatcher getUriMatcher() {
+        return URI_MATCHER;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        long start = getProviderStats().start();
+        Cursor cursor = queryUncounted(uri, projection, selection, selectionArgs, sortOrder);
+        return getProviderStats().endQuery(uri, start, cursor);
+    }
+
+    private Cursor queryUncounted(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         final int match = URI_MATCHER.match(uri);
+        final int cachedTables = getCachedTables(match);
+        String cacheKey = null;
+        long cacheStamp = 0;
+        if (cachedTables != 0) {
+            cacheKey = QueryResultCache.key(uri, projection, selection, selectionArgs,
+                    sortOrder);
+            Cursor cached = mQueryCache.get(cacheKey);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(),
+                        getNotificationUri(match, uri));
+                return ImageBlobCursor.wrap(cached, getImageBlobStore());
+            }
+            cacheStamp = mQueryCache.stamp(cachedTables);
+        }
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         String limit = uri.getQueryParameter(BrowserContract.PARAM_LIMIT);
         String groupBy = uri.getQueryParameter(PARAM_GROUP_BY);
@@ -945,6 +1478,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 break;
             }
 
+            case BOOKMARKS_SUBTREE:
+            case BOOKMARKS_PATH:
             case BOOKMARKS_FOLDER_ID:
             case BOOKMARKS_ID:
             case BOOKMARKS: {
@@ -966,6 +1501,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                             TABLE_BOOKMARKS + "." + Bookmarks.PARENT + "=?");
                     selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
                             new String[] { Long.toString(ContentUris.parseId(uri)) });
+                } else if (match == BOOKMARKS_SUBTREE) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            getSubtreeWhere(ContentUris.parseId(uri)));
                 }
 
                 Object[] withAccount = getSelectionWithAccounts(uri, selection, selectionArgs);
@@ -983,7 +1521,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 }
 
                 qb.setProjectionMap(BOOKMARKS_PROJECTION_MAP);
-                qb.setTables(TABLE_BOOKMARKS_JOIN_IMAGES);
+                if (match == BOOKMARKS_PATH) {
+                    // The root first, so the rows read like breadcrumbs
+                    qb.setTables(TABLE_BOOKMARKS_JOIN_IMAGES + " JOIN ("
+                            + String.format(SQL_PATH, ContentUris.parseId(uri))
+                            + ") AS path ON " + TABLE_BOOKMARKS + "._id = path.id");
+                    sortOrder = "path.depth DESC";
+                } else {
+                    qb.setTables(TABLE_BOOKMARKS_JOIN_IMAGES);
+                }
                 break;
             }
 
@@ -1054,12 +1600,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
                 }
 
-                Cursor cursor = db.rawQuery(query, args);
+                Cursor cursor = mQueryCache.put(cacheKey, cachedTables, cacheStamp,
+                        db.rawQuery(query, args));
                 if (cursor != null) {
                     cursor.setNotificationUri(getContext().getContentResolver(),
-                            BrowserContract.AUTHORITY_URI);
+                            getNotificationUri(match, uri));
                 }
-                return cursor;
+                return ImageBlobCursor.wrap(cursor, getImageBlobStore());
             }
 
             case BOOKMARKS_DEFAULT_FOLDER_ID: {
@@ -1169,7 +1716,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case OMNIBOX_SUGGESTIONS: {
-                qb.setTables(VIEW_OMNIBOX_SUGGESTIONS);
+                qb.setTables(TABLE_OMNIBOX_SUGGESTIONS);
+                if (sortOrder == null) {
+                    sortOrder = DEFAULT_SORT_OMNIBOX_SUGGESTIONS;
+                }
+                String match = buildSuggestMatch(
+                        uri.getQueryParameter(OmniboxSuggestions.PARAM_QUERY));
+                if (match == null) {
+                    break;
+                }
+                // The selection still applies, the index only narrows the
+                // rows it has to be evaluated against
+                selection = DatabaseUtils.concatenateWhere(OMNIBOX_MATCH_SELECTION, selection);
+                String[] matchArgs = new String[] { match, match };
+                selectionArgs = selectionArgs == null ? matchArgs
+                        : DatabaseUtils.appendSelectionArgs(matchArgs, selectionArgs);
                 break;
             }
 
@@ -1196,8 +1757,187 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy,
                 null, sortOrder, limit);
-        cursor.setNotificationUri(getContext().getContentResolver(), BrowserContract.AUTHORITY_URI);
-        return cursor;
+        if (cacheKey != null) {
+            cursor = mQueryCache.put(cacheKey, cachedTables, cacheStamp, cursor);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                getNotificationUri(match, uri));
+        if (match == THUMBNAILS || match == THUMBNAILS_ID) {
+            // The thumbnails table keeps its own blobs
+            return cursor;
+        }
+        return ImageBlobCursor.wrap(cursor, getImageBlobStore());
+    }
+
+    /**
+     * Returns the tables the results of a match are cached against, or 0 if
+     * they aren't cached. Only the folder and account queries the bookmark
+     * pages, folder pickers and widget repeat on every open are.
+     */
+    static int getCachedTables(int match) {
+        switch (match) {
+            case BOOKMARKS_FOLDER:
+            case BOOKMARKS_FOLDER_ID:
+                return QueryResultCache.TABLE_BOOKMARKS | QueryResultCache.TABLE_IMAGES;
+            case ACCOUNTS:
+                return QueryResultCache.TABLE_BOOKMARKS;
+        }
+        return 0;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_QUERY_CACHE_STATS.equals(method)
+                || METHOD_TRANSACTION_STATS.equals(method)
+                || DatabaseMaintenance.METHOD_MAINTAIN.equals(method)) {
+            // call() isn't covered by the provider's permissions, these
+            // methods write or tell about writes, so other apps need the
+            // write permission
+            if (Binder.getCallingUid() != Process.myUid()) {
+                getContext().enforceCallingPermission(PERMISSION_WRITE_HISTORY_BOOKMARKS,
+                        "Calling " + method);
+            }
+        }
+        if (METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(KEY_CACHE_HITS, mQueryCache.getHitCount());
+            stats.putInt(KEY_CACHE_MISSES, mQueryCache.getMissCount());
+            return stats;
+        }
+        if (METHOD_TRANSACTION_STATS.equals(method)) {
+            return getTransactionStats().toBundle();
+        }
+        if (DatabaseMaintenance.METHOD_MAINTAIN.equals(method)) {
+            return maintain();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Returns the URI the cursors of a match are notified on. The cursors of
+     * a bookmark folder get the folder's URI, so that bookmark writes only
+     * re-query the folders they touched, and everything else is notified per
+     * table rather than on any change to the database. Cached results are
+     * notified on the same URI as the query that cached them.
+     */
+    Uri getNotificationUri(int match, Uri uri) {
+        switch (match) {
+            case BOOKMARKS_FOLDER:
+                // The root folder, or the bar and other bookmarks of an account
+                if (isNullAccount(uri.getQueryParameter(Bookmarks.PARAM_ACCOUNT_TYPE))
+                        || isNullAccount(uri.getQueryParameter(Bookmarks.PARAM_ACCOUNT_NAME))) {
+                    return Bookmarks.buildFolderUri(FIXED_ID_ROOT);
+                }
+                return Bookmarks.CONTENT_URI;
+            case BOOKMARKS_FOLDER_ID:
+                return Bookmarks.buildFolderUri(ContentUris.parseId(uri));
+            case ACCOUNTS:
+            case BOOKMARKS:
+            case BOOKMARKS_ID:
+            case BOOKMARKS_SUBTREE:
+            case BOOKMARKS_PATH:
+                return Bookmarks.CONTENT_URI;
+            case HISTORY:
+            case HISTORY_ID:
+                return History.CONTENT_URI;
+            case SEARCHES:
+            case SEARCHES_ID:
+                return Searches.CONTENT_URI;
+            case IMAGES:
+                return Images.CONTENT_URI;
+            case COMBINED:
+            case COMBINED_ID:
+                return Combined.CONTENT_URI;
+            case LEGACY:
+            case LEGACY_ID:
+                return LEGACY_AUTHORITY_URI;
+            case SETTINGS:
+                return Settings.CONTENT_URI;
+            case THUMBNAILS:
+            case THUMBNAILS_ID:
+                return Thumbnails.CONTENT_URI;
+            case OMNIBOX_SUGGESTIONS:
+                return OmniboxSuggestions.CONTENT_URI;
+        }
+        return BrowserContract.AUTHORITY_URI;
+    }
+
+    /**
+     * Posts the URIs whose cursors a write through the given match makes
+     * stale. Bookmark writes post the folders they change through
+     * postNotifyFolder() and only add the views built on bookmarks here.
+     */
+    void postNotifyWrite(int match, Uri uri) {
+        switch (match) {
+            case BOOKMARKS_ID:
+                postNotifyUri(uri);
+                // fall through
+            case BOOKMARKS:
+            case BOOKMARKS_SUBTREE:
+                postNotifyUri(Combined.CONTENT_URI);
+                postNotifyUri(OmniboxSuggestions.CONTENT_URI);
+                break;
+            case LEGACY:
+            case LEGACY_ID:
+                // Deletes through the legacy URIs hit bookmarks and history
+                postNotifyUri(uri);
+                // fall through
+            case HISTORY:
+            case HISTORY_TRUNCATE:
+                postNotifyUri(History.CONTENT_URI);
+                postNotifyUri(Combined.CONTENT_URI);
+                postNotifyUri(OmniboxSuggestions.CONTENT_URI);
+                break;
+            case HISTORY_ID:
+                postNotifyUri(uri);
+                postNotifyUri(Combined.CONTENT_URI);
+                postNotifyUri(OmniboxSuggestions.CONTENT_URI);
+                break;
+            default:
+                postNotifyUri(uri);
+                break;
+        }
+        if (shouldNotifyLegacy(uri)) {
+            postNotifyUri(LEGACY_AUTHORITY_URI);
+        }
+    }
+
+    /**
+     * Posts the URI of a bookmark folder whose contents changed, or of all
+     * bookmarks if the folder isn't known or the transaction has already
+     * touched too many folders for per folder notifications to pay off.
+     */
+    void postNotifyFolder(Long folderId) {
+        mQueryCache.markChanged(QueryResultCache.TABLE_BOOKMARKS);
+        boolean tooMany;
+        synchronized (mNotifyFolders) {
+            if (folderId != null) {
+                mNotifyFolders.add(folderId);
+            }
+            tooMany = mNotifyFolders.size() > MAX_NOTIFY_FOLDERS;
+        }
+        if (folderId == null || tooMany) {
+            postNotifyUri(Bookmarks.CONTENT_URI);
+        } else {
+            postNotifyUri(Bookmarks.buildFolderUri(folderId));
+        }
+    }
+
+    /**
+     * Posts the folders holding the bookmarks that match the selection.
+     * Returns the number of folders.
+     */
+    int postNotifyFolders(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(true, TABLE_BOOKMARKS, new String[] { Bookmarks.PARENT },
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                postNotifyFolder(c.isNull(0) ? null : c.getLong(0));
+            }
+            return c.getCount();
+        } finally {
+            c.close();
+        }
     }
 
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
@@ -1210,6 +1950,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     || selectionArgs[0].startsWith("file")) {
                 selectionArgs[0] = like;
             } else {
+                String match = buildSuggestMatch(selectionArgs[0]);
                 selectionArgs = new String[6];
                 selectionArgs[0] = "http://" + like;
                 selectionArgs[1] = "http://www." + like;
@@ -1219,6 +1960,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selectionArgs[4] = like;
                 selectionArgs[5] = like;
                 selection = SUGGEST_SELECTION;
+                if (match != null) {
+                    selection = DatabaseUtils.concatenateWhere(
+                            SUGGEST_MATCH_SELECTION, selection);
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(
+                            new String[] { match, match }, selectionArgs);
+                }
             }
             selection = DatabaseUtils.concatenateWhere(selection,
                     Bookmarks.IS_DELETED + "=0 AND " + Bookmarks.IS_FOLDER + "=0");
@@ -1231,6 +1978,43 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return new SuggestionsCursor(c);
     }
 
+    /**
+     * Turns typed text into a full text phrase query over the same token
+     * sequence, with a prefix match on the last token if the text ends in
+     * the middle of one. Tokens follow the fts "simple" tokenizer: ASCII
+     * letters and digits and everything outside ASCII. Every row a LIKE
+     * prefix match on the text would return also matches the phrase.
+     *
+     * @return the MATCH argument, or null if the text has no tokens
+     */
+    static String buildSuggestMatch(String query) {
+        if (TextUtils.isEmpty(query)) {
+            return null;
+        }
+        StringBuilder phrase = new StringBuilder(query.length() + 3);
+        phrase.append('"');
+        boolean inToken = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            boolean tokenChar = c >= 128 || (c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+            if (tokenChar) {
+                if (!inToken && phrase.length() > 1) {
+                    phrase.append(' ');
+                }
+                phrase.append(c);
+            }
+            inToken = tokenChar;
+        }
+        if (phrase.length() == 1) {
+            return null;
+        }
+        if (inToken) {
+            phrase.append('*');
+        }
+        return phrase.append('"').toString();
+    }
+
     private String[] createCombinedQuery(
             Uri uri, String[] projection, SQLiteQueryBuilder qb) {
         String[] args = null;
@@ -1276,11 +2060,21 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return args;
     }
 
+    /**
+     * Returns a selection matching the bookmark and, if it is a folder,
+     * everything below it.
+     */
+    static String getSubtreeWhere(long id) {
+        return TABLE_BOOKMARKS + "." + Bookmarks._ID + " IN ("
+                + String.format(SQL_SUBTREE, id) + ")";
+    }
+
     int deleteBookmarks(String selection, String[] selectionArgs,
             boolean callerIsSyncAdapter) {
-        //TODO cascade deletes down from folders
+        // Folders are deleted with their contents through BOOKMARKS_SUBTREE
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
        if (callerIsSyncAdapter || android.os.Build.VERSION.SDK_INT > android.os.Build.VERSION_CODES.KITKAT) {
+            postNotifyFolders(db, selection, selectionArgs);
             return db.delete(TABLE_BOOKMARKS, selection, selectionArgs);
         }
         ContentValues values = new ContentValues();
@@ -1304,7 +2098,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         new String[] { Long.toString(ContentUris.parseId(uri)) });
                 // fall through
             }
+            case BOOKMARKS_SUBTREE:
             case BOOKMARKS: {
+                if (match == BOOKMARKS_SUBTREE) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            getSubtreeWhere(ContentUris.parseId(uri)));
+                }
                 // Look for account info
                 Object[] withAccount = getSelectionWithAccounts(uri, selection, selectionArgs);
                 selection = (String) withAccount[0];
@@ -1326,10 +2125,23 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             case HISTORY: {
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
+                mHistoryCount = -1;
                 pruneImages();
                 break;
             }
 
+            case HISTORY_TRUNCATE: {
+                deleted = truncateHistoryInTransaction(db,
+                        getIntParameter(uri, History.PARAM_MAX_COUNT),
+                        getIntParameter(uri, History.PARAM_TRIM_COUNT));
+                if (deleted > 0) {
+                    pruneImages();
+                }
+                // Observers watch the table, not the truncate URI
+                uri = History.CONTENT_URI;
+                break;
+            }
+
             case SEARCHES_ID: {
                 selection = DatabaseUtils.concatenateWhere(selection, TABLE_SEARCHES + "._id=?");
                 selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
@@ -1389,6 +2201,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     }
                 }
                 c.close();
+                mHistoryCount = -1;
                 break;
             }
             case THUMBNAILS_ID: {
@@ -1407,14 +2220,49 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
         }
         if (deleted > 0) {
-            postNotifyUri(uri);
-            if (shouldNotifyLegacy(uri)) {
-                postNotifyUri(LEGACY_AUTHORITY_URI);
+            postNotifyWrite(match, uri);
+            if (match == HISTORY || match == HISTORY_ID || match == HISTORY_TRUNCATE
+                    || match == LEGACY || match == LEGACY_ID) {
+                postNotifyUri(OmniboxSuggestions.RELOAD_URI);
             }
         }
         return deleted;
     }
 
+    /**
+     * Deletes the trimCount oldest history items if the table holds maxCount
+     * or more rows. The row count is cached and kept up to date by inserts,
+     * so most calls return without touching the table at all.
+     */
+    int truncateHistoryInTransaction(SQLiteDatabase db, int maxCount, int trimCount) {
+        if (maxCount <= 0 || trimCount <= 0) {
+            throw new IllegalArgumentException("Invalid truncate parameters");
+        }
+        if (mHistoryCount < 0 || mHistoryCount >= maxCount) {
+            mHistoryCount = DatabaseUtils.queryNumEntries(db, TABLE_HISTORY);
+        }
+        if (mHistoryCount < maxCount) {
+            return 0;
+        }
+        int deleted = db.delete(TABLE_HISTORY, History._ID + " IN (SELECT "
+                + History._ID + " FROM " + TABLE_HISTORY + " ORDER BY "
+                + History.DATE_LAST_VISITED + " ASC LIMIT " + trimCount + ")", null);
+        mHistoryCount -= deleted;
+        return deleted;
+    }
+
+    static int getIntParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + " in " + uri);
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+    }
+
     long queryDefaultFolderId(String accountName, String accountType) {
         if (!isNullAccount(accountName) && !isNullAccount(accountType)) {
             final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
@@ -1496,7 +2344,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 ContentValues imageValues = extractImageValues(values, url);
                 Boolean isFolder = values.getAsBoolean(Bookmarks.IS_FOLDER);
                 if ((isFolder == null || !isFolder)
-                        && imageValues != null && !TextUtils.isEmpty(url)) {
+                        && imageValues != null && !TextUtils.isEmpty(url)
+                        && !upsertImages(db, imageValues)) {
                     int count = db.update(TABLE_IMAGES, imageValues, Images.URL + "=?",
                             new String[] { url });
                     if (count == 0) {
@@ -1505,6 +2354,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 }
 
                 id = db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
+                postNotifyFolder(values.getAsLong(Bookmarks.PARENT));
                 refreshWidgets();
                 break;
             }
@@ -1525,7 +2375,17 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, imageValues);
                 }
 
+                if (!values.containsKey(History.FRECENCY)) {
+                    Integer visits = values.getAsInteger(History.VISITS);
+                    values.put(History.FRECENCY, visitBonus(
+                            values.getAsInteger(History.USER_ENTERED))
+                            * (visits == null ? 0 : visits));
+                    decayFrecencyIfNeeded();
+                }
                 id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
+                if (mHistoryCount >= 0) {
+                    mHistoryCount++;
+                }
                 break;
             }
 
@@ -1556,10 +2416,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
 
         if (id >= 0) {
-            postNotifyUri(uri);
-            if (shouldNotifyLegacy(uri)) {
-                postNotifyUri(LEGACY_AUTHORITY_URI);
-            }
+            postNotifyWrite(match, uri);
             return ContentUris.withAppendedId(uri, id);
         } else {
             return null;
@@ -1633,6 +2490,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return url;
     }
 
+    /**
+     * Writes the images through the compiled statements, returning false if
+     * the caller has to write them itself.
+     */
+    private boolean upsertImages(SQLiteDatabase db, ContentValues values) {
+        UpsertStatements upserts = getUpserts(db);
+        return upserts != null && upserts.upsertImages(values);
+    }
+
     /**
      * Searches are unique, so perform an UPSERT manually since SQLite doesn't support them.
      */
@@ -1641,6 +2507,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         if (TextUtils.isEmpty(search)) {
             throw new IllegalArgumentException("Must include the SEARCH field");
         }
+        UpsertStatements upserts = getUpserts(db);
+        if (upserts != null) {
+            long id = upserts.upsertSearch(values);
+            if (id >= 0) {
+                return id;
+            }
+        }
         Cursor cursor = null;
         try {
             cursor = db.query(TABLE_SEARCHES, new String[] { Searches._ID },
@@ -1666,6 +2539,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         if (TextUtils.isEmpty(key)) {
             throw new IllegalArgumentException("Must include the KEY field");
         }
+        UpsertStatements upserts = getUpserts(db);
+        if (upserts != null && upserts.upsertSetting(values)) {
+            return 0;
+        }
         String[] keyArray = new String[] { key };
         Cursor cursor = null;
         try {
@@ -1762,29 +2639,38 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 if (TextUtils.isEmpty(url)) {
                     throw new IllegalArgumentException("Images.URL is required");
                 }
+                storeImageBlobs(values);
                 if (!shouldUpdateImages(db, url, values)) {
                     return 0;
                 }
-                int count = db.update(TABLE_IMAGES, values, Images.URL + "=?",
-                        new String[] { url });
-                if (count == 0) {
-                    db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, values);
-                    count = 1;
+                mQueryCache.markChanged(QueryResultCache.TABLE_IMAGES);
+                int count = 1;
+                if (!upsertImages(db, values)) {
+                    count = db.update(TABLE_IMAGES, values, Images.URL + "=?",
+                            new String[] { url });
+                    if (count == 0) {
+                        db.insertOrThrow(TABLE_IMAGES, Images.FAVICON, values);
+                        count = 1;
+                    }
                 }
                 // Only favicon is exposed in the public API. If we updated
                 // the thumbnail or touch icon don't bother notifying the
                 // legacy authority since it can't read it anyway.
                 boolean updatedLegacy = false;
-                if (getUrlCount(db, TABLE_BOOKMARKS, url) > 0) {
-                    postNotifyUri(Bookmarks.CONTENT_URI);
+                postNotifyUri(Images.CONTENT_URI);
+                if (postNotifyFolders(db, Bookmarks.URL + "=? AND "
+                        + Bookmarks.IS_DELETED + "=0", new String[] { url }) > 0) {
+                    postNotifyUri(Combined.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                     refreshWidgets();
                 }
                 if (getUrlCount(db, TABLE_HISTORY, url) > 0) {
                     postNotifyUri(History.CONTENT_URI);
+                    postNotifyUri(Combined.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                pruneImages();
+                if (updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
                 // Even though we may be calling notifyUri on Bookmarks, don't
@@ -1800,6 +2686,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             }
 
             case ACCOUNTS: {
+                mQueryCache.markChanged(QueryResultCache.TABLE_BOOKMARKS);
                 Account[] accounts = AccountManager.get(getContext()).getAccounts();
                 mSyncHelper.onAccountsChanged(mDb, accounts);
                 break;
@@ -1832,10 +2719,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
         pruneImages();
         if (modified > 0) {
-            postNotifyUri(uri);
-            if (shouldNotifyLegacy(uri)) {
-                postNotifyUri(LEGACY_AUTHORITY_URI);
-            }
+            postNotifyWrite(match, uri);
         }
         return modified;
     }
@@ -1855,32 +2739,22 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         };
         Cursor cursor = db.query(TABLE_IMAGES, projection, Images.URL + "=?",
                 new String[] { url }, null, null, null);
-        byte[] nfavicon = values.getAsByteArray(Images.FAVICON);
-        byte[] nthumb = values.getAsByteArray(Images.THUMBNAIL);
-        byte[] ntouch = values.getAsByteArray(Images.TOUCH_ICON);
-        byte[] cfavicon = null;
-        byte[] cthumb = null;
-        byte[] ctouch = null;
+        // The images are content addressed, so comparing the blob names
+        // compares the images without reading them back
+        String[] nimages = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            nimages[i] = values.getAsString(projection[i]);
+        }
         try {
             if (cursor.getCount() <= 0) {
-                return nfavicon != null || nthumb != null || ntouch != null;
+                return nimages[0] != null || nimages[1] != null || nimages[2] != null;
             }
             while (cursor.moveToNext()) {
-                if (nfavicon != null) {
-                    cfavicon = cursor.getBlob(0);
-                    if (!Arrays.equals(nfavicon, cfavicon)) {
-                        return true;
-                    }
-                }
-                if (nthumb != null) {
-                    cthumb = cursor.getBlob(1);
-                    if (!Arrays.equals(nthumb, cthumb)) {
-                        return true;
-                    }
-                }
-                if (ntouch != null) {
-                    ctouch = cursor.getBlob(2);
-                    if (!Arrays.equals(ntouch, ctouch)) {
+                for (int i = 0; i < projection.length; i++) {
+                    if (nimages[i] != null
+                            && !TextUtils.equals(nimages[i], cursor.getString(i))) {
+                        // The blob of the old image may have no row left
+                        mImageBlobsReplaced |= cursor.getString(i) != null;
                         return true;
                     }
                 }
@@ -1922,6 +2796,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 Bookmarks.IS_FOLDER, // 4
                 Bookmarks.ACCOUNT_NAME, // 5
                 Bookmarks.ACCOUNT_TYPE, // 6
+                Bookmarks.PARENT, // 7
         };
         Cursor cursor = db.query(TABLE_BOOKMARKS, bookmarksProjection,
                 selection, selectionArgs, null, null, null);
@@ -1999,6 +2874,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                         values.put(Bookmarks.VERSION, cursor.getLong(1) + 1);
                     }
                     count += db.update(TABLE_BOOKMARKS, values, "_id=?", args);
+                    postNotifyFolder(cursor.isNull(7) ? null : cursor.getLong(7));
+                    if (updatingParent) {
+                        postNotifyFolder(values.getAsLong(Bookmarks.PARENT));
+                    }
                 }
 
                 // Update the images over in their table
@@ -2052,8 +2931,15 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         int count = 0;
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         filterSearchClient(selectionArgs);
+        // New visits bump the frecency of each row by its own visit delta
+        boolean updatingFrecency = values.containsKey(History.VISITS)
+                && !values.containsKey(History.FRECENCY);
+        if (updatingFrecency) {
+            decayFrecencyIfNeeded();
+        }
         Cursor cursor = query(History.CONTENT_URI,
-                new String[] { History._ID, History.URL },
+                new String[] { History._ID, History.URL, History.VISITS,
+                        History.USER_ENTERED, History.FRECENCY },
                 selection, selectionArgs, null);
         try {
             String[] args = new String[1];
@@ -2068,6 +2954,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             while (cursor.moveToNext()) {
                 args[0] = cursor.getString(0);
+                if (updatingFrecency) {
+                    values.put(History.FRECENCY, updatedFrecency(cursor, values));
+                }
                 count += db.update(TABLE_HISTORY, values, "_id=?", args);
 
                 // Update the images over in their table
@@ -2083,11 +2972,139 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 }
             }
         } finally {
+            if (updatingFrecency) {
+                values.remove(History.FRECENCY);
+            }
             if (cursor != null) cursor.close();
         }
         return count;
     }
 
+    /**
+     * Returns the frecency addFrecency() seeds a row with, for rows that
+     * arrive with their visits already counted.
+     */
+    static long seedFrecency(int visits, Integer userEntered, long lastVisited, long now) {
+        int weight = FRECENCY_SEED_OLD_WEIGHT;
+        for (int i = 0; i < FRECENCY_SEED_AGES.length; i++) {
+            if (lastVisited > now - FRECENCY_SEED_AGES[i] * FRECENCY_DECAY_INTERVAL) {
+                weight = FRECENCY_SEED_WEIGHTS[i];
+                break;
+            }
+        }
+        return (long) visits * visitBonus(userEntered) * weight / 100;
+    }
+
+    static int visitBonus(Integer userEntered) {
+        return userEntered != null && userEntered != 0
+                ? FRECENCY_TYPED_BONUS : FRECENCY_VISIT_BONUS;
+    }
+
+    /**
+     * Returns the frecency of the history row under the cursor (columns _id,
+     * url, visits, user_entered, frecency) once the update in values applies.
+     */
+    private long updatedFrecency(Cursor cursor, ContentValues values) {
+        long frecency = cursor.getLong(4);
+        int added = values.getAsInteger(History.VISITS) - cursor.getInt(2);
+        if (added <= 0) {
+            return frecency;
+        }
+        Integer userEntered = values.containsKey(History.USER_ENTERED)
+                ? values.getAsInteger(History.USER_ENTERED) : cursor.getInt(3);
+        return frecency + added * visitBonus(userEntered);
+    }
+
+    /**
+     * Has the frecency decay pass run on the background looper if it may be
+     * due. Only checks the time, so it is cheap enough for every history
+     * write, and the pass runs in its own transaction rather than the
+     * caller's.
+     */
+    void decayFrecencyIfNeeded() {
+        synchronized (this) {
+            if (mFrecencyDecayScheduled || System.currentTimeMillis() < mFrecencyDecayDue) {
+                return;
+            }
+            mFrecencyDecayScheduled = true;
+            if (mFrecencyDecayHandler == null) {
+                mFrecencyDecayHandler = new Handler(BackgroundHandler.getLooper());
+            }
+        }
+        mFrecencyDecayHandler.post(mFrecencyDecay);
+    }
+
+    private boolean mFrecencyDecayScheduled;
+    private Handler mFrecencyDecayHandler;
+
+    private final Runnable mFrecencyDecay = new Runnable() {
+        @Override
+        public void run() {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            long due = 0;
+            db.beginTransaction();
+            try {
+                due = decayFrecency(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                synchronized (BrowserProvider2.this) {
+                    if (due > 0) {
+                        mFrecencyDecayDue = due;
+                    }
+                    mFrecencyDecayScheduled = false;
+                }
+            }
+        }
+    };
+
+    /**
+     * Decays all frecency scores by the number of whole days since the last
+     * pass, with two set-based UPDATEs. Rows visited since the pass became
+     * due were just bumped and are left alone. Decaying every row by the
+     * same factor keeps their order, so nothing is notified. Returns when
+     * the next pass is due.
+     */
+    long decayFrecency(SQLiteDatabase db) {
+        long now = System.currentTimeMillis();
+        long decayed = 0;
+        Cursor c = db.query(TABLE_SETTINGS, new String[] { Settings.VALUE },
+                Settings.KEY + "=?", new String[] { SETTING_FRECENCY_DECAYED },
+                null, null, null);
+        try {
+            decayed = c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+        if (decayed == 0) {
+            saveFrecencyDecayed(db, now);
+            return now + FRECENCY_DECAY_INTERVAL;
+        }
+        long days = (now - decayed) / FRECENCY_DECAY_INTERVAL;
+        if (days >= 1) {
+            decayed += days * FRECENCY_DECAY_INTERVAL;
+            Object[] args = new Object[] { Math.pow(FRECENCY_DAILY_DECAY, days), decayed };
+            for (String table : new String[] { TABLE_HISTORY, TABLE_OMNIBOX_SUGGESTIONS }) {
+                db.execSQL("UPDATE " + table + " SET " + History.FRECENCY
+                        + " = CAST(" + History.FRECENCY + " * ? AS INTEGER)"
+                        + " WHERE " + History.FRECENCY + " > 0"
+                        + " AND IFNULL(" + History.DATE_LAST_VISITED + ", 0) < ?", args);
+            }
+            saveFrecencyDecayed(db, decayed);
+        }
+        return decayed + FRECENCY_DECAY_INTERVAL;
+    }
+
+    private void saveFrecencyDecayed(SQLiteDatabase db, long decayed) {
+        ContentValues values = new ContentValues();
+        values.put(Settings.KEY, SETTING_FRECENCY_DECAYED);
+        values.put(Settings.VALUE, decayed);
+        // Not through the shared compiled upserts, this runs on the
+        // background looper
+        db.insertWithOnConflict(TABLE_SETTINGS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
     String appendAccountToSelection(Uri uri, String selection) {
         final String accountName = uri.getQueryParameter(RawContacts.ACCOUNT_NAME);
         final String accountType = uri.getQueryParameter(RawContacts.ACCOUNT_TYPE);
@@ -2123,7 +3140,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         // favicon
         if (values.containsKey(Bookmarks.FAVICON)) {
             imageValues = new ContentValues();
-            imageValues.put(Images.FAVICON, values.getAsByteArray(Bookmarks.FAVICON));
+            putImage(imageValues, Images.FAVICON, values.get(Bookmarks.FAVICON));
             values.remove(Bookmarks.FAVICON);
         }
 
@@ -2132,7 +3149,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             if (imageValues == null) {
                 imageValues = new ContentValues();
             }
-            imageValues.put(Images.THUMBNAIL, values.getAsByteArray(Bookmarks.THUMBNAIL));
+            putImage(imageValues, Images.THUMBNAIL, values.get(Bookmarks.THUMBNAIL));
             values.remove(Bookmarks.THUMBNAIL);
         }
 
@@ -2141,19 +3158,421 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             if (imageValues == null) {
                 imageValues = new ContentValues();
             }
-            imageValues.put(Images.TOUCH_ICON, values.getAsByteArray(Bookmarks.TOUCH_ICON));
+            putImage(imageValues, Images.TOUCH_ICON, values.get(Bookmarks.TOUCH_ICON));
             values.remove(Bookmarks.TOUCH_ICON);
         }
 
         if (imageValues != null) {
             imageValues.put(Images.URL,  url);
+            storeImageBlobs(imageValues);
+            mQueryCache.markChanged(QueryResultCache.TABLE_IMAGES);
         }
         return imageValues;
     }
 
-    int pruneImages() {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+    // Keeps the blob names storeImagesBeforeTransaction() put in place of
+    // the bytes
+    private static void putImage(ContentValues values, String column, Object image) {
+        if (image instanceof String) {
+            values.put(column, (String) image);
+        } else {
+            values.put(column, image instanceof byte[] ? (byte[]) image : null);
+        }
+    }
+
+    /**
+     * Returns the values with the image bytes of bookmarks, history and
+     * images writes replaced by the names of their blobs. Writing and
+     * syncing the blob files before the write transaction begins keeps the
+     * fsyncs from holding up other writers. Leaves the caller's values as
+     * they are.
+     */
+    private ContentValues storeImagesBeforeTransaction(Uri uri, ContentValues values) {
+        if (values == null) {
+            return null;
+        }
+        switch (URI_MATCHER.match(uri)) {
+            case BOOKMARKS:
+            case BOOKMARKS_ID:
+            case HISTORY:
+            case HISTORY_ID:
+            case IMAGES:
+                for (String column : IMAGE_COLUMNS) {
+                    if (values.get(column) instanceof byte[]) {
+                        values = new ContentValues(values);
+                        storeImageBlobs(values);
+                        break;
+                    }
+                }
+                break;
+        }
+        return values;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return super.insert(uri, storeImagesBeforeTransaction(uri, values));
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        ContentValues[] stored = new ContentValues[values.length];
+        for (int i = 0; i < values.length; i++) {
+            stored[i] = storeImagesBeforeTransaction(uri, values[i]);
+        }
+        return super.bulkInsert(uri, stored);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return super.update(uri, storeImagesBeforeTransaction(uri, values), selection,
+                selectionArgs);
+    }
+
+    /**
+     * Replaces the image bytes in the values with the names of the blobs
+     * they are stored as.
+     */
+    void storeImageBlobs(ContentValues values) {
+        for (String column : IMAGE_COLUMNS) {
+            Object value = values.get(column);
+            if (value instanceof byte[]) {
+                values.put(column, getImageBlobStore().put((byte[]) value));
+            }
+        }
+    }
+
+    /**
+     * Has the images no bookmark or history row refers to anymore deleted,
+     * in batches on the background looper so the sweep never holds the
+     * write lock for long.
+     */
+    void pruneImages() {
+        synchronized (this) {
+            if (mImageSweepScheduled) {
+                return;
+            }
+            mImageSweepScheduled = true;
+            if (mImageSweepHandler == null) {
+                mImageSweepHandler = new Handler(BackgroundHandler.getLooper());
+            }
+        }
+        mImageSweepHandler.post(mImageSweep);
+    }
+
+    private boolean mImageSweepScheduled;
+    private Handler mImageSweepHandler;
+    // Set when an images row got new blobs in the current transaction, and
+    // once that committed, until the blobs are swept
+    private volatile boolean mImageBlobsReplaced;
+    private volatile boolean mImageBlobsOrphaned;
+    private volatile long mImageSweepGrace = IMAGE_SWEEP_GRACE;
+    // Images rows deleted since the blob files were last swept, only used
+    // on the background looper
+    private int mImagesPruned;
+
+    private final Runnable mImageSweep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BrowserProvider2.this) {
+                mImageSweepScheduled = false;
+            }
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            int count = deleteUnreferencedImages(db);
+            mImagesPruned += count;
+            if (count == IMAGE_SWEEP_BATCH) {
+                // Let other writers in before the next batch
+                pruneImages();
+                return;
+            }
+            if (mImagesPruned > 0 || mImageBlobsOrphaned) {
+                mImagesPruned = 0;
+                mImageBlobsOrphaned = false;
+                sweepImageBlobs();
+            }
+            if (DatabaseUtils.queryNumEntries(db, TABLE_IMAGES, IMAGE_REFS + " <= 0") > 0) {
+                // Rows too new to prune yet, look again once they aren't
+                mImageSweepHandler.removeCallbacks(mImageSweepLater);
+                mImageSweepHandler.postDelayed(mImageSweepLater, mImageSweepGrace);
+            }
+        }
+    };
+
+    private final Runnable mImageSweepLater = new Runnable() {
+        @Override
+        public void run() {
+            pruneImages();
+        }
+    };
+
+    /**
+     * Deletes a batch of the images rows nothing refers to that were
+     * written before the grace period, returns how many.
+     */
+    private int deleteUnreferencedImages(SQLiteDatabase db) {
+        long writtenBefore = System.currentTimeMillis() - mImageSweepGrace;
+        int count = db.delete(TABLE_IMAGES, IMAGE_PRUNE,
+                new String[] { Long.toString(writtenBefore) });
+        if (count > 0) {
+            mQueryCache.invalidate(QueryResultCache.TABLE_IMAGES);
+        }
+        return count;
+    }
+
+    /**
+     * Sets how long unreferenced images rows and blobs are kept after they
+     * are written.
+     */
+    @VisibleForTesting
+    public void setImageSweepGrace(long grace) {
+        mImageSweepGrace = grace;
+    }
+
+    int sweepImageBlobs() {
+        long writtenBefore = System.currentTimeMillis() - mImageSweepGrace;
+        HashSet<String> referenced = new HashSet<String>();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        for (String column : IMAGE_COLUMNS) {
+            Cursor c = db.query(true, TABLE_IMAGES, new String[] { column },
+                    column + " IS NOT NULL", null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    referenced.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return getImageBlobStore().sweep(referenced, writtenBefore);
+    }
+
+    /**
+     * Drops the images nothing refers to and their blob files, then has
+     * DatabaseMaintenance checkpoint, analyze and vacuum the database.
+     */
+    Bundle maintain() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        do {
+            count = deleteUnreferencedImages(db);
+        } while (count == IMAGE_SWEEP_BATCH);
+        int pruned = sweepImageBlobs();
+        return DatabaseMaintenance.maintain(db,
+                getContext().getDatabasePath(DatabaseHelper.DATABASE_NAME), pruned);
+    }
+
+    static String getLegacyImportMarker(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE_SETTINGS, new String[] { Settings.VALUE },
+                Settings.KEY + "=?", new String[] { SETTING_LEGACY_IMPORT },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    void scheduleLegacyImport() {
+        synchronized (mLegacyImportLock) {
+            if (mLegacyImportScheduled) {
+                return;
+            }
+            mLegacyImportScheduled = true;
+            if (mLegacyImportHandler == null) {
+                mLegacyImportHandler = new Handler(BackgroundHandler.getLooper());
+            }
+        }
+        mLegacyImportHandler.post(mLegacyImport);
+    }
+
+    /**
+     * Waits for the import of the old BrowserProvider's database, if any,
+     * to finish. Queries until then see the rows imported so far.
+     */
+    @VisibleForTesting
+    public void waitForLegacyImport() throws InterruptedException {
+        // Opening the database is what starts a pending import
+        mOpenHelper.getWritableDatabase();
+        synchronized (mLegacyImportLock) {
+            while (mLegacyImportScheduled) {
+                mLegacyImportLock.wait();
+            }
+        }
+    }
+
+    private final Object mLegacyImportLock = new Object();
+    private boolean mLegacyImportScheduled;
+    private Handler mLegacyImportHandler;
+    // The old database, only used on the background looper while importing
+    private BrowserProvider.DatabaseHelper mLegacyHelper;
+
+    private final Runnable mLegacyImport = new Runnable() {
+        @Override
+        public void run() {
+            boolean more = false;
+            try {
+                more = importLegacyBatch();
+            } finally {
+                if (more) {
+                    // Let other writers in before the next batch
+                    mLegacyImportHandler.post(this);
+                } else {
+                    synchronized (mLegacyImportLock) {
+                        mLegacyImportScheduled = false;
+                        mLegacyImportLock.notifyAll();
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Imports the next LEGACY_IMPORT_BATCH old rows of the current phase,
+     * bookmarks then history, in one transaction that also moves the
+     * marker past them, so a kill loses nothing and repeats nothing.
+     * Returns whether there is more to import.
+     */
+    boolean importLegacyBatch() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String marker = getLegacyImportMarker(db);
+        if (marker == null) {
+            return false;
+        }
+        File oldDbFile = getContext().getDatabasePath(BrowserProvider.sDatabaseName);
+        if (mLegacyHelper == null && oldDbFile.exists()) {
+            mLegacyHelper = new BrowserProvider.DatabaseHelper(getContext());
+        }
+        final String[] nextMarker = new String[1];
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                nextMarker[0] = importLegacyRows(marker);
+            }
+        });
+
+        if (nextMarker[0] == null && mLegacyHelper != null) {
+            // Wipe the old DB, in case the delete fails.
+            String table = BrowserProvider.TABLE_NAMES[BrowserProvider.URI_MATCH_BOOKMARKS];
+            mLegacyHelper.getWritableDatabase().delete(table, null, null);
+            mLegacyHelper.close();
+            mLegacyHelper = null;
+            if (!oldDbFile.delete()) {
+                oldDbFile.deleteOnExit();
+            }
+        }
+        return nextMarker[0] != null;
+    }
+
+    /**
+     * Imports the old rows after the marker and moves it past them, in the
+     * caller's transaction. Returns the next marker, null once done.
+     */
+    private String importLegacyRows(String marker) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int colon = marker.indexOf(':');
+        String phase = marker.substring(0, colon);
+        long lastId = Long.parseLong(marker.substring(colon + 1));
+        boolean bookmarks = LEGACY_IMPORT_BOOKMARKS.equals(phase);
+        String table = BrowserProvider.TABLE_NAMES[BrowserProvider.URI_MATCH_BOOKMARKS];
+        String nextMarker = null;
+        long now = System.currentTimeMillis();
+        int count = 0;
+        if (mLegacyHelper != null) {
+            SQLiteDatabase oldDb = mLegacyHelper.getWritableDatabase();
+            Cursor c = oldDb.query(table, bookmarks
+                    ? new String[] {
+                        BaseColumns._ID, // 0
+                        BookmarkColumns.URL, // 1
+                        BookmarkColumns.TITLE, // 2
+                        BookmarkColumns.FAVICON, // 3
+                        BookmarkColumns.TOUCH_ICON, // 4
+                        BookmarkColumns.CREATED, // 5
+                    }
+                    : new String[] {
+                        BaseColumns._ID, // 0
+                        BookmarkColumns.URL, // 1
+                        BookmarkColumns.TITLE, // 2
+                        BookmarkColumns.VISITS, // 3
+                        BookmarkColumns.DATE, // 4
+                        BookmarkColumns.CREATED, // 5
+                    },
+                    "(" + (bookmarks ? BookmarkColumns.BOOKMARK + "!=0"
+                            : BookmarkColumns.VISITS + " > 0 OR "
+                            + BookmarkColumns.BOOKMARK + " = 0")
+                    + ") AND " + BaseColumns._ID + " > ?",
+                    new String[] { Long.toString(lastId) }, null, null,
+                    BaseColumns._ID + " ASC", Integer.toString(LEGACY_IMPORT_BATCH));
+            try {
+                while (c.moveToNext()) {
+                    count++;
+                    lastId = c.getLong(0);
+                    String url = c.getString(1);
+                    if (TextUtils.isEmpty(url))
+                        continue; // We require a valid URL
+                    if (bookmarks) {
+                        importLegacyBookmark(db, c, url);
+                    } else {
+                        // The old database had no typed flag, every visit
+                        // counts as a link followed
+                        ContentValues values = new ContentValues();
+                        values.put(History.URL, url);
+                        values.put(History.TITLE, c.getString(2));
+                        values.put(History.VISITS, c.getInt(3));
+                        values.put(History.DATE_LAST_VISITED, c.getLong(4));
+                        values.put(History.DATE_CREATED, c.getLong(5));
+                        values.put(History.FRECENCY,
+                                seedFrecency(c.getInt(3), null, c.getLong(4), now));
+                        db.insert(TABLE_HISTORY, History.FAVICON, values);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (count == LEGACY_IMPORT_BATCH) {
+            nextMarker = phase + ":" + lastId;
+        } else if (bookmarks && mLegacyHelper != null) {
+            nextMarker = LEGACY_IMPORT_HISTORY + ":0";
+        }
+        if (nextMarker != null) {
+            ContentValues values = new ContentValues();
+            values.put(Settings.KEY, SETTING_LEGACY_IMPORT);
+            values.put(Settings.VALUE, nextMarker);
+            insertSettingsInTransaction(db, values);
+        } else {
+            db.delete(TABLE_SETTINGS, Settings.KEY + "=?",
+                    new String[] { SETTING_LEGACY_IMPORT });
+        }
+
+        if (bookmarks) {
+            mQueryCache.markChanged(QueryResultCache.TABLE_BOOKMARKS
+                    | QueryResultCache.TABLE_IMAGES);
+            postNotifyUri(Bookmarks.CONTENT_URI);
+        } else {
+            mHistoryCount = -1;
+            postNotifyUri(History.CONTENT_URI);
+            postNotifyUri(OmniboxSuggestions.RELOAD_URI);
+        }
+        postNotifyUri(Combined.CONTENT_URI);
+        postNotifyUri(OmniboxSuggestions.CONTENT_URI);
+        return nextMarker;
+    }
+
+    private void importLegacyBookmark(SQLiteDatabase db, Cursor c, String url) {
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.URL, url);
+        values.put(Bookmarks.TITLE, c.getString(2));
+        values.put(Bookmarks.DATE_CREATED, c.getInt(5));
+        values.put(Bookmarks.POSITION, 0);
+        values.put(Bookmarks.PARENT, FIXED_ID_ROOT);
+        ContentValues imageValues = new ContentValues();
+        imageValues.put(Images.URL, url);
+        imageValues.put(Images.FAVICON, c.getBlob(3));
+        imageValues.put(Images.TOUCH_ICON, c.getBlob(4));
+        storeImageBlobs(imageValues);
+        db.insert(TABLE_IMAGES, Images.THUMBNAIL, imageValues);
+        db.insert(TABLE_BOOKMARKS, Bookmarks.DIRTY, values);
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
@@ -2288,18 +3707,46 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     //  SQL below, be warned
     // ---------------------------------------------------
 
-    private static final String SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS =
-            "CREATE VIEW IF NOT EXISTS v_omnibox_suggestions "
-            + " AS "
-            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+    // Bookmarks rank among themselves by the frecency of their history
+    private static final String SQL_INSERT_OMNIBOX_BOOKMARKS =
+            "INSERT OR IGNORE INTO omnibox_suggestions "
+            + "  (_id, url, title, bookmark, visits, date, frecency) "
+            + "  SELECT _id, url, title, 1, 0, 0, "
+            + "    IFNULL((SELECT MAX(frecency) FROM history"
+            + "      WHERE history.url = bookmarks.url), 0) "
             + "  FROM bookmarks "
-            + "  WHERE deleted = 0 AND folder = 0 "
+            + "  WHERE deleted = 0 AND folder = 0";
+
+    private static final String SQL_INSERT_OMNIBOX_HISTORY =
+            "INSERT OR IGNORE INTO omnibox_suggestions "
+            + "  (_id, url, title, bookmark, visits, date, frecency) "
+            + "  SELECT _id, url, title, 0, visits, date, frecency "
+            + "  FROM history";
+
+    // Common table expressions need SQLite 3.8.3, which the platform ships
+    // from API level 21, below the minSdkVersion of 22 the manifest asks for.
+    // The ids of a bookmark and everything below it. UNION rather than
+    // UNION ALL, so a corrupt tree with a cycle in it still terminates.
+    private static final String SQL_SUBTREE =
+            "WITH RECURSIVE subtree(id) AS ( "
+            + "  SELECT %d "
+            + "  UNION "
+            + "  SELECT bookmarks._id FROM bookmarks JOIN subtree "
+            + "    ON bookmarks.parent = subtree.id "
+            + ") "
+            + "SELECT id FROM subtree";
+
+    // The ids of a bookmark and the folders above it, with their distance
+    // from the bookmark. Capped in depth, for the same reason.
+    private static final String SQL_PATH =
+            "WITH RECURSIVE path(id, depth) AS ( "
+            + "  SELECT %d, 0 "
             + "  UNION ALL "
-            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
-            + "  FROM history "
-            + "  WHERE url NOT IN (SELECT url FROM bookmarks"
-            + "    WHERE deleted = 0 AND folder = 0) "
-            + "  ORDER BY bookmark DESC, visits DESC, date DESC ";
+            + "  SELECT bookmarks.parent, path.depth + 1 FROM bookmarks JOIN path "
+            + "    ON bookmarks._id = path.id "
+            + "  WHERE bookmarks.parent IS NOT NULL AND path.depth < 256 "
+            + ") "
+            + "SELECT id, depth FROM path";
 
     private static final String SQL_WHERE_ACCOUNT_HAS_BOOKMARKS =
             "0 < ( "
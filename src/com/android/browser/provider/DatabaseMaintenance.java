@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.mynavigation.MyNavigationUtil;
+import com.android.browser.platformsupport.BrowserContract;
+
+import org.chromium.base.VisibleForTesting;
+
+import java.io.File;
+
+/**
+ * Keeps the browser's databases in shape while the device charges. Each
+ * provider runs {@link #maintain} on its own database when called with
+ * {@link #METHOD_MAINTAIN}: a passive WAL checkpoint, ANALYZE so the query
+ * planner sees the current shape of the tables, and incremental vacuum in
+ * short slices until the free pages are gone or the time is up. Providers
+ * drop their orphaned files first, so the vacuum gets the pages they freed.
+ */
+public class DatabaseMaintenance {
+
+    private static final String TAG = "DatabaseMaintenance";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that maintains the
+     * provider's database, returning its sizes before and after under the
+     * KEY_ constants.
+     */
+    public static final String METHOD_MAINTAIN = "maintain";
+    public static final String KEY_SIZE_BEFORE = "size_before";
+    public static final String KEY_SIZE_AFTER = "size_after";
+    public static final String KEY_PAGES_VACUUMED = "pages_vacuumed";
+    public static final String KEY_FILES_PRUNED = "files_pruned";
+    public static final String KEY_ELAPSED_MS = "elapsed_ms";
+
+    // Last run and the sizes it recorded, in the default shared preferences
+    public static final String PREF_LAST_RUN = "db_maintenance_last_run";
+    public static final String PREF_LAST_SIZES = "db_maintenance_last_sizes";
+
+    static final long INTERVAL = 24 * 60 * 60 * 1000;
+
+    // Time each database gets for incremental vacuum
+    static final long VACUUM_BUDGET_MS = 2000;
+    // Pages freed per incremental vacuum, each slice is its own transaction
+    @VisibleForTesting
+    public static final int PAGES_PER_SLICE = 128;
+
+    // A database that can't vacuum incrementally yet is converted with a
+    // full VACUUM once this share of its pages is free
+    static final int FREE_PAGES_FOR_FULL_VACUUM_PERCENT = 25;
+    // A full VACUUM rewrites the whole file and can't be stopped halfway,
+    // so only databases small enough to rewrite within VACUUM_BUDGET_MS on
+    // slow flash are converted; larger ones keep their free pages
+    static final long MAX_FULL_VACUUM_SIZE = 4 * 1024 * 1024;
+
+    private static final int AUTO_VACUUM_NONE = 0;
+    private static final int AUTO_VACUUM_FULL = 1;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final Uri[] PROVIDERS = new Uri[] {
+            BrowserContract.AUTHORITY_URI,
+            SnapshotProvider.AUTHORITY_URI,
+            MyNavigationUtil.MY_NAVIGATION_URI,
+    };
+
+    private static boolean sScheduled;
+
+    private DatabaseMaintenance() {}
+
+    /**
+     * Maintains all three databases in the background, unless the
+     * device isn't charging or they were maintained in the last day.
+     */
+    public static void scheduleIfCharging(Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (!isCharging(appContext)) {
+            return;
+        }
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appContext);
+        if (System.currentTimeMillis() - prefs.getLong(PREF_LAST_RUN, 0) < INTERVAL) {
+            return;
+        }
+        synchronized (DatabaseMaintenance.class) {
+            if (sScheduled) {
+                return;
+            }
+            sScheduled = true;
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runAll(appContext, prefs);
+                } finally {
+                    synchronized (DatabaseMaintenance.class) {
+                        sScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    static boolean isCharging(Context context) {
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static void runAll(Context context, SharedPreferences prefs) {
+        ContentResolver cr = context.getContentResolver();
+        StringBuilder sizes = new StringBuilder();
+        for (Uri provider : PROVIDERS) {
+            Bundle result;
+            try {
+                result = cr.call(provider, METHOD_MAINTAIN, null, null);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to maintain " + provider, e);
+                continue;
+            }
+            if (result == null) {
+                continue;
+            }
+            String line = provider.getAuthority() + ": "
+                    + result.getLong(KEY_SIZE_BEFORE) + " -> " + result.getLong(KEY_SIZE_AFTER)
+                    + " bytes, " + result.getInt(KEY_PAGES_VACUUMED) + " pages vacuumed, "
+                    + result.getInt(KEY_FILES_PRUNED) + " files pruned in "
+                    + result.getLong(KEY_ELAPSED_MS) + " ms";
+            Log.i(TAG, line);
+            sizes.append(line).append('\n');
+        }
+        prefs.edit()
+                .putLong(PREF_LAST_RUN, System.currentTimeMillis())
+                .putString(PREF_LAST_SIZES, sizes.toString())
+                .apply();
+    }
+
+    /**
+     * Maintains the database, which the caller already pruned of the
+     * {@code filesPruned} orphaned files. Must not be called in a transaction.
+     */
+    static Bundle maintain(SQLiteDatabase db, File file, int filesPruned) {
+        long start = SystemClock.uptimeMillis();
+        Bundle result = new Bundle();
+        result.putLong(KEY_SIZE_BEFORE, getSize(file));
+        result.putInt(KEY_FILES_PRUNED, filesPruned);
+
+        // Passive, so it never waits for readers or holds up writers
+        pragma(db, "PRAGMA wal_checkpoint(PASSIVE)");
+        db.execSQL("ANALYZE");
+        result.putInt(KEY_PAGES_VACUUMED, vacuum(db));
+        pragma(db, "PRAGMA wal_checkpoint(PASSIVE)");
+
+        result.putLong(KEY_SIZE_AFTER, getSize(file));
+        result.putLong(KEY_ELAPSED_MS, SystemClock.uptimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Frees pages until none are left or VACUUM_BUDGET_MS is up, returning
+     * how many it freed. Only incremental vacuum is used, but for the
+     * conversion of small databases that can't do it yet.
+     */
+    static int vacuum(SQLiteDatabase db) {
+        long free = pragma(db, "PRAGMA freelist_count");
+        int mode = (int) pragma(db, "PRAGMA auto_vacuum");
+        if (mode == AUTO_VACUUM_FULL) {
+            // Full moves pages on every commit, incremental only when asked;
+            // switching between the two needs no VACUUM
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        } else if (mode == AUTO_VACUUM_NONE) {
+            long pages = pragma(db, "PRAGMA page_count");
+            if (free * 100 < pages * FREE_PAGES_FOR_FULL_VACUUM_PERCENT
+                    || pages * pragma(db, "PRAGMA page_size") > MAX_FULL_VACUUM_SIZE) {
+                return 0;
+            }
+            // Only a full VACUUM can turn incremental vacuum on, it also
+            // frees every page at once
+            db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM");
+            return (int) free;
+        }
+        long deadline = SystemClock.uptimeMillis() + VACUUM_BUDGET_MS;
+        int vacuumed = 0;
+        while (free > 0 && SystemClock.uptimeMillis() < deadline) {
+            incrementalVacuum(db, PAGES_PER_SLICE);
+            long left = pragma(db, "PRAGMA freelist_count");
+            if (left >= free) {
+                break;
+            }
+            vacuumed += free - left;
+            free = left;
+        }
+        return vacuumed;
+    }
+
+    // Frees up to the given number of pages. The pragma returns a row with
+    // no columns for every page freed, stepping through them does the work
+    private static void incrementalVacuum(SQLiteDatabase db, int pages) {
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    // Runs a pragma and returns the first column of its first row, if any
+    private static long pragma(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    static long getSize(File file) {
+        return file.length() + new File(file.getPath() + "-wal").length();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.android.browser.platformsupport.BrowserContract.Images;
+
+/**
+ * Resolves the blob names the images table holds into the image bytes, only
+ * when a favicon, thumbnail or touch icon is actually read.
+ */
+class ImageBlobCursor extends CursorWrapper {
+
+    private static final String[] BLOB_COLUMNS = new String[] {
+            Images.FAVICON,
+            Images.THUMBNAIL,
+            Images.TOUCH_ICON,
+    };
+
+    private final ImageBlobStore mStore;
+    private final boolean[] mIsBlob;
+
+    private ImageBlobCursor(Cursor cursor, ImageBlobStore store, boolean[] isBlob) {
+        super(cursor);
+        mStore = store;
+        mIsBlob = isBlob;
+    }
+
+    /**
+     * Wraps the cursor if it has any image columns.
+     */
+    static Cursor wrap(Cursor cursor, ImageBlobStore store) {
+        if (cursor == null) {
+            return null;
+        }
+        boolean[] isBlob = null;
+        for (String column : BLOB_COLUMNS) {
+            int index = cursor.getColumnIndex(column);
+            if (index >= 0) {
+                if (isBlob == null) {
+                    isBlob = new boolean[cursor.getColumnCount()];
+                }
+                isBlob[index] = true;
+            }
+        }
+        return isBlob == null ? cursor : new ImageBlobCursor(cursor, store, isBlob);
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        // Rows written before the images moved out of the table still hold
+        // the bytes themselves
+        if (!mIsBlob[columnIndex] || super.getType(columnIndex) != FIELD_TYPE_STRING) {
+            return super.getBlob(columnIndex);
+        }
+        String name = super.getString(columnIndex);
+        return name == null ? null : mStore.get(name);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        int type = super.getType(columnIndex);
+        if (mIsBlob[columnIndex] && type == FIELD_TYPE_STRING) {
+            return FIELD_TYPE_BLOB;
+        }
+        return type;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * Stores the favicons, thumbnails and touch icons of the images table as
+ * files named by the SHA-1 of their contents. The table only holds the
+ * names, so an icon shared by every page of a site is stored once and
+ * cursors over the table stay small.
+ */
+class ImageBlobStore {
+    private static final String TAG = "ImageBlobStore";
+
+    static final String DIR_NAME = "image_blobs";
+
+    // Bytes of recently read blobs kept in memory
+    private static final int CACHE_SIZE = 512 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File mDir;
+    private final LruCache<String, byte[]> mCache = new LruCache<String, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    ImageBlobStore(File dir) {
+        mDir = dir;
+    }
+
+    static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] sha = digest.digest(data);
+        char[] name = new char[sha.length * 2];
+        for (int i = 0; i < sha.length; i++) {
+            name[i * 2] = HEX[(sha[i] >> 4) & 0xf];
+            name[i * 2 + 1] = HEX[sha[i] & 0xf];
+        }
+        return new String(name);
+    }
+
+    static boolean isValidName(String name) {
+        if (name == null || name.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the file for a blob name, or null if the name isn't one.
+     */
+    File getFile(String name) {
+        return isValidName(name) ? new File(mDir, name) : null;
+    }
+
+    /**
+     * Stores the data unless a blob with the same contents exists and
+     * returns its name.
+     */
+    String put(byte[] data) {
+        String name = hash(data);
+        File file = new File(mDir, name);
+        if (file.exists()) {
+            // Keeps the sweeper off a blob that is being referenced again
+            file.setLastModified(System.currentTimeMillis());
+            return name;
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IllegalStateException("Can't create " + mDir);
+        }
+        File tmp = new File(mDir, name + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw new IllegalStateException("Failed to store image", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IllegalStateException("Failed to store image " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the contents of a blob, or null if there is no such blob.
+     */
+    byte[] get(String name) {
+        byte[] data = mCache.get(name);
+        if (data != null) {
+            return data;
+        }
+        File file = getFile(name);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read image " + name, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+        mCache.put(name, data);
+        return data;
+    }
+
+    /**
+     * Deletes the blobs that aren't referenced and haven't been written to
+     * since before the given time, so blobs of transactions that are still
+     * open are left alone. Returns the number of blobs deleted.
+     */
+    int sweep(Set<String> referenced, long writtenBefore) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!referenced.contains(name) && file.lastModified() < writtenBefore) {
+                mCache.remove(name);
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
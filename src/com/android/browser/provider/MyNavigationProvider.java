@@ -43,6 +43,7 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
@@ -51,10 +52,12 @@ import android.webkit.WebResourceResponse;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.PrintWriter;
 
 import com.android.browser.BrowserSettings;
 import com.android.browser.R;
@@ -77,6 +80,7 @@ public class MyNavigationProvider extends ContentProvider {
     private static final Uri NOTIFICATION_URI = MyNavigationUtil.MY_NAVIGATION_URI;
 
     private SiteNavigationDatabaseHelper mOpenHelper;
+    private ProviderStats mStats;
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
@@ -99,12 +103,14 @@ public class MyNavigationProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new SiteNavigationDatabaseHelper(this.getContext());
+        mStats = new ProviderStats(LOGTAG, URI_MATCHER);
         return true;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        long start = mStats.start();
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(TABLE_WEB_SITES);
         switch (URI_MATCHER.match(uri)) {
@@ -129,12 +135,13 @@ public class MyNavigationProvider extends ContentProvider {
         if (c != null) {
             c.setNotificationUri(getContext().getContentResolver(), NOTIFICATION_URI);
         }
-        return c;
+        return mStats.endQuery(uri, start, c);
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        long start = mStats.start();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count = 0;
 
@@ -156,17 +163,20 @@ public class MyNavigationProvider extends ContentProvider {
             ContentResolver cr = getContext().getContentResolver();
             cr.notifyChange(uri, null);
         }
+        mStats.end(ProviderStats.UPDATE, uri, start, count);
         return count;
     }
 
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) {
+        long start = mStats.start();
         try {
             ParcelFileDescriptor[] pipes = ParcelFileDescriptor.createPipe();
             final ParcelFileDescriptor write = pipes[1];
             AssetFileDescriptor afd = new AssetFileDescriptor(write, 0, -1);
             new MyNavigationRequestHandler(getContext(), uri, afd.createOutputStream())
                     .start();
+            mStats.end(ProviderStats.OPEN_FILE, uri, start, 0);
             return pipes[0];
         } catch (IOException e) {
             Log.e(LOGTAG, "Failed to handle request: " + uri, e);
@@ -174,6 +184,21 @@ public class MyNavigationProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (DatabaseMaintenance.METHOD_MAINTAIN.equals(method)) {
+            // Thumbnails live in the rows, so there are no files to prune
+            return DatabaseMaintenance.maintain(mOpenHelper.getWritableDatabase(),
+                    getContext().getDatabasePath(SiteNavigationDatabaseHelper.DATABASE_NAME), 0);
+        }
+        return super.call(method, arg, extras);
+    }
+
     public static WebResourceResponse shouldInterceptRequest(Context context,
             String url) {
         try {
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.content.UriMatcher;
+import android.database.AbstractWindowedCursor;
+import android.database.CrossProcessCursor;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms, row counts and cursor window fills per operation and
+ * UriMatcher code of a content provider. The counters are atomics, so
+ * recording never takes a lock.
+ *
+ * While disabled, {@link #start} returns {@link #NOT_TIMED} after reading one
+ * volatile flag and the end methods return at once, without matching the URI
+ * or wrapping the cursor.
+ */
+public class ProviderStats {
+
+    public static final int QUERY = 0;
+    public static final int INSERT = 1;
+    public static final int UPDATE = 2;
+    public static final int DELETE = 3;
+    public static final int OPEN_FILE = 4;
+    private static final int OPERATIONS = 5;
+
+    private static final String[] OPERATION_NAMES = new String[] {
+            "query", "insert", "update", "delete", "openFile",
+    };
+
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    // Bucket i counts the calls that took less than 2^i microseconds, the
+    // last one all slower calls
+    static final int BUCKETS = 20;
+
+    private static volatile boolean sEnabled;
+    // Held weakly, so a provider dropped without shutdown() is not kept or
+    // listed once it is collected
+    private static final CopyOnWriteArrayList<WeakReference<ProviderStats>> sAll =
+            new CopyOnWriteArrayList<WeakReference<ProviderStats>>();
+
+    private final String mName;
+    private final UriMatcher mMatcher;
+    private final ConcurrentHashMap<Integer, Route> mRoutes =
+            new ConcurrentHashMap<Integer, Route>();
+    // Dumped along with the routes, always kept unlike these
+    private volatile TransactionStats mTransactionStats;
+
+    static class Route {
+        // The path of the first URI seen, to tell the codes apart in dumps
+        final String mPath;
+        final AtomicLongArray mCalls = new AtomicLongArray(OPERATIONS);
+        final AtomicLongArray mMicros = new AtomicLongArray(OPERATIONS);
+        final AtomicLongArray mRows = new AtomicLongArray(OPERATIONS);
+        final AtomicLongArray mHistogram = new AtomicLongArray(OPERATIONS * BUCKETS);
+        final AtomicLong mWindowFills = new AtomicLong();
+
+        Route(String path) {
+            mPath = path;
+        }
+    }
+
+    /**
+     * Creates the stats of a provider, listed by {@link #dumpAll} until
+     * {@link #unregister} is called. The matcher gives the codes the stats
+     * are kept by; without one all URIs share a code.
+     */
+    public ProviderStats(String name, UriMatcher matcher) {
+        mName = name;
+        mMatcher = matcher;
+        sAll.add(new WeakReference<ProviderStats>(this));
+    }
+
+    /**
+     * Drops the stats from {@link #dumpAll} and {@link #resetAll}, for a
+     * provider being shut down.
+     */
+    public void unregister() {
+        for (WeakReference<ProviderStats> ref : sAll) {
+            ProviderStats stats = ref.get();
+            if (stats == null || stats == this) {
+                sAll.remove(ref);
+            }
+        }
+    }
+
+    /**
+     * Returns the registered stats still alive, pruning the collected ones.
+     */
+    private static ArrayList<ProviderStats> getAll() {
+        ArrayList<ProviderStats> all = new ArrayList<ProviderStats>(sAll.size());
+        for (WeakReference<ProviderStats> ref : sAll) {
+            ProviderStats stats = ref.get();
+            if (stats != null) {
+                all.add(stats);
+            } else {
+                sAll.remove(ref);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Has the provider's transaction counters dumped with its routes.
+     */
+    public void setTransactionStats(TransactionStats stats) {
+        mTransactionStats = stats;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the start time to pass to the end methods.
+     */
+    public long start() {
+        return sEnabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records an insert, update, delete or file open that began at start
+     * and touched the given number of rows.
+     */
+    public void end(int operation, Uri uri, long start, int rows) {
+        if (start == NOT_TIMED) {
+            return;
+        }
+        record(getRoute(uri), operation, start, rows);
+    }
+
+    /**
+     * Records a query that began at start, returning the cursor to hand out
+     * in its place. Its rows and window fills are counted as it is read.
+     */
+    public Cursor endQuery(Uri uri, long start, Cursor cursor) {
+        if (start == NOT_TIMED) {
+            return cursor;
+        }
+        Route route = getRoute(uri);
+        record(route, QUERY, start, 0);
+        if (cursor instanceof CrossProcessCursor) {
+            return new CountingCursor(cursor, route);
+        }
+        return cursor;
+    }
+
+    private Route getRoute(Uri uri) {
+        int code = mMatcher != null ? mMatcher.match(uri) : UriMatcher.NO_MATCH;
+        Route route = mRoutes.get(code);
+        if (route == null) {
+            route = new Route(uri.getPath());
+            Route raced = mRoutes.putIfAbsent(code, route);
+            if (raced != null) {
+                route = raced;
+            }
+        }
+        return route;
+    }
+
+    private static void record(Route route, int operation, long start, int rows) {
+        long micros = (System.nanoTime() - start) / 1000;
+        route.mCalls.incrementAndGet(operation);
+        route.mMicros.addAndGet(operation, micros);
+        if (rows > 0) {
+            route.mRows.addAndGet(operation, rows);
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        route.mHistogram.incrementAndGet(operation * BUCKETS + Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * Counts the rows read from a query's cursor and the times its window
+     * was filled, be it here or for a client in another process.
+     */
+    static class CountingCursor extends CrossProcessCursorWrapper {
+        private final Route mRoute;
+        private CursorWindow mWindow;
+        private int mWindowStart = -1;
+        private int mRowsRead;
+
+        CountingCursor(Cursor cursor, Route route) {
+            super(cursor);
+            mRoute = route;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            super.fillWindow(position, window);
+            mRoute.mWindowFills.incrementAndGet();
+            mRowsRead = Math.max(mRowsRead, window.getStartPosition() + window.getNumRows());
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            boolean moved = super.moveToPosition(position);
+            checkWindow();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            boolean moved = super.moveToNext();
+            checkWindow();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            boolean moved = super.moveToFirst();
+            checkWindow();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToLast() {
+            boolean moved = super.moveToLast();
+            checkWindow();
+            return moved;
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            boolean moved = super.moveToPrevious();
+            checkWindow();
+            return moved;
+        }
+
+        @Override
+        public boolean move(int offset) {
+            boolean moved = super.move(offset);
+            checkWindow();
+            return moved;
+        }
+
+        private void checkWindow() {
+            Cursor cursor = getWrappedCursor();
+            if (cursor instanceof AbstractWindowedCursor) {
+                CursorWindow window = ((AbstractWindowedCursor) cursor).getWindow();
+                if (window != null && (window != mWindow
+                        || window.getStartPosition() != mWindowStart)) {
+                    mWindow = window;
+                    mWindowStart = window.getStartPosition();
+                    mRoute.mWindowFills.incrementAndGet();
+                }
+            }
+            int position = getPosition();
+            if (position >= mRowsRead && !isAfterLast()) {
+                mRowsRead = position + 1;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!isClosed()) {
+                mRoute.mRows.addAndGet(QUERY, mRowsRead);
+            }
+            super.close();
+        }
+    }
+
+    public void reset() {
+        mRoutes.clear();
+    }
+
+    public static void resetAll() {
+        for (ProviderStats stats : getAll()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Prints the transaction counters, if there are any, then a line per
+     * operation and code, with its calls, mean latency, rows and the
+     * non-empty latency buckets.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println(mName + (sEnabled ? "" : " (disabled)"));
+        TransactionStats transactions = mTransactionStats;
+        if (transactions != null) {
+            transactions.dump(pw);
+        }
+        for (Integer code : mRoutes.keySet()) {
+            Route route = mRoutes.get(code);
+            for (int op = 0; op < OPERATIONS; op++) {
+                long calls = route.mCalls.get(op);
+                if (calls == 0) {
+                    continue;
+                }
+                pw.print("  " + OPERATION_NAMES[op] + " " + code + " " + route.mPath
+                        + ": " + calls + " calls, " + route.mMicros.get(op) / calls + " us mean, "
+                        + route.mRows.get(op) + " rows");
+                if (op == QUERY) {
+                    pw.print(", " + route.mWindowFills.get() + " window fills");
+                }
+                pw.println();
+                pw.print("    us <");
+                for (int i = 0; i < BUCKETS; i++) {
+                    long count = route.mHistogram.get(op * BUCKETS + i);
+                    if (count > 0) {
+                        pw.print(" " + (i == BUCKETS - 1 ? "inf" : Long.toString(1L << i))
+                                + ":" + count);
+                    }
+                }
+                pw.println();
+            }
+        }
+    }
+
+    public static void dumpAll(PrintWriter pw) {
+        for (ProviderStats stats : getAll()) {
+            stats.dump(pw);
+        }
+    }
+
+    public static String dumpAll() {
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        dumpAll(pw);
+        pw.flush();
+        return writer.toString();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the results of small, hot queries in memory. Each result remembers
+ * the generations of the tables it was read from and is dropped once any of
+ * them has moved on, so writers only have to bump the generations of the
+ * tables they changed.
+ */
+class QueryResultCache {
+
+    // Table bits, a result depends on the tables whose bits it was put with
+    static final int TABLE_BOOKMARKS = 1;
+    static final int TABLE_IMAGES = 2;
+    private static final int TABLE_COUNT = 2;
+
+    private static final int MAX_ENTRIES = 32;
+    // Larger results aren't worth holding on to
+    static final int MAX_ROWS = 500;
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_ENTRIES);
+    private final long[] mGenerations = new long[TABLE_COUNT];
+    // Tables written by the transaction in progress on each thread, a write
+    // transaction belongs to the thread that began it
+    private final ThreadLocal<Integer> mPendingTables = new ThreadLocal<Integer>();
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    private static class Entry {
+        final int tables;
+        final long stamp;
+        final String[] columns;
+        final Object[] values;
+        final int count;
+
+        Entry(int tables, long stamp, String[] columns, Object[] values, int count) {
+            this.tables = tables;
+            this.stamp = stamp;
+            this.columns = columns;
+            this.values = values;
+            this.count = count;
+        }
+    }
+
+    static String key(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        StringBuilder sb = new StringBuilder(uri.toString());
+        sb.append('\0').append(Arrays.toString(projection));
+        sb.append('\0').append(selection);
+        sb.append('\0').append(Arrays.toString(selectionArgs));
+        sb.append('\0').append(sortOrder);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a value that changes whenever one of the tables does. Take it
+     * before running the query whose result is put.
+     */
+    synchronized long stamp(int tables) {
+        long stamp = 0;
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            if ((tables & (1 << i)) != 0) {
+                stamp += mGenerations[i];
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Records that the calling thread's transaction writes the tables.
+     * Results read while it is open are dropped again once it ends.
+     */
+    void markChanged(int tables) {
+        Integer pending = mPendingTables.get();
+        mPendingTables.set(pending == null ? tables : pending | tables);
+        invalidate(tables);
+    }
+
+    /**
+     * Called once the calling thread's transaction has ended, before
+     * observers are told about its changes.
+     */
+    void onEndTransaction() {
+        Integer tables = mPendingTables.get();
+        if (tables != null) {
+            mPendingTables.remove();
+            invalidate(tables);
+        }
+    }
+
+    synchronized void invalidate(int tables) {
+        for (int i = 0; i < TABLE_COUNT; i++) {
+            if ((tables & (1 << i)) != 0) {
+                mGenerations[i]++;
+            }
+        }
+    }
+
+    /**
+     * Returns a cursor over the cached result, or null if there is none or
+     * the tables it was read from have changed since.
+     */
+    Cursor get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.stamp != stamp(entry.tables)) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return new ResultCursor(entry);
+    }
+
+    /**
+     * Reads the cursor into memory, closing it, and caches the result under
+     * the key. Returns a cursor over the result in place of the one read.
+     */
+    Cursor put(String key, int tables, long stamp, Cursor cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        int count = cursor.getCount();
+        if (count > MAX_ROWS) {
+            return cursor;
+        }
+        String[] columns = cursor.getColumnNames();
+        Object[] values = new Object[count * columns.length];
+        try {
+            int i = 0;
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < columns.length; column++) {
+                    values[i++] = getValue(cursor, column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Entry entry = new Entry(tables, stamp, columns, values, count);
+        if (stamp == stamp(tables)) {
+            mEntries.put(key, entry);
+        }
+        return new ResultCursor(entry);
+    }
+
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    int getHitCount() {
+        return mHits.get();
+    }
+
+    int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * A read only cursor over a cached result. Any number of them can share
+     * one entry.
+     */
+    private static class ResultCursor extends AbstractCursor {
+        private final Entry mEntry;
+
+        ResultCursor(Entry entry) {
+            mEntry = entry;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mEntry.columns.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            if (mPos < 0 || mPos >= mEntry.count) {
+                throw new IllegalStateException("Position " + mPos + " out of range");
+            }
+            return mEntry.values[mPos * mEntry.columns.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mEntry.count;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mEntry.columns;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            // Like SQLite, hand out the text as its bytes
+            return value.toString().getBytes();
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
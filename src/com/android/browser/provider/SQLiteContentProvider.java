@@ -23,12 +23,20 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.content.UriMatcher;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.SystemClock;
 
+import org.chromium.base.VisibleForTesting;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -43,8 +51,20 @@ public abstract class SQLiteContentProvider extends ContentProvider {
     protected SQLiteDatabase mDb;
 
     private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+    private final TransactionStats mStats = new TransactionStats();
+    private ProviderStats mProviderStats;
+
+    /**
+     * Longest sleep after a yield, for writers that keep wanting the database.
+     */
     private static final int SLEEP_AFTER_YIELD_DELAY = 4000;
 
+    /**
+     * Shortest time a batch holds the database between yields, so that a
+     * batch with many yield points doesn't hand it back and forth.
+     */
+    private static final long MIN_HOLD_BEFORE_YIELD = 16;
+
     /**
      * Maximum number of operations allowed in a batch between yield points.
      */
@@ -55,9 +75,31 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         Context context = getContext();
         mOpenHelper = getDatabaseHelper(context);
         mChangedUris = new HashSet<Uri>();
+        mProviderStats = new ProviderStats(getClass().getSimpleName(), getUriMatcher());
+        mProviderStats.setTransactionStats(mStats);
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        mProviderStats.unregister();
+        super.shutdown();
+    }
+
+    /**
+     * Returns the matcher whose codes the provider's stats are kept by.
+     */
+    protected UriMatcher getUriMatcher() {
+        return null;
+    }
+
+    /**
+     * Returns the latency and row counts of the provider's calls.
+     */
+    public ProviderStats getProviderStats() {
+        return mProviderStats;
+    }
+
     /**
      * Returns a {@link SQLiteOpenHelper} that can open the database.
      */
@@ -86,6 +128,10 @@ public abstract class SQLiteContentProvider extends ContentProvider {
      * is committed.
      */
     protected void postNotifyUri(Uri uri) {
+        // Observers are matched on the path alone
+        if (uri.getQuery() != null || uri.getFragment() != null) {
+            uri = uri.buildUpon().clearQuery().fragment(null).build();
+        }
         synchronized (mChangedUris) {
             mChangedUris.add(uri);
         }
@@ -95,42 +141,93 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         return false;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mProviderStats.dump(writer);
+    }
+
     public SQLiteOpenHelper getDatabaseHelper() {
         return mOpenHelper;
     }
 
+    /**
+     * Returns the hold and wait times of the write transactions so far.
+     */
+    public TransactionStats getTransactionStats() {
+        return mStats;
+    }
+
+    /**
+     * Begins a write transaction, recording how long it waited for other
+     * writers. In WAL mode readers never wait for us, so those are the only
+     * waits there are. Returns the time the transaction started holding
+     * the database.
+     */
+    private long beginTransaction() {
+        mDb = mOpenHelper.getWritableDatabase();
+        long start = SystemClock.uptimeMillis();
+        mDb.beginTransaction();
+        long now = SystemClock.uptimeMillis();
+        mStats.onBegin(now - start);
+        return now;
+    }
+
+    private void endTransaction(long holdStart) {
+        mDb.endTransaction();
+        mStats.onHold(SystemClock.uptimeMillis() - holdStart);
+        mStats.onEnd();
+    }
+
     private boolean applyingBatch() {
         return mApplyingBatch.get() != null && mApplyingBatch.get();
     }
 
+    /**
+     * Runs writes the provider makes on its own, like a background import,
+     * in a transaction the way {@link #insert} runs a caller's, so they are
+     * counted in the stats and followed by {@link #onEndTransaction}.
+     */
+    protected void runInTransaction(Runnable writes) {
+        long holdStart = beginTransaction();
+        try {
+            writes.run();
+            mDb.setTransactionSuccessful();
+        } finally {
+            endTransaction(holdStart);
+        }
+
+        onEndTransaction(false);
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mProviderStats.start();
         Uri result = null;
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            long holdStart = beginTransaction();
             try {
                 result = insertInTransaction(uri, values, callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(holdStart);
             }
 
             onEndTransaction(callerIsSyncAdapter);
         } else {
             result = insertInTransaction(uri, values, callerIsSyncAdapter);
         }
+        mProviderStats.end(ProviderStats.INSERT, uri, start, result != null ? 1 : 0);
         return result;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = mProviderStats.start();
         int numValues = values.length;
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransaction();
+        long holdStart = beginTransaction();
         try {
             for (int i = 0; i < numValues; i++) {
                 Uri result = insertInTransaction(uri, values[i], callerIsSyncAdapter);
@@ -138,27 +235,28 @@ public abstract class SQLiteContentProvider extends ContentProvider {
             }
             mDb.setTransactionSuccessful();
         } finally {
-            mDb.endTransaction();
+            endTransaction(holdStart);
         }
 
         onEndTransaction(callerIsSyncAdapter);
+        mProviderStats.end(ProviderStats.INSERT, uri, start, numValues);
         return numValues;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long start = mProviderStats.start();
         int count = 0;
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            long holdStart = beginTransaction();
             try {
                 count = updateInTransaction(uri, values, selection, selectionArgs,
                         callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(holdStart);
             }
 
             onEndTransaction(callerIsSyncAdapter);
@@ -166,28 +264,30 @@ public abstract class SQLiteContentProvider extends ContentProvider {
             count = updateInTransaction(uri, values, selection, selectionArgs, callerIsSyncAdapter);
         }
 
+        mProviderStats.end(ProviderStats.UPDATE, uri, start, count);
         return count;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mProviderStats.start();
         int count = 0;
         boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
         boolean applyingBatch = applyingBatch();
         if (!applyingBatch) {
-            mDb = mOpenHelper.getWritableDatabase();
-            mDb.beginTransaction();
+            long holdStart = beginTransaction();
             try {
                 count = deleteInTransaction(uri, selection, selectionArgs, callerIsSyncAdapter);
                 mDb.setTransactionSuccessful();
             } finally {
-                mDb.endTransaction();
+                endTransaction(holdStart);
             }
 
             onEndTransaction(callerIsSyncAdapter);
         } else {
             count = deleteInTransaction(uri, selection, selectionArgs, callerIsSyncAdapter);
         }
+        mProviderStats.end(ProviderStats.DELETE, uri, start, count);
         return count;
     }
 
@@ -197,8 +297,8 @@ public abstract class SQLiteContentProvider extends ContentProvider {
         int ypCount = 0;
         int opCount = 0;
         boolean callerIsSyncAdapter = false;
-        mDb = mOpenHelper.getWritableDatabase();
-        mDb.beginTransaction();
+        long holdStart = beginTransaction();
+        int sleepAfterYield = 0;
         try {
             mApplyingBatch.set(true);
             final int numOperations = operations.size();
@@ -216,8 +316,17 @@ public abstract class SQLiteContentProvider extends ContentProvider {
                 }
                 if (i > 0 && operation.isYieldAllowed()) {
                     opCount = 0;
-                    if (mDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY)) {
+                    long held = SystemClock.uptimeMillis() - holdStart;
+                    if (held >= MIN_HOLD_BEFORE_YIELD
+                            && mDb.yieldIfContendedSafely(sleepAfterYield)) {
                         ypCount++;
+                        mStats.onHold(held);
+                        mStats.onYield();
+                        holdStart = SystemClock.uptimeMillis();
+                        sleepAfterYield = nextSleepAfterYield(sleepAfterYield, held);
+                    } else if (held >= MIN_HOLD_BEFORE_YIELD) {
+                        // Nobody waited, don't make the next yield sleep
+                        sleepAfterYield = 0;
                     }
                 }
                 results[i] = operation.apply(this, results, i);
@@ -226,17 +335,35 @@ public abstract class SQLiteContentProvider extends ContentProvider {
             return results;
         } finally {
             mApplyingBatch.set(false);
-            mDb.endTransaction();
+            endTransaction(holdStart);
+            mStats.onBatch(operations.size());
             onEndTransaction(callerIsSyncAdapter);
         }
     }
 
+    /**
+     * Returns how long to sleep after the next yield. A yield right after
+     * the minimum hold means other writers want the database again as soon
+     * as we take it back, so back off, up to SLEEP_AFTER_YIELD_DELAY. After
+     * a longer stretch they have had their turn and the next yield only
+     * has to hand over the database, which needs no sleep at all.
+     */
+    @VisibleForTesting
+    public static int nextSleepAfterYield(int sleep, long held) {
+        if (held > MIN_HOLD_BEFORE_YIELD * 4) {
+            return 0;
+        }
+        return (int) Math.min(Math.max(sleep * 2, MIN_HOLD_BEFORE_YIELD),
+                SLEEP_AFTER_YIELD_DELAY);
+    }
+
     protected void onEndTransaction(boolean callerIsSyncAdapter) {
         Set<Uri> changed;
         synchronized (mChangedUris) {
             changed = new HashSet<Uri>(mChangedUris);
             mChangedUris.clear();
         }
+        removeDescendants(changed);
         ContentResolver resolver = getContext().getContentResolver();
         for (Uri uri : changed) {
             boolean syncToNetwork = !callerIsSyncAdapter && syncToNetwork(uri);
@@ -247,4 +374,29 @@ public abstract class SQLiteContentProvider extends ContentProvider {
     protected boolean syncToNetwork(Uri uri) {
         return false;
     }
+
+    /**
+     * Drops the URIs that have an ancestor in the set. Notifying a URI
+     * reaches the observers of all its descendants, so they would only be
+     * told twice.
+     */
+    static void removeDescendants(Set<Uri> uris) {
+        if (uris.size() < 2) {
+            return;
+        }
+        Iterator<Uri> it = uris.iterator();
+        while (it.hasNext()) {
+            Uri uri = it.next();
+            List<String> segments = uri.getPathSegments();
+            Uri.Builder ancestor = new Uri.Builder()
+                    .scheme(uri.getScheme()).authority(uri.getAuthority());
+            for (int i = 0; i < segments.size(); i++) {
+                if (uris.contains(ancestor.build())) {
+                    it.remove();
+                    break;
+                }
+                ancestor.appendPath(segments.get(i));
+            }
+        }
+    }
 }
@@ -26,6 +26,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 
 import com.android.browser.BrowserConfig;
 import com.android.browser.platformsupport.BrowserContract;
@@ -33,9 +34,13 @@ import com.android.browser.platformsupport.BrowserContract;
 import android.text.TextUtils;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.regex.Pattern;
 
 public class SnapshotProvider extends ContentProvider {
 
@@ -67,6 +72,7 @@ public class SnapshotProvider extends ContentProvider {
     static final byte[] NULL_BLOB_HACK = new byte[0];
 
     SnapshotDatabaseHelper mOpenHelper;
+    ProviderStats mStats;
 
     static {
         URI_MATCHER.addURI(AUTHORITY, "snapshots", SNAPSHOTS);
@@ -171,9 +177,16 @@ public class SnapshotProvider extends ContentProvider {
     public boolean onCreate() {
         migrateToDataFolder();
         mOpenHelper = new SnapshotDatabaseHelper(getContext());
+        mStats = new ProviderStats("SnapshotProvider", URI_MATCHER);
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        mStats.unregister();
+        super.shutdown();
+    }
+
     SQLiteDatabase getWritableDatabase() {
         return mOpenHelper.getWritableDatabase();
     }
@@ -185,6 +198,7 @@ public class SnapshotProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        long start = mStats.start();
         SQLiteDatabase db = getReadableDatabase();
         if (db == null) {
             return null;
@@ -209,7 +223,7 @@ public class SnapshotProvider extends ContentProvider {
                 null, null, sortOrder, limit);
         cursor.setNotificationUri(getContext().getContentResolver(),
                 AUTHORITY_URI);
-        return cursor;
+        return mStats.endQuery(uri, start, cursor);
     }
 
     @Override
@@ -219,6 +233,7 @@ public class SnapshotProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long start = mStats.start();
         SQLiteDatabase db = getWritableDatabase();
         if (db == null) {
             return null;
@@ -235,6 +250,7 @@ public class SnapshotProvider extends ContentProvider {
         default:
             throw new UnsupportedOperationException("Unknown insert URI " + uri);
         }
+        mStats.end(ProviderStats.INSERT, uri, start, id < 0 ? 0 : 1);
         if (id < 0) {
             return null;
         }
@@ -268,6 +284,7 @@ public class SnapshotProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mStats.start();
         SQLiteDatabase db = getWritableDatabase();
         if (db == null) {
             return 0;
@@ -291,6 +308,7 @@ public class SnapshotProvider extends ContentProvider {
         if (deleted > 0) {
             getContext().getContentResolver().notifyChange(uri, null, false);
         }
+        mStats.end(ProviderStats.DELETE, uri, start, deleted);
         return deleted;
     }
 
@@ -300,4 +318,59 @@ public class SnapshotProvider extends ContentProvider {
         throw new UnsupportedOperationException("not implemented");
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (DatabaseMaintenance.METHOD_MAINTAIN.equals(method)) {
+            SQLiteDatabase db = getWritableDatabase();
+            int pruned = pruneViewStateFiles(db);
+            return DatabaseMaintenance.maintain(db,
+                    getContext().getDatabasePath(SnapshotDatabaseHelper.DATABASE_NAME), pruned);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // Names Tab.saveViewState() gives the view state files
+    static final Pattern VIEWSTATE_NAME = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}.*");
+    // Files younger than this may belong to a snapshot still being saved
+    static final long VIEWSTATE_GRACE = 24 * 60 * 60 * 1000;
+
+    /**
+     * Deletes the view state files no snapshot refers to, left behind by
+     * snapshots whose save failed or was cancelled after the file was
+     * written. Returns how many it deleted.
+     */
+    int pruneViewStateFiles(SQLiteDatabase db) {
+        File[] files = getContext().getFilesDir().listFiles();
+        if (files == null) {
+            return 0;
+        }
+        HashSet<String> referenced = new HashSet<String>();
+        Cursor c = db.query(TABLE_SNAPSHOTS, DELETE_PROJECTION,
+                Snapshots.VIEWSTATE_PATH + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                referenced.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        long writtenBefore = System.currentTimeMillis() - VIEWSTATE_GRACE;
+        int pruned = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isFile() && VIEWSTATE_NAME.matcher(name).matches()
+                    && !referenced.contains(name) && f.lastModified() < writtenBefore
+                    && f.delete()) {
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how long the write transactions of a provider hold the database
+ * and how long writers wait for it. The counters are lock free so that
+ * keeping them costs the transactions nothing noticeable.
+ */
+public class TransactionStats {
+
+    public static final String KEY_TRANSACTIONS = "transactions";
+    public static final String KEY_HOLD_MS = "hold_ms";
+    public static final String KEY_MAX_HOLD_MS = "max_hold_ms";
+    public static final String KEY_WAIT_MS = "wait_ms";
+    public static final String KEY_MAX_WAIT_MS = "max_wait_ms";
+    public static final String KEY_CONTENDED = "contended";
+    public static final String KEY_YIELDS = "yields";
+    public static final String KEY_BATCHES = "batches";
+    public static final String KEY_BATCH_OPERATIONS = "batch_operations";
+    public static final String KEY_MAX_BATCH_OPERATIONS = "max_batch_operations";
+
+    // A wait longer than this means another writer held the database
+    static final long CONTENDED_WAIT_MS = 2;
+
+    private final AtomicLong mTransactions = new AtomicLong();
+    private final AtomicLong mHoldMs = new AtomicLong();
+    private final AtomicLong mMaxHoldMs = new AtomicLong();
+    private final AtomicLong mWaitMs = new AtomicLong();
+    private final AtomicLong mMaxWaitMs = new AtomicLong();
+    private final AtomicLong mContended = new AtomicLong();
+    private final AtomicLong mYields = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mBatchOperations = new AtomicLong();
+    private final AtomicLong mMaxBatchOperations = new AtomicLong();
+
+    /**
+     * Records a writer that waited the given time to begin its transaction.
+     */
+    void onBegin(long waitMs) {
+        mWaitMs.addAndGet(waitMs);
+        max(mMaxWaitMs, waitMs);
+        if (waitMs > CONTENDED_WAIT_MS) {
+            mContended.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a stretch of a transaction between its start or a yield and
+     * its end or the next yield. The database was held the whole time.
+     */
+    void onHold(long holdMs) {
+        mHoldMs.addAndGet(holdMs);
+        max(mMaxHoldMs, holdMs);
+    }
+
+    void onYield() {
+        mYields.incrementAndGet();
+    }
+
+    void onEnd() {
+        mTransactions.incrementAndGet();
+    }
+
+    void onBatch(int operations) {
+        mBatches.incrementAndGet();
+        mBatchOperations.addAndGet(operations);
+        max(mMaxBatchOperations, operations);
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Prints the counters on two lines, for dumps of the provider.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("  transactions: " + mTransactions.get() + ", held " + mHoldMs.get()
+                + " ms (max " + mMaxHoldMs.get() + "), waited " + mWaitMs.get()
+                + " ms (max " + mMaxWaitMs.get() + "), " + mContended.get() + " contended");
+        pw.println("    " + mYields.get() + " yields, " + mBatches.get() + " batches of "
+                + mBatchOperations.get() + " operations (max "
+                + mMaxBatchOperations.get() + ")");
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_TRANSACTIONS, mTransactions.get());
+        bundle.putLong(KEY_HOLD_MS, mHoldMs.get());
+        bundle.putLong(KEY_MAX_HOLD_MS, mMaxHoldMs.get());
+        bundle.putLong(KEY_WAIT_MS, mWaitMs.get());
+        bundle.putLong(KEY_MAX_WAIT_MS, mMaxWaitMs.get());
+        bundle.putLong(KEY_CONTENDED, mContended.get());
+        bundle.putLong(KEY_YIELDS, mYields.get());
+        bundle.putLong(KEY_BATCHES, mBatches.get());
+        bundle.putLong(KEY_BATCH_OPERATIONS, mBatchOperations.get());
+        bundle.putLong(KEY_MAX_BATCH_OPERATIONS, mMaxBatchOperations.get());
+        return bundle;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.platformsupport.BrowserContract.Searches;
+import com.android.browser.platformsupport.BrowserContract.Settings;
+
+/**
+ * Compiled statements for the writes that insert a row or update the one
+ * already there. The SQLite versions we run on predate ON CONFLICT DO UPDATE,
+ * so searches and settings are replaced in place keeping their ids, and
+ * images are updated and inserted only if there was nothing to update.
+ *
+ * The statements are only bound and run by the thread holding the write
+ * transaction, which keeps them from being shared between threads.
+ */
+class UpsertStatements {
+
+    private static final String SQL_SEARCH = "INSERT OR REPLACE INTO "
+            + BrowserProvider2.TABLE_SEARCHES + " ("
+            + Searches._ID + ", " + Searches.SEARCH + ", " + Searches.DATE + ") VALUES ("
+            + "(SELECT " + Searches._ID + " FROM " + BrowserProvider2.TABLE_SEARCHES
+            + " WHERE " + Searches.SEARCH + " = ?1), ?1, ?2)";
+
+    private static final String SQL_SETTING = "INSERT OR REPLACE INTO "
+            + BrowserProvider2.TABLE_SETTINGS + " ("
+            + Settings.KEY + ", " + Settings.VALUE + ") VALUES (?, ?)";
+
+    private static final String[] IMAGE_COLUMNS = BrowserProvider2.IMAGE_COLUMNS;
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mSearch;
+    private SQLiteStatement mSetting;
+    // Indexed by the bit mask of the image columns written
+    private final SQLiteStatement[] mImageUpdates =
+            new SQLiteStatement[1 << IMAGE_COLUMNS.length];
+    private final SQLiteStatement[] mImageInserts =
+            new SQLiteStatement[1 << IMAGE_COLUMNS.length];
+    // Statements compiled so far, each is compiled once and then reused
+    private int mCompiled;
+
+    UpsertStatements(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    boolean isFor(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    /**
+     * Records the search, returning its id, or returns -1 without writing
+     * if the values hold anything but the search and its date.
+     */
+    long upsertSearch(ContentValues values) {
+        if (values.size() != 2 || !values.containsKey(Searches.DATE)) {
+            return -1;
+        }
+        if (mSearch == null) {
+            mSearch = compile(SQL_SEARCH);
+        }
+        mSearch.bindString(1, values.getAsString(Searches.SEARCH));
+        DatabaseUtils.bindObjectToProgram(mSearch, 2, values.get(Searches.DATE));
+        return mSearch.executeInsert();
+    }
+
+    /**
+     * Stores the setting, or returns false without writing if the values
+     * hold anything but the key and its value.
+     */
+    boolean upsertSetting(ContentValues values) {
+        if (values.size() != 2 || !values.containsKey(Settings.VALUE)) {
+            return false;
+        }
+        if (mSetting == null) {
+            mSetting = compile(SQL_SETTING);
+        }
+        mSetting.bindString(1, values.getAsString(Settings.KEY));
+        DatabaseUtils.bindObjectToProgram(mSetting, 2, values.get(Settings.VALUE));
+        mSetting.executeInsert();
+        return true;
+    }
+
+    /**
+     * Writes the images of the url, or returns false without writing if
+     * the values hold anything but the url and image columns.
+     */
+    boolean upsertImages(ContentValues values) {
+        String url = values.getAsString(Images.URL);
+        int mask = 0;
+        int count = 0;
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            if (values.containsKey(IMAGE_COLUMNS[i])) {
+                mask |= 1 << i;
+                count++;
+            }
+        }
+        if (url == null || values.size() != count + 1) {
+            return false;
+        }
+        if (mask != 0) {
+            SQLiteStatement update = getImageUpdate(mask);
+            int index = bindImages(update, 1, mask, values);
+            update.bindString(index, url);
+            if (update.executeUpdateDelete() > 0) {
+                return true;
+            }
+        }
+        SQLiteStatement insert = getImageInsert(mask);
+        insert.bindString(1, url);
+        bindImages(insert, 2, mask, values);
+        insert.executeInsert();
+        return true;
+    }
+
+    private static int bindImages(SQLiteStatement statement, int index, int mask,
+            ContentValues values) {
+        for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                DatabaseUtils.bindObjectToProgram(statement, index++,
+                        values.get(IMAGE_COLUMNS[i]));
+            }
+        }
+        return index;
+    }
+
+    private SQLiteStatement getImageUpdate(int mask) {
+        if (mImageUpdates[mask] == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ");
+            sql.append(BrowserProvider2.TABLE_IMAGES).append(" SET ");
+            String separator = "";
+            for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    sql.append(separator).append(IMAGE_COLUMNS[i]).append(" = ?");
+                    separator = ", ";
+                }
+            }
+            sql.append(" WHERE ").append(Images.URL).append(" = ?");
+            mImageUpdates[mask] = compile(sql.toString());
+        }
+        return mImageUpdates[mask];
+    }
+
+    private SQLiteStatement getImageInsert(int mask) {
+        if (mImageInserts[mask] == null) {
+            StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO ");
+            sql.append(BrowserProvider2.TABLE_IMAGES).append(" (").append(Images.URL);
+            StringBuilder params = new StringBuilder("?");
+            for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    sql.append(", ").append(IMAGE_COLUMNS[i]);
+                    params.append(", ?");
+                }
+            }
+            sql.append(") VALUES (").append(params).append(")");
+            mImageInserts[mask] = compile(sql.toString());
+        }
+        return mImageInserts[mask];
+    }
+
+    private SQLiteStatement compile(String sql) {
+        mCompiled++;
+        return mDb.compileStatement(sql);
+    }
+
+    int getCompiledCount() {
+        return mCompiled;
+    }
+
+    void close() {
+        closeQuietly(mSearch);
+        closeQuietly(mSetting);
+        for (int i = 0; i < mImageUpdates.length; i++) {
+            closeQuietly(mImageUpdates[i]);
+            closeQuietly(mImageInserts[i]);
+        }
+    }
+
+    private static void closeQuietly(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+}
@@ -15,32 +15,19 @@
  */
 package com.android.browser.search;
 
-import com.android.browser.R;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.params.HttpParams;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.Intent;
-import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.net.http.AndroidHttpClient;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.browser.platformsupport.Browser;
 
-import java.io.IOException;
-
 /**
  * Provides search suggestions, if any, for a given web search provider.
  */
@@ -49,44 +36,21 @@ public class OpenSearchSearchEngine implements SearchEngine {
     private static final String TAG = "OpenSearchSearchEngine";
 
     private static final String USER_AGENT = "Android/1.0";
+    // Time connecting and each read of a response may take
     private static final int HTTP_TIMEOUT_MS = 1000;
-
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.connection-manager.timeout";
-
-    // Indices of the columns in the below arrays.
-    private static final int COLUMN_INDEX_ID = 0;
-    private static final int COLUMN_INDEX_QUERY = 1;
-    private static final int COLUMN_INDEX_ICON = 2;
-    private static final int COLUMN_INDEX_TEXT_1 = 3;
-    private static final int COLUMN_INDEX_TEXT_2 = 4;
-
-    // The suggestion columns used. If you are adding a new entry to these arrays make sure to
-    // update the list of indices declared above.
-    private static final String[] COLUMNS = new String[] {
-        "_id",
-        SearchManager.SUGGEST_COLUMN_QUERY,
-        SearchManager.SUGGEST_COLUMN_ICON_1,
-        SearchManager.SUGGEST_COLUMN_TEXT_1,
-        SearchManager.SUGGEST_COLUMN_TEXT_2,
-    };
-
-    private static final String[] COLUMNS_WITHOUT_DESCRIPTION = new String[] {
-        "_id",
-        SearchManager.SUGGEST_COLUMN_QUERY,
-        SearchManager.SUGGEST_COLUMN_ICON_1,
-        SearchManager.SUGGEST_COLUMN_TEXT_1,
-    };
+    // Time a whole suggestion request gets. A cold connection on a
+    // cellular network takes several round trips of a few hundred ms each
+    // for DNS, TCP and TLS before the request goes out
+    private static final int SUGGEST_DEADLINE_MS = 3000;
 
     private final SearchEngineInfo mSearchEngineInfo;
 
-    private final AndroidHttpClient mHttpClient;
+    private final SuggestClient mSuggestClient;
 
     public OpenSearchSearchEngine(Context context, SearchEngineInfo searchEngineInfo) {
         mSearchEngineInfo = searchEngineInfo;
-        mHttpClient = AndroidHttpClient.newInstance(USER_AGENT);
-        HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, HTTP_TIMEOUT_MS);
+        mSuggestClient = new SuggestClient(USER_AGENT, HTTP_TIMEOUT_MS,
+                SUGGEST_DEADLINE_MS);
     }
 
     public String getName() {
@@ -137,54 +101,27 @@ public class OpenSearchSearchEngine implements SearchEngine {
             return null;
         }
 
-        try {
-            String content = readUrl(suggestUri);
-            if (content == null) return null;
-            /* The data format is a JSON array with items being regular strings or JSON arrays
-             * themselves. We are interested in the second and third elements, both of which
-             * should be JSON arrays. The second element/array contains the suggestions and the
-             * third element contains the descriptions. Some search engines don't support
-             * suggestion descriptions so the third element is optional.
-             */
-            JSONArray results = new JSONArray(content);
-            JSONArray suggestions = results.getJSONArray(1);
-            JSONArray descriptions = null;
-            if (results.length() > 2) {
-                descriptions = results.getJSONArray(2);
-                // Some search engines given an empty array "[]" for descriptions instead of
-                // not including it in the response.
-                if (descriptions.length() == 0) {
-                    descriptions = null;
-                }
-            }
-            return new SuggestionsCursor(suggestions, descriptions);
-        } catch (JSONException e) {
-            Log.w(TAG, "Error", e);
-        }
-        return null;
+        /* The data format is a JSON array with items being regular strings or JSON arrays
+         * themselves. We are interested in the second and third elements, both of which
+         * should be JSON arrays. The second element/array contains the suggestions and the
+         * third element contains the descriptions. Some search engines don't support
+         * suggestion descriptions so the third element is optional. SuggestionsCursor
+         * parses them as the response comes in.
+         */
+        return mSuggestClient.fetch(suggestUri, SuggestionsCursor.READER);
     }
 
     /**
-     * Executes a GET request and returns the response content.
+     * Executes a GET request and returns the response content. A newer
+     * request cancels this one if it is still in flight.
      *
      * @param url Request URI.
      * @return The response content. This is the empty string if the response
-     *         contained no content.
+     *         contained no content, null if the request failed, took longer
+     *         than SUGGEST_DEADLINE_MS or was superseded.
      */
     public String readUrl(String url) {
-        try {
-            HttpGet method = new HttpGet(url);
-            HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-                return EntityUtils.toString(response.getEntity());
-            } else {
-                Log.i(TAG, "Suggestion request failed");
-                return null;
-            }
-        } catch (IOException e) {
-            Log.w(TAG, "Error", e);
-            return null;
-        }
+        return mSuggestClient.fetch(url);
     }
 
     public boolean supportsSuggestions() {
@@ -192,7 +129,7 @@ public class OpenSearchSearchEngine implements SearchEngine {
     }
 
     public void close() {
-        mHttpClient.close();
+        mSuggestClient.cancel();
     }
 
     private boolean isNetworkConnected(Context context) {
@@ -209,83 +146,6 @@ public class OpenSearchSearchEngine implements SearchEngine {
         return connectivity.getActiveNetworkInfo();
     }
 
-    private static class SuggestionsCursor extends AbstractCursor {
-
-        private final JSONArray mSuggestions;
-
-        private final JSONArray mDescriptions;
-
-        public SuggestionsCursor(JSONArray suggestions, JSONArray descriptions) {
-            mSuggestions = suggestions;
-            mDescriptions = descriptions;
-        }
-
-        @Override
-        public int getCount() {
-            return mSuggestions.length();
-        }
-
-        @Override
-        public String[] getColumnNames() {
-            return (mDescriptions != null ? COLUMNS : COLUMNS_WITHOUT_DESCRIPTION);
-        }
-
-        @Override
-        public String getString(int column) {
-            if (mPos != -1) {
-                if ((column == COLUMN_INDEX_QUERY) || (column == COLUMN_INDEX_TEXT_1)) {
-                    try {
-                        return mSuggestions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
-                } else if (column == COLUMN_INDEX_TEXT_2) {
-                    try {
-                        return mDescriptions.getString(mPos);
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Error", e);
-                    }
-                } else if (column == COLUMN_INDEX_ICON) {
-                    return String.valueOf(R.drawable.ic_action_search_normal);
-                }
-            }
-            return null;
-        }
-
-        @Override
-        public double getDouble(int column) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public float getFloat(int column) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public int getInt(int column) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public long getLong(int column) {
-            if (column == COLUMN_INDEX_ID) {
-                return mPos;        // use row# as the _Id
-            }
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public short getShort(int column) {
-            throw new UnsupportedOperationException();
-        }
-
-        @Override
-        public boolean isNull(int column) {
-            throw new UnsupportedOperationException();
-        }
-    }
-
     @Override
     public String toString() {
         return "OpenSearchSearchEngine{" + mSearchEngineInfo + "}";
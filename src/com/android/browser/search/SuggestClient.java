@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches suggestion responses, at most one at a time. Each request gets a
+ * generation, and a newer request cancels the one in flight, closing its
+ * connection, unless it asks for the same url, in which case it takes that
+ * request over. Only the newest generation gets a result, so answers for
+ * prefixes the user typed past never reach the screen, and they no longer
+ * hold up the newer ones on a slow network.
+ *
+ * Connections come from HttpURLConnection's keep-alive pool. A response that
+ * was read to its end leaves its connection there for the next keystroke,
+ * only cancelled requests throw theirs away.
+ */
+public class SuggestClient {
+
+    private static final String TAG = "SuggestClient";
+
+    private static final String DEFAULT_CHARSET = "UTF-8";
+
+    /**
+     * Turns a response body into the result of a request. Gets the stream
+     * of a successful response and the charset it declares, and needn't
+     * close it.
+     */
+    public interface ResponseReader<T> {
+        T read(InputStream in, String charset) throws IOException;
+    }
+
+    /**
+     * Reads the whole body into a string.
+     */
+    public static final ResponseReader<String> STRING = new ResponseReader<String>() {
+        @Override
+        public String read(InputStream in, String charset) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString(charset);
+        }
+    };
+
+    /**
+     * Receives the result of {@link #fetchAsync}, on a background thread.
+     */
+    public interface Callback {
+        /**
+         * Called with the response body, or null if the request failed or
+         * ran past its deadline. Not called if a newer request came first.
+         */
+        void onSuggestResult(long generation, String content);
+    }
+
+    // Cancels requests that run past their deadline. It has a thread of
+    // its own, so work queued on the background looper can't delay a cancel
+    private static Handler sWatchdog;
+
+    private final String mUserAgent;
+    private final int mTimeoutMs;
+    private final int mDeadlineMs;
+    private final Handler mWatchdog;
+    private final AtomicLong mGeneration = new AtomicLong();
+    // Guarded by this
+    private Request mInFlight;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mCoalesced = new AtomicInteger();
+    private final AtomicInteger mSuperseded = new AtomicInteger();
+    private final AtomicInteger mTimedOut = new AtomicInteger();
+
+    /**
+     * @param deadlineMs Time each request gets, from connecting to reading
+     *        the last byte of the response.
+     */
+    public SuggestClient(String userAgent, int deadlineMs) {
+        this(userAgent, deadlineMs, deadlineMs);
+    }
+
+    /**
+     * @param timeoutMs Time connecting and each read of the response may
+     *        take.
+     * @param deadlineMs Time each request gets, from connecting to reading
+     *        the last byte of the response.
+     */
+    public SuggestClient(String userAgent, int timeoutMs, int deadlineMs) {
+        mUserAgent = userAgent;
+        mTimeoutMs = timeoutMs;
+        mDeadlineMs = deadlineMs;
+        mWatchdog = getWatchdog();
+    }
+
+    private static synchronized Handler getWatchdog() {
+        if (sWatchdog == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sWatchdog = new Handler(thread.getLooper());
+        }
+        return sWatchdog;
+    }
+
+    /**
+     * Starts fetching the url in the background and returns the request's
+     * generation. The callback is called only if no newer request was made
+     * by the time the response is in.
+     */
+    public long fetchAsync(String url, Callback callback) {
+        long generation = mGeneration.incrementAndGet();
+        Request request = begin(url, STRING, generation, callback);
+        if (request.mFirstGeneration == generation) {
+            BackgroundHandler.execute(request);
+        }
+        return generation;
+    }
+
+    /**
+     * Fetches the url on the calling thread and returns the response body.
+     * Returns null if the request failed, ran past its deadline or was
+     * superseded by a newer one while in flight.
+     */
+    public String fetch(String url) {
+        return fetch(url, STRING);
+    }
+
+    /**
+     * Like {@link #fetch(String)}, but has the reader turn the response
+     * into the result while it comes in.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T fetch(String url, ResponseReader<T> reader) {
+        long generation = mGeneration.incrementAndGet();
+        Request request = begin(url, reader, generation, null);
+        if (request.mFirstGeneration == generation) {
+            request.run();
+        } else {
+            // Took over the request in flight, wait for its response
+            request.await();
+        }
+        return isCurrent(generation) ? (T) request.mResult : null;
+    }
+
+    /**
+     * Returns whether no request was made after the given generation.
+     */
+    public boolean isCurrent(long generation) {
+        return mGeneration.get() == generation;
+    }
+
+    /**
+     * Cancels the request in flight, if any, without starting another.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        synchronized (this) {
+            if (mInFlight != null) {
+                mInFlight.cancel();
+                mInFlight = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the request in flight for the given generation, a new one
+     * unless it took over the one in flight.
+     */
+    private synchronized Request begin(String url, ResponseReader<?> reader, long generation,
+            Callback callback) {
+        mRequests.incrementAndGet();
+        Request current = mInFlight;
+        if (current != null) {
+            if (current.mUrl.equals(url) && current.mReader == reader
+                    && current.join(generation, callback)) {
+                mCoalesced.incrementAndGet();
+                return current;
+            }
+            if (current.cancel()) {
+                mSuperseded.incrementAndGet();
+            }
+        }
+        mInFlight = new Request(url, reader, generation, callback);
+        return mInFlight;
+    }
+
+    private synchronized void finish(Request request) {
+        if (mInFlight == request) {
+            mInFlight = null;
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public int getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    public int getSupersededCount() {
+        return mSuperseded.get();
+    }
+
+    public int getTimedOutCount() {
+        return mTimedOut.get();
+    }
+
+    private class Request implements Runnable {
+        final String mUrl;
+        final ResponseReader<?> mReader;
+        final long mFirstGeneration;
+        final long mDeadline;
+        // The newest generation that asked for the url and its callback,
+        // guarded by this like the fields below
+        long mGeneration;
+        Callback mCallback;
+        HttpURLConnection mConnection;
+        boolean mCancelled;
+        boolean mDone;
+        Object mResult;
+
+        private final Runnable mExpire = new Runnable() {
+            @Override
+            public void run() {
+                if (cancel()) {
+                    mTimedOut.incrementAndGet();
+                }
+            }
+        };
+
+        Request(String url, ResponseReader<?> reader, long generation, Callback callback) {
+            mUrl = url;
+            mReader = reader;
+            mFirstGeneration = generation;
+            mGeneration = generation;
+            mCallback = callback;
+            mDeadline = SystemClock.uptimeMillis() + mDeadlineMs;
+        }
+
+        synchronized boolean join(long generation, Callback callback) {
+            if (mCancelled || mDone) {
+                return false;
+            }
+            mGeneration = generation;
+            mCallback = callback;
+            return true;
+        }
+
+        /**
+         * Closes the connection, which makes the thread reading it give up.
+         * Returns false if the request was already over.
+         */
+        boolean cancel() {
+            HttpURLConnection connection;
+            synchronized (this) {
+                if (mCancelled || mDone) {
+                    return false;
+                }
+                mCancelled = true;
+                connection = mConnection;
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return true;
+        }
+
+        synchronized void await() {
+            while (!mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            mWatchdog.postAtTime(mExpire, this, mDeadline);
+            Object result = null;
+            try {
+                result = read();
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!mCancelled) {
+                        Log.w(TAG, "Error", e);
+                    }
+                }
+            } finally {
+                mWatchdog.removeCallbacks(mExpire, this);
+            }
+            Callback callback;
+            long generation;
+            synchronized (this) {
+                mResult = mCancelled ? null : result;
+                mDone = true;
+                callback = mCallback;
+                generation = mGeneration;
+                notifyAll();
+            }
+            finish(this);
+            if (callback != null && isCurrent(generation)) {
+                // Only fetchAsync() passes a callback, its requests read strings
+                callback.onSuggestResult(generation, (String) mResult);
+            }
+        }
+
+        private Object read() throws IOException {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(mUrl).openConnection();
+            synchronized (this) {
+                if (mCancelled) {
+                    return null;
+                }
+                mConnection = connection;
+            }
+            int timeout = (int) Math.max(1, Math.min(mTimeoutMs,
+                    mDeadline - SystemClock.uptimeMillis()));
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestProperty("User-Agent", mUserAgent);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.i(TAG, "Suggestion request failed");
+                // Nothing worth keeping the connection for
+                connection.disconnect();
+                return null;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                Object result = mReader.read(in, getCharset(connection.getContentType()));
+                // Readers may stop at the end of what they parse, the rest
+                // must be read before the connection can be reused
+                byte[] buffer = new byte[256];
+                while (in.read(buffer) != -1) {
+                }
+                return result;
+            } finally {
+                // Closing a stream that was read to its end returns the
+                // connection to the pool instead of closing it
+                in.close();
+            }
+        }
+    }
+
+    static String getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String charset = param.substring(8).replace("\"", "").trim();
+                    if (charset.length() > 0) {
+                        return charset;
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.android.browser.BackgroundHandler;
+
+import org.chromium.base.VisibleForTesting;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the suggestions of the last MAX_ENTRIES queries, by engine and
+ * normalized query, for TTL_MS each.
+ *
+ * A query that isn't cached but has a cached neighbour is answered from it
+ * right away and fetched again in the background. Going from "weath" back to
+ * "weat" reuses the suggestions for "weath", which all start with "weat";
+ * going from "wea" on to "weat" reuses those for "wea" that start with
+ * "weat", if there are any. Once the fetch is in, the listener is told so
+ * that it can ask again and get the exact answer.
+ */
+public class SuggestionCache {
+
+    static final int MAX_ENTRIES = 64;
+    static final long TTL_MS = 5 * 60 * 1000;
+
+    private static final String ID = "_id";
+
+    private static SuggestionCache sInstance;
+
+    /**
+     * Told on a background thread when the suggestions for a query that was
+     * answered from a neighbour are in.
+     */
+    public interface RefreshListener {
+        void onSuggestionsRefreshed(String query);
+    }
+
+    // In access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Keys being fetched in the background, guarded by mEntries
+    private final HashSet<String> mRefreshing = new HashSet<String>();
+    // Bumped by clear(), so fetches that began before it aren't cached
+    private int mEpoch;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mPrefixHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    private static class Entry {
+        final String mEngine;
+        final String mQuery;
+        final long mTime;
+        final String[] mColumns;
+        // Row after row of mColumns.length values
+        final String[] mValues;
+        final int mRows;
+
+        Entry(String engine, String query, String[] columns, String[] values, int rows) {
+            mEngine = engine;
+            mQuery = query;
+            mTime = SystemClock.uptimeMillis();
+            mColumns = columns;
+            mValues = values;
+            mRows = rows;
+        }
+
+        boolean isExpired() {
+            return SystemClock.uptimeMillis() - mTime > TTL_MS;
+        }
+
+        /**
+         * Returns a cursor over the rows whose first line starts with the
+         * given query, all rows if it is null. Null if no row does.
+         */
+        Cursor newCursor(String startingWith) {
+            int text = indexOf(mColumns, SearchManager.SUGGEST_COLUMN_TEXT_1);
+            int id = indexOf(mColumns, ID);
+            MatrixCursor cursor = new MatrixCursor(mColumns, mRows);
+            int width = mColumns.length;
+            for (int row = 0; row < mRows; row++) {
+                int offset = row * width;
+                if (startingWith != null && (text < 0 || mValues[offset + text] == null
+                        || !normalize(mValues[offset + text]).startsWith(startingWith))) {
+                    continue;
+                }
+                Object[] values = new Object[width];
+                System.arraycopy(mValues, offset, values, 0, width);
+                if (id >= 0) {
+                    values[id] = cursor.getCount();
+                }
+                cursor.addRow(values);
+            }
+            if (cursor.getCount() == 0 && startingWith != null) {
+                return null;
+            }
+            return cursor;
+        }
+    }
+
+    public static synchronized SuggestionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SuggestionCache();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public SuggestionCache() {
+    }
+
+    /**
+     * Returns the engine's suggestions for the query, from the cache if it
+     * can. If they come from a neighbouring query, the exact ones are fetched
+     * in the background and the listener, if any, is told when they are in.
+     */
+    public Cursor getSuggestions(Context context, SearchEngine engine, String query,
+            RefreshListener listener) {
+        String normalized = normalize(query);
+        if (TextUtils.isEmpty(normalized)) {
+            return engine.getSuggestions(context, query);
+        }
+        String key = key(engine.getName(), normalized);
+        Cursor neighbour = null;
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.isExpired()) {
+                mEntries.remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                mHits.incrementAndGet();
+                return entry.newCursor(null);
+            }
+            neighbour = getFromNeighbour(engine.getName(), normalized);
+        }
+        if (neighbour != null) {
+            mPrefixHits.incrementAndGet();
+            refresh(context, engine, query, listener);
+            return neighbour;
+        }
+        mMisses.incrementAndGet();
+        return fetch(context, engine, query);
+    }
+
+    // Called with mEntries locked
+    private Cursor getFromNeighbour(String engine, String normalized) {
+        // A longer query, its suggestions fit the shorter one as they are
+        Entry longer = null;
+        for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.isExpired()) {
+                i.remove();
+            } else if (entry.mEngine.equals(engine) && entry.mQuery.startsWith(normalized)
+                    && (longer == null || entry.mQuery.length() < longer.mQuery.length())) {
+                longer = entry;
+            }
+        }
+        if (longer != null) {
+            return longer.newCursor(null);
+        }
+        // The longest shorter one with a suggestion that still fits
+        for (int end = normalized.length() - 1; end > 0; end--) {
+            Entry shorter = mEntries.get(key(engine, normalized.substring(0, end)));
+            if (shorter != null) {
+                Cursor cursor = shorter.newCursor(normalized);
+                if (cursor != null) {
+                    return cursor;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void refresh(final Context context, final SearchEngine engine, final String query,
+            final RefreshListener listener) {
+        final String key = key(engine.getName(), normalize(query));
+        synchronized (mEntries) {
+            if (!mRefreshing.add(key)) {
+                return;
+            }
+        }
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor cursor = null;
+                try {
+                    cursor = fetch(context, engine, query);
+                } finally {
+                    synchronized (mEntries) {
+                        mRefreshing.remove(key);
+                    }
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                if (cursor != null && listener != null) {
+                    listener.onSuggestionsRefreshed(query);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the suggestions from the engine, caches them and returns a
+     * cursor over the cached copy.
+     */
+    private Cursor fetch(Context context, SearchEngine engine, String query) {
+        int epoch;
+        synchronized (mEntries) {
+            epoch = mEpoch;
+        }
+        Cursor cursor = engine.getSuggestions(context, query);
+        if (cursor == null) {
+            return null;
+        }
+        Entry entry;
+        try {
+            entry = copy(engine.getName(), normalize(query), cursor);
+        } finally {
+            cursor.close();
+        }
+        synchronized (mEntries) {
+            if (epoch == mEpoch) {
+                mEntries.put(key(entry.mEngine, entry.mQuery), entry);
+            }
+        }
+        return entry.newCursor(null);
+    }
+
+    private static Entry copy(String engine, String query, Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        int rows = cursor.getCount();
+        String[] values = new String[rows * columns.length];
+        int id = indexOf(columns, ID);
+        cursor.moveToPosition(-1);
+        for (int row = 0; row < rows && cursor.moveToNext(); row++) {
+            for (int column = 0; column < columns.length; column++) {
+                // Ids are renumbered when the rows are handed out
+                if (column != id) {
+                    values[row * columns.length + column] = cursor.getString(column);
+                }
+            }
+        }
+        return new Entry(engine, query, columns, values, rows);
+    }
+
+    /**
+     * Forgets all suggestions, for when the engine changes or the user goes
+     * in or out of incognito mode.
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+            mEpoch++;
+        }
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getPrefixHitCount() {
+        return mPrefixHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns the share of queries answered without waiting for the
+     * network, between 0 and 1.
+     */
+    public float getHitRate() {
+        int hits = mHits.get() + mPrefixHits.get();
+        int total = hits + mMisses.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestionCache{hits=" + mHits.get() + ", prefixHits=" + mPrefixHits.get()
+                + ", misses=" + mMisses.get() + ", hitRate=" + getHitRate() + "}";
+    }
+
+    static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static String key(String engine, String normalized) {
+        return engine + '\n' + normalized;
+    }
+
+    private static int indexOf(String[] columns, String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (name.equals(columns[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.search;
+
+import android.app.SearchManager;
+import android.database.AbstractCursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.android.browser.R;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Search suggestions in the OpenSearch suggestions format, a JSON array of
+ * the query, an array of suggestions and, optionally, an array of their
+ * descriptions. Anything after those is ignored.
+ *
+ * {@link #parse} reads the response as it streams in, without building a
+ * DOM or buffering the body, into flat arrays the cursor reads from
+ * directly, so moving over the rows and reading them allocates nothing.
+ */
+public class SuggestionsCursor extends AbstractCursor {
+
+    // Indices of the columns in the below arrays.
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_QUERY = 1;
+    private static final int COLUMN_INDEX_ICON = 2;
+    private static final int COLUMN_INDEX_TEXT_1 = 3;
+    private static final int COLUMN_INDEX_TEXT_2 = 4;
+
+    // The suggestion columns used. If you are adding a new entry to these arrays make sure to
+    // update the list of indices declared above.
+    private static final String[] COLUMNS = new String[] {
+        "_id",
+        SearchManager.SUGGEST_COLUMN_QUERY,
+        SearchManager.SUGGEST_COLUMN_ICON_1,
+        SearchManager.SUGGEST_COLUMN_TEXT_1,
+        SearchManager.SUGGEST_COLUMN_TEXT_2,
+    };
+
+    private static final String[] COLUMNS_WITHOUT_DESCRIPTION = new String[] {
+        "_id",
+        SearchManager.SUGGEST_COLUMN_QUERY,
+        SearchManager.SUGGEST_COLUMN_ICON_1,
+        SearchManager.SUGGEST_COLUMN_TEXT_1,
+    };
+
+    private static final String ICON = String.valueOf(R.drawable.ic_action_search_normal);
+
+    /**
+     * Parses a suggestion response for {@link SuggestClient#fetch(String,
+     * SuggestClient.ResponseReader)}.
+     */
+    public static final SuggestClient.ResponseReader<SuggestionsCursor> READER =
+            new SuggestClient.ResponseReader<SuggestionsCursor>() {
+        @Override
+        public SuggestionsCursor read(InputStream in, String charset) throws IOException {
+            return parse(new InputStreamReader(in, charset));
+        }
+    };
+
+    private final String[] mSuggestions;
+    // Null if the response had no descriptions, else as long as mSuggestions
+    private final String[] mDescriptions;
+    private final int mCount;
+
+    SuggestionsCursor(String[] suggestions, String[] descriptions, int count) {
+        mSuggestions = suggestions;
+        mDescriptions = descriptions;
+        mCount = count;
+    }
+
+    /**
+     * Reads a response up to the end of its top level array. Doesn't close
+     * the reader.
+     *
+     * @throws IOException if the reader fails or the response isn't in the
+     *         OpenSearch suggestions format.
+     */
+    public static SuggestionsCursor parse(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        // Engines aren't all strict about their JSON, neither was JSONArray
+        reader.setLenient(true);
+        try {
+            reader.beginArray();
+            // The query
+            reader.skipValue();
+            String[] suggestions = new String[16];
+            int count = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (count == suggestions.length) {
+                    suggestions = Arrays.copyOf(suggestions, count * 2);
+                }
+                suggestions[count++] = nextString(reader);
+            }
+            reader.endArray();
+            String[] descriptions = null;
+            if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                descriptions = new String[count];
+                int described = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (described < count) {
+                        descriptions[described] = nextString(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    described++;
+                }
+                reader.endArray();
+                // Some search engines give an empty array "[]" for descriptions instead of
+                // not including it in the response.
+                if (described == 0) {
+                    descriptions = null;
+                }
+            }
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+            return new SuggestionsCursor(suggestions, descriptions, count);
+        } catch (IllegalStateException e) {
+            // JsonReader's way of saying the response has the wrong shape
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // Reads strings and numbers as text, anything else as null
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return (mDescriptions != null ? COLUMNS : COLUMNS_WITHOUT_DESCRIPTION);
+    }
+
+    @Override
+    public String getString(int column) {
+        if (mPos < 0 || mPos >= mCount) {
+            return null;
+        }
+        switch (column) {
+            case COLUMN_INDEX_QUERY:
+            case COLUMN_INDEX_TEXT_1:
+                return mSuggestions[mPos];
+            case COLUMN_INDEX_TEXT_2:
+                return mDescriptions != null ? mDescriptions[mPos] : null;
+            case COLUMN_INDEX_ICON:
+                return ICON;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public float getFloat(int column) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getInt(int column) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column == COLUMN_INDEX_ID) {
+            return mPos;        // use row# as the _Id
+        }
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(int column) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return column != COLUMN_INDEX_ID && getString(column) == null;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.util;
+
+/**
+ * A set of longs backed by a single open addressing table, so it costs 8 to
+ * 16 bytes per entry and no allocation per lookup. Used to hold 64 bit url
+ * fingerprints, see {@link #fingerprint}.
+ *
+ * Not thread safe.
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // 0 marks an empty slot, whether 0 itself is in the set is kept apart
+    private long[] mTable;
+    private int mShift;
+    private int mSize;
+    private boolean mHasZero;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        mTable = new long[capacity];
+        mShift = Long.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    /**
+     * Returns a 64 bit FNV-1a hash of the string.
+     */
+    public static long fingerprint(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int slot(long value) {
+        return (int) ((value * 0x9e3779b97f4a7c15L) >>> mShift);
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return mHasZero;
+        }
+        long[] table = mTable;
+        int mask = table.length - 1;
+        for (int i = slot(value); ; i = (i + 1) & mask) {
+            long entry = table[i];
+            if (entry == value) {
+                return true;
+            }
+            if (entry == 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds the value, returning false if it was already in the set.
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (mHasZero) {
+                return false;
+            }
+            mHasZero = true;
+            mSize++;
+            return true;
+        }
+        if (!insert(mTable, value)) {
+            return false;
+        }
+        mSize++;
+        // Keep the load under one half so probe runs stay short
+        if (mSize * 2 > mTable.length) {
+            long[] old = mTable;
+            allocate(old.length * 2);
+            for (long entry : old) {
+                if (entry != 0) {
+                    insert(mTable, entry);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean insert(long[] table, long value) {
+        int mask = table.length - 1;
+        for (int i = slot(value); ; i = (i + 1) & mask) {
+            long entry = table[i];
+            if (entry == value) {
+                return false;
+            }
+            if (entry == 0) {
+                table[i] = value;
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        mSize = 0;
+        mHasZero = false;
+    }
+}
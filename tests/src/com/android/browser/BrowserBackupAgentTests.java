@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.app.backup.BackupDataInput;
+import android.app.backup.BackupDataOutput;
+import android.database.Cursor;
+import android.os.ParcelFileDescriptor;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.BrowserBackupAgent.Bookmark;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Checks the chunk format, the state file and that the first chunked
+ * backup replaces the flattened file of older backups.
+ */
+@MediumTest
+public class BrowserBackupAgentTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BrowserBackupAgentTests";
+
+    private File mOldState;
+    private File mNewState;
+    private File mData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = getContext().getCacheDir();
+        mOldState = new File(dir, "backup_old_state");
+        mNewState = new File(dir, "backup_new_state");
+        mData = new File(dir, "backup_data");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mOldState.delete();
+        mNewState.delete();
+        mData.delete();
+        super.tearDown();
+    }
+
+    public void testChunkRoundTrip() throws IOException {
+        ArrayList<Bookmark> chunk = new ArrayList<Bookmark>();
+        chunk.add(newBookmark("http://www.google.com/", "Google", 1000, 2000));
+        chunk.add(newBookmark("http://www.android.com/", null, 3000, 4000));
+        byte[] bytes = BrowserBackupAgent.flattenChunk(chunk);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        assertEquals(crc.getValue(), BrowserBackupAgent.readChunkCrc(bytes));
+
+        ArrayList<Bookmark> read = BrowserBackupAgent.unflattenChunk(bytes);
+        assertEquals(2, read.size());
+        assertEquals("http://www.google.com/", read.get(0).url);
+        assertEquals("Google", read.get(0).title);
+        assertEquals(1000, read.get(0).date);
+        assertEquals(2000, read.get(0).created);
+        assertEquals("http://www.android.com/", read.get(1).url);
+        // A missing title comes back empty
+        assertEquals("", read.get(1).title);
+        assertEquals(3000, read.get(1).date);
+        assertEquals(4000, read.get(1).created);
+
+        assertEquals(0, BrowserBackupAgent.unflattenChunk(
+                BrowserBackupAgent.flattenChunk(new ArrayList<Bookmark>())).size());
+    }
+
+    public void testBadChunks() throws IOException {
+        ArrayList<Bookmark> chunk = new ArrayList<Bookmark>();
+        chunk.add(newBookmark("http://www.google.com/", "Google", 1000, 2000));
+        byte[] bytes = BrowserBackupAgent.flattenChunk(chunk);
+        bytes[4] ^= 1;
+        try {
+            BrowserBackupAgent.unflattenChunk(bytes);
+            fail("CRC mismatch not caught");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            BrowserBackupAgent.unflattenChunk(new byte[4]);
+            fail("Short chunk not caught");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testBackupState() throws IOException {
+        HashMap<Integer, Long> chunks = new HashMap<Integer, Long>();
+        chunks.put(0, 0x123456789L);
+        chunks.put(7, -1L);
+        ParcelFileDescriptor out = open(mNewState, false);
+        BrowserBackupAgent.writeBackupState(chunks, out);
+        out.close();
+        assertEquals(chunks, readState(mNewState));
+
+        // No state at all
+        assertNull(BrowserBackupAgent.readBackupState(null));
+        new FileOutputStream(mOldState).close();
+        assertNull(readState(mOldState));
+        // The state of backups from before the chunks
+        writeLegacyState(mOldState);
+        assertNull(readState(mOldState));
+    }
+
+    public void testLegacyMigration() throws IOException {
+        insertBookmark("http://www.google.com/", "Google");
+        insertBookmark("http://www.android.com/", "Android");
+        insertBookmark("http://www.example.com/", "Example");
+        BrowserBackupAgent agent = new BrowserBackupAgent();
+        agent.attach(getMockContext());
+
+        // The first backup deletes the flattened file and writes every chunk
+        writeLegacyState(mOldState);
+        backup(agent);
+        HashMap<String, byte[]> entities = readEntities();
+        assertTrue(entities.containsKey(BrowserBackupAgent.BOOKMARK_KEY));
+        assertNull(entities.remove(BrowserBackupAgent.BOOKMARK_KEY));
+        assertFalse(entities.isEmpty());
+        int count = 0;
+        for (String key : entities.keySet()) {
+            assertTrue(key, key.startsWith(BrowserBackupAgent.CHUNK_KEY_PREFIX));
+            count += BrowserBackupAgent.unflattenChunk(entities.get(key)).size();
+        }
+        assertEquals(countBookmarks(), count);
+        HashMap<Integer, Long> state = readState(mNewState);
+        assertEquals(entities.size(), state.size());
+
+        // From the chunked state nothing changed, nothing is written
+        assertTrue(mNewState.renameTo(mOldState));
+        backup(agent);
+        assertTrue(readEntities().isEmpty());
+        assertEquals(state, readState(mNewState));
+    }
+
+    // The defaults of the provider are backed up too
+    private int countBookmarks() {
+        Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
+                new String[] { Bookmarks._ID }, Bookmarks.IS_FOLDER + " = 0 AND "
+                        + Bookmarks.URL + " IS NOT NULL", null, null);
+        try {
+            assertTrue(c.getCount() >= 3);
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Bookmark newBookmark(String url, String title, long date, long created) {
+        Bookmark mark = new Bookmark();
+        mark.url = url;
+        mark.title = title;
+        mark.date = date;
+        mark.created = created;
+        return mark;
+    }
+
+    // The state file of the flattened backups: file size, CRC and version
+    private static void writeLegacyState(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeLong(1234);
+            out.writeLong(5678);
+            out.writeInt(BrowserBackupAgent.BACKUP_AGENT_VERSION);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ParcelFileDescriptor open(File file, boolean read) throws IOException {
+        return ParcelFileDescriptor.open(file, read ? ParcelFileDescriptor.MODE_READ_ONLY
+                : ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE);
+    }
+
+    private static HashMap<Integer, Long> readState(File file) throws IOException {
+        ParcelFileDescriptor in = open(file, true);
+        try {
+            return BrowserBackupAgent.readBackupState(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void backup(BrowserBackupAgent agent) throws IOException {
+        ParcelFileDescriptor oldState = open(mOldState, true);
+        ParcelFileDescriptor data = open(mData, false);
+        ParcelFileDescriptor newState = open(mNewState, false);
+        try {
+            agent.onBackup(oldState, new BackupDataOutput(data.getFileDescriptor()), newState);
+        } finally {
+            oldState.close();
+            data.close();
+            newState.close();
+        }
+    }
+
+    // Returns the written entities by key, deleted ones map to null
+    private HashMap<String, byte[]> readEntities() throws IOException {
+        HashMap<String, byte[]> entities = new HashMap<String, byte[]>();
+        ParcelFileDescriptor fd = open(mData, true);
+        try {
+            BackupDataInput in = new BackupDataInput(fd.getFileDescriptor());
+            while (in.readNextHeader()) {
+                int size = in.getDataSize();
+                byte[] bytes = null;
+                if (size >= 0) {
+                    bytes = new byte[size];
+                    assertEquals(size, in.readEntityData(bytes, 0, size));
+                }
+                entities.put(in.getKey(), bytes);
+            }
+        } finally {
+            fd.close();
+        }
+        return entities;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how long remote queries wait for the typing to stop, and that
+ * results of older keystrokes are dropped.
+ */
+@SmallTest
+public class SuggestionSchedulerTests extends TestCase {
+
+    private static final String TAG = "SuggestionSchedulerTests";
+
+    private static final long START = 10000;
+
+    private SuggestionScheduler<String> mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new SuggestionScheduler<String>(
+                new SuggestionScheduler.RemoteQuery<String>() {
+            @Override
+            public String query(CharSequence constraint) {
+                return constraint.toString();
+            }
+
+            @Override
+            public void publish(String results) {
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.cancel();
+        super.tearDown();
+    }
+
+    public void testFirstKeystroke() {
+        assertEquals(SuggestionScheduler.MIN_DELAY_MS, mScheduler.onKeystroke(START));
+    }
+
+    public void testSteadyRhythm() {
+        mScheduler.onKeystroke(START);
+        // A quarter more than the typical gap between keystrokes
+        assertEquals(125, mScheduler.onKeystroke(START + 100));
+        assertEquals(125, mScheduler.onKeystroke(START + 200));
+        // One slower gap only moves the average by a quarter of the change
+        assertEquals(156, mScheduler.onKeystroke(START + 400));
+    }
+
+    public void testClamped() {
+        long now = START;
+        mScheduler.onKeystroke(now);
+        for (int i = 0; i < 10; i++) {
+            now += 10;
+            assertEquals(SuggestionScheduler.MIN_DELAY_MS, mScheduler.onKeystroke(now));
+        }
+        for (int i = 0; i < 20; i++) {
+            now += 900;
+            mScheduler.onKeystroke(now);
+        }
+        assertEquals(SuggestionScheduler.MAX_DELAY_MS, mScheduler.onKeystroke(now + 900));
+    }
+
+    public void testPauseResetsRhythm() {
+        mScheduler.onKeystroke(START);
+        mScheduler.onKeystroke(START + 800);
+        long now = START + 800 + SuggestionScheduler.PAUSE_MS + 1;
+        assertEquals(SuggestionScheduler.MIN_DELAY_MS, mScheduler.onKeystroke(now));
+        // The gap before the pause no longer counts
+        assertEquals(125, mScheduler.onKeystroke(now + 100));
+    }
+
+    public void testOlderLocalResultsDropped() {
+        long first = mScheduler.onConstraintChanged("g", false);
+        long second = mScheduler.onConstraintChanged("go", false);
+        assertFalse(mScheduler.isCurrent(first));
+        assertFalse(mScheduler.onLocalResults(first));
+        assertTrue(mScheduler.onLocalResults(second));
+
+        mScheduler.cancel();
+        assertFalse(mScheduler.onLocalResults(second));
+    }
+}
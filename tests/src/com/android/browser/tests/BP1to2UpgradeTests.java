@@ -19,26 +19,40 @@ package com.android.browser.tests;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.Browser;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.platformsupport.BookmarkColumns;
 import com.android.browser.platformsupport.BrowserContract;
 import com.android.browser.platformsupport.BrowserContract.Bookmarks;
 import com.android.browser.platformsupport.BrowserContract.History;
 import com.android.browser.platformsupport.BrowserContract.Images;
 import com.android.browser.provider.BrowserProvider;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @SmallTest
 public class BP1to2UpgradeTests extends BP2TestCaseHelper {
 
+    private static final String TAG = "BP1to2UpgradeTests";
+
+    // The old provider's database file
+    private static final String LEGACY_DATABASE = "browser.db";
+    private static final int LARGE = 5000;
+
     BrowserProvider mBp1;
 
     @Override
@@ -51,7 +65,7 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
     /**
      * Test that simply makes sure BP1->BP2 with no changes works as intended
      */
-    public void testStockUpgrade() {
+    public void testStockUpgrade() throws InterruptedException {
         Cursor c = mBp1.query(Browser.BOOKMARKS_URI,
                 new String[] { BookmarkColumns.URL }, null, null,
                 BookmarkColumns.URL + " DESC");
@@ -60,6 +74,7 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
             urls.add(c.getString(0));
         }
         c.close();
+        getProvider().waitForLegacyImport();
         // First, test the public API (which will hit BP2)
         c = getMockContentResolver().query(Browser.BOOKMARKS_URI,
                 new String[] { BookmarkColumns.URL }, null, null,
@@ -82,12 +97,13 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
         c.close();
     }
 
-    public void testPreserveHistory() {
+    public void testPreserveHistory() throws InterruptedException {
         ContentValues values = new ContentValues();
         values.put(BookmarkColumns.URL, "http://slashdot.org/");
         values.put(BookmarkColumns.BOOKMARK, 0);
         values.put(BookmarkColumns.DATE, 123456);
         mBp1.insert(Browser.BOOKMARKS_URI, values);
+        getProvider().waitForLegacyImport();
         // First, test internal API
         Cursor c = getMockContentResolver().query(History.CONTENT_URI,
                 new String[] { History.URL, History.DATE_LAST_VISITED },
@@ -109,7 +125,43 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
         c.close();
     }
 
-    public void testPreserveBookmarks() {
+    /**
+     * Checks that imported history ranks by its visits and their age, like
+     * history that was there when frecency was added.
+     */
+    public void testImportedFrecency() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(BookmarkColumns.URL, "http://recent.com/");
+        values.put(BookmarkColumns.BOOKMARK, 0);
+        values.put(BookmarkColumns.VISITS, 3);
+        values.put(BookmarkColumns.DATE, now);
+        mBp1.insert(Browser.BOOKMARKS_URI, values);
+        values.put(BookmarkColumns.URL, "http://old.com/");
+        values.put(BookmarkColumns.VISITS, 5);
+        values.put(BookmarkColumns.DATE, 123456);
+        mBp1.insert(Browser.BOOKMARKS_URI, values);
+        getProvider().waitForLegacyImport();
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.URL, History.FRECENCY },
+                History.URL + " IN ('http://recent.com/', 'http://old.com/')",
+                null, History.FRECENCY + " DESC");
+        try {
+            assertEquals(2, c.getCount());
+            // Three visits now, 100 each in full
+            assertTrue(c.moveToNext());
+            assertEquals("http://recent.com/", c.getString(0));
+            assertEquals(300, c.getLong(1));
+            // Five visits long ago, at a tenth
+            assertTrue(c.moveToNext());
+            assertEquals("http://old.com/", c.getString(0));
+            assertEquals(50, c.getLong(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testPreserveBookmarks() throws InterruptedException {
         // First, nuke 'er (deletes stock bookmarks)
         mBp1.delete(Browser.BOOKMARKS_URI, null, null);
         ContentValues values = new ContentValues();
@@ -117,6 +169,7 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
         values.put(BookmarkColumns.BOOKMARK, 1);
         values.put(BookmarkColumns.CREATED, 123456);
         mBp1.insert(Browser.BOOKMARKS_URI, values);
+        getProvider().waitForLegacyImport();
         // First, test internal API
         Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
                 new String[] { Bookmarks.URL, Bookmarks.DATE_CREATED },
@@ -137,12 +190,87 @@ public class BP1to2UpgradeTests extends BP2TestCaseHelper {
         c.close();
     }
 
-    public void testEmptyUpgrade() {
+    public void testEmptyUpgrade() throws InterruptedException {
         mBp1.delete(Browser.BOOKMARKS_URI, null, null);
+        getProvider().waitForLegacyImport();
         Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
                 null, null, null, null);
         assertEquals(0, c.getCount());
         c.close();
     }
 
+    /**
+     * Checks that a large old database gets imported in full, and that the
+     * first query doesn't wait for it.
+     */
+    public void testLargeUpgrade() throws InterruptedException {
+        // Creates the old tables, then fills them in one transaction
+        mBp1.delete(Browser.BOOKMARKS_URI, null, null);
+        SQLiteDatabase oldDb = getMockContext().openOrCreateDatabase(LEGACY_DATABASE, 0, null);
+        try {
+            oldDb.beginTransaction();
+            try {
+                for (int i = 0; i < LARGE; i++) {
+                    ContentValues values = new ContentValues();
+                    values.put(BookmarkColumns.URL, "http://bookmark" + i + ".com/");
+                    values.put(BookmarkColumns.TITLE, "Bookmark " + i);
+                    values.put(BookmarkColumns.BOOKMARK, 1);
+                    values.put(BookmarkColumns.CREATED, i);
+                    oldDb.insert("bookmarks", null, values);
+                    values = new ContentValues();
+                    values.put(BookmarkColumns.URL, "http://history" + i + ".com/");
+                    values.put(BookmarkColumns.BOOKMARK, 0);
+                    values.put(BookmarkColumns.VISITS, 1);
+                    values.put(BookmarkColumns.DATE, i);
+                    oldDb.insert("bookmarks", null, values);
+                }
+                oldDb.setTransactionSuccessful();
+            } finally {
+                oldDb.endTransaction();
+            }
+        } finally {
+            oldDb.close();
+        }
+
+        // Copies of the suggestions that follow visits reload for imports
+        TriggeredObserver reload = new TriggeredObserver(OmniboxSuggestions.RELOAD_URI, false);
+
+        // Hold the background looper, and the import with it, until the
+        // first query is answered
+        final CountDownLatch queried = new CountDownLatch(1);
+        new Handler(BackgroundHandler.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queried.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Let the import go
+                }
+            }
+        });
+        long start = SystemClock.uptimeMillis();
+        Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
+                new String[] { Bookmarks._ID }, null, null, null);
+        long first = SystemClock.uptimeMillis() - start;
+        queried.countDown();
+        // The query didn't wait for the import
+        assertTrue(c.getCount() < LARGE);
+        c.close();
+
+        getProvider().waitForLegacyImport();
+        long total = SystemClock.uptimeMillis() - start;
+        Log.i(TAG, LARGE + " bookmarks and history rows, first query ms: " + first
+                + " full import: " + total);
+        c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
+                new String[] { Bookmarks._ID }, null, null, null);
+        assertEquals(LARGE, c.getCount());
+        c.close();
+        c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History._ID }, null, null, null);
+        assertEquals(LARGE, c.getCount());
+        c.close();
+        assertFalse(getMockContext().getDatabasePath(LEGACY_DATABASE).exists());
+        assertTrue(reload.checkTriggered());
+    }
+
 }
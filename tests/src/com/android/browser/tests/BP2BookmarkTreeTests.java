@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.HashSet;
+
+/**
+ * Checks the subtree and path URIs against trees built through the
+ * provider and against walking the parent chain.
+ */
+@MediumTest
+public class BP2BookmarkTreeTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2BookmarkTreeTests";
+
+    private static final int DEPTH = 100;
+    private static final int BOOKMARKS_PER_FOLDER = 3;
+
+    private static final String[] ID_PROJECTION = new String[] { Bookmarks._ID };
+
+    public void testPathRootFirst() {
+        long[] chain = buildChain(10);
+        long leaf = chain[chain.length - 1];
+        Cursor c = getMockContentResolver().query(Bookmarks.buildPathUri(leaf),
+                ID_PROJECTION, null, null, null);
+        try {
+            assertEquals(chain.length + 1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(BrowserProvider2.FIXED_ID_ROOT, c.getLong(0));
+            for (long id : chain) {
+                assertTrue(c.moveToNext());
+                assertEquals(id, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSubtreeCountAndDelete() {
+        long[] chain = buildChain(5);
+        Uri outside = insertBookmark("http://outside.com/", "Outside");
+        // Each folder holds the next one and its bookmarks
+        assertEquals(chain.length * (1 + BOOKMARKS_PER_FOLDER), countSubtree(chain[0]));
+        assertEquals(1 + BOOKMARKS_PER_FOLDER, countSubtree(chain[chain.length - 1]));
+
+        int deleted = getMockContentResolver().delete(
+                Bookmarks.buildSubtreeUri(chain[0]), null, null);
+        assertEquals(chain.length * (1 + BOOKMARKS_PER_FOLDER), deleted);
+        assertEquals(0, countSubtree(chain[0]));
+        Cursor c = getMockContentResolver().query(outside, ID_PROJECTION, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testDeepTree() {
+        long[] chain = buildChain(DEPTH);
+        long leaf = chain[chain.length - 1];
+
+        // Walking up the parents one query at a time meets the same folders
+        long id = leaf;
+        for (int i = chain.length - 1; i >= 0; i--) {
+            assertEquals(chain[i], id);
+            Cursor c = getMockContentResolver().query(
+                    ContentUris.withAppendedId(Bookmarks.CONTENT_URI, id),
+                    new String[] { Bookmarks.PARENT }, null, null, null);
+            try {
+                assertTrue(c.moveToFirst());
+                id = c.getLong(0);
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals(BrowserProvider2.FIXED_ID_ROOT, id);
+
+        Cursor c = getMockContentResolver().query(Bookmarks.buildPathUri(leaf),
+                new String[] { Bookmarks._ID, Bookmarks.TITLE }, null, null, null);
+        try {
+            assertEquals(DEPTH + 1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(BrowserProvider2.FIXED_ID_ROOT, c.getLong(0));
+            for (int i = 0; i < DEPTH; i++) {
+                assertTrue(c.moveToNext());
+                assertEquals(chain[i], c.getLong(0));
+                assertEquals("Folder " + i, c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        HashSet<Long> subtree = new HashSet<Long>();
+        c = getMockContentResolver().query(Bookmarks.buildSubtreeUri(chain[0]),
+                ID_PROJECTION, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                assertTrue(subtree.add(c.getLong(0)));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(DEPTH * (1 + BOOKMARKS_PER_FOLDER), subtree.size());
+        for (long folder : chain) {
+            assertTrue(subtree.contains(folder));
+        }
+        assertFalse(subtree.contains(BrowserProvider2.FIXED_ID_ROOT));
+    }
+
+    /**
+     * Builds a chain of nested folders below the root, each holding a few
+     * bookmarks, and returns the folder ids from the top down.
+     */
+    private long[] buildChain(int depth) {
+        long[] chain = new long[depth];
+        long parent = BrowserProvider2.FIXED_ID_ROOT;
+        for (int i = 0; i < depth; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Bookmarks.TITLE, "Folder " + i);
+            values.put(Bookmarks.IS_FOLDER, 1);
+            values.put(Bookmarks.PARENT, parent);
+            parent = ContentUris.parseId(insertBookmark(values));
+            chain[i] = parent;
+            for (int j = 0; j < BOOKMARKS_PER_FOLDER; j++) {
+                values = new ContentValues();
+                values.put(Bookmarks.URL, "http://site" + i + "-" + j + ".com/");
+                values.put(Bookmarks.TITLE, "Site " + i + "-" + j);
+                values.put(Bookmarks.IS_FOLDER, 0);
+                values.put(Bookmarks.PARENT, parent);
+                insertBookmark(values);
+            }
+        }
+        return chain;
+    }
+
+    private int countSubtree(long id) {
+        Cursor c = getMockContentResolver().query(Bookmarks.buildSubtreeUri(id),
+                ID_PROJECTION, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that images are kept out of the images table, once per distinct
+ * image, and that upgraded databases shrink without changing what readers see.
+ */
+@MediumTest
+public class BP2ImageBlobStoreTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2ImageBlobStoreTests";
+
+    private static final int BOOKMARK_COUNT = 200;
+    private static final int FAVICON_COUNT = 10;
+    private static final int THUMBNAIL_SIZE = 16 * 1024;
+
+    private static final String[] BOOKMARK_PROJECTION = new String[] {
+            Bookmarks.URL,
+            Bookmarks.FAVICON,
+            Bookmarks.THUMBNAIL,
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteBlobs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteBlobs();
+        super.tearDown();
+    }
+
+    public void testDuplicateImagesStoredOnce() throws IOException {
+        byte[] favicon = randomBytes(1, 2048);
+        for (int i = 0; i < 20; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, "http://site.com/page" + i);
+            values.put(Images.FAVICON, favicon);
+            getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        }
+        assertEquals(1, getBlobDir().list().length);
+
+        HashSet<String> names = new HashSet<String>();
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.FAVICON }, null, null, null);
+        try {
+            assertEquals(20, c.getCount());
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+                assertTrue(Arrays.equals(favicon, c.getBlob(0)));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(1, names.size());
+
+        String name = names.iterator().next();
+        assertTrue(Arrays.equals(favicon, readBlob(name)));
+    }
+
+    public void testReplacedImageSwept() throws IOException, InterruptedException {
+        getProvider().setImageSweepGrace(0);
+        insertHistory("http://site.com/", "Site");
+        byte[] before = randomBytes(1, 2048);
+        byte[] after = randomBytes(2, 2048);
+        setFavicon("http://site.com/", before);
+        setFavicon("http://site.com/", after);
+        // The sweep of the old blob runs on the background looper
+        for (int i = 0; i < 100 && getBlobDir().list().length > 1; i++) {
+            drainBackground();
+        }
+        String[] names = getBlobDir().list();
+        assertEquals(1, names.length);
+        assertTrue(Arrays.equals(after, readBlob(names[0])));
+    }
+
+    public void testUpgradeMovesImagesOut() {
+        SQLiteOpenHelper helper = getProvider().getDatabaseHelper();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        // Rows as the images table held them up to database version 36
+        byte[][] favicons = new byte[FAVICON_COUNT][];
+        for (int i = 0; i < FAVICON_COUNT; i++) {
+            favicons[i] = randomBytes(i, 2048);
+        }
+        byte[][] thumbnails = new byte[BOOKMARK_COUNT][];
+        for (int i = 0; i < BOOKMARK_COUNT; i++) {
+            String url = "http://site" + (i % FAVICON_COUNT) + ".com/page" + i;
+            insertBookmark(url, "Page " + i);
+            thumbnails[i] = randomBytes(FAVICON_COUNT + i, THUMBNAIL_SIZE);
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, url);
+            values.put(Images.FAVICON, favicons[i % FAVICON_COUNT]);
+            values.put(Images.THUMBNAIL, thumbnails[i]);
+            db.insert("images", null, values);
+        }
+        db.execSQL("VACUUM");
+        long sizeBefore = getDatabaseSize(db);
+        long fillBefore = fillBookmarks(favicons, thumbnails);
+
+        helper.onUpgrade(db, 36, 37);
+        db.execSQL("VACUUM");
+        long sizeAfter = getDatabaseSize(db);
+        long fillAfter = fillBookmarks(favicons, thumbnails);
+
+        Log.i(TAG, "database bytes before: " + sizeBefore + " after: " + sizeAfter);
+        Log.i(TAG, "bookmark cursor fill ms before: " + fillBefore + " after: " + fillAfter);
+        assertTrue(sizeAfter < sizeBefore / 4);
+        assertEquals(FAVICON_COUNT + BOOKMARK_COUNT, getBlobDir().list().length);
+        assertEquals(0, DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM images WHERE typeof(favicon) = 'blob'"
+                + " OR typeof(thumbnail) = 'blob'", null));
+
+        // Upgrading again has nothing left to move
+        helper.onUpgrade(db, 36, 37);
+        assertEquals(FAVICON_COUNT + BOOKMARK_COUNT, getBlobDir().list().length);
+    }
+
+    /**
+     * Reads every image of every bookmark the way the bookmark pages do and
+     * returns how long it took.
+     */
+    private long fillBookmarks(byte[][] favicons, byte[][] thumbnails) {
+        long start = SystemClock.uptimeMillis();
+        Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
+                BOOKMARK_PROJECTION, Bookmarks.IS_FOLDER + " = 0", null, null);
+        try {
+            int count = 0;
+            while (c.moveToNext()) {
+                String url = c.getString(0);
+                int i = Integer.parseInt(url.substring(url.lastIndexOf("page") + 4));
+                assertTrue(Arrays.equals(favicons[i % FAVICON_COUNT], c.getBlob(1)));
+                assertTrue(Arrays.equals(thumbnails[i], c.getBlob(2)));
+                count++;
+            }
+            assertEquals(BOOKMARK_COUNT, count);
+        } finally {
+            c.close();
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    private void setFavicon(String url, byte[] favicon) {
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, favicon);
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+    }
+
+    /**
+     * Waits for what is already posted to the background looper to run.
+     */
+    private void drainBackground() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(BackgroundHandler.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private long getDatabaseSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private byte[] readBlob(String name) throws IOException {
+        InputStream in = getMockContentResolver().openInputStream(
+                Uri.withAppendedPath(Images.BLOB_URI, name));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private File getBlobDir() {
+        return new File(getMockContext().getFilesDir(), "image_blobs");
+    }
+
+    private void deleteBlobs() {
+        File[] files = getBlobDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
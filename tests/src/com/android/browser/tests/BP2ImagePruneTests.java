@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the trigger maintained image reference counts agree with the
+ * bookmarks and history tables, and that the sweeper reclaims images without
+ * its cost growing with the size of history.
+ */
+@MediumTest
+public class BP2ImagePruneTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2ImagePruneTests";
+
+    // Counts the references the way IMAGE_PRUNE used to find unreferenced rows
+    private static final String SQL_MISCOUNTED_REFS =
+            "SELECT COUNT(*) FROM images WHERE refs != "
+            + "(SELECT COUNT(*) FROM bookmarks WHERE url = url_key AND deleted = 0) + "
+            + "(SELECT COUNT(*) FROM history WHERE url = url_key)";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Sweep every unreferenced image, however new
+        getProvider().setImageSweepGrace(0);
+    }
+
+    public void testUnreferencedImagesPruned() throws InterruptedException {
+        Uri bookmark = insertBookmark("http://both.com/", "Both");
+        insertHistory("http://both.com/", "Both");
+        Uri history = insertHistory("http://history.com/", "History");
+        setFavicon("http://both.com/");
+        setFavicon("http://history.com/");
+        setFavicon("http://nowhere.com/");
+        assertRefsCounted();
+        waitForSweep();
+        assertHasImage(true, "http://both.com/");
+        assertHasImage(true, "http://history.com/");
+        assertHasImage(false, "http://nowhere.com/");
+
+        getMockContentResolver().delete(history, null, null);
+        assertRefsCounted();
+        waitForSweep();
+        assertHasImage(false, "http://history.com/");
+
+        // Still referenced by its history entry
+        getMockContentResolver().delete(bookmark, null, null);
+        assertRefsCounted();
+        waitForSweep();
+        assertHasImage(true, "http://both.com/");
+
+        getMockContentResolver().delete(History.CONTENT_URI, null, null);
+        assertRefsCounted();
+        waitForSweep();
+        assertHasImage(false, "http://both.com/");
+    }
+
+    /**
+     * Favicons can be written before the history row of their visit, the
+     * sweep in between must leave them alone.
+     */
+    public void testRecentImagesKept() throws InterruptedException {
+        getProvider().setImageSweepGrace(60 * 1000);
+        setFavicon("http://early.com/");
+        drainBackground();
+        assertHasImage(true, "http://early.com/");
+
+        insertHistory("http://early.com/", "Early");
+        assertEquals(1, getRefs("http://early.com/"));
+        drainBackground();
+        assertHasImage(true, "http://early.com/");
+
+        getProvider().setImageSweepGrace(0);
+        setFavicon("http://late.com/");
+        waitForSweep();
+        assertHasImage(true, "http://early.com/");
+        assertHasImage(false, "http://late.com/");
+    }
+
+    public void testMovedUrlsKeepCounts() {
+        Uri bookmark = insertBookmark("http://before.com/", "Before");
+        Uri history = insertHistory("http://before.com/", "Before");
+        setFavicon("http://before.com/");
+        setFavicon("http://after.com/");
+        updateBookmark(bookmark, "http://after.com/", "After");
+        assertRefsCounted();
+        updateHistory(history, "http://after.com/", "After");
+        assertRefsCounted();
+        assertEquals(2, getRefs("http://after.com/"));
+        assertEquals(0, getRefs("http://before.com/"));
+    }
+
+    public void testPruneCostIndependentOfHistorySize() throws InterruptedException {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN DELETE FROM images WHERE rowid IN "
+                + "(SELECT rowid FROM images WHERE refs <= 0 LIMIT 100)", null);
+        try {
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                String step = c.getString(detail);
+                assertFalse(step, step.contains("history") || step.contains("bookmarks"));
+            }
+        } finally {
+            c.close();
+        }
+
+        long images = DatabaseUtils.queryNumEntries(db, "images");
+        long small = timeHistoryDelete(db, 1000);
+        long large = timeHistoryDelete(db, 20000);
+        // Only logged, the query plan above is what keeps the cost flat
+        Log.i(TAG, "prune ms with 1000 history rows: " + small + " with 21000: " + large);
+        assertRefsCounted();
+        assertEquals(images + 21000, DatabaseUtils.queryNumEntries(db, "images"));
+    }
+
+    /**
+     * Grows history by the given number of rows, then times deleting one
+     * history entry and sweeping its image, the only orphan.
+     */
+    private long timeHistoryDelete(SQLiteDatabase db, int rows) throws InterruptedException {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows; i++) {
+                String url = "http://site" + rows + "-" + i + ".com/";
+                db.execSQL("INSERT INTO history (url, title, date, visits) VALUES (?, ?, ?, 1)",
+                        new Object[] { url, "Site " + i, i });
+                db.execSQL("INSERT INTO images (url_key, favicon) VALUES (?, ?)",
+                        new Object[] { url, "0000000000000000000000000000000000000000" });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        String url = "http://pruned" + rows + ".com/";
+        insertHistory(url, "Pruned");
+        setFavicon(url);
+        long images = DatabaseUtils.queryNumEntries(db, "images");
+        long start = SystemClock.uptimeMillis();
+        getMockContentResolver().delete(History.CONTENT_URI, History.URL + "=?",
+                new String[] { url });
+        waitForSweep();
+        long elapsed = SystemClock.uptimeMillis() - start;
+        assertHasImage(false, url);
+        assertEquals(images - 1, DatabaseUtils.queryNumEntries(db, "images"));
+        return elapsed;
+    }
+
+    private void setFavicon(String url) {
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, url.getBytes());
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+    }
+
+    private void assertHasImage(boolean expected, String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.URL }, Images.URL + "=?", new String[] { url }, null);
+        try {
+            assertEquals(url, expected, c.moveToFirst());
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertRefsCounted() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        assertEquals(0, DatabaseUtils.longForQuery(db, SQL_MISCOUNTED_REFS, null));
+    }
+
+    private long getRefs(String url) {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT refs FROM images WHERE url_key = ?",
+                new String[] { url });
+    }
+
+    /**
+     * Waits until the sweeper, which runs on the background looper, has no
+     * unreferenced images left to delete.
+     */
+    private void waitForSweep() throws InterruptedException {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        for (int i = 0; i < 100; i++) {
+            drainBackground();
+            if (DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM images WHERE refs <= 0", null) == 0) {
+                return;
+            }
+        }
+        fail("Unreferenced images left");
+    }
+
+    /**
+     * Waits for what is already posted to the background looper, like a
+     * sweep, to run.
+     */
+    private void drainBackground() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(BackgroundHandler.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
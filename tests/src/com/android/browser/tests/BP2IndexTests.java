@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+/**
+ * Records the query plans and latencies of the hot history and bookmark
+ * lookups before and after the index upgrade step.
+ */
+@LargeTest
+public class BP2IndexTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2IndexTests";
+
+    private static final int HISTORY_ROWS = 20000;
+    private static final int BOOKMARK_ROWS = 2000;
+    private static final int ITERATIONS = 50;
+
+    private static final String[] INDICES = new String[] {
+            "historyUrlIndex",
+            "historyDateIndex",
+            "historyVisitsIndex",
+            "bookmarksUrlIndex",
+            "bookmarksParentIndex",
+    };
+
+    private static final String HISTORY_BY_URL =
+            "SELECT _id, visits FROM history WHERE url = ?";
+    private static final String BOOKMARK_BY_URL =
+            "SELECT url FROM bookmarks WHERE deleted = 0 AND url == ?";
+    private static final String FOLDER_LISTING =
+            "SELECT _id FROM bookmarks WHERE parent = ? AND deleted = 0 "
+            + "ORDER BY position ASC";
+
+    private SQLiteDatabase mDb;
+    private SQLiteOpenHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHelper = getProvider().getDatabaseHelper();
+        mDb = mHelper.getWritableDatabase();
+        populate();
+    }
+
+    private void populate() {
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < HISTORY_ROWS; i++) {
+                mDb.execSQL("INSERT INTO history (url, title, date, visits) VALUES (?, ?, ?, ?)",
+                        new Object[] { "http://site" + i + ".com/", "Site " + i, i, i % 50 });
+            }
+            for (int i = 0; i < BOOKMARK_ROWS; i++) {
+                mDb.execSQL("INSERT INTO bookmarks (url, title, parent, position) "
+                        + "VALUES (?, ?, ?, ?)",
+                        new Object[] { "http://site" + i + ".com/", "Site " + i, 1, i });
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    public void testUpgradeAddsIndices() {
+        for (String index : INDICES) {
+            mDb.execSQL("DROP INDEX IF EXISTS " + index);
+        }
+        String[] historyArgs = new String[] { "http://site" + (HISTORY_ROWS / 2) + ".com/" };
+        String[] folderArgs = new String[] { "1" };
+        String before = explain(HISTORY_BY_URL, historyArgs);
+        long historyBefore = time(HISTORY_BY_URL, historyArgs);
+        long bookmarkBefore = time(BOOKMARK_BY_URL, historyArgs);
+        long folderBefore = time(FOLDER_LISTING, folderArgs);
+        assertFalse(before, before.contains("historyUrlIndex"));
+
+        // Only the step to version 33
+        mHelper.onUpgrade(mDb, 32, 33);
+
+        String after = explain(HISTORY_BY_URL, historyArgs);
+        long historyAfter = time(HISTORY_BY_URL, historyArgs);
+        long bookmarkAfter = time(BOOKMARK_BY_URL, historyArgs);
+        long folderAfter = time(FOLDER_LISTING, folderArgs);
+        assertTrue(after, after.contains("historyUrlIndex"));
+        String bookmarkPlan = explain(BOOKMARK_BY_URL, historyArgs);
+        assertTrue(bookmarkPlan, bookmarkPlan.contains("bookmarksUrlIndex"));
+        String folderPlan = explain(FOLDER_LISTING, folderArgs);
+        assertTrue(folderPlan, folderPlan.contains("bookmarksParentIndex"));
+
+        Log.i(TAG, "history url plan before: " + before);
+        Log.i(TAG, "history url plan after: " + after);
+        Log.i(TAG, "history url lookup us: " + historyBefore + " -> " + historyAfter);
+        Log.i(TAG, "bookmark url lookup us: " + bookmarkBefore + " -> " + bookmarkAfter);
+        Log.i(TAG, "folder listing us: " + folderBefore + " -> " + folderAfter);
+    }
+
+    public void testUpgradeRunsOnlyThatStep() {
+        // Later steps rebuild the omnibox suggestions from scratch, which
+        // would drop this row
+        mDb.execSQL("INSERT INTO omnibox_suggestions (url, title) VALUES (?, ?)",
+                new Object[] { "http://marker.example/", "Marker" });
+        mHelper.onUpgrade(mDb, 32, 33);
+        Cursor c = mDb.rawQuery("SELECT url FROM omnibox_suggestions WHERE url = ?",
+                new String[] { "http://marker.example/" });
+        try {
+            assertTrue(c.moveToFirst());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testUpgradeIsIdempotent() {
+        mHelper.onUpgrade(mDb, 32, 33);
+        mHelper.onUpgrade(mDb, 32, 33);
+        for (String index : INDICES) {
+            Cursor c = mDb.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' "
+                    + "AND name = ?", new String[] { index });
+            try {
+                assertTrue(index, c.moveToFirst());
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private String explain(String sql, String[] args) {
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Returns the average latency in microseconds of running the query.
+     */
+    private long time(String sql, String[] args) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor c = mDb.rawQuery(sql, args);
+            c.getCount();
+            c.close();
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS / 1000;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.DatabaseMaintenance;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+/**
+ * Checks that maintaining the database analyzes it and gives back the
+ * pages deleted rows left free, at once or in incremental slices.
+ */
+@MediumTest
+public class BP2MaintenanceTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2MaintenanceTests";
+
+    private static final int ROWS = 2000;
+
+    public void testMaintain() {
+        insertAndDeleteHistory(ROWS);
+
+        Bundle result = getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                DatabaseMaintenance.METHOD_MAINTAIN, null, null);
+        assertNotNull(result);
+        long before = result.getLong(DatabaseMaintenance.KEY_SIZE_BEFORE);
+        long after = result.getLong(DatabaseMaintenance.KEY_SIZE_AFTER);
+        Log.i(TAG, "size " + before + " -> " + after + ", "
+                + result.getInt(DatabaseMaintenance.KEY_PAGES_VACUUMED) + " pages vacuumed in "
+                + result.getLong(DatabaseMaintenance.KEY_ELAPSED_MS) + " ms");
+        assertTrue(before > 0);
+
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        assertTrue(DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE name = 'sqlite_stat1'", null) > 0);
+        assertEquals(0, pragma(db, "PRAGMA freelist_count"));
+    }
+
+    /**
+     * A database already in incremental mode is vacuumed in slices, more
+     * than one of them for this many free pages.
+     */
+    public void testIncrementalSlices() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        db.execSQL("PRAGMA auto_vacuum = 2");
+        db.execSQL("VACUUM");
+        assertEquals(2, pragma(db, "PRAGMA auto_vacuum"));
+        insertAndDeleteHistory(ROWS * 3);
+        long free = pragma(db, "PRAGMA freelist_count");
+        assertTrue("free pages: " + free, free > DatabaseMaintenance.PAGES_PER_SLICE * 2);
+
+        Bundle result = getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                DatabaseMaintenance.METHOD_MAINTAIN, null, null);
+        assertNotNull(result);
+        int vacuumed = result.getInt(DatabaseMaintenance.KEY_PAGES_VACUUMED);
+        Log.i(TAG, free + " free pages, " + vacuumed + " vacuumed in "
+                + result.getLong(DatabaseMaintenance.KEY_ELAPSED_MS) + " ms");
+        assertTrue(vacuumed > DatabaseMaintenance.PAGES_PER_SLICE);
+        assertEquals(free - vacuumed, pragma(db, "PRAGMA freelist_count"));
+    }
+
+    private void insertAndDeleteHistory(int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = new ContentValues();
+            values[i].put(History.URL, "http://site" + i + ".com/some/long/path/" + i);
+            values[i].put(History.TITLE, "A title long enough to take some room " + i);
+        }
+        getMockContentResolver().bulkInsert(History.CONTENT_URI, values);
+        getMockContentResolver().delete(History.CONTENT_URI, null, null);
+    }
+
+    private static long pragma(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.platformsupport.BrowserContract.Combined;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.ArrayList;
+
+/**
+ * Counts the re-queries open cursors would do, by observing the URIs the
+ * provider hands their cursors the way the cursors do themselves.
+ */
+@SmallTest
+public class BP2NotificationTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2NotificationTests";
+
+    private static final int HISTORY_INSERTS = 50;
+
+    public void testHistoryLeavesBookmarksPageAlone() {
+        Uri folder = Bookmarks.buildFolderUri(BrowserProvider2.FIXED_ID_ROOT);
+        CountingObserver bookmarksPage = observeCursor(folder);
+        CountingObserver historyPage = observeCursor(Combined.CONTENT_URI);
+
+        for (int i = 0; i < HISTORY_INSERTS; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i);
+        }
+        // Notified on the authority, the page re-queried once per insert
+        Log.i(TAG, HISTORY_INSERTS + " history inserts, bookmarks page re-queries: "
+                + bookmarksPage.mCount + " was: " + HISTORY_INSERTS);
+        assertEquals(0, bookmarksPage.mCount);
+        assertEquals(HISTORY_INSERTS, historyPage.mCount);
+    }
+
+    public void testOnlyChangedFolderNotified() {
+        long folderA = insertFolder("A");
+        long folderB = insertFolder("B");
+        CountingObserver pageA = observeCursor(Bookmarks.buildFolderUri(folderA));
+        CountingObserver pageB = observeCursor(Bookmarks.buildFolderUri(folderB));
+        CountingObserver bookmarks = observeCursor(Bookmarks.CONTENT_URI);
+
+        Uri bookmark = insertBookmark("http://a.com/", "A", folderA);
+        assertEquals(1, pageA.mCount);
+        assertEquals(0, pageB.mCount);
+        assertEquals(1, bookmarks.mCount);
+
+        // Moving a bookmark changes both folders
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.PARENT, folderB);
+        getMockContentResolver().update(bookmark, values, null, null);
+        assertEquals(2, pageA.mCount);
+        assertEquals(1, pageB.mCount);
+
+        getMockContentResolver().delete(bookmark, null, null);
+        assertEquals(2, pageA.mCount);
+        assertEquals(2, pageB.mCount);
+    }
+
+    public void testBatchNotifiesOnce() throws Exception {
+        long folder = insertFolder("Batch");
+        CountingObserver page = observeCursor(Bookmarks.buildFolderUri(folder));
+        CountingObserver history = observeCursor(History.CONTENT_URI);
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < 100; i++) {
+            ops.add(ContentProviderOperation.newInsert(Bookmarks.CONTENT_URI)
+                    .withValue(Bookmarks.URL, "http://batch" + i + ".com/")
+                    .withValue(Bookmarks.TITLE, "Batch " + i)
+                    .withValue(Bookmarks.PARENT, folder)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                    .withValue(History.URL, "http://batch" + i + ".com/")
+                    .build());
+        }
+        getMockContentResolver().applyBatch(BrowserContract.AUTHORITY, ops);
+        assertEquals(1, page.mCount);
+        assertEquals(1, history.mCount);
+    }
+
+    public void testCachedFolderKeepsFolderUri() {
+        Uri folder = Bookmarks.buildFolderUri(BrowserProvider2.FIXED_ID_ROOT);
+        // The second query is answered from the cache
+        CountingObserver fresh = observeCursor(Bookmarks.CONTENT_URI_DEFAULT_FOLDER);
+        CountingObserver cached = observeCursor(Bookmarks.CONTENT_URI_DEFAULT_FOLDER);
+        assertEquals(folder, fresh.mUri);
+        assertEquals(folder, cached.mUri);
+
+        insertHistory("http://site.com/", "Site");
+        assertEquals(0, cached.mCount);
+        insertBookmark("http://a.com/", "A", BrowserProvider2.FIXED_ID_ROOT);
+        assertEquals(1, cached.mCount);
+    }
+
+    public void testOnlyDeletesNotifyReload() {
+        // Observed the way LocalSuggestions does, without descendants
+        CountingObserver removed = new CountingObserver(OmniboxSuggestions.RELOAD_URI, false);
+        for (int i = 0; i < 10; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i);
+        }
+        insertBookmark("http://a.com/", "A", BrowserProvider2.FIXED_ID_ROOT);
+        assertEquals(0, removed.mCount);
+
+        getMockContentResolver().delete(History.CONTENT_URI,
+                History.URL + " = ?", new String[] { "http://site0.com/" });
+        assertEquals(1, removed.mCount);
+        // Nothing deleted, nothing to reload
+        getMockContentResolver().delete(History.CONTENT_URI,
+                History.URL + " = ?", new String[] { "http://site0.com/" });
+        assertEquals(1, removed.mCount);
+    }
+
+    private long insertFolder(String title) {
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.TITLE, title);
+        values.put(Bookmarks.IS_FOLDER, 1);
+        values.put(Bookmarks.PARENT, BrowserProvider2.FIXED_ID_ROOT);
+        return ContentUris.parseId(insertBookmark(values));
+    }
+
+    private Uri insertBookmark(String url, String title, long folder) {
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.URL, url);
+        values.put(Bookmarks.TITLE, title);
+        values.put(Bookmarks.IS_FOLDER, 0);
+        values.put(Bookmarks.PARENT, folder);
+        return insertBookmark(values);
+    }
+
+    /**
+     * Queries the URI and observes what the cursor would be notified on.
+     */
+    private CountingObserver observeCursor(Uri uri) {
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        try {
+            // Cursors observe their notification URI and its descendants
+            return new CountingObserver(c.getNotificationUri(), true);
+        } finally {
+            c.close();
+        }
+    }
+
+    private class CountingObserver extends ContentObserver {
+        final Uri mUri;
+        int mCount;
+
+        CountingObserver(Uri uri, boolean descendants) {
+            super(null);
+            mUri = uri;
+            registerContentObserver(uri, descendants, this);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mCount++;
+        }
+    }
+}
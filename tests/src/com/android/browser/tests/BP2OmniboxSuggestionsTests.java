@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import com.android.browser.BackgroundHandler;
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.platformsupport.BrowserContract.Settings;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the trigger maintained omnibox suggestions table returns the
+ * same rows as the v_omnibox_suggestions view it replaced, one per url, ranked
+ * by frecency.
+ */
+@SmallTest
+public class BP2OmniboxSuggestionsTests extends BP2TestCaseHelper {
+
+    // The view as it was defined up to database version 34
+    private static final String SQL_CREATE_LEGACY_VIEW =
+            "CREATE TEMP VIEW legacy_omnibox_suggestions "
+            + " AS "
+            + "  SELECT _id, url, title, 1 AS bookmark, 0 AS visits, 0 AS date"
+            + "  FROM bookmarks "
+            + "  WHERE deleted = 0 AND folder = 0 "
+            + "  UNION ALL "
+            + "  SELECT _id, url, title, 0 AS bookmark, visits, date "
+            + "  FROM history "
+            + "  WHERE url NOT IN (SELECT url FROM bookmarks"
+            + "    WHERE deleted = 0 AND folder = 0) ";
+
+    // The table keeps one row per url where the view listed every bookmark
+    // of it, the first bookmark stands for the url
+    private static final String SQL_ONE_ROW_PER_URL = "bookmark = 0 OR _id = "
+            + "(SELECT MIN(_id) FROM bookmarks WHERE deleted = 0 AND folder = 0"
+            + "  AND url = legacy_omnibox_suggestions.url)";
+
+    private static final String[] PROJECTION = new String[] {
+            OmniboxSuggestions._ID,
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.IS_BOOKMARK,
+    };
+
+    private static final String SORT_ORDER = "bookmark DESC, visits DESC, date DESC, url ASC";
+
+    public void testMatchesViewAfterWrites() {
+        for (int i = 0; i < 20; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i, i % 7, 1000 + i);
+        }
+        Uri bookmark = insertBookmark("http://site3.com/", "Bookmarked site");
+        insertBookmark("http://bookmark-only.com/", "Bookmark only");
+        Uri removed = insertBookmark("http://site5.com/", "Removed later");
+        assertMatchesView();
+
+        // Visit an existing entry
+        ContentValues values = new ContentValues();
+        values.put(History.VISITS, 100);
+        values.put(History.DATE_LAST_VISITED, 5000);
+        getMockContentResolver().update(History.CONTENT_URI, values,
+                History.URL + "=?", new String[] { "http://site1.com/" });
+        assertMatchesView();
+
+        // Rename and move a bookmark
+        updateBookmark(bookmark, "http://site4.com/", "Moved bookmark");
+        assertMatchesView();
+
+        // Delete a bookmark, its history entry should show up again
+        getMockContentResolver().delete(removed, null, null);
+        assertMatchesView();
+
+        // Delete history
+        getMockContentResolver().delete(History.CONTENT_URI,
+                History.VISITS + "=?", new String[] { "2" });
+        assertMatchesView();
+    }
+
+    /**
+     * A url bookmarked in two folders is suggested once, through its first
+     * bookmark, and through the other once that one is gone.
+     */
+    public void testBookmarkedTwice() {
+        insertHistory("http://twice.com/", "Twice", 3, 1000);
+        Uri first = insertBookmark("http://twice.com/", "First");
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.TITLE, "Folder");
+        values.put(Bookmarks.IS_FOLDER, 1);
+        long folder = ContentUris.parseId(insertBookmark(values));
+        values = new ContentValues();
+        values.put(Bookmarks.URL, "http://twice.com/");
+        values.put(Bookmarks.TITLE, "Second");
+        values.put(Bookmarks.IS_FOLDER, 0);
+        values.put(Bookmarks.PARENT, folder);
+        insertBookmark(values);
+        assertMatchesView();
+        assertEquals("First", getSuggestionTitle("http://twice.com/"));
+
+        getMockContentResolver().delete(first, null, null);
+        assertMatchesView();
+        assertEquals("Second", getSuggestionTitle("http://twice.com/"));
+    }
+
+    public void testLimitReturnsTopRows() {
+        for (int i = 0; i < 30; i++) {
+            insertHistory("http://top" + i + ".com/", "Top " + i, i, i);
+        }
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "5").build();
+        Cursor c = getMockContentResolver().query(uri, PROJECTION, null, null, null);
+        try {
+            assertEquals(5, c.getCount());
+            int expected = 29;
+            while (c.moveToNext()) {
+                assertEquals("http://top" + expected-- + ".com/", c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testTopRowsNeedNoSort() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getReadableDatabase();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT url FROM omnibox_suggestions "
+                + "ORDER BY bookmark DESC, frecency DESC, date DESC LIMIT 8", null);
+        try {
+            int detail = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                assertFalse(c.getString(detail), c.getString(detail).contains("TEMP B-TREE"));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testTypedVisitsRankHigher() {
+        insertHistory("http://linked.com/", "Linked", 3, 1000);
+        insertHistory("http://typed.com/", "Typed", 2, 1000, 1);
+        assertEquals(300, getFrecency("http://linked.com/"));
+        assertEquals(400, getFrecency("http://typed.com/"));
+        assertEquals("http://typed.com/", topSuggestion());
+    }
+
+    public void testVisitsBumpFrecency() {
+        insertHistory("http://old.com/", "Old", 5, 1000);
+        insertHistory("http://new.com/", "New", 1, 2000);
+        assertEquals("http://old.com/", topSuggestion());
+
+        ContentValues values = new ContentValues();
+        values.put(History.VISITS, 7);
+        getMockContentResolver().update(History.CONTENT_URI, values,
+                History.URL + "=?", new String[] { "http://new.com/" });
+        assertEquals(700, getFrecency("http://new.com/"));
+        assertEquals("http://new.com/", topSuggestion());
+    }
+
+    public void testFrecencyDecays() throws InterruptedException {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        ContentValues setting = new ContentValues();
+        setting.put(Settings.KEY, "frecency_decayed");
+        setting.put(Settings.VALUE, System.currentTimeMillis() - 2 * DateUtils.DAY_IN_MILLIS);
+        db.insert("settings", null, setting);
+        db.execSQL("INSERT INTO history (url, title, date, visits, frecency) "
+                + "VALUES ('http://stale.com/', 'Stale', 1000, 10, 1000)");
+
+        // Any visit has the pending decay pass run in the background, which
+        // leaves rows visited since it became due alone
+        insertHistory("http://fresh.com/", "Fresh", 1, System.currentTimeMillis());
+        waitForBackground();
+        assertEquals((int) (1000 * 0.975 * 0.975), getFrecency("http://stale.com/"));
+        assertEquals(100, getFrecency("http://fresh.com/"));
+    }
+
+    /**
+     * Waits until what the provider posted to the background looper so far
+     * has run.
+     */
+    private void waitForBackground() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(BackgroundHandler.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private String topSuggestion() {
+        Uri uri = OmniboxSuggestions.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserContract.PARAM_LIMIT, "1").build();
+        Cursor c = getMockContentResolver().query(uri, PROJECTION, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(1);
+        } finally {
+            c.close();
+        }
+    }
+
+    // The title of the url's only suggestion
+    private String getSuggestionTitle(String url) {
+        Cursor c = getMockContentResolver().query(OmniboxSuggestions.CONTENT_URI,
+                PROJECTION, OmniboxSuggestions.URL + "=?", new String[] { url }, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            return c.getString(2);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int getFrecency(String url) {
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.FRECENCY }, History.URL + "=?",
+                new String[] { url }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void insertHistory(String url, String title, int visits, long date) {
+        insertHistory(url, title, visits, date, 0);
+    }
+
+    private void insertHistory(String url, String title, int visits, long date,
+            int userEntered) {
+        ContentValues values = new ContentValues();
+        values.put(History.URL, url);
+        values.put(History.TITLE, title);
+        values.put(History.VISITS, visits);
+        values.put(History.DATE_LAST_VISITED, date);
+        values.put(History.USER_ENTERED, userEntered);
+        Uri uri = getMockContentResolver().insert(History.CONTENT_URI, values);
+        assertTrue(ContentUris.parseId(uri) > 0);
+    }
+
+    private void assertMatchesView() {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        db.execSQL("DROP VIEW IF EXISTS legacy_omnibox_suggestions");
+        db.execSQL(SQL_CREATE_LEGACY_VIEW);
+        ArrayList<String> expected = new ArrayList<String>();
+        Cursor c = db.query("legacy_omnibox_suggestions", PROJECTION,
+                SQL_ONE_ROW_PER_URL, null, null, null, SORT_ORDER);
+        try {
+            while (c.moveToNext()) {
+                expected.add(row(c));
+            }
+        } finally {
+            c.close();
+        }
+        ArrayList<String> actual = new ArrayList<String>();
+        c = getMockContentResolver().query(OmniboxSuggestions.CONTENT_URI, PROJECTION,
+                null, null, SORT_ORDER);
+        try {
+            while (c.moveToNext()) {
+                actual.add(row(c));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static String row(Cursor c) {
+        return c.getLong(0) + "|" + c.getString(1) + "|" + c.getString(2) + "|" + c.getInt(3);
+    }
+}
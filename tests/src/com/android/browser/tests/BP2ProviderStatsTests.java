@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.ProviderStats;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that the provider stats record calls only while enabled.
+ */
+@SmallTest
+public class BP2ProviderStatsTests extends BP2TestCaseHelper {
+
+    @Override
+    protected void tearDown() throws Exception {
+        ProviderStats.setEnabled(false);
+        super.tearDown();
+    }
+
+    public void testDisabledRecordsNothing() {
+        ProviderStats.setEnabled(false);
+        insertHistory("http://site.com/", "Site");
+        assertFalse(dump().contains("insert"));
+    }
+
+    public void testQueryAndInsertRecorded() {
+        ProviderStats.setEnabled(true);
+        for (int i = 0; i < 10; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i);
+        }
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History._ID }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+            }
+        } finally {
+            c.close();
+        }
+        String dump = dump();
+        assertTrue(dump, dump.contains("insert"));
+        assertTrue(dump, dump.contains("10 calls"));
+        assertTrue(dump, dump.contains("query"));
+        assertTrue(dump, dump.contains("10 rows"));
+    }
+
+    public void testUnregisterDropsFromDumpAll() {
+        ProviderStats stats = new ProviderStats("UnregisterTestProvider", null);
+        assertTrue(ProviderStats.dumpAll().contains("UnregisterTestProvider"));
+        stats.unregister();
+        assertFalse(ProviderStats.dumpAll().contains("UnregisterTestProvider"));
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        getProvider().getProviderStats().dump(pw);
+        pw.flush();
+        return writer.toString();
+    }
+}
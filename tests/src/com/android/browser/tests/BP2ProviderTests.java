@@ -27,6 +27,7 @@ import android.net.Uri;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
 import com.android.browser.platformsupport.BrowserContract.Images;
 
 import java.io.ByteArrayOutputStream;
@@ -57,6 +58,47 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    public void testTruncateHistory() {
+        for (int i = 0; i < 12; i++) {
+            insertHistoryVisit("http://truncate" + i + ".com/", i);
+        }
+        assertEquals(3, truncateHistory(10, 3));
+        assertEquals(9, getHistoryCount(null));
+        assertEquals(0, getHistoryCount(History.DATE_LAST_VISITED + " < 3"));
+
+        // Below the high-water mark nothing is deleted
+        assertEquals(0, truncateHistory(10, 3));
+        insertHistoryVisit("http://truncate12.com/", 12);
+        assertEquals(3, truncateHistory(10, 3));
+        assertEquals(7, getHistoryCount(null));
+        assertEquals(0, getHistoryCount(History.DATE_LAST_VISITED + " < 6"));
+    }
+
+    private void insertHistoryVisit(String url, long date) {
+        ContentValues values = new ContentValues();
+        values.put(History.URL, url);
+        values.put(History.DATE_LAST_VISITED, date);
+        assertNotNull(getMockContentResolver().insert(History.CONTENT_URI, values));
+    }
+
+    private int truncateHistory(int maxCount, int trimCount) {
+        Uri uri = History.TRUNCATE_URI.buildUpon()
+                .appendQueryParameter(History.PARAM_MAX_COUNT, Integer.toString(maxCount))
+                .appendQueryParameter(History.PARAM_TRIM_COUNT, Integer.toString(trimCount))
+                .build();
+        return getMockContentResolver().delete(uri, null, null);
+    }
+
+    private int getHistoryCount(String selection) {
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History._ID }, selection, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
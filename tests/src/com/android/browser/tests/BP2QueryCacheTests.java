@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.Accounts;
+import com.android.browser.platformsupport.BrowserContract.Bookmarks;
+import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.Arrays;
+
+/**
+ * Checks that the folder and account query cache serves repeated queries
+ * from memory and never serves a result older than the last write.
+ */
+@SmallTest
+public class BP2QueryCacheTests extends BP2TestCaseHelper {
+
+    private static final Uri ROOT_FOLDER =
+            Bookmarks.buildFolderUri(BrowserProvider2.FIXED_ID_ROOT);
+
+    private static final String[] PROJECTION = new String[] {
+            Bookmarks._ID,
+            Bookmarks.URL,
+            Bookmarks.TITLE,
+            Bookmarks.FAVICON,
+    };
+
+    public void testRepeatedFolderQueryHits() {
+        insertBookmark("http://one.com/", "One");
+        int count = countRows(ROOT_FOLDER);
+        int hits = getStats().getInt(BrowserProvider2.KEY_CACHE_HITS);
+        assertEquals(count, countRows(ROOT_FOLDER));
+        assertEquals(count, countRows(ROOT_FOLDER));
+        assertEquals(hits + 2, getStats().getInt(BrowserProvider2.KEY_CACHE_HITS));
+
+        // History isn't part of the result
+        insertHistory("http://two.com/", "Two");
+        assertEquals(count, countRows(ROOT_FOLDER));
+        assertEquals(hits + 3, getStats().getInt(BrowserProvider2.KEY_CACHE_HITS));
+    }
+
+    public void testWritesInvalidate() {
+        insertBookmark("http://one.com/", "One");
+        int count = countRows(ROOT_FOLDER);
+        insertBookmark("http://two.com/", "Two");
+        int misses = getStats().getInt(BrowserProvider2.KEY_CACHE_MISSES);
+        assertEquals(count + 1, countRows(ROOT_FOLDER));
+        assertEquals(misses + 1, getStats().getInt(BrowserProvider2.KEY_CACHE_MISSES));
+
+        byte[] favicon = new byte[] { 1, 2, 3 };
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, "http://two.com/");
+        values.put(Images.FAVICON, favicon);
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        Cursor c = getMockContentResolver().query(ROOT_FOLDER, PROJECTION,
+                Bookmarks.URL + "=?", new String[] { "http://two.com/" }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(Arrays.equals(favicon, c.getBlob(3)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testAccountsCached() {
+        Uri uri = Accounts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BrowserProvider2.PARAM_ALLOW_EMPTY_ACCOUNTS, "false")
+                .build();
+        String[] projection = new String[] {
+                Accounts.ACCOUNT_NAME,
+                Accounts.ACCOUNT_TYPE,
+                Accounts.ROOT_ID,
+        };
+        int count = countRows(uri, projection);
+        int hits = getStats().getInt(BrowserProvider2.KEY_CACHE_HITS);
+        assertEquals(count, countRows(uri, projection));
+        assertEquals(hits + 1, getStats().getInt(BrowserProvider2.KEY_CACHE_HITS));
+    }
+
+    private int countRows(Uri uri) {
+        return countRows(uri, PROJECTION);
+    }
+
+    private int countRows(Uri uri, String[] projection) {
+        Cursor c = getMockContentResolver().query(uri, projection, null, null, null);
+        try {
+            int count = 0;
+            while (c.moveToNext()) {
+                count++;
+            }
+            return count;
+        } finally {
+            c.close();
+        }
+    }
+
+    private Bundle getStats() {
+        return getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                BrowserProvider2.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.provider.BrowserProvider2.OmniboxSuggestions;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmarks the omnibox suggestion queries against a large synthetic
+ * history, with and without the full text suggestion index.
+ */
+@LargeTest
+public class BP2SuggestionsPerfTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2SuggestionsPerfTests";
+
+    private static final int HISTORY_ROWS = 50000;
+    private static final int BOOKMARK_ROWS = 500;
+    private static final int LIMIT = 8;
+
+    private static final String[] PROJECTION = new String[] {
+            OmniboxSuggestions._ID,
+            OmniboxSuggestions.TITLE,
+            OmniboxSuggestions.URL,
+            OmniboxSuggestions.IS_BOOKMARK,
+    };
+
+    private static final String SELECTION =
+            "(url LIKE ? OR url LIKE ? OR url LIKE ? OR url LIKE ? OR title LIKE ?)";
+
+    // Bookmarks all tie on visits and date, break ties so both paths agree
+    private static final String SORT_ORDER = "bookmark DESC, visits DESC, date DESC, url ASC";
+
+    private static final String[] PREFIXES = new String[] {
+            "s", "si", "site1", "site12345", "news.ex", "Page 4", "zzz", "www.site9",
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < HISTORY_ROWS; i++) {
+                db.execSQL("INSERT INTO history (url, title, date, visits) VALUES (?, ?, ?, ?)",
+                        new Object[] { "http://www.site" + i + ".com/path/" + (i % 97),
+                        "Page " + i, i, i % 23 });
+            }
+            for (int i = 0; i < BOOKMARK_ROWS; i++) {
+                db.execSQL("INSERT INTO bookmarks (url, title, parent, position) "
+                        + "VALUES (?, ?, ?, ?)",
+                        new Object[] { "http://news.example" + i + ".org/", "News " + i, 1, i });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void testOmniboxMatchesView() {
+        for (String prefix : PREFIXES) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            ArrayList<String> scan = queryOmnibox(prefix, false);
+            long scanUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            start = SystemClock.elapsedRealtimeNanos();
+            ArrayList<String> indexed = queryOmnibox(prefix, true);
+            long indexedUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            assertEquals(prefix, scan, indexed);
+            Log.i(TAG, "omnibox \"" + prefix + "\" rows=" + indexed.size()
+                    + " like us=" + scanUs + " fts us=" + indexedUs);
+        }
+    }
+
+    public void testBookmarkSuggestionsLatency() {
+        Uri uri = Uri.withAppendedPath(BrowserContract.AUTHORITY_URI,
+                SearchManager.SUGGEST_URI_PATH_QUERY);
+        for (String prefix : PREFIXES) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor c = getMockContentResolver().query(uri, null, null,
+                    new String[] { prefix }, null);
+            int count = c.getCount();
+            c.close();
+            Log.i(TAG, "search suggest \"" + prefix + "\" rows=" + count + " us="
+                    + (SystemClock.elapsedRealtimeNanos() - start) / 1000);
+        }
+    }
+
+    private ArrayList<String> queryOmnibox(String prefix, boolean useIndex) {
+        String like = prefix + "%";
+        String[] args = new String[] {
+                "http://" + like, "http://www." + like,
+                "https://" + like, "https://www." + like, like };
+        Uri.Builder ub = OmniboxSuggestions.CONTENT_URI.buildUpon();
+        ub.appendQueryParameter(BrowserContract.PARAM_LIMIT, Integer.toString(LIMIT));
+        if (useIndex) {
+            ub.appendQueryParameter(OmniboxSuggestions.PARAM_QUERY, prefix);
+        }
+        Cursor c = getMockContentResolver().query(ub.build(), PROJECTION,
+                SELECTION, args, SORT_ORDER);
+        ArrayList<String> rows = new ArrayList<String>();
+        try {
+            while (c.moveToNext()) {
+                rows.add(c.getInt(3) + ":" + c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.platformsupport.BrowserContract;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.provider.SQLiteContentProvider;
+import com.android.browser.provider.TransactionStats;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Checks the transaction counters, that a batch yielding to another writer
+ * completes, and how long it sleeps after each yield.
+ */
+@MediumTest
+public class BP2TransactionStatsTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2TransactionStatsTests";
+
+    private static final int OPERATIONS = 2000;
+    private static final int OPERATIONS_PER_YIELD_POINT = 100;
+
+    private volatile boolean mDone;
+
+    public void testBatchCounted() throws Exception {
+        Bundle before = getStats();
+        getMockContentResolver().applyBatch(BrowserContract.AUTHORITY, buildBatch(200));
+        Bundle after = getStats();
+        assertEquals(1, delta(before, after, TransactionStats.KEY_BATCHES));
+        assertEquals(200, delta(before, after, TransactionStats.KEY_BATCH_OPERATIONS));
+        assertTrue(after.getLong(TransactionStats.KEY_MAX_BATCH_OPERATIONS) >= 200);
+        assertTrue(delta(before, after, TransactionStats.KEY_TRANSACTIONS) >= 1);
+    }
+
+    public void testDumped() throws Exception {
+        getMockContentResolver().applyBatch(BrowserContract.AUTHORITY, buildBatch(10));
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        getProvider().dump(null, pw, null);
+        pw.flush();
+        String dump = writer.toString();
+        assertTrue(dump, dump.contains("transactions: "));
+        assertTrue(dump, dump.contains(" yields, 1 batches of 10 operations"));
+    }
+
+    public void testContendedBatchCompletes() throws Exception {
+        // Another writer keeps asking for the database during the batch
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!mDone) {
+                    insertHistory("http://writer" + (i++) + ".com/", "Writer");
+                }
+            }
+        };
+        Bundle before = getStats();
+        writer.start();
+        try {
+            getMockContentResolver().applyBatch(BrowserContract.AUTHORITY,
+                    buildBatch(OPERATIONS));
+        } finally {
+            mDone = true;
+            writer.join();
+        }
+        Bundle after = getStats();
+        assertEquals(1, delta(before, after, TransactionStats.KEY_BATCHES));
+        assertEquals(OPERATIONS, delta(before, after, TransactionStats.KEY_BATCH_OPERATIONS));
+        // Every yield is one more stretch of the batch
+        assertTrue(delta(before, after, TransactionStats.KEY_YIELDS)
+                < OPERATIONS / OPERATIONS_PER_YIELD_POINT);
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History._ID }, History.URL + " LIKE 'http://batch%'",
+                null, null);
+        try {
+            assertEquals(OPERATIONS, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSleepAfterYield() {
+        // Nobody came back right away, no sleep
+        assertEquals(0, SQLiteContentProvider.nextSleepAfterYield(0, 1000));
+        assertEquals(0, SQLiteContentProvider.nextSleepAfterYield(2000, 1000));
+        // Writers want the database again at once, back off
+        int sleep = SQLiteContentProvider.nextSleepAfterYield(0, 16);
+        assertEquals(16, sleep);
+        sleep = SQLiteContentProvider.nextSleepAfterYield(sleep, 16);
+        assertEquals(32, sleep);
+        // ... but never longer than the old fixed sleep
+        for (int i = 0; i < 20; i++) {
+            sleep = SQLiteContentProvider.nextSleepAfterYield(sleep, 16);
+        }
+        assertEquals(4000, sleep);
+    }
+
+    private ArrayList<ContentProviderOperation> buildBatch(int count) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            ops.add(ContentProviderOperation.newInsert(History.CONTENT_URI)
+                    .withValue(History.URL, "http://batch" + i + ".com/")
+                    .withValue(History.TITLE, "Batch " + i)
+                    .withYieldAllowed(i % OPERATIONS_PER_YIELD_POINT == 0)
+                    .build());
+        }
+        return ops;
+    }
+
+    private Bundle getStats() {
+        return getMockContentResolver().call(BrowserContract.AUTHORITY_URI,
+                BrowserProvider2.METHOD_TRANSACTION_STATS, null, null);
+    }
+
+    private static long delta(Bundle before, Bundle after, String key) {
+        return after.getLong(key) - before.getLong(key);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.platformsupport.BrowserContract.Images;
+import com.android.browser.platformsupport.BrowserContract.Searches;
+import com.android.browser.platformsupport.BrowserContract.Settings;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+/**
+ * Checks that the compiled insert-or-update writes behave like the query,
+ * update or insert path they replace and are compiled once, and benchmarks
+ * the two.
+ */
+@MediumTest
+public class BP2UpsertTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "BP2UpsertTests";
+
+    private static final int WRITES = 1000;
+    private static final int DISTINCT = 50;
+
+    // Blob names, the images table holds names rather than the images
+    private static final String IMAGE_A = "0000000000000000000000000000000000000000";
+    private static final String IMAGE_B = "1111111111111111111111111111111111111111";
+
+    @Override
+    protected void tearDown() throws Exception {
+        BrowserProvider2.setUpsertsEnabled(true);
+        super.tearDown();
+    }
+
+    public void testSearchKeepsId() {
+        long id = addSearch("android", 1);
+        addSearch("other", 2);
+        assertEquals(id, addSearch("android", 3));
+        Cursor c = getMockContentResolver().query(Searches.CONTENT_URI,
+                new String[] { Searches._ID, Searches.DATE }, Searches.SEARCH + "=?",
+                new String[] { "android" }, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(id, c.getLong(0));
+            assertEquals(3, c.getLong(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSettingReplaced() {
+        putSetting("key", "one");
+        putSetting("key", "two");
+        Cursor c = getMockContentResolver().query(Settings.CONTENT_URI,
+                new String[] { Settings.VALUE }, Settings.KEY + "=?",
+                new String[] { "key" }, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals("two", c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testImageColumnsKept() {
+        String url = "http://site.com/";
+        // Referenced, so the sweeper leaves the row alone
+        insertHistory(url, "Site");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, IMAGE_A);
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.TOUCH_ICON, IMAGE_B);
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+
+        Cursor c = getProvider().getDatabaseHelper().getReadableDatabase().rawQuery(
+                "SELECT favicon, touch_icon FROM images WHERE url_key = ?",
+                new String[] { url });
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(IMAGE_A, c.getString(0));
+            assertEquals(IMAGE_B, c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testStatementsReused() {
+        for (int i = 0; i < DISTINCT; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i);
+        }
+        writeSearches();
+        writeFavicons();
+        int compiled = getProvider().getCompiledUpsertCount();
+        assertTrue(compiled > 0);
+        String searches = dumpTable("SELECT search, date FROM searches ORDER BY search");
+        String images = dumpTable("SELECT url_key, favicon FROM images ORDER BY url_key");
+
+        // Writing again compiles nothing new
+        writeSearches();
+        writeFavicons();
+        assertEquals(compiled, getProvider().getCompiledUpsertCount());
+
+        // And leaves the same rows as the path the statements replace
+        BrowserProvider2.setUpsertsEnabled(false);
+        writeSearches();
+        writeFavicons();
+        assertEquals(searches, dumpTable("SELECT search, date FROM searches ORDER BY search"));
+        assertEquals(images, dumpTable("SELECT url_key, favicon FROM images ORDER BY url_key"));
+        assertEquals(compiled, getProvider().getCompiledUpsertCount());
+    }
+
+    /**
+     * Logs how long the writes take with the compiled statements and with
+     * the path they replace. Only logs, timings vary too much to assert on.
+     */
+    public void testBenchmark() {
+        for (int i = 0; i < DISTINCT; i++) {
+            insertHistory("http://site" + i + ".com/", "Site " + i);
+        }
+        // Warm up both paths
+        for (boolean upserts : new boolean[] { true, false }) {
+            BrowserProvider2.setUpsertsEnabled(upserts);
+            writeSearches();
+            writeFavicons();
+        }
+        for (boolean upserts : new boolean[] { true, false }) {
+            BrowserProvider2.setUpsertsEnabled(upserts);
+            long start = SystemClock.elapsedRealtimeNanos();
+            writeSearches();
+            long searchesNs = (SystemClock.elapsedRealtimeNanos() - start) / WRITES;
+            start = SystemClock.elapsedRealtimeNanos();
+            writeFavicons();
+            long faviconsNs = (SystemClock.elapsedRealtimeNanos() - start) / WRITES;
+            Log.i(TAG, (upserts ? "upserts" : "query, update or insert") + ": us/search="
+                    + searchesNs / 1000f + " us/favicon=" + faviconsNs / 1000f);
+        }
+    }
+
+    private void writeSearches() {
+        getMockContentResolver().delete(Searches.CONTENT_URI, null, null);
+        for (int i = 0; i < WRITES; i++) {
+            addSearch("search " + (i % DISTINCT), i);
+        }
+    }
+
+    private void writeFavicons() {
+        for (int i = 0; i < WRITES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, "http://site" + (i % DISTINCT) + ".com/");
+            // Alternate so every write changes the row
+            values.put(Images.FAVICON, (i / DISTINCT) % 2 == 0 ? IMAGE_A : IMAGE_B);
+            getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        }
+    }
+
+    /**
+     * Returns the rows of the query as one string, with the row count.
+     */
+    private String dumpTable(String sql) {
+        Cursor c = getProvider().getDatabaseHelper().getReadableDatabase().rawQuery(sql, null);
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append(c.getCount()).append(" rows\n");
+            while (c.moveToNext()) {
+                sb.append(c.getString(0)).append(' ').append(c.getString(1)).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    private long addSearch(String search, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Searches.SEARCH, search);
+        values.put(Searches.DATE, date);
+        Uri uri = getMockContentResolver().insert(Searches.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private void putSetting(String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put(Settings.KEY, key);
+        values.put(Settings.VALUE, value);
+        getMockContentResolver().insert(Settings.CONTENT_URI, values);
+    }
+}
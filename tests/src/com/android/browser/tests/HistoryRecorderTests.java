@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.HistoryRecorder;
+import com.android.browser.platformsupport.Browser;
+import com.android.browser.platformsupport.BrowserContract.History;
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.HashMap;
+
+/**
+ * Counts the provider transactions 100 navigations cost when each visit and
+ * title change is written immediately, and when they go through the
+ * write-behind {@link HistoryRecorder}.
+ */
+@MediumTest
+public class HistoryRecorderTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "HistoryRecorderTests";
+
+    private static final int NAVIGATIONS = 100;
+    private static final int SITES = 20;
+    // Navigations that land within one flush window
+    private static final int NAVIGATIONS_PER_FLUSH = 10;
+
+    // Every committed transaction that touches history notifies the legacy
+    // authority exactly once
+    private static final Uri LEGACY_AUTHORITY_URI = new Uri.Builder()
+            .authority(BrowserProvider2.LEGACY_AUTHORITY).scheme("content").build();
+
+    private int mTransactions;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        registerContentObserver(LEGACY_AUTHORITY_URI, false, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mTransactions++;
+            }
+        });
+    }
+
+    public void testTransactionsPerNavigation() {
+        ContentResolver cr = getMockContentResolver();
+        mTransactions = 0;
+        for (int i = 0; i < NAVIGATIONS; i++) {
+            // A redirect followed by the page itself, which then sets its title
+            updateVisitedHistory(cr, redirectUrl(i));
+            updateVisitedHistory(cr, siteUrl(i));
+            updateHistoryTitle(cr, siteUrl(i), "Site " + (i % SITES));
+        }
+        int immediate = mTransactions;
+        HashMap<String, Integer> expected = getVisits();
+
+        cr.delete(History.CONTENT_URI, null, null);
+        HistoryRecorder recorder = new HistoryRecorder(cr);
+        mTransactions = 0;
+        for (int i = 0; i < NAVIGATIONS; i++) {
+            recorder.recordVisit(redirectUrl(i));
+            recorder.recordVisit(siteUrl(i));
+            recorder.recordTitle(siteUrl(i), "Site " + (i % SITES));
+            if ((i + 1) % NAVIGATIONS_PER_FLUSH == 0) {
+                recorder.flush();
+            }
+        }
+        recorder.flush();
+        int batched = mTransactions;
+
+        Log.i(TAG, "transactions per " + NAVIGATIONS + " navigations: immediate="
+                + immediate + " write-behind=" + batched);
+        assertEquals(expected, getVisits());
+        assertEquals(NAVIGATIONS / NAVIGATIONS_PER_FLUSH, batched);
+        assertTrue(batched < immediate);
+    }
+
+    public void testTitleOnlyUpdate() {
+        ContentResolver cr = getMockContentResolver();
+        HistoryRecorder recorder = new HistoryRecorder(cr);
+        recorder.recordVisit("http://title.com/");
+        recorder.flush();
+        recorder.recordTitle("http://title.com/", "Title");
+        recorder.recordTitle("http://unvisited.com/", "Ignored");
+        recorder.flush();
+        Cursor c = cr.query(History.CONTENT_URI,
+                new String[] { History.URL, History.TITLE, History.VISITS }, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals("Title", c.getString(1));
+            assertEquals(1, c.getInt(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testTypedVisit() {
+        ContentResolver cr = getMockContentResolver();
+        HistoryRecorder recorder = new HistoryRecorder(cr);
+        // The omnibox's url has no trailing slash, the page's has
+        recorder.recordTyped("http://typed.com");
+        assertTrue(recorder.recordVisit("http://typed.com/"));
+        assertFalse(recorder.recordVisit("http://linked.com/"));
+        recorder.flush();
+        assertVisit("http://typed.com/", 1, 200);
+        assertVisit("http://linked.com/", 0, 100);
+
+        // Only the visit right after typing is typed, but the url stays user
+        // entered and keeps earning the typed bonus
+        assertFalse(recorder.recordVisit("http://typed.com/"));
+        recorder.flush();
+        assertVisit("http://typed.com/", 1, 400);
+    }
+
+    public void testVisitPending() {
+        HistoryRecorder recorder = new HistoryRecorder(getMockContentResolver());
+        recorder.recordTitle("http://title.com/", "Title");
+        recorder.recordVisit("http://visited.com/");
+        assertFalse(recorder.isVisitPending("http://title.com/"));
+        assertTrue(recorder.isVisitPending("http://visited.com/"));
+        recorder.flush();
+        assertFalse(recorder.isVisitPending("http://visited.com/"));
+        assertEquals(-1, recorder.getFlushDelay());
+    }
+
+    private void assertVisit(String url, int userEntered, int frecency) {
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.USER_ENTERED, History.FRECENCY },
+                History.URL + "=?", new String[] { url }, null);
+        try {
+            assertTrue(url, c.moveToFirst());
+            assertEquals(url, userEntered, c.getInt(0));
+            assertEquals(url, frecency, c.getInt(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String siteUrl(int navigation) {
+        return "http://site" + (navigation % SITES) + ".com/";
+    }
+
+    private static String redirectUrl(int navigation) {
+        return "http://redirect.com/?to=" + (navigation % SITES);
+    }
+
+    private HashMap<String, Integer> getVisits() {
+        HashMap<String, Integer> visits = new HashMap<String, Integer>();
+        Cursor c = getMockContentResolver().query(History.CONTENT_URI,
+                new String[] { History.URL, History.VISITS, History.TITLE }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                visits.put(c.getString(0) + " " + c.getString(2), c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+        return visits;
+    }
+
+    // What DataController used to do for every visit
+    private static void updateVisitedHistory(ContentResolver cr, String url) {
+        Cursor c = cr.query(History.CONTENT_URI, new String[] { History._ID, History.VISITS },
+                History.URL + "=?", new String[] { url }, null);
+        try {
+            if (c.moveToFirst()) {
+                ContentValues values = new ContentValues();
+                values.put(History.VISITS, c.getInt(1) + 1);
+                values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+                cr.update(ContentUris.withAppendedId(History.CONTENT_URI, c.getLong(0)),
+                        values, null, null);
+            } else {
+                Browser.truncateHistory(cr);
+                ContentValues values = new ContentValues();
+                values.put(History.URL, url);
+                values.put(History.VISITS, 1);
+                values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+                values.put(History.TITLE, url);
+                values.put(History.DATE_CREATED, 0);
+                values.put(History.USER_ENTERED, 0);
+                cr.insert(History.CONTENT_URI, values);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    // What DataController used to do for every title change
+    private static void updateHistoryTitle(ContentResolver cr, String url, String title) {
+        ContentValues values = new ContentValues();
+        values.put(History.TITLE, title);
+        cr.update(History.CONTENT_URI, values, History.URL + "=?", new String[] { url });
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.browser.util.LongHashSet;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class LongHashSetTests extends TestCase {
+
+    private static final String TAG = "LongHashSetTests";
+
+    public void testAddContains() {
+        LongHashSet set = new LongHashSet();
+        for (long i = -1000; i < 1000; i++) {
+            assertTrue(set.add(i * 31));
+        }
+        assertEquals(2000, set.size());
+        for (long i = -1000; i < 1000; i++) {
+            assertTrue(set.contains(i * 31));
+            assertFalse(set.contains(i * 31 + 1));
+            assertFalse(set.add(i * 31));
+        }
+        assertTrue(set.contains(0));
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0));
+        assertFalse(set.contains(31));
+    }
+
+    public void testUrlLookups() {
+        LongHashSet set = new LongHashSet(1000);
+        for (int i = 0; i < 1000; i++) {
+            set.add(LongHashSet.fingerprint("http://bookmark" + i + ".com/"));
+        }
+        assertTrue(set.contains(LongHashSet.fingerprint("http://bookmark42.com/")));
+        assertFalse(set.contains(LongHashSet.fingerprint("http://bookmark42.com")));
+        long start = SystemClock.elapsedRealtimeNanos();
+        int hits = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (set.contains(LongHashSet.fingerprint("http://bookmark" + (i % 2000) + ".com/"))) {
+                hits++;
+            }
+        }
+        Log.i(TAG, "ns per url lookup: " + (SystemClock.elapsedRealtimeNanos() - start) / 10000);
+        assertEquals(5000, hits);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.search.SuggestClient;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the suggest client against a local server that answers like a
+ * suggest endpoint after a set latency.
+ */
+@MediumTest
+public class SuggestClientTests extends TestCase {
+
+    private static final String TAG = "SuggestClientTests";
+
+    private static final int LATENCY_MS = 300;
+    private static final int DEADLINE_MS = 2000;
+
+    private StubServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testConnectionKeptAlive() {
+        SuggestClient client = new SuggestClient(TAG, DEADLINE_MS);
+        for (String query : new String[] { "w", "we", "wea", "weat", "weath" }) {
+            String content = client.fetch(mServer.url(query));
+            assertNotNull(content);
+            assertTrue(content.startsWith("[\"" + query + "\""));
+        }
+        assertEquals(5, mServer.mRequests.get());
+        assertEquals(1, mServer.mConnections.get());
+    }
+
+    public void testOnlyNewestPrefixDelivered() throws InterruptedException {
+        mServer.mLatencyMs = LATENCY_MS;
+        String[] prefixes = new String[] { "w", "we", "wea", "weat" };
+
+        // What the old client did: every prefix waits for the one before
+        SuggestClient serial = new SuggestClient(TAG, DEADLINE_MS);
+        long start = SystemClock.uptimeMillis();
+        for (String prefix : prefixes) {
+            assertNotNull(serial.fetch(mServer.url(prefix)));
+        }
+        long queued = SystemClock.uptimeMillis() - start;
+
+        SuggestClient client = new SuggestClient(TAG, DEADLINE_MS);
+        RecordingCallback callback = new RecordingCallback(1);
+        long generation = 0;
+        long lastKeystroke = 0;
+        for (String prefix : prefixes) {
+            lastKeystroke = SystemClock.uptimeMillis();
+            generation = client.fetchAsync(mServer.url(prefix), callback);
+            SystemClock.sleep(LATENCY_MS / 4);
+        }
+        assertTrue(callback.mLatch.await(DEADLINE_MS, TimeUnit.MILLISECONDS));
+        long toSuggestions = SystemClock.uptimeMillis() - lastKeystroke;
+        // Leave time for a stale response to come in, it mustn't
+        SystemClock.sleep(LATENCY_MS);
+
+        Log.i(TAG, "time to suggestions at " + LATENCY_MS + " ms latency, queued: "
+                + queued + " ms, superseding: " + toSuggestions + " ms");
+        assertEquals(1, callback.mGenerations.size());
+        assertEquals(generation, (long) callback.mGenerations.get(0));
+        assertTrue(callback.mContents.get(0).startsWith("[\"weat\""));
+        assertEquals(prefixes.length - 1, client.getSupersededCount());
+        assertTrue(client.isCurrent(generation));
+    }
+
+    public void testSameUrlCoalesced() throws InterruptedException {
+        mServer.mLatencyMs = LATENCY_MS;
+        SuggestClient client = new SuggestClient(TAG, DEADLINE_MS);
+        RecordingCallback callback = new RecordingCallback(1);
+        client.fetchAsync(mServer.url("weather"), callback);
+        long generation = client.fetchAsync(mServer.url("weather"), callback);
+        assertTrue(callback.mLatch.await(DEADLINE_MS, TimeUnit.MILLISECONDS));
+        SystemClock.sleep(LATENCY_MS);
+        assertEquals(1, mServer.mRequests.get());
+        assertEquals(1, client.getCoalescedCount());
+        assertEquals(1, callback.mGenerations.size());
+        assertEquals(generation, (long) callback.mGenerations.get(0));
+    }
+
+    public void testDeadline() {
+        mServer.mLatencyMs = 4 * DEADLINE_MS;
+        SuggestClient client = new SuggestClient(TAG, LATENCY_MS);
+        long start = SystemClock.uptimeMillis();
+        assertNull(client.fetch(mServer.url("slow")));
+        long elapsed = SystemClock.uptimeMillis() - start;
+        Log.i(TAG, "gave up after " + elapsed + " ms, deadline " + LATENCY_MS + " ms");
+        // Given up on by the watchdog or the read timeout, whichever is first,
+        // and not retried
+        assertEquals(1, client.getRequestCount());
+        assertEquals(0, client.getSupersededCount());
+    }
+
+    private static class RecordingCallback implements SuggestClient.Callback {
+        final CountDownLatch mLatch;
+        final List<Long> mGenerations = new ArrayList<Long>();
+        final List<String> mContents = new ArrayList<String>();
+
+        RecordingCallback(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public synchronized void onSuggestResult(long generation, String content) {
+            mGenerations.add(generation);
+            mContents.add(content);
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Answers every request with a suggestion array for its q parameter,
+     * keeping connections open between requests like a real server.
+     */
+    private static class StubServer implements Runnable {
+        final ServerSocket mSocket;
+        final AtomicInteger mConnections = new AtomicInteger();
+        final AtomicInteger mRequests = new AtomicInteger();
+        volatile int mLatencyMs;
+
+        StubServer() throws IOException {
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            new Thread(this, "StubServer").start();
+        }
+
+        String url(String query) {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/suggest?q=" + query;
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket socket = mSocket.accept();
+                    mConnections.incrementAndGet();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "StubServerConnection").start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = in.readLine()) != null) {
+                    String header;
+                    while ((header = in.readLine()) != null && header.length() > 0) {
+                        // Skip the headers
+                    }
+                    mRequests.incrementAndGet();
+                    String path = requestLine.split(" ")[1];
+                    String query = path.substring(path.indexOf("q=") + 2);
+                    SystemClock.sleep(mLatencyMs);
+                    byte[] body = ("[\"" + query + "\",[\"" + query + " today\",\"" + query
+                            + " tomorrow\"]]").getBytes("UTF-8");
+                    out.write(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/json; charset=UTF-8\r\n"
+                            + "Content-Length: " + body.length + "\r\n"
+                            + "\r\n").getBytes("ISO-8859-1"));
+                    out.write(body);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.browser.search.SearchEngine;
+import com.android.browser.search.SuggestionCache;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class SuggestionCacheTests extends TestCase {
+
+    private SuggestionCache mCache;
+    private CountingEngine mEngine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new SuggestionCache();
+        mEngine = new CountingEngine("engine");
+    }
+
+    public void testExactHit() {
+        assertTexts(mCache.getSuggestions(null, mEngine, "Weather", null),
+                "weather today", "weather tomorrow");
+        // Same query once normalized
+        assertTexts(mCache.getSuggestions(null, mEngine, " weather ", null),
+                "weather today", "weather tomorrow");
+        assertEquals(1, mEngine.mQueries.size());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(0.5f, mCache.getHitRate());
+    }
+
+    public void testBackspaceAnsweredFromLongerQuery() throws InterruptedException {
+        mCache.getSuggestions(null, mEngine, "weath", null);
+        RefreshLatch refreshed = new RefreshLatch();
+        assertTexts(mCache.getSuggestions(null, mEngine, "weat", refreshed),
+                "weath today", "weath tomorrow");
+        assertEquals(1, mCache.getPrefixHitCount());
+        assertTrue(refreshed.mLatch.await(1, TimeUnit.SECONDS));
+        assertEquals("weat", refreshed.mQuery);
+        // The refresh cached the exact answer
+        assertTexts(mCache.getSuggestions(null, mEngine, "weat", null),
+                "weat today", "weat tomorrow");
+        assertEquals(1, mCache.getHitCount());
+    }
+
+    public void testTypingAnsweredFromShorterQuery() throws InterruptedException {
+        mCache.getSuggestions(null, mEngine, "wea", null);
+        RefreshLatch refreshed = new RefreshLatch();
+        // Only the suggestions that still fit
+        assertTexts(mCache.getSuggestions(null, mEngine, "wea t", refreshed), "wea today",
+                "wea tomorrow");
+        assertTrue(refreshed.mLatch.await(1, TimeUnit.SECONDS));
+        // Nothing for "wea t" starts with "wea to", but one for "wea" does
+        assertTexts(mCache.getSuggestions(null, mEngine, "wea to", null), "wea today",
+                "wea tomorrow");
+        assertEquals(2, mCache.getPrefixHitCount());
+        // Nothing for "weal" starts with it, so it is fetched
+        mCache.getSuggestions(null, mEngine, "weal", null);
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    public void testEnginesKeptApart() {
+        mCache.getSuggestions(null, mEngine, "weather", null);
+        CountingEngine other = new CountingEngine("other");
+        mCache.getSuggestions(null, other, "weather", null);
+        assertEquals(1, other.mQueries.size());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    public void testClear() {
+        mCache.getSuggestions(null, mEngine, "weather", null);
+        mCache.clear();
+        mCache.getSuggestions(null, mEngine, "weather", null);
+        assertEquals(2, mEngine.mQueries.size());
+        assertEquals(0, mCache.getHitCount());
+    }
+
+    private static void assertTexts(Cursor c, String... texts) {
+        assertNotNull(c);
+        try {
+            int text = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1);
+            assertEquals(texts.length, c.getCount());
+            for (String expected : texts) {
+                assertTrue(c.moveToNext());
+                assertEquals(expected, c.getString(text));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class RefreshLatch implements SuggestionCache.RefreshListener {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile String mQuery;
+
+        @Override
+        public void onSuggestionsRefreshed(String query) {
+            mQuery = query;
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Suggests the query followed by "today" and "tomorrow", remembering
+     * what it was asked.
+     */
+    private static class CountingEngine implements SearchEngine {
+        final String mName;
+        final List<String> mQueries = new ArrayList<String>();
+
+        CountingEngine(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public CharSequence getLabel() {
+            return mName;
+        }
+
+        @Override
+        public void startSearch(Context context, String query, Bundle appData,
+                String extraData) {
+        }
+
+        @Override
+        public synchronized Cursor getSuggestions(Context context, String query) {
+            mQueries.add(query);
+            MatrixCursor c = new MatrixCursor(new String[] {
+                    "_id", SearchManager.SUGGEST_COLUMN_QUERY,
+                    SearchManager.SUGGEST_COLUMN_TEXT_1 });
+            String q = query.trim().toLowerCase();
+            c.addRow(new Object[] { 0, q + " today", q + " today" });
+            c.addRow(new Object[] { 1, q + " tomorrow", q + " tomorrow" });
+            return c;
+        }
+
+        @Override
+        public boolean supportsSuggestions() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean wantsEmptyQuery() {
+            return false;
+        }
+    }
+}
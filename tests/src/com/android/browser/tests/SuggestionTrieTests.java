@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.browser.SuggestionTrie;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class SuggestionTrieTests extends TestCase {
+
+    private static final String TAG = "SuggestionTrieTests";
+
+    private static final String GOOGLE = "http://www.google.com/";
+    private static final String MAPS = "http://www.google.com/maps";
+    private static final String HN = "https://news.ycombinator.com/";
+    private static final String NYT = "http://www.nytimes.com/";
+    private static final String GOO_GL = "http://goo.gl/";
+
+    private SuggestionTrie mTrie;
+    private final int[] mIds = new int[4];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTrie = new SuggestionTrie(4, 100);
+        mTrie.put(GOOGLE, "Google", false, 500, 1000);
+        mTrie.put(MAPS, "Google Maps", false, 300, 2000);
+        mTrie.put(HN, "Hacker News", true, 10, 0);
+        mTrie.put(NYT, "The New York Times", false, 200, 0);
+        mTrie.put(GOO_GL, null, false, 600, 0);
+    }
+
+    public void testUrlPrefixes() {
+        assertUrls("goo", GOO_GL, GOOGLE, MAPS);
+        assertUrls("Goo", GOO_GL, GOOGLE, MAPS);
+        assertUrls("www.goo", GOOGLE, MAPS);
+        assertUrls("http://www.go", GOOGLE, MAPS);
+        assertUrls("google.com/m", MAPS);
+        assertUrls("news.y", HN);
+        // Part of a scheme matches every url
+        assertUrls("http", HN, GOO_GL, GOOGLE, MAPS);
+        assertUrls("xyz");
+    }
+
+    public void testTitleWords() {
+        // Bookmarks first
+        assertUrls("new", HN, NYT);
+        assertUrls("new yo", NYT);
+        assertUrls("ma", MAPS);
+        assertUrls("york times", NYT);
+    }
+
+    public void testUpdates() {
+        mTrie.visit(MAPS, 400, 3000);
+        assertUrls("goo", MAPS, GOO_GL, GOOGLE);
+        mTrie.setTitle(NYT, "Times");
+        assertUrls("new yo");
+        assertUrls("tim", NYT);
+        assertTrue(mTrie.remove(GOO_GL));
+        assertFalse(mTrie.remove(GOO_GL));
+        assertUrls("goo", MAPS, GOOGLE);
+        assertEquals(4, mTrie.size());
+    }
+
+    public void testBounds() {
+        SuggestionTrie trie = new SuggestionTrie(4, 2);
+        assertTrue(trie.put(GOOGLE, null, false, 0, 0));
+        assertTrue(trie.put(MAPS, null, false, 0, 0));
+        assertFalse(trie.put(NYT, null, false, 0, 0));
+        // Updates still fit
+        assertTrue(trie.put(MAPS, "Maps", false, 0, 0));
+        assertEquals(2, trie.size());
+        // A better url takes the place of the worst, the later of the two
+        assertTrue(trie.visit(NYT, 10, 0));
+        assertEquals(2, trie.size());
+        assertEquals(1, trie.query("goo", mIds));
+        assertEquals(GOOGLE, trie.getUrl(mIds[0]));
+        assertEquals(1, trie.query("nyt", mIds));
+        assertEquals(NYT, trie.getUrl(mIds[0]));
+
+        StringBuilder longer = new StringBuilder();
+        while (longer.length() <= SuggestionTrie.MAX_KEY_LENGTH) {
+            longer.append("google");
+        }
+        assertEquals(-1, trie.query(longer, mIds));
+        assertTrue(trie.getMemoryEstimate() > 0);
+    }
+
+    /**
+     * Checks the top lists against a trie too small to keep any, which
+     * walks the whole subtree of the prefix instead, over random changes.
+     */
+    public void testMatchesFullWalk() {
+        String[] words = { "alpha", "alpine", "al", "beta", "bet", "news", "new", "go" };
+        Random random = new Random(0);
+        SuggestionTrie trie = new SuggestionTrie(4, 300);
+        SuggestionTrie reference = new SuggestionTrie(Integer.MAX_VALUE, 300);
+        int[] all = new int[1000];
+        for (int i = 0; i < 5000; i++) {
+            String url = (random.nextBoolean() ? "http://" : "https://")
+                    + (random.nextBoolean() ? "www." : "")
+                    + words[random.nextInt(words.length)] + random.nextInt(40) + ".com/";
+            int op = random.nextInt(10);
+            if (op < 5) {
+                String title = words[random.nextInt(words.length)] + " "
+                        + words[random.nextInt(words.length)];
+                boolean bookmark = random.nextInt(5) == 0;
+                long frecency = random.nextInt(50);
+                long date = random.nextInt(10) * 1000L;
+                trie.put(url, title, bookmark, frecency, date);
+                reference.put(url, title, bookmark, frecency, date);
+            } else if (op < 7) {
+                trie.remove(url);
+                reference.remove(url);
+            } else {
+                long date = random.nextInt(10) * 1000L;
+                trie.visit(url, 100, date);
+                reference.visit(url, 100, date);
+            }
+            String word = words[random.nextInt(words.length)];
+            String prefix = word.substring(0, 1 + random.nextInt(word.length()));
+            int count = trie.query(prefix, mIds);
+            assertEquals(prefix, Math.min(4, reference.query(prefix, all)), count);
+            for (int j = 0; j < count; j++) {
+                assertEquals(prefix, all[j], mIds[j]);
+            }
+        }
+    }
+
+    public void testBenchmark() {
+        SuggestionTrie trie = new SuggestionTrie(12, 3000);
+        Random random = new Random(0);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < 3000; i++) {
+            trie.put("http://www.site" + random.nextInt(100000) + ".example.com/" + i,
+                    "Page " + i + " about things", false, random.nextInt(10000), i * 1000L);
+        }
+        long buildMs = SystemClock.elapsedRealtime() - start;
+
+        String[] prefixes = { "s", "site1", "page", "about th", "www.site2", "http://www.si" };
+        int[] ids = new int[12];
+        int iterations = 100000;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            trie.query(prefixes[i % prefixes.length], ids);
+        }
+        long queryNs = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+        Log.i(TAG, trie.size() + " urls, " + trie.getNodeCount() + " nodes, ~"
+                + trie.getMemoryEstimate() / 1024 + " KB, built in " + buildMs + " ms, us/query="
+                + queryNs / 1000f);
+    }
+
+    private void assertUrls(String prefix, String... urls) {
+        int count = mTrie.query(prefix, mIds);
+        assertEquals(prefix, urls.length, count);
+        for (int i = 0; i < count; i++) {
+            assertEquals(prefix, urls[i], mTrie.getUrl(mIds[i]));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.app.SearchManager;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.browser.search.SuggestionsCursor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Checks the streaming suggestion parser against JSONArray on responses
+ * recorded from real engines, in assets/suggestions, and benchmarks the two.
+ */
+@MediumTest
+public class SuggestionsCursorTests extends InstrumentationTestCase {
+
+    private static final String TAG = "SuggestionsCursorTests";
+
+    private static final String[] PAYLOADS = new String[] {
+            "google.json", "bing.json", "wikipedia.json", "yahoo.json", "yandex.json",
+    };
+
+    private static final int ITERATIONS = 2000;
+
+    public void testMatchesJSONArray() throws Exception {
+        for (String name : PAYLOADS) {
+            String payload = readAsset(name);
+            JSONArray results = new JSONArray(payload);
+            JSONArray suggestions = results.getJSONArray(1);
+            JSONArray descriptions = results.length() > 2 ? results.getJSONArray(2) : null;
+            boolean described = descriptions != null && descriptions.length() > 0;
+
+            Cursor c = SuggestionsCursor.parse(new StringReader(payload));
+            assertEquals(name, suggestions.length(), c.getCount());
+            int text2 = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_TEXT_2);
+            assertEquals(name, described, text2 >= 0);
+            int text1 = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_TEXT_1);
+            int query = c.getColumnIndexOrThrow(SearchManager.SUGGEST_COLUMN_QUERY);
+            for (int i = 0; i < suggestions.length(); i++) {
+                assertTrue(c.moveToNext());
+                assertEquals(i, c.getLong(0));
+                assertEquals(suggestions.getString(i), c.getString(text1));
+                assertEquals(suggestions.getString(i), c.getString(query));
+                if (described) {
+                    assertEquals(descriptions.getString(i), c.getString(text2));
+                }
+            }
+            assertFalse(c.moveToNext());
+            c.close();
+        }
+    }
+
+    public void testMalformed() {
+        String[] malformed = new String[] { "", "{}", "[\"q\"]", "[\"q\",\"not an array\"]" };
+        for (String payload : malformed) {
+            try {
+                SuggestionsCursor.parse(new StringReader(payload));
+                fail(payload);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        Cursor c;
+        try {
+            // Extra and odd values are skipped, as are descriptions past the last suggestion
+            c = SuggestionsCursor.parse(new StringReader(
+                    "[\"q\",[\"a\",null,3],[\"x\",\"y\",\"z\",\"w\"],{\"k\":[1]},7]"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(3, c.getCount());
+        assertTrue(c.moveToPosition(1));
+        assertNull(c.getString(3));
+        assertTrue(c.moveToNext());
+        assertEquals("3", c.getString(3));
+        assertEquals("z", c.getString(4));
+        c.close();
+    }
+
+    /**
+     * Times parsing and reading every row of each payload, the old way
+     * from a string into JSONArray and the new way from the stream.
+     */
+    public void testBenchmark() throws Exception {
+        for (String name : PAYLOADS) {
+            String payload = readAsset(name);
+            // Warm up both paths
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                readAll(parseWithJSONArray(payload));
+                readAll(SuggestionsCursor.parse(new StringReader(payload)));
+            }
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            int dom = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                dom += readAll(parseWithJSONArray(payload));
+            }
+            long domNs = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            int streamed = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                streamed += readAll(SuggestionsCursor.parse(new StringReader(payload)));
+            }
+            long streamNs = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+            assertEquals(dom, streamed);
+            Log.i(TAG, name + " (" + payload.length() + " chars) JSONArray us="
+                    + domNs / 1000f + " JsonReader us=" + streamNs / 1000f);
+        }
+    }
+
+    // What OpenSearchSearchEngine used to do, reading rows like its cursor did
+    private static String[][] parseWithJSONArray(String payload) throws JSONException {
+        JSONArray results = new JSONArray(payload);
+        JSONArray suggestions = results.getJSONArray(1);
+        JSONArray descriptions = null;
+        if (results.length() > 2) {
+            descriptions = results.getJSONArray(2);
+            if (descriptions.length() == 0) {
+                descriptions = null;
+            }
+        }
+        String[][] rows = new String[suggestions.length()][2];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i][0] = suggestions.getString(i);
+            rows[i][1] = descriptions != null ? descriptions.getString(i) : null;
+        }
+        return rows;
+    }
+
+    private static int readAll(String[][] rows) {
+        int chars = 0;
+        for (String[] row : rows) {
+            chars += row[0].length() + (row[1] != null ? row[1].length() : 0);
+        }
+        return chars;
+    }
+
+    private static int readAll(Cursor c) {
+        int chars = 0;
+        boolean described = c.getColumnCount() > 4;
+        while (c.moveToNext()) {
+            chars += c.getString(3).length();
+            if (described) {
+                String description = c.getString(4);
+                chars += description != null ? description.length() : 0;
+            }
+        }
+        c.close();
+        return chars;
+    }
+
+    private String readAsset(String name) throws IOException {
+        InputStream in = getInstrumentation().getContext().getAssets()
+                .open("suggestions/" + name);
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[1024];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.webkit.ValueCallback;
+
+import com.android.browser.VisitedLinks;
+import com.android.browser.tests.utils.BP2TestCaseHelper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the visited urls reach the engine in bounded pages, each url
+ * once, and nothing that was never visited.
+ */
+@MediumTest
+public class VisitedLinksTests extends BP2TestCaseHelper {
+
+    private static final String TAG = "VisitedLinksTests";
+
+    private static final int VISITED = 1100;
+    private static final int DUPLICATES = 100;
+    private static final int UNVISITED = 50;
+
+    public void testPagesWithoutDuplicates() throws InterruptedException {
+        SQLiteDatabase db = getProvider().getDatabaseHelper().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < VISITED; i++) {
+                insertRow(db, "http://visited" + i + ".com/", 1);
+            }
+            for (int i = 0; i < DUPLICATES; i++) {
+                insertRow(db, "http://visited" + i + ".com/", 2);
+            }
+            for (int i = 0; i < UNVISITED; i++) {
+                insertRow(db, "http://unvisited" + i + ".com/", 0);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // 1200 visited rows make three pages, the duplicates all fall in
+        // the last one
+        ArrayList<String[]> pages = getVisitedHistory(3);
+        HashSet<String> urls = new HashSet<String>();
+        int delivered = 0;
+        for (String[] page : pages) {
+            assertTrue(page.length > 0);
+            assertTrue(page.length <= VisitedLinks.PAGE_SIZE);
+            for (String url : page) {
+                assertTrue(url, url.startsWith("http://visited"));
+                urls.add(url);
+            }
+            delivered += page.length;
+        }
+        assertEquals(VISITED, delivered);
+        assertEquals(VISITED, urls.size());
+        assertEquals(DUPLICATES, pages.get(2).length);
+    }
+
+    public void testEmptyHistory() throws InterruptedException {
+        ArrayList<String[]> pages = getVisitedHistory(1);
+        assertEquals(0, pages.get(0).length);
+    }
+
+    private void insertRow(SQLiteDatabase db, String url, int visits) {
+        db.execSQL("INSERT INTO history (url, title, date, visits) VALUES (?, ?, 0, ?)",
+                new Object[] { url, url, visits });
+    }
+
+    /**
+     * Asks for the visited history and waits for the given number of
+     * pages to be delivered on the UI thread.
+     */
+    private ArrayList<String[]> getVisitedHistory(int count) throws InterruptedException {
+        final ArrayList<String[]> pages = new ArrayList<String[]>();
+        final CountDownLatch delivered = new CountDownLatch(count);
+        new VisitedLinks(getMockContentResolver()).getVisitedHistory(
+                new ValueCallback<String[]>() {
+            @Override
+            public void onReceiveValue(String[] urls) {
+                synchronized (pages) {
+                    pages.add(urls);
+                }
+                delivered.countDown();
+            }
+        });
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        synchronized (pages) {
+            assertEquals(count, pages.size());
+            return new ArrayList<String[]>(pages);
+        }
+    }
+}